@@ -0,0 +1,33 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's own main class, taking the same options, but
+ * always with the GC profiler so every run reports allocation rates.
+ */
+public class BenchmarkMain
+{
+    public static void main(final String[] args)
+        throws Exception
+    {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers())
+        {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+}
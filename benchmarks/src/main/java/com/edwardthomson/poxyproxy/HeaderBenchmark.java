@@ -0,0 +1,88 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link HeaderFilter#filter(Iterable)} and the {@link HeaderUtils} lookups
+ * the handlers run on every request and response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class HeaderBenchmark
+{
+    private List<Header> requestHeaders;
+    private List<Header> responseHeaders;
+
+    @Setup
+    public void setup()
+    {
+        requestHeaders = BenchmarkData.parseHeaders(BenchmarkData.BROWSER_GET);
+        responseHeaders = BenchmarkData.parseHeaders(BenchmarkData.CHUNKED_RESPONSE_HEADERS);
+    }
+
+    @Benchmark
+    public List<Header> filterNeverTransmit()
+    {
+        return HeaderUtils.NEVER_TRANSMIT_FILTER.filter(requestHeaders);
+    }
+
+    @Benchmark
+    public List<Header> filterDirectRequest()
+    {
+        return HeaderUtils.DISALLOW_FOR_DIRECT_REQUESTS.filter(HeaderUtils.NEVER_TRANSMIT_FILTER.filter(requestHeaders));
+    }
+
+    @Benchmark
+    public Header findHeader()
+    {
+        return HeaderUtils.findHeader(Constants.CONNECTION_HEADER, requestHeaders);
+    }
+
+    /**
+     * The checks made to decide how a response body is framed and whether the
+     * connections stay open.
+     */
+    @Benchmark
+    public void responseLookups(final Blackhole blackhole)
+    {
+        blackhole.consume(HeaderUtils.isChunked(responseHeaders));
+        blackhole.consume(HeaderUtils.getContentLength(responseHeaders));
+        blackhole.consume(HeaderUtils.isConnectionClose(responseHeaders));
+        blackhole.consume(HeaderUtils.isConnectionKeepAlive(responseHeaders));
+    }
+
+    /**
+     * The checks made to decide whether a client connection stays open.
+     */
+    @Benchmark
+    public void requestLookups(final Blackhole blackhole)
+    {
+        blackhole.consume(HeaderUtils.getContentLength(requestHeaders));
+        blackhole.consume(HeaderUtils.isConnectionClose(requestHeaders));
+        blackhole.consume(HeaderUtils.isProxyConnectionClose(requestHeaders));
+        blackhole.consume(HeaderUtils.isProxyConnectionKeepAlive(requestHeaders));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Line, header and chunked-body reading, both from an {@link HttpInputStream}
+ * (what the proxy uses) and from a plain {@link java.io.InputStream}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class IOUtilsBenchmark
+{
+    @Param({ "1024", "65536" })
+    public int bodySize;
+
+    private byte[] requestLine;
+    private byte[] headers;
+    private byte[] chunkedBody;
+
+    private final OutputStream output = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup()
+    {
+        requestLine = BenchmarkData.bytes(BenchmarkData.BROWSER_GET.substring(0, BenchmarkData.BROWSER_GET.indexOf('\n') + 1));
+        headers = BenchmarkData.bytes(BenchmarkData.CHUNKED_RESPONSE_HEADERS);
+        chunkedBody = BenchmarkData.chunkedBody(bodySize, 4096);
+    }
+
+    @Benchmark
+    public String readLine()
+        throws IOException
+    {
+        return IOUtils.readLine(new HttpInputStream(requestLine, 0, requestLine.length));
+    }
+
+    @Benchmark
+    public String readLinePlainStream()
+        throws IOException
+    {
+        return IOUtils.readLine(new ByteArrayInputStream(requestLine));
+    }
+
+    @Benchmark
+    public List<Header> readHeaders()
+        throws IOException
+    {
+        return IOUtils.readHeaders(new HttpInputStream(headers, 0, headers.length));
+    }
+
+    @Benchmark
+    public List<Header> readHeadersPlainStream()
+        throws IOException
+    {
+        return IOUtils.readHeaders(new ByteArrayInputStream(headers));
+    }
+
+    @Benchmark
+    public void copyChunkedStream()
+        throws IOException
+    {
+        IOUtils.copyChunkedStream(new HttpInputStream(chunkedBody, 0, chunkedBody.length), output);
+    }
+
+    @Benchmark
+    public void copyChunkedStreamPlainStream()
+        throws IOException
+    {
+        IOUtils.copyChunkedStream(new ByteArrayInputStream(chunkedBody), output);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link NTLM#verifyResponse}, which the proxy runs for every NTLM
+ * authenticated connection, with a correct and an incorrect NTLMv2 response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class NTLMBenchmark
+{
+    private static final String USERNAME = "builduser";
+    private static final String DOMAIN = "CORP";
+    private static final String PASSWORD = "Pa$$w0rd!";
+    private static final String HOSTNAME = "BUILDAGENT01";
+
+    private NTLMMessage.Type2Message challenge;
+    private NTLMMessage.Type3Message response;
+    private NTLMMessage.Type3Message wrongResponse;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        final int flags = NTLMMessage.FLAG_NEGOTIATE_UNICODE
+            | NTLMMessage.FLAG_NEGOTIATE_NTLM
+            | NTLMMessage.FLAG_TARGET_TYPE_SERVER
+            | NTLMMessage.FLAG_NEGOTIATE_TARGET_INFO;
+
+        final NTLMMessage.TargetInformation targetInfo =
+            new NTLMMessage.TargetInformation(HOSTNAME, HOSTNAME, HOSTNAME, HOSTNAME, new Date());
+
+        challenge = new NTLMMessage.Type2Message(
+            flags,
+            new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 },
+            HOSTNAME,
+            targetInfo,
+            null);
+
+        response = new NTLMMessage.Type3Message(createType3(flags, PASSWORD));
+        wrongResponse = new NTLMMessage.Type3Message(createType3(flags, "wrong"));
+
+        if (!NTLM.verifyResponse(USERNAME, DOMAIN, PASSWORD, challenge, response)
+            || NTLM.verifyResponse(USERNAME, DOMAIN, PASSWORD, challenge, wrongResponse))
+        {
+            throw new IllegalStateException("Test NTLM responses did not verify as expected");
+        }
+    }
+
+    @Benchmark
+    public boolean verifyResponse()
+        throws Exception
+    {
+        return NTLM.verifyResponse(USERNAME, DOMAIN, PASSWORD, challenge, response);
+    }
+
+    @Benchmark
+    public boolean verifyWrongPassword()
+        throws Exception
+    {
+        return NTLM.verifyResponse(USERNAME, DOMAIN, PASSWORD, challenge, wrongResponse);
+    }
+
+    /**
+     * Builds the type 3 message a client would send for the challenge, with an
+     * NTLMv2 response computed from the given password.
+     */
+    private byte[] createType3(final int flags, final String password)
+        throws Exception
+    {
+        final byte[] targetInfo = challenge.getTargetInformation();
+
+        // The blob: signature, reserved, timestamp, client nonce, reserved,
+        // target information, reserved
+        final byte[] blob = new byte[28 + targetInfo.length + 4];
+        blob[0] = 1;
+        blob[1] = 1;
+        for (int i = 0; i < 8; i++)
+        {
+            blob[16 + i] = (byte) (0xA0 + i);
+        }
+        System.arraycopy(targetInfo, 0, blob, 28, targetInfo.length);
+
+        final MessageDigest md4 = MessageDigest.getInstance("MD4", new MD4Provider());
+        final byte[] ntlmHash = md4.digest(password.getBytes(StandardCharsets.UTF_16LE));
+
+        final Mac mac = Mac.getInstance("HmacMD5");
+        mac.init(new SecretKeySpec(ntlmHash, "HmacMD5"));
+        final byte[] ntlm2Hash = mac.doFinal((USERNAME.toUpperCase() + DOMAIN).getBytes(StandardCharsets.UTF_16LE));
+
+        mac.init(new SecretKeySpec(ntlm2Hash, "HmacMD5"));
+        mac.update(challenge.getChallenge());
+        final byte[] proof = mac.doFinal(blob);
+
+        final byte[] ntlmResponse = new byte[proof.length + blob.length];
+        System.arraycopy(proof, 0, ntlmResponse, 0, proof.length);
+        System.arraycopy(blob, 0, ntlmResponse, proof.length, blob.length);
+
+        final byte[] lmResponse = new byte[24];
+        final byte[] domain = DOMAIN.getBytes(StandardCharsets.UTF_16LE);
+        final byte[] username = USERNAME.getBytes(StandardCharsets.UTF_16LE);
+        final byte[] hostname = HOSTNAME.getBytes(StandardCharsets.UTF_16LE);
+
+        final byte[][] fields = { lmResponse, ntlmResponse, domain, username, hostname, new byte[0] };
+        int length = 64;
+        for (byte[] field : fields)
+        {
+            length += field.length;
+        }
+
+        final byte[] message = new byte[length];
+        System.arraycopy("NTLMSSP\0".getBytes(StandardCharsets.US_ASCII), 0, message, 0, 8);
+        putInt(message, 8, 3);
+
+        int position = 64;
+        for (int i = 0; i < fields.length; i++)
+        {
+            putShort(message, 12 + i * 8, fields[i].length);
+            putShort(message, 14 + i * 8, fields[i].length);
+            putInt(message, 16 + i * 8, position);
+            System.arraycopy(fields[i], 0, message, position, fields[i].length);
+            position += fields[i].length;
+        }
+
+        putInt(message, 60, flags);
+        return message;
+    }
+
+    private static void putShort(final byte[] buf, final int pos, final int value)
+    {
+        buf[pos] = (byte) value;
+        buf[pos + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(final byte[] buf, final int pos, final int value)
+    {
+        putShort(buf, pos, value);
+        putShort(buf, pos + 2, value >> 16);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Options#hostMatchesForwardProxyBypassHosts(String)}, which runs for
+ * every request when a forward proxy is configured, against bypass lists of
+ * increasing size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class OptionsBenchmark
+{
+    @Param({ "10", "1000", "10000" })
+    public int bypassHosts;
+
+    private final Options options = new Options();
+
+    @Setup
+    public void setup()
+    {
+        final List<String> hosts = new ArrayList<String>(bypassHosts);
+
+        // Mostly domain suffixes, with some exact host names
+        for (int i = 0; i < bypassHosts; i++)
+        {
+            hosts.add(i % 4 == 0 ? "host" + i + ".corp" + (i % 7) + ".example.com" : ".dept" + i + ".example.net");
+        }
+
+        options.setForwardProxyBypassHosts(hosts);
+        options.setForwardProxyBypassHostDefaultDomain("corp0.example.com");
+    }
+
+    @Benchmark
+    public boolean matchExactHost()
+    {
+        return options.hostMatchesForwardProxyBypassHosts("HOST0.corp0.example.com");
+    }
+
+    @Benchmark
+    public boolean matchDomainSuffix()
+    {
+        return options.hostMatchesForwardProxyBypassHosts("build.dept1.example.net");
+    }
+
+    /** The common case: a public host that goes through the forward proxy */
+    @Benchmark
+    public boolean noMatch()
+    {
+        return options.hostMatchesForwardProxyBypassHosts("www.example.org");
+    }
+
+    @Benchmark
+    public boolean matchShortName()
+    {
+        return options.hostMatchesForwardProxyBypassHosts("host0");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a whole request head, as a client connection does for every
+ * request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RequestBenchmark
+{
+    @Param({ "browserGet", "clientPost" })
+    public String request;
+
+    private byte[] head;
+
+    @Setup
+    public void setup()
+    {
+        head = BenchmarkData.bytes("clientPost".equals(request) ? BenchmarkData.CLIENT_POST : BenchmarkData.BROWSER_GET);
+    }
+
+    @Benchmark
+    public Request read()
+        throws HTTPException,
+            IOException
+    {
+        final Request r = new Request(new HttpInputStream(head, 0, head.length));
+        r.read();
+        return r;
+    }
+
+    /**
+     * Also decodes every header, which the handlers do when filtering and
+     * forwarding the request.
+     */
+    @Benchmark
+    public void readAndDecode(final Blackhole blackhole)
+        throws HTTPException,
+            IOException
+    {
+        final Request r = new Request(new HttpInputStream(head, 0, head.length));
+        r.read();
+
+        for (Header h : r.getHeaders())
+        {
+            blackhole.consume(h.getName());
+            blackhole.consume(h.getValue());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.text.MessageFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+import com.edwardthomson.poxyproxy.metrics.Phase;
+
+/**
+ * Decides which client connections the blocking engine serves, so it
+ * rejects quickly when it is overloaded instead of queueing without bound.
+ * <p>
+ * A connection is admitted when it is accepted, and waits in the executor's
+ * queue until a thread starts it. It is answered
+ * <code>503 Service Unavailable</code> with a <code>Retry-After</code> and
+ * closed:
+ * <ul>
+ * <li>when it is accepted, if the queue size in {@link Options} is reached,
+ * or its client already has the most connections allowed per client</li>
+ * <li>when it starts, if it waited longer than the queue timeout; the client
+ * has likely given up by then</li>
+ * </ul>
+ * TLS connections are closed without an answer, since the handshake would
+ * hold up the listener or a thread that is needed elsewhere. So are those from
+ * clients that keep sending request heads too slowly (see
+ * {@link SlowClientTable}).
+ */
+public class AdmissionControl
+{
+	private final static Logger logger = Logger.getLogger(AdmissionControl.class);
+
+	private static final int RETRY_AFTER_SECONDS = 1;
+
+	private final Options options;
+
+	/* Connections admitted and not yet started */
+	private final AtomicInteger queued = new AtomicInteger(0);
+
+	/* Open connections by client address; no entry for none */
+	private final ConcurrentHashMap<InetAddress, AtomicInteger> clients = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+	public AdmissionControl(final Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Called when a client connection is accepted.
+	 *
+	 * @return the admission, to be started and finished by the thread that
+	 *         serves the connection, or <code>null</code> if the connection
+	 *         was rejected and closed
+	 */
+	public Admission admit(final Socket client)
+	{
+		final Metrics metrics = options.getMetrics();
+		final InetAddress address = client.getInetAddress();
+
+		if (options.getSlowClientTable().isRefused(address))
+		{
+			metrics.countSlowClientRefused();
+			logger.write(LogLevel.DEBUG, "Refusing connection from slow client {}", client.getRemoteSocketAddress());
+			IOUtils.close(client);
+			return null;
+		}
+
+		final int maxQueued = options.getAdmissionQueueSize();
+
+		if (maxQueued > 0 && queued.get() >= maxQueued)
+		{
+			metrics.countRejectedQueueFull();
+			reject(client, "Too many connections are waiting");
+			return null;
+		}
+
+		final int maxPerClient = options.getMaxConnectionsPerClient();
+
+		if (maxPerClient > 0 && address != null)
+		{
+			final AtomicInteger count = clients.computeIfAbsent(address, a -> new AtomicInteger(0));
+
+			if (count.incrementAndGet() > maxPerClient)
+			{
+				release(address);
+				metrics.countRejectedClientLimit();
+				reject(client, "Too many connections from " + address.getHostAddress());
+				return null;
+			}
+		}
+
+		queued.incrementAndGet();
+		metrics.admissionQueued();
+
+		return new Admission(client, maxPerClient > 0 ? address : null);
+	}
+
+	/**
+	 * Called by the thread that serves the connection, before anything else.
+	 *
+	 * @return <code>false</code> if the connection waited too long and was
+	 *         rejected and closed; it is finished then
+	 */
+	public boolean start(final Admission admission)
+	{
+		final Metrics metrics = options.getMetrics();
+
+		queued.decrementAndGet();
+		metrics.admissionStarted();
+
+		final long waited = System.nanoTime() - admission.admittedAt;
+		metrics.record(Phase.AdmissionWait, admission.admittedAt);
+
+		final int timeoutSeconds = options.getAdmissionQueueTimeoutSeconds();
+
+		if (timeoutSeconds > 0 && waited > TimeUnit.SECONDS.toNanos(timeoutSeconds))
+		{
+			metrics.countRejectedQueueTimeout();
+			reject(admission.client, MessageFormat.format(
+					"Waited {0} ms for a thread", Long.toString(TimeUnit.NANOSECONDS.toMillis(waited))));
+			finish(admission);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Called when the connection is closed, if it was started.
+	 */
+	public void finish(final Admission admission)
+	{
+		if (admission.address != null)
+		{
+			release(admission.address);
+		}
+	}
+
+	/**
+	 * @return the number of connections admitted and waiting for a thread
+	 */
+	public int getQueued()
+	{
+		return queued.get();
+	}
+
+	private void release(final InetAddress address)
+	{
+		clients.computeIfPresent(address, (a, count) -> count.decrementAndGet() == 0 ? null : count);
+	}
+
+	/**
+	 * Answers 503 unless the socket is TLS, and closes it.
+	 */
+	private static void reject(final Socket client, final String reason)
+	{
+		logger.write(LogLevel.DEBUG, "Rejecting connection from {}: {}", client.getRemoteSocketAddress(), reason);
+
+		// A TLS handshake would wait for the client
+		if (!(client instanceof SSLSocket))
+		{
+			try
+			{
+				// Fits in the socket's send buffer, so it doesn't block
+				final OutputStream out = client.getOutputStream();
+				out.write(UTF8Utils.encode(MessageFormat.format(
+						"{0} {1} {2}\r\n{3}: {4}\r\n{5}: {6}\r\n{7}: {8}\r\n\r\n",
+						Constants.VERSION_11,
+						Integer.toString(Status.SERVICE_UNAVAILABLE),
+						Status.NAMES.get(Status.SERVICE_UNAVAILABLE),
+						Constants.RETRY_AFTER_HEADER,
+						Integer.toString(RETRY_AFTER_SECONDS),
+						Constants.CONTENT_LENGTH_HEADER,
+						"0",
+						Constants.CONNECTION_HEADER,
+						Constants.CONNECTION_CLOSE)));
+				out.flush();
+				client.shutdownOutput();
+
+				// Closing with unread input would reset the connection
+				client.getInputStream().skip(client.getInputStream().available());
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.DEBUG, "Could not answer rejected connection: {}", e.getMessage());
+			}
+		}
+
+		IOUtils.close(client);
+	}
+
+	/**
+	 * A connection that was admitted.
+	 */
+	public static class Admission
+	{
+		private final Socket client;
+
+		/* Counted toward the per-client limit if set */
+		private final InetAddress address;
+
+		private final long admittedAt = System.nanoTime();
+
+		private Admission(final Socket client, final InetAddress address)
+		{
+			this.client = client;
+			this.address = address;
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reusable buffers for copying bodies and relaying tunnels, so steady traffic
+ * allocates (almost) no buffers.
+ * <p>
+ * Buffers come in power-of-two size classes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}; larger requests are allocated and dropped as usual. Each
+ * platform thread keeps a few free buffers of each class; the rest are shared
+ * in bounded free lists, and buffers released beyond the bound are left to the
+ * garbage collector. Virtual threads skip the thread-local cache because there
+ * may be very many of them.
+ * <p>
+ * Byte arrays and {@link ByteBuffer}s are pooled separately. ByteBuffers are
+ * direct unless heap buffers were asked for.
+ */
+public class BufferPool
+{
+	public static final int MIN_SIZE = 4 * 1024;
+	public static final int MAX_SIZE = 64 * 1024;
+
+	private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+	private static final int THREAD_CACHE_SIZE = 4;
+
+	private static volatile BufferPool defaultPool = new BufferPool(64L * 1024 * 1024, true);
+
+	private final Arena<byte[]> arrays;
+	private final Arena<ByteBuffer> byteBuffers;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final AtomicLong bytesOutstanding = new AtomicLong(0);
+
+	/**
+	 * @param maxPooledBytes
+	 *        the most bytes kept in the shared free lists of each kind (arrays
+	 *        and byte buffers); 0 disables pooling
+	 * @param direct
+	 *        <code>true</code> to allocate direct byte buffers
+	 */
+	public BufferPool(final long maxPooledBytes, final boolean direct)
+	{
+		this.arrays = new Arena<byte[]>(maxPooledBytes)
+		{
+			@Override
+			byte[] allocate(int size)
+			{
+				return new byte[size];
+			}
+
+			@Override
+			int capacity(byte[] buffer)
+			{
+				return buffer.length;
+			}
+		};
+
+		this.byteBuffers = new Arena<ByteBuffer>(maxPooledBytes)
+		{
+			@Override
+			ByteBuffer allocate(int size)
+			{
+				return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			}
+
+			@Override
+			int capacity(ByteBuffer buffer)
+			{
+				return buffer.capacity();
+			}
+		};
+	}
+
+	/**
+	 * @return the pool used by the proxy
+	 */
+	public static BufferPool getDefault()
+	{
+		return defaultPool;
+	}
+
+	public static void setDefault(final BufferPool pool)
+	{
+		defaultPool = pool;
+	}
+
+	/**
+	 * @return an array of at least the given size, which should be returned
+	 *         with {@link #release(byte[])}
+	 */
+	public byte[] acquireBytes(final int minSize)
+	{
+		return arrays.acquire(minSize);
+	}
+
+	public void release(final byte[] buffer)
+	{
+		arrays.release(buffer);
+	}
+
+	/**
+	 * @return a cleared buffer with at least the given capacity, which should
+	 *         be returned with {@link #release(ByteBuffer)}
+	 */
+	public ByteBuffer acquireByteBuffer(final int minSize)
+	{
+		final ByteBuffer buffer = byteBuffers.acquire(minSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release(final ByteBuffer buffer)
+	{
+		byteBuffers.release(buffer);
+	}
+
+	/**
+	 * @return how many acquisitions were served from a free buffer
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * @return how many acquisitions allocated a new buffer
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * @return the total size of the buffers acquired and not yet released
+	 */
+	public long getBytesOutstanding()
+	{
+		return bytesOutstanding.get();
+	}
+
+	/**
+	 * @return a one-line summary for the metrics report, or <code>null</code>
+	 *         if no buffer was acquired
+	 */
+	public String report()
+	{
+		final long h = getHits();
+		final long m = getMisses();
+
+		if (h + m == 0)
+		{
+			return null;
+		}
+
+		return "hits=" + h + " misses=" + m + " bytes outstanding=" + getBytesOutstanding();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BufferPool [hits=" + getHits() + ", misses=" + getMisses() + ", bytesOutstanding="
+				+ getBytesOutstanding() + "]";
+	}
+
+	/**
+	 * @return the index of the smallest class that holds the size, or -1 if
+	 *         it's larger than the largest class
+	 */
+	private static int sizeClass(final int size)
+	{
+		if (size > MAX_SIZE)
+		{
+			return -1;
+		}
+
+		if (size <= MIN_SIZE)
+		{
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+
+	private static boolean useThreadCache()
+	{
+		return !VirtualThreads.isSupported() || !VirtualThreads.isVirtual(Thread.currentThread());
+	}
+
+	/**
+	 * The free buffers of one kind.
+	 */
+	private abstract class Arena<T>
+	{
+		private final Queue<T>[] free;
+		private final AtomicInteger[] freeCounts;
+		private final int[] maxFree;
+
+		private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>()
+		{
+			@Override
+			protected ThreadCache initialValue()
+			{
+				return new ThreadCache();
+			}
+		};
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Arena(final long maxPooledBytes)
+		{
+			free = new Queue[CLASS_COUNT];
+			freeCounts = new AtomicInteger[CLASS_COUNT];
+			maxFree = new int[CLASS_COUNT];
+
+			for (int i = 0; i < CLASS_COUNT; i++)
+			{
+				free[i] = new ConcurrentLinkedQueue<T>();
+				freeCounts[i] = new AtomicInteger(0);
+
+				// Each class gets an equal share of the bytes
+				maxFree[i] = (int) Math.min(Integer.MAX_VALUE, maxPooledBytes / CLASS_COUNT / (MIN_SIZE << i));
+			}
+		}
+
+		abstract T allocate(int size);
+
+		abstract int capacity(T buffer);
+
+		T acquire(final int minSize)
+		{
+			final int sizeClass = sizeClass(minSize);
+
+			if (sizeClass == -1)
+			{
+				misses.increment();
+				bytesOutstanding.addAndGet(minSize);
+				return allocate(minSize);
+			}
+
+			T buffer = null;
+
+			if (maxFree[sizeClass] > 0)
+			{
+				if (useThreadCache())
+				{
+					buffer = threadCache.get().poll(sizeClass);
+				}
+
+				if (buffer == null)
+				{
+					buffer = free[sizeClass].poll();
+
+					if (buffer != null)
+					{
+						freeCounts[sizeClass].decrementAndGet();
+					}
+				}
+			}
+
+			if (buffer != null)
+			{
+				hits.increment();
+			}
+			else
+			{
+				misses.increment();
+				buffer = allocate(MIN_SIZE << sizeClass);
+			}
+
+			bytesOutstanding.addAndGet(capacity(buffer));
+			return buffer;
+		}
+
+		void release(final T buffer)
+		{
+			if (buffer == null)
+			{
+				return;
+			}
+
+			final int capacity = capacity(buffer);
+			bytesOutstanding.addAndGet(-capacity);
+
+			final int sizeClass = sizeClass(capacity);
+
+			// Only exact class sizes are pooled
+			if (sizeClass == -1 || capacity != MIN_SIZE << sizeClass || maxFree[sizeClass] == 0)
+			{
+				return;
+			}
+
+			if (useThreadCache() && threadCache.get().offer(sizeClass, buffer))
+			{
+				return;
+			}
+
+			if (freeCounts[sizeClass].incrementAndGet() <= maxFree[sizeClass])
+			{
+				free[sizeClass].offer(buffer);
+			}
+			else
+			{
+				freeCounts[sizeClass].decrementAndGet();
+			}
+		}
+
+		/**
+		 * A few free buffers of each class for one thread.
+		 */
+		private class ThreadCache
+		{
+			private final Object[][] buffers = new Object[CLASS_COUNT][THREAD_CACHE_SIZE];
+			private final int[] counts = new int[CLASS_COUNT];
+
+			@SuppressWarnings("unchecked")
+			T poll(final int sizeClass)
+			{
+				if (counts[sizeClass] == 0)
+				{
+					return null;
+				}
+
+				final int index = --counts[sizeClass];
+				final T buffer = (T) buffers[sizeClass][index];
+				buffers[sizeClass][index] = null;
+				return buffer;
+			}
+
+			boolean offer(final int sizeClass, final T buffer)
+			{
+				if (counts[sizeClass] == THREAD_CACHE_SIZE)
+				{
+					return false;
+				}
+
+				buffers[sizeClass][counts[sizeClass]++] = buffer;
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,468 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The forward proxy bypass list, compiled for matching hosts without a scan
+ * of the entries. Never modified; a changed list is compiled again.
+ * <p>
+ * Entries are matched on whole labels, so <code>example.com</code> matches
+ * <code>example.com</code> and <code>www.example.com</code>, but not
+ * <code>evil-example.com</code>. An entry may be:
+ * <ul>
+ * <li>a host or domain, like <code>example.com</code></li>
+ * <li>subdomains only, like <code>*.example.com</code> or
+ * <code>.example.com</code>; a <code>*</code> label elsewhere matches any one
+ * label, and <code>*</code> alone matches every host name</li>
+ * <li>an IP address, like <code>10.1.2.3</code> or <code>::1</code></li>
+ * <li>a network, like <code>10.0.0.0/8</code>, <code>fd00::/8</code> or
+ * <code>192.168.*</code></li>
+ * </ul>
+ * Host names are looked up in a trie of labels, last label first, so a
+ * lookup takes time in the number of labels of the host. Addresses are looked
+ * up once per prefix length in the list.
+ */
+public class BypassList
+{
+	public static final BypassList EMPTY = new BypassList(Collections.<String>emptySet());
+
+	private static final String WILDCARD = "*";
+
+	/* The entries as given, lower-cased */
+	private final Set<String> entries;
+
+	private final Node root = new Node();
+
+	/* Networks by prefix length, longest first, and by address length */
+	private final Map<Integer, Set<ByteBuffer>> ipv4Networks = new TreeMap<Integer, Set<ByteBuffer>>(Collections.reverseOrder());
+	private final Map<Integer, Set<ByteBuffer>> ipv6Networks = new TreeMap<Integer, Set<ByteBuffer>>(Collections.reverseOrder());
+
+	/**
+	 * @param hostsOrDomains
+	 *        the entries; each may be a comma-separated list
+	 * @throws IllegalArgumentException
+	 *         if an entry isn't a valid host, domain, address or network
+	 */
+	public static BypassList compile(final Collection<String> hostsOrDomains)
+	{
+		final Set<String> entries = new HashSet<String>();
+
+		for (String list : hostsOrDomains)
+		{
+			for (String entry : list.split(","))
+			{
+				final String lower = entry.trim().toLowerCase(Locale.ROOT);
+
+				if (lower.length() > 0)
+				{
+					entries.add(lower);
+				}
+			}
+		}
+
+		return new BypassList(entries);
+	}
+
+	private BypassList(final Set<String> entries)
+	{
+		this.entries = Collections.unmodifiableSet(entries);
+
+		for (String entry : entries)
+		{
+			if (!addNetwork(entry))
+			{
+				addDomain(entry);
+			}
+		}
+	}
+
+	public Set<String> getEntries()
+	{
+		return entries;
+	}
+
+	public boolean isEmpty()
+	{
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @param host
+	 *        a host name or IP address, in any case
+	 * @param defaultDomain
+	 *        appended to host names without a dot before matching, or
+	 *        <code>null</code>
+	 */
+	public boolean matches(String host, final String defaultDomain)
+	{
+		if (entries.isEmpty() || host == null)
+		{
+			return false;
+		}
+
+		if (host.startsWith("[") && host.endsWith("]"))
+		{
+			host = host.substring(1, host.length() - 1);
+		}
+
+		final byte[] address = parseAddress(host);
+
+		if (address != null)
+		{
+			return matchesNetwork(address);
+		}
+
+		if (host.indexOf('.') < 0 && defaultDomain != null)
+		{
+			host = host + "." + stripDots(defaultDomain);
+		}
+
+		final String[] labels = stripDots(host).toLowerCase(Locale.ROOT).split("\\.", -1);
+		return matches(root, labels, labels.length);
+	}
+
+	/**
+	 * @param remaining
+	 *        the labels left to match, from the first
+	 */
+	private static boolean matches(final Node node, final String[] labels, final int remaining)
+	{
+		if (remaining == 0)
+		{
+			return node.exact;
+		}
+
+		if (node.subdomains)
+		{
+			return true;
+		}
+
+		final Node child = node.children.get(labels[remaining - 1]);
+
+		if (child != null && matches(child, labels, remaining - 1))
+		{
+			return true;
+		}
+
+		return node.wildcard != null && matches(node.wildcard, labels, remaining - 1);
+	}
+
+	private boolean matchesNetwork(final byte[] address)
+	{
+		final Map<Integer, Set<ByteBuffer>> networks = address.length == 4 ? ipv4Networks : ipv6Networks;
+
+		for (Map.Entry<Integer, Set<ByteBuffer>> entry : networks.entrySet())
+		{
+			if (entry.getValue().contains(ByteBuffer.wrap(mask(address, entry.getKey()))))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void addDomain(final String entry)
+	{
+		String domain = entry;
+		boolean subdomainsOnly = false;
+
+		if (domain.equals(WILDCARD))
+		{
+			root.subdomains = true;
+			return;
+		}
+
+		if (domain.startsWith("*."))
+		{
+			domain = domain.substring(2);
+			subdomainsOnly = true;
+		}
+		else if (domain.startsWith("."))
+		{
+			subdomainsOnly = true;
+		}
+
+		final String[] labels = stripDots(domain).split("\\.", -1);
+		Node node = root;
+
+		for (int i = labels.length - 1; i >= 0; i--)
+		{
+			if (labels[i].length() == 0)
+			{
+				throw invalid(entry);
+			}
+
+			if (labels[i].equals(WILDCARD))
+			{
+				if (node.wildcard == null)
+				{
+					node.wildcard = new Node();
+				}
+
+				node = node.wildcard;
+			}
+			else
+			{
+				Node child = node.children.get(labels[i]);
+
+				if (child == null)
+				{
+					child = new Node();
+					node.children.put(labels[i], child);
+				}
+
+				node = child;
+			}
+		}
+
+		node.subdomains = true;
+
+		if (!subdomainsOnly)
+		{
+			node.exact = true;
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the entry isn't an address or network
+	 */
+	private boolean addNetwork(final String entry)
+	{
+		String address = entry;
+		int prefixLength = -1;
+
+		final int slash = entry.indexOf('/');
+
+		if (slash >= 0)
+		{
+			address = entry.substring(0, slash);
+
+			try
+			{
+				prefixLength = Integer.parseInt(entry.substring(slash + 1));
+			}
+			catch (NumberFormatException e)
+			{
+				throw invalid(entry);
+			}
+		}
+		else if (entry.endsWith(".*") && isDottedNumbers(entry.substring(0, entry.length() - 2)))
+		{
+			// 192.168.* is 192.168.0.0/16
+			final String[] octets = entry.substring(0, entry.length() - 2).split("\\.");
+
+			if (octets.length > 3)
+			{
+				throw invalid(entry);
+			}
+
+			final StringBuilder padded = new StringBuilder(entry.substring(0, entry.length() - 2));
+			for (int i = octets.length; i < 4; i++)
+			{
+				padded.append(".0");
+			}
+
+			address = padded.toString();
+			prefixLength = octets.length * 8;
+		}
+
+		if (address.startsWith("[") && address.endsWith("]"))
+		{
+			address = address.substring(1, address.length() - 1);
+		}
+
+		final byte[] bytes = parseAddress(address);
+
+		if (bytes == null)
+		{
+			if (slash >= 0)
+			{
+				throw invalid(entry);
+			}
+
+			return false;
+		}
+
+		if (prefixLength == -1)
+		{
+			prefixLength = bytes.length * 8;
+		}
+
+		if (prefixLength < 0 || prefixLength > bytes.length * 8)
+		{
+			throw invalid(entry);
+		}
+
+		final Map<Integer, Set<ByteBuffer>> networks = bytes.length == 4 ? ipv4Networks : ipv6Networks;
+		Set<ByteBuffer> prefixes = networks.get(prefixLength);
+
+		if (prefixes == null)
+		{
+			prefixes = new HashSet<ByteBuffer>();
+			networks.put(prefixLength, prefixes);
+		}
+
+		prefixes.add(ByteBuffer.wrap(mask(bytes, prefixLength)));
+		return true;
+	}
+
+	/**
+	 * Parses an IP address literal without looking up host names.
+	 *
+	 * @return the address bytes, or <code>null</code> if the string isn't an
+	 *         IP address
+	 */
+	private static byte[] parseAddress(final String string)
+	{
+		if (string.indexOf(':') >= 0)
+		{
+			for (int i = 0; i < string.length(); i++)
+			{
+				final char c = string.charAt(i);
+
+				if (Character.digit(c, 16) < 0 && c != ':' && c != '.')
+				{
+					return null;
+				}
+			}
+
+			try
+			{
+				// A literal, so never a name lookup
+				return InetAddress.getByName(string).getAddress();
+			}
+			catch (UnknownHostException e)
+			{
+				return null;
+			}
+			catch (SecurityException e)
+			{
+				return null;
+			}
+		}
+
+		if (!isDottedNumbers(string))
+		{
+			return null;
+		}
+
+		final String[] octets = string.split("\\.", -1);
+
+		if (octets.length != 4)
+		{
+			return null;
+		}
+
+		final byte[] bytes = new byte[4];
+
+		for (int i = 0; i < 4; i++)
+		{
+			if (octets[i].length() == 0 || octets[i].length() > 3)
+			{
+				return null;
+			}
+
+			final int octet = Integer.parseInt(octets[i]);
+
+			if (octet > 255)
+			{
+				return null;
+			}
+
+			bytes[i] = (byte) octet;
+		}
+
+		return bytes;
+	}
+
+	private static boolean isDottedNumbers(final String string)
+	{
+		if (string.length() == 0)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < string.length(); i++)
+		{
+			final char c = string.charAt(i);
+
+			if ((c < '0' || c > '9') && c != '.')
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return a copy of the address with the bits after the prefix cleared
+	 */
+	private static byte[] mask(final byte[] address, final int prefixLength)
+	{
+		final byte[] masked = new byte[address.length];
+
+		for (int i = 0; i < address.length; i++)
+		{
+			final int bits = Math.min(Math.max(prefixLength - i * 8, 0), 8);
+			masked[i] = (byte) (address[i] & (0xff00 >> bits));
+		}
+
+		return masked;
+	}
+
+	private static String stripDots(String name)
+	{
+		int start = 0;
+		int end = name.length();
+
+		while (start < end && name.charAt(start) == '.')
+		{
+			start++;
+		}
+
+		while (end > start && name.charAt(end - 1) == '.')
+		{
+			end--;
+		}
+
+		return name.substring(start, end);
+	}
+
+	private static IllegalArgumentException invalid(final String entry)
+	{
+		return new IllegalArgumentException(MessageFormat.format("Invalid proxy bypass entry: {0}", entry));
+	}
+
+	private static class Node
+	{
+		private final Map<String, Node> children = new HashMap<String, Node>();
+
+		/* The child for a "*" label */
+		private Node wildcard;
+
+		/* Whether the name ending here matches */
+		private boolean exact;
+
+		/* Whether names below here match */
+		private boolean subdomains;
+	}
+}
@@ -7,25 +7,29 @@
 package com.edwardthomson.poxyproxy;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
-import java.util.Base64;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.edwardthomson.poxyproxy.handlers.ConnectRequestHandler;
 import com.edwardthomson.poxyproxy.handlers.DefaultRequestHandler;
 import com.edwardthomson.poxyproxy.handlers.RequestHandler;
+import com.edwardthomson.poxyproxy.http2.Http2Connection;
 import com.edwardthomson.poxyproxy.logger.LogLevel;
 import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.MeteredInputStream;
+import com.edwardthomson.poxyproxy.metrics.MeteredOutputStream;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+import com.edwardthomson.poxyproxy.metrics.Phase;
+import com.edwardthomson.poxyproxy.nio.TunnelRelay;
 
 /**
  * A connection corresponds to one client-to-proxy TCP socket, which is
@@ -35,6 +39,16 @@ import com.edwardthomson.poxyproxy.logger.Logger;
  * This is a {@link Runnable} and is always run in its own thread. It runs until
  * the client-to-proxy socket closes, or until the proxy-to-server socket
  * closes, or until some fatal error causes both sides to close.
+ * <p>
+ * Requests a client pipelines behind a GET or HEAD are read while the
+ * response to it is written, up to the pipeline depth in {@link Options}, and
+ * GETs and HEADs among them are handled at once on other threads (see
+ * {@link PipelinedRequest}). Responses are still written in order. Reading
+ * ahead stops at any other request, whose body is still to be read, and which
+ * is handled only once the responses before it were written.
+ * <p>
+ * A client that starts with the HTTP/2 connection preface is served by an
+ * {@link Http2Connection} instead, which runs on this thread.
  */
 public class Connection
 implements Runnable
@@ -45,23 +59,76 @@ implements Runnable
 	private final Options options;
 	private final ExecutorService executorService;
 
+	/* Relays CONNECT tunnels, so they can't take the threads requests need */
+	private final WorkerPool tunnelExecutorService;
+
 	/* Session auth mechanisms like NTLM will authenticate the entire keep-alive session. */
-	private boolean authenticated = false;
-	private NTLMMessage.Type2Message ntlmChallenge;
+	private final ProxyAuthenticator authenticator;
+
+	/* Proxy-to-server connections are shared with every other connection. */
+	private final UpstreamPool upstreamPool;
+
+	/* May be null */
+	private final TunnelRelay tunnelRelay;
+
+	/* Set when a handler took over the client socket */
+	private boolean detached = false;
+
+	/*
+	 * Run once the client is gone: when run() returns, or, if a tunnel took
+	 * over the client socket, when the tunnel closes. May be null.
+	 */
+	private volatile Runnable onClosed;
+	private final AtomicBoolean closeReported = new AtomicBoolean(false);
+
+	/* Read by a threaded tunnel after a detach, so released when it closes */
+	private volatile HttpInputStream clientInput;
+
+	private final Metrics metrics;
+
+	/* When the socket was accepted, by System.nanoTime() */
+	private final long acceptNanos = System.nanoTime();
 
 	/**
-	 * Maps a pair of addresses (client-to-proxy, proxy-to-server) to the
-	 * proxyToServer {@link Socket} that was previously established for
-	 * communicating with that server.
+	 * Proxy-to-server connections held for this client only, because the
+	 * server started a connection-based (NTLM or Negotiate) authentication
+	 * handshake on them. They stay with the client after the handshake, since
+	 * the connection itself is authenticated, and are closed when it goes.
 	 */
-	private Map<PersistentServerSocketMapKey, Socket> persistentProxyToServerSockets =
-			new HashMap<PersistentServerSocketMapKey, Socket>();
+	private final Map<UpstreamKey, UpstreamConnection> pinnedUpstreams = new HashMap<UpstreamKey, UpstreamConnection>();
 
-	public Connection(final Socket socket, final Options options, final ExecutorService executorService)
+	/* Set when the connection is done, so pipelined requests don't pin upstreams; guarded by pinnedUpstreams */
+	private boolean closed = false;
+
+	/* Requests read ahead of the one whose response is being written */
+	private final Deque<PipelinedRequest> pipeline = new ArrayDeque<PipelinedRequest>();
+
+	/* The request read last, and whether the connection stays open after it */
+	private PipelinedRequest lastRead;
+	private boolean lastReadKeepAlive = true;
+
+	private long requestCount = 0;
+
+	/* Set when the client started with the HTTP/2 preface instead of a request */
+	private boolean http2 = false;
+	private boolean connectionHeaderRead = false;
+
+	public Connection(
+			final Socket socket,
+			final Options options,
+			final ExecutorService executorService,
+			final WorkerPool tunnelExecutorService,
+			final UpstreamPool upstreamPool,
+			final TunnelRelay tunnelRelay)
 	{
 		this.clientToProxySocket = socket;
 		this.options = options;
 		this.executorService = executorService;
+		this.tunnelExecutorService = tunnelExecutorService;
+		this.upstreamPool = upstreamPool;
+		this.tunnelRelay = tunnelRelay;
+		this.authenticator = new ProxyAuthenticator(options);
+		this.metrics = options.getMetrics();
 	}
 
 	public Options getOptions()
@@ -74,58 +141,183 @@ implements Runnable
 		return executorService;
 	}
 
+	public WorkerPool getTunnelExecutorService()
+	{
+		return tunnelExecutorService;
+	}
+
 	public Socket getClientToProxySocket()
 	{
 		return clientToProxySocket;
 	}
 
-	public void putPersistentProxyToServerSocket(PersistentServerSocketMapKey key, Socket proxyToServerSocket)
+	/**
+	 * @return the relay for CONNECT tunnels, or <code>null</code> if tunnels
+	 *         are relayed with threads
+	 */
+	public TunnelRelay getTunnelRelay()
+	{
+		return tunnelRelay;
+	}
+
+	/**
+	 * Stops processing requests without closing the client socket, which now
+	 * belongs to whoever called this. The caller must call
+	 * {@link #tunnelClosed()} when it is done with the socket.
+	 */
+	public void detach()
 	{
-		persistentProxyToServerSockets.put(key, proxyToServerSocket);
+		detached = true;
 	}
 
-	public void removePersistentProxyToServerSocket(PersistentServerSocketMapKey key)
+	/**
+	 * Sets what to run once the client is gone, like releasing what was held
+	 * for the connection when it was admitted. Must be called before
+	 * {@link #run()}.
+	 */
+	public void setOnClosed(Runnable onClosed)
 	{
-		persistentProxyToServerSockets.remove(key);
+		this.onClosed = onClosed;
 	}
 
 	/**
-	 * @return the proxy-to-server {@link Socket} that was previously
-	 *         established for the key, or <code>null</code> if there is none
+	 * Called by the tunnel that took over a {@link #detach() detached}
+	 * connection when it closes. Safe to call from any thread, even before
+	 * the connection's own thread is done.
 	 */
-	public Socket getPersistentProxyToServerSocket(PersistentServerSocketMapKey key)
+	public void tunnelClosed()
 	{
-		return persistentProxyToServerSockets.get(key);
+		reportClosed();
+	}
+
+	/**
+	 * Releases the client's stream and runs what was set to run once the
+	 * client is gone, the first time it's called.
+	 */
+	private void reportClosed()
+	{
+		if (!closeReported.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		final HttpInputStream in = clientInput;
+		if (in != null)
+		{
+			in.release();
+		}
+
+		final Runnable r = onClosed;
+		if (r != null)
+		{
+			r.run();
+		}
+	}
+
+	/**
+	 * Gets a proxy-to-server connection for the key: the one pinned to this
+	 * client if there is one, otherwise one from the shared pool.
+	 */
+	public UpstreamConnection acquireUpstream(UpstreamKey key)
+			throws IOException
+	{
+		final UpstreamConnection pinned;
+		synchronized (pinnedUpstreams)
+		{
+			pinned = pinnedUpstreams.remove(key);
+		}
+
+		if (pinned != null)
+		{
+			logger.write(LogLevel.DEBUG, "Using proxy-to-server socket pinned for authentication {}", pinned);
+			return pinned;
+		}
+
+		return upstreamPool.acquire(key);
+	}
+
+	/**
+	 * Returns a proxy-to-server connection after a request. One that is
+	 * {@link UpstreamConnection#isAuthenticationBound() bound by
+	 * authentication} is kept for this client's next request to the same key
+	 * instead of being shared.
+	 *
+	 * @param reusable
+	 *        <code>true</code> if the server will keep the connection open
+	 */
+	public void releaseUpstream(UpstreamConnection upstream, boolean reusable)
+	{
+		if (reusable && upstream.isAuthenticationBound())
+		{
+			final boolean kept;
+			final UpstreamConnection previous;
+			synchronized (pinnedUpstreams)
+			{
+				// Nobody can finish the handshake once this client is gone
+				kept = !closed;
+				previous = kept ? pinnedUpstreams.put(upstream.getKey(), upstream) : upstream;
+			}
+
+			if (previous != null && (previous != upstream || !kept))
+			{
+				upstreamPool.discard(previous);
+			}
+		}
+		else
+		{
+			upstreamPool.release(upstream, reusable);
+		}
+	}
+
+	/**
+	 * Closes a proxy-to-server connection that failed.
+	 */
+	public void discardUpstream(UpstreamConnection upstream)
+	{
+		upstreamPool.discard(upstream);
 	}
 
 	public void run()
 	{
-		long requestCount = 0;
-		boolean connectionHeaderRead = false;
 		boolean keepAlive = true;
 
 		String oldName = Thread.currentThread().getName();
 		Thread.currentThread().setName("Connection-" + clientToProxySocket.getRemoteSocketAddress());
+		metrics.connectionOpened();
+
 		try
 		{
 			initializeClientToProxySocket();
 
-			final InputStream in = clientToProxySocket.getInputStream();
-			final OutputStream out = clientToProxySocket.getOutputStream();
+			// Reused for every request; it may read ahead into the next one
+			final HttpInputStream in = new HttpInputStream(new MeteredInputStream(clientToProxySocket.getInputStream(), metrics));
+			clientInput = in;
+			in.setLimits(options);
+			final OutputStream out = new MeteredOutputStream(clientToProxySocket.getOutputStream(), metrics);
 
-			while (keepAlive)
+			while (keepAlive && !detached)
 			{
 				// Allocate a response with a default version so we can respond
 				// to request protocol errors
 
 				final Response response = new Response(out, Constants.VERSION_10);
+				response.setChannel(clientToProxySocket.getChannel());
+
+				// Read the request, unless it was read ahead
 
-				// Read the request
+				final PipelinedRequest next = pipeline.isEmpty() ? readRequest(in) : pipeline.removeFirst();
 
-				final Request request = new Request(in);
+				if (http2)
+				{
+					new Http2Connection(this, in, out).run();
+					return;
+				}
+				final Request request;
 				try
 				{
-					if (!request.read())
+					request = next.getRequest();
+
+					if (request == null)
 					{
 						/*
 						 * Socket closed before reading any part of request,
@@ -142,23 +334,21 @@ implements Runnable
 						break;
 					}
 
-					requestCount++;
-
-					final Header connectionHeader = findHeader(Constants.CONNECTION_HEADER, request.getHeaders());
-					if (connectionHeader != null)
-					{
-						keepAlive = connectionHeader.getValue().equalsIgnoreCase(Constants.CONNECTION_KEEP_ALIVE);
-						connectionHeaderRead = true;
-					}
-					else if (!connectionHeaderRead)
+					if (next.getKeepAlive() != null)
 					{
-						keepAlive = request.getVersion().equals(Constants.VERSION_11);
+						keepAlive = next.getKeepAlive();
 					}
 				}
 				catch (HTTPException e)
 				{
+					if (e instanceof HeadTooLargeException)
+					{
+						metrics.countOversizedRequestHead();
+					}
+
 					// Protocol error or similar
-					response.writeError(Status.BAD_REQUEST, e);
+					response.writeError(e.getStatus(), e);
+					metrics.countResponse(e.getStatus());
 					break;
 				}
 				catch (SocketException e)
@@ -179,8 +369,10 @@ implements Runnable
 				response.setVersion(request.getVersion());
 
 				if (options.isAuthenticationRequired() &&
-						!handleAuthentication(request, response))
+						!authenticator.authenticate(request, response))
 				{
+					metrics.countResponse(response.getStatus());
+
 					if (HeaderUtils.isConnectionKeepAlive(response.getHeaders()))
 					{
 						keepAlive = true;
@@ -209,27 +401,51 @@ implements Runnable
 					response.writeError(
 							Status.BAD_REQUEST,
 							"This proxy server does not support the " + request.getMethod() + " method");
+					metrics.countResponse(Status.BAD_REQUEST);
 					break;
 				}
 
+				// Get the requests pipelined behind this one going
+
+				readAhead(in);
+
 				/*
 				 * After here we can't write an error response because some
 				 * bytes may have already been sent by the handler. Handlers
 				 * mostly handle their own errors.
 				 */
 
-				if (!handler.handle(request, response))
+				Response written = next.writeTo(out);
+				final boolean handled;
+
+				if (written != null)
+				{
+					// It was read ahead and handled on another thread
+					handled = next.isHandled();
+				}
+				else
+				{
+					handled = handler.handle(request, response);
+					written = response;
+				}
+
+				if (written.getStatus() != 0)
+				{
+					metrics.countResponse(written.getStatus());
+				}
+
+				if (!handled)
 				{
 					/*
 					 * The handler was unsuccessful and we should close this
 					 * connection.
 					 */
-					logger.write(LogLevel.DEBUG, "Handler " + handler + " was unsuccessful, closing connection");
+					logger.write(LogLevel.DEBUG, "Handler {} was unsuccessful, closing connection", handler);
 
 					// Best effort flush
 					try
 					{
-						response.flush();
+						written.flush();
 					}
 					catch (IOException e)
 					{
@@ -240,7 +456,7 @@ implements Runnable
 				}
 
 				// Ensure everything was written
-				response.flush();
+				written.flush();
 
 				/*
 				 * Make sure we wrote the same number of bytes the header
@@ -252,19 +468,19 @@ implements Runnable
 				 * that case.
 				 */
 				if (!request.getMethod().equalsIgnoreCase(Constants.HEAD_METHOD)
-						&& response.getContentLengthHeaderValue() != -1
-						&& response.getContentLengthHeaderValue() != response.getActualResponseBodyLength())
+						&& written.getContentLengthHeaderValue() != -1
+						&& written.getContentLengthHeaderValue() != written.getActualResponseBodyLength())
 				{
 					logger.write(LogLevel.WARNING, MessageFormat.format(
 							"Header Content-Length {0} != {1} actually written bytes",
-							response.getContentLengthHeaderValue(),
-							response.getActualResponseBodyLength()));
+							written.getContentLengthHeaderValue(),
+							written.getActualResponseBodyLength()));
 
 					break;
 				}
 
-				if (HeaderUtils.isConnectionClose(response.getHeaders())
-						|| HeaderUtils.isProxyConnectionClose(response.getHeaders()))
+				if (HeaderUtils.isConnectionClose(written.getHeaders())
+						|| HeaderUtils.isProxyConnectionClose(written.getHeaders()))
 				{
 					keepAlive = false;
 				}
@@ -272,7 +488,7 @@ implements Runnable
 		}
 		catch (SocketTimeoutException e)
 		{
-			logger.write(LogLevel.DEBUG, "Read timeout on " + clientToProxySocket);
+			logger.write(LogLevel.DEBUG, "Read timeout on {}", clientToProxySocket);
 		}
 		catch (IOException e)
 		{
@@ -288,136 +504,227 @@ implements Runnable
 		}
 		finally
 		{
-			IOUtils.close(clientToProxySocket);
+			for (PipelinedRequest queued : pipeline)
+			{
+				queued.abandon();
+			}
+			pipeline.clear();
+
+			// Nobody else can finish a handshake started by this client
+			synchronized (pinnedUpstreams)
+			{
+				closed = true;
+
+				for (UpstreamConnection pinned : pinnedUpstreams.values())
+				{
+					upstreamPool.discard(pinned);
+				}
+				pinnedUpstreams.clear();
+			}
+
+			metrics.connectionClosed();
+
+			// A tunnel that took over the client socket reports when it closes
+			if (!detached)
+			{
+				IOUtils.close(clientToProxySocket);
+				reportClosed();
+			}
+
 			Thread.currentThread().setName(oldName);
 		}
 	}
 
-	private boolean handleAuthentication(Request request, Response response)
-			throws Exception
+	/**
+	 * Reads the next request from the client. A failure to read it is kept in
+	 * the result, to be dealt with when its turn comes.
+	 */
+	private PipelinedRequest readRequest(final HttpInputStream in)
 	{
-		final Header authentication = findHeader(Constants.PROXY_AUTHORIZATION_HEADER, request.getHeaders());
-		final List<Header> responseHeaders = response.getHeaders();
-		String challengeMessage = null;
-
-		if (authentication != null)
+		final TimingWheel wheel = options.getTimingWheel();
+		final int headerReadTimeoutSeconds = options.getHeaderReadTimeoutSeconds();
+
+		/*
+		 * A new connection may wait up to the header read timeout before it
+		 * starts the first request, a kept-alive one up to the keep-alive
+		 * timeout before the next. From its first byte, a head must arrive
+		 * within the header read timeout and at the minimum rate.
+		 */
+		HeadReadWatch watch = null;
+
+		final Request request = new Request(in);
+		try
 		{
-			logger.write(LogLevel.TRACE, "Received authentication header: " + authentication.getValue());
-		}
+			final SocketDeadline idle = SocketDeadline.start(
+					wheel,
+					clientToProxySocket,
+					requestCount == 0 ? headerReadTimeoutSeconds : options.getKeepAliveTimeoutSeconds());
+			final boolean more = in.awaitData();
+
+			// Nothing was sent, so it isn't held against the client
+			if (idle.cancel())
+			{
+				if (requestCount == 0)
+				{
+					lastRead = new PipelinedRequest(headerReadTimeout(headerReadTimeoutSeconds));
+					return lastRead;
+				}
 
-		if (authenticated)
-		{
-			logger.write(LogLevel.DEBUG, "Connection authentication; continuing");
-			return true;
-		}
-		else if (options.getAuthenticationType() == AuthenticationType.NTLM &&
-				authentication != null &&
-				authentication.getValue().startsWith("NTLM "))
-		{
-			byte[] data = Base64.getDecoder().decode(authentication.getValue().substring(5));
-			NTLMMessage message = NTLMMessage.parse(data);
+				logger.write(LogLevel.DEBUG, "Closing idle connection {}", clientToProxySocket);
+				lastRead = new PipelinedRequest(null, null);
+				return lastRead;
+			}
 
-			if (message.getType() == 1)
+			if (!more)
 			{
-				ntlmChallenge = NTLM.createChallenge((NTLMMessage.Type1Message)message);
-				challengeMessage = Base64.getEncoder().encodeToString(ntlmChallenge.createMessage());
+				lastRead = new PipelinedRequest(null, null);
+				return lastRead;
 			}
-			else if (ntlmChallenge != null && message.getType() == 3)
-			{
-				NTLMMessage.Type3Message responseMessage = (NTLMMessage.Type3Message)message;
-				String username = responseMessage.getUsername();
-				String password = options.getProxyCredentials(username);
 
-				if (password != null && NTLM.verifyResponse(username, null, password, ntlmChallenge, responseMessage))
-				{
-					logger.write(LogLevel.DEBUG,  "NTLM authentication accepted");
+			watch = new HeadReadWatch(
+					wheel,
+					clientToProxySocket,
+					in,
+					headerReadTimeoutSeconds,
+					options.getMinHeaderRateBytesPerSecond());
 
-					authenticated = true;
-					return true;
+			// HTTP/2 with prior knowledge, or negotiated with ALPN; a preface is
+			// held to the same deadline and rate as a head
+			if (requestCount == 0 && options.isHttp2Enabled() && in.startsWith(Http2Connection.PREFACE))
+			{
+				if (watch.cancel())
+				{
+					lastRead = new PipelinedRequest(slowHead(watch, headerReadTimeoutSeconds));
+					return lastRead;
 				}
 
-				logger.write(LogLevel.DEBUG, "Authentication failed in NTLM response");
-				ntlmChallenge = null;
+				http2 = true;
+				lastRead = new PipelinedRequest(null, null);
+				return lastRead;
 			}
-			else
+
+			final boolean read = request.read();
+
+			// Its input was shut down, so nothing more can be read
+			if (watch.cancel())
 			{
-				logger.write(LogLevel.DEBUG, "Invalid NTLM message received");
-				ntlmChallenge = null;
+				lastRead = new PipelinedRequest(slowHead(watch, headerReadTimeoutSeconds));
+				return lastRead;
 			}
-		}
-		else if (options.getAuthenticationType() == AuthenticationType.Basic &&
-				authentication != null &&
-				authentication.getValue().startsWith("Basic "))
-		{
-			String value = new String(
-					Base64.getDecoder().decode(authentication.getValue().substring(6)),
-					Charset.forName("UTF-8"));
-			String[] credentials = value.split(":", 2);
 
-			if (options.credentialsMatchProxyCredentials(credentials[0], credentials[1]))
+			if (!read)
 			{
-				logger.write(LogLevel.DEBUG,  "Basic authentication accepted");
-				return true;
+				lastRead = new PipelinedRequest(null, null);
+				return lastRead;
 			}
+		}
+		catch (IOException e)
+		{
+			final boolean cutOff = watch != null && watch.cancel();
+			lastRead = new PipelinedRequest(cutOff ? slowHead(watch, headerReadTimeoutSeconds) : e);
+			return lastRead;
+		}
+		catch (HTTPException e)
+		{
+			final boolean cutOff = watch != null && watch.cancel();
+			lastRead = new PipelinedRequest(cutOff ? slowHead(watch, headerReadTimeoutSeconds) : e);
+			return lastRead;
+		}
 
-			logger.write(LogLevel.DEBUG, "Authentication failed in Basic response");
+		if (requestCount == 0)
+		{
+			metrics.getHistogram(Phase.FirstByte).record(request.getRequestLineNanos() - acceptNanos);
 		}
+		metrics.record(Phase.HeaderParse, request.getRequestLineNanos());
+		metrics.countRequest(request.getMethod());
 
-		response.writeStatus(Status.PROXY_AUTHENTICATION_REQUIRED, "Proxy Authentication Required");
+		requestCount++;
 
-		if (options.getAuthenticationType() == AuthenticationType.NTLM)
-		{
-			if (challengeMessage != null)
-			{
-				logger.write(LogLevel.DEBUG, "Sending NTLM challenge");
-				logger.write(LogLevel.TRACE, "Challenge is: NTLM " + challengeMessage);
+		Boolean keepAlive = null;
 
-				responseHeaders.add(new Header(Constants.PROXY_AUTHENTICATE_HEADER, "NTLM " + challengeMessage));
-			}
-			else
-			{
-				logger.write(LogLevel.DEBUG, "Sending NTLM authentication request");
-				responseHeaders.add(new Header(Constants.PROXY_AUTHENTICATE_HEADER, "NTLM"));
-			}
+		final Header connectionHeader = HeaderUtils.findHeader(Constants.CONNECTION_HEADER, request.getHeaders());
+		if (connectionHeader != null)
+		{
+			keepAlive = connectionHeader.getValue().equalsIgnoreCase(Constants.CONNECTION_KEEP_ALIVE);
+			connectionHeaderRead = true;
 		}
-		else if (options.getAuthenticationType() == AuthenticationType.Basic)
+		else if (!connectionHeaderRead)
 		{
-			logger.write(LogLevel.DEBUG, "Sending Basic authentication request");
-			responseHeaders.add(new Header(Constants.PROXY_AUTHENTICATE_HEADER, "Basic realm=\"Proxy\""));
+			keepAlive = request.getVersion().equals(Constants.VERSION_11);
 		}
 
-		String responseHtml = "<html><head><title>Proxy Authentication Required</title></head><body><p>Proxy Authentication Required</p></body></html>";
-		byte[] responseBytes = responseHtml.getBytes(StandardCharsets.US_ASCII);
+		if (keepAlive != null)
+		{
+			lastReadKeepAlive = keepAlive;
+		}
 
-		responseHeaders.add(new Header(Constants.CONTENT_LENGTH_HEADER, Integer.toString(responseBytes.length)));
-		responseHeaders.add(new Header(Constants.CONTENT_TYPE_HEADER, Constants.CONTENT_TYPE_TEXT_HTML + "; charset=iso-8859-1"));
+		lastRead = new PipelinedRequest(request, keepAlive);
+		return lastRead;
+	}
 
-		response.writeHeaders(responseHeaders);
-		response.endHeaders();
+	/**
+	 * Counts a head that was cut off against the client's address, and makes
+	 * the error to answer it with.
+	 */
+	private HTTPException slowHead(final HeadReadWatch watch, final int headerReadTimeoutSeconds)
+	{
+		options.getSlowClientTable().record(clientToProxySocket.getInetAddress());
 
-		response.getStream().write(responseBytes);
-		response.flush();
-		return false;
+		if (watch.isTooSlow())
+		{
+			metrics.countSlowHead();
+			logger.write(LogLevel.DEBUG, "Request head arrived too slowly on {}", clientToProxySocket);
+			return new HTTPException(Status.REQUEST_TIMEOUT, MessageFormat.format(
+					"The request head arrived slower than {0} bytes per second",
+					Integer.toString(options.getMinHeaderRateBytesPerSecond())));
+		}
+
+		metrics.countHeadTimeout();
+		return headerReadTimeout(headerReadTimeoutSeconds);
 	}
 
-	private void initializeClientToProxySocket()
-			throws SocketException
+	private HTTPException headerReadTimeout(final int seconds)
 	{
-		clientToProxySocket.setTcpNoDelay(true);
-		clientToProxySocket.setSoTimeout(options.getSocketReadTimeoutSeconds() * 1000);
+		logger.write(LogLevel.DEBUG, "Request head took longer than {} seconds on {}", seconds, clientToProxySocket);
+		return new HTTPException(Status.REQUEST_TIMEOUT,
+				MessageFormat.format("The request head wasn''t received within {0} seconds", Integer.toString(seconds)));
 	}
 
-	private Header findHeader(final String name, final List<Header> list)
+	/**
+	 * Reads the requests the client has already sent behind the last one read,
+	 * if that was a GET or HEAD the connection stays open after, and starts
+	 * the GETs and HEADs among them. Stops at the pipeline depth, at any other
+	 * request, or when no more bytes have arrived.
+	 */
+	private void readAhead(final HttpInputStream in)
+			throws IOException
 	{
-		for (Header h : list)
+		// Authentication is per connection, and checked in order
+		if (options.isAuthenticationRequired())
 		{
-			if (name.equals(h.getName()))
+			return;
+		}
+
+		while (pipeline.size() + 1 < options.getPipelineDepth()
+				&& lastRead.isIdempotent()
+				&& lastReadKeepAlive
+				&& in.available() > 0)
+		{
+			final PipelinedRequest next = readRequest(in);
+			pipeline.addLast(next);
+
+			if (next.isIdempotent())
 			{
-				return h;
+				next.start(this);
 			}
 		}
+	}
 
-		return null;
+	private void initializeClientToProxySocket()
+			throws SocketException
+	{
+		clientToProxySocket.setTcpNoDelay(true);
+		clientToProxySocket.setSoTimeout(options.getSocketReadTimeoutSeconds() * 1000);
 	}
 
 	@Override
@@ -19,6 +19,8 @@ public interface Constants
     public static final String POST_METHOD = "POST";
     public static final String HEAD_METHOD = "HEAD";
     public static final String CONNECT_METHOD = "CONNECT";
+    public static final String OPTIONS_METHOD = "OPTIONS";
+    public static final String TRACE_METHOD = "TRACE";
 
     // Headers
 
@@ -30,9 +32,12 @@ public interface Constants
     
     public static final String PROXY_AUTHORIZATION_HEADER = "Proxy-Authorization";
     public static final String PROXY_AUTHENTICATE_HEADER = "Proxy-Authenticate";
+    public static final String WWW_AUTHENTICATE_HEADER = "WWW-Authenticate";
 
     public static final String CONTENT_LENGTH_HEADER = "Content-Length";
 
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+
     public static final String CONTENT_TYPE_HEADER = "Content-Type";
     public static final String CONTENT_TYPE_TEXT_HTML = "text/html";
 
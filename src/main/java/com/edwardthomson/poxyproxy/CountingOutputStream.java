@@ -67,4 +67,13 @@ public class CountingOutputStream
     {
         count = 0;
     }
+
+    /**
+     * Counts bytes that were written around this stream, to the stream or
+     * channel underneath it.
+     */
+    public void addCount(long written)
+    {
+        count += written;
+    }
 }
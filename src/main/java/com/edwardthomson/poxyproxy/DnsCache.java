@@ -0,0 +1,434 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Caches upstream host name lookups in front of the JVM's resolver.
+ * <p>
+ * Successful lookups are kept for the DNS cache TTL and failed ones for the
+ * negative TTL (both from {@link Options}, read on every lookup). Names that
+ * are used again after three quarters of their TTL are looked up again in the
+ * background, so busy names don't wait for a lookup when they expire.
+ * Concurrent lookups of the same name share one query. When the cache holds
+ * more than the maximum entries, expired and then least recently used entries
+ * are dropped.
+ */
+public class DnsCache
+{
+	private final static Logger logger = Logger.getLogger(DnsCache.class);
+
+	/* Uses within the TTL that make a name worth refreshing ahead of time */
+	private static final int HOT_USES = 2;
+
+	private final Options options;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final Map<String, CompletableFuture<Entry>> lookups =
+			new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/* Created on first refresh */
+	private volatile ExecutorService refreshExecutor;
+
+	public DnsCache(final Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Resolves the host like {@link InetSocketAddress#InetSocketAddress(String, int)}:
+	 * if the name can't be resolved, the address is unresolved.
+	 */
+	public InetSocketAddress resolve(final String host, final int port)
+	{
+		if (!isEnabled())
+		{
+			return new InetSocketAddress(host, port);
+		}
+
+		final Entry entry = lookup(host);
+
+		return entry.addresses != null
+				? new InetSocketAddress(entry.addresses[0], port)
+				: InetSocketAddress.createUnresolved(host, port);
+	}
+
+	/**
+	 * @return every address for the host, in the resolver's order
+	 * @throws UnknownHostException
+	 *         if the name can't be resolved (possibly a cached failure)
+	 */
+	public InetAddress[] resolveAll(final String host)
+			throws UnknownHostException
+	{
+		if (!isEnabled())
+		{
+			return InetAddress.getAllByName(host);
+		}
+
+		final Entry entry = lookup(host);
+
+		if (entry.addresses == null)
+		{
+			throw new UnknownHostException(host);
+		}
+
+		return entry.addresses.clone();
+	}
+
+	/**
+	 * @return the cached address for the host if there is an unexpired entry,
+	 *         otherwise <code>null</code> (never blocks)
+	 */
+	public InetSocketAddress getIfCached(final String host, final int port)
+	{
+		if (!isEnabled())
+		{
+			return null;
+		}
+
+		final Entry entry = getFresh(key(host));
+
+		if (entry == null)
+		{
+			return null;
+		}
+
+		return entry.addresses != null
+				? new InetSocketAddress(entry.addresses[0], port)
+				: InetSocketAddress.createUnresolved(host, port);
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return a one-line summary for the metrics report, or <code>null</code>
+	 *         if nothing was looked up through the cache
+	 */
+	public String report()
+	{
+		final long h = hits.sum();
+		final long m = misses.sum();
+
+		if (h + m == 0)
+		{
+			return null;
+		}
+
+		return "hits=" + h + " misses=" + m + " entries=" + entries.size();
+	}
+
+	private boolean isEnabled()
+	{
+		return options.getDnsCacheMaxEntries() > 0 && options.getDnsCacheTtlSeconds() > 0;
+	}
+
+	private static String key(final String host)
+	{
+		return host.toLowerCase(Locale.ROOT);
+	}
+
+	private Entry lookup(final String host)
+	{
+		final String key = key(host);
+		final Entry entry = getFresh(key);
+
+		return entry != null ? entry : load(key);
+	}
+
+	/**
+	 * @return the unexpired entry for the key, or <code>null</code>; starts a
+	 *         background refresh if the entry is hot and due for one
+	 */
+	private Entry getFresh(final String key)
+	{
+		final Entry entry = entries.get(key);
+		final long now = System.nanoTime();
+
+		if (entry == null || now - entry.expiresAt >= 0)
+		{
+			return null;
+		}
+
+		hits.increment();
+		entry.lastUsed = now;
+
+		if (entry.uses.incrementAndGet() >= HOT_USES
+				&& entry.addresses != null
+				&& now - entry.refreshAt >= 0
+				&& entry.refreshing.compareAndSet(false, true))
+		{
+			refreshInBackground(key);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Queries the name, or waits for a query of the same name already in
+	 * progress.
+	 */
+	private Entry load(final String key)
+	{
+		misses.increment();
+
+		final CompletableFuture<Entry> lookup = new CompletableFuture<Entry>();
+		final CompletableFuture<Entry> existing = lookups.putIfAbsent(key, lookup);
+
+		if (existing != null)
+		{
+			return await(existing, key);
+		}
+
+		try
+		{
+			final Entry entry = query(key);
+			put(key, entry);
+			lookup.complete(entry);
+			return entry;
+		}
+		catch (RuntimeException e)
+		{
+			lookup.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			lookups.remove(key, lookup);
+		}
+	}
+
+	private Entry await(final CompletableFuture<Entry> lookup, final String key)
+	{
+		try
+		{
+			return lookup.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+
+			// Don't leave the caller without an answer
+			return query(key);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void refreshInBackground(final String key)
+	{
+		getRefreshExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				final Entry entry = query(key);
+
+				if (entry.addresses != null)
+				{
+					put(key, entry);
+				}
+				else
+				{
+					// Keep serving the old addresses until they expire
+					final Entry old = entries.get(key);
+
+					if (old != null)
+					{
+						old.refreshing.set(false);
+					}
+				}
+			}
+		});
+	}
+
+	private Entry query(final String host)
+	{
+		final long now = System.nanoTime();
+
+		try
+		{
+			final InetAddress[] addresses = InetAddress.getAllByName(host);
+			final long ttl = TimeUnit.SECONDS.toNanos(options.getDnsCacheTtlSeconds());
+
+			logger.write(LogLevel.DEBUG, "Resolved {}", host);
+
+			return new Entry(addresses, now + ttl, now + ttl / 4 * 3);
+		}
+		catch (UnknownHostException e)
+		{
+			final long ttl = TimeUnit.SECONDS.toNanos(options.getDnsCacheNegativeTtlSeconds());
+
+			logger.write(LogLevel.DEBUG, "Could not resolve {}", host);
+
+			return new Entry(null, now + ttl, now + ttl);
+		}
+	}
+
+	private void put(final String key, final Entry entry)
+	{
+		entries.put(key, entry);
+
+		if (entries.size() > options.getDnsCacheMaxEntries())
+		{
+			evict();
+		}
+	}
+
+	/**
+	 * Drops expired entries, then the least recently used ones, until the
+	 * cache is comfortably below its maximum size.
+	 */
+	private void evict()
+	{
+		// One evicting thread is enough
+		if (!evictionLock.tryLock())
+		{
+			return;
+		}
+
+		try
+		{
+			final long now = System.nanoTime();
+			final Iterator<Entry> i = entries.values().iterator();
+
+			while (i.hasNext())
+			{
+				if (now - i.next().expiresAt >= 0)
+				{
+					i.remove();
+				}
+			}
+
+			final int target = options.getDnsCacheMaxEntries() * 9 / 10;
+
+			if (entries.size() <= target)
+			{
+				return;
+			}
+
+			final List<Map.Entry<String, Entry>> byAge = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+			Collections.sort(byAge, new Comparator<Map.Entry<String, Entry>>()
+			{
+				public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b)
+				{
+					return Long.signum(a.getValue().lastUsed - b.getValue().lastUsed);
+				}
+			});
+
+			for (int j = 0; j < byAge.size() && entries.size() > target; j++)
+			{
+				entries.remove(byAge.get(j).getKey(), byAge.get(j).getValue());
+			}
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+
+	private ExecutorService getRefreshExecutor()
+	{
+		if (refreshExecutor == null)
+		{
+			evictionLock.lock();
+			try
+			{
+				if (refreshExecutor == null)
+				{
+					refreshExecutor = Executors.newFixedThreadPool(2, new ThreadFactory()
+					{
+						private final AtomicInteger count = new AtomicInteger(0);
+
+						public Thread newThread(Runnable r)
+						{
+							final Thread thread = new Thread(r, "DnsRefresh-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+			finally
+			{
+				evictionLock.unlock();
+			}
+		}
+
+		return refreshExecutor;
+	}
+
+	/**
+	 * The result of one lookup: addresses, or <code>null</code> for a failed
+	 * lookup.
+	 */
+	private static class Entry
+	{
+		private final InetAddress[] addresses;
+		private final long expiresAt;
+		private final long refreshAt;
+
+		private final AtomicInteger uses = new AtomicInteger(0);
+		private final AtomicBoolean refreshing = new AtomicBoolean(false);
+		private volatile long lastUsed = System.nanoTime();
+
+		Entry(final InetAddress[] addresses, final long expiresAt, final long refreshAt)
+		{
+			this.addresses = addresses;
+			this.expiresAt = expiresAt;
+			this.refreshAt = refreshAt;
+		}
+	}
+}
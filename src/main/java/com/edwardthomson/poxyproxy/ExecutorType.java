@@ -0,0 +1,13 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+public enum ExecutorType
+{
+	Platform,
+	Virtual
+}
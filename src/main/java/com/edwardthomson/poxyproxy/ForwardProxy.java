@@ -0,0 +1,137 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.net.URI;
+import java.text.MessageFormat;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the forward proxies in a {@link ForwardProxyGroup}, with the load
+ * and health the group balances on.
+ */
+public class ForwardProxy
+{
+	private final URI uri;
+	private final String host;
+	private final int port;
+
+	/* Requests sent to the proxy and not yet finished */
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong failures = new AtomicLong(0);
+
+	/* Set by the health probes */
+	private volatile boolean healthy = true;
+
+	/* Out of rotation until then (System.nanoTime()), if ejected */
+	private volatile boolean ejected = false;
+	private volatile long ejectedUntil = 0;
+
+	/* Guarded by the group's lock */
+	int consecutiveFailures = 0;
+	int ejections = 0;
+	int probeFailures = 0;
+
+	ForwardProxy(final URI uri)
+	{
+		this.uri = uri;
+		this.host = uri.getHost();
+		// Is 80 a good default port here? Proxies configured for CONNECT can be
+		// anywhere.
+		this.port = uri.getPort() > 0 ? uri.getPort() : 80;
+	}
+
+	public URI getURI()
+	{
+		return this.uri;
+	}
+
+	public String getHost()
+	{
+		return this.host;
+	}
+
+	public int getPort()
+	{
+		return this.port;
+	}
+
+	public int getOutstanding()
+	{
+		return outstanding.get();
+	}
+
+	/**
+	 * @return <code>true</code> if the health probes reach the proxy and it
+	 *         isn't ejected for failing requests
+	 */
+	public boolean isAvailable(final long now)
+	{
+		return healthy && !isEjected(now);
+	}
+
+	boolean isEjected(final long now)
+	{
+		return ejected && now - ejectedUntil < 0;
+	}
+
+	boolean isHealthy()
+	{
+		return healthy;
+	}
+
+	void setHealthy(final boolean healthy)
+	{
+		this.healthy = healthy;
+	}
+
+	void eject(final long until)
+	{
+		ejectedUntil = until;
+		ejected = true;
+	}
+
+	void started()
+	{
+		outstanding.incrementAndGet();
+		requests.incrementAndGet();
+	}
+
+	void finished(final boolean reachable)
+	{
+		outstanding.decrementAndGet();
+
+		if (!reachable)
+		{
+			failures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return a one-line summary for the metrics report
+	 */
+	String report(final long now)
+	{
+		return MessageFormat.format(
+				"{0} [{1}] outstanding={2} requests={3} failures={4} ejections={5}",
+				uri,
+				!healthy ? "down" : isEjected(now) ? "ejected" : "up",
+				Integer.toString(outstanding.get()),
+				Long.toString(requests.get()),
+				Long.toString(failures.get()),
+				Integer.toString(ejections));
+	}
+
+	@Override
+	public String toString()
+	{
+		return uri.toString();
+	}
+}
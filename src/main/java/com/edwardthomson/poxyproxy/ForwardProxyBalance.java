@@ -0,0 +1,14 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+public enum ForwardProxyBalance
+{
+	LeastOutstanding,
+	PowerOfTwoChoices,
+	HostHash
+}
@@ -0,0 +1,480 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * The forward proxies in {@link Options}, and the choice of one for each
+ * request by the {@link ForwardProxyBalance} policy.
+ * <p>
+ * Proxies leave the rotation two ways. Health probes (TCP connects on the
+ * health interval) mark a proxy down after two failures in a row, and up
+ * again after one success. A proxy that fails five requests in a row without
+ * answering is ejected for 30 seconds, longer each time it is ejected again,
+ * but never more than half of the proxies at once. If no proxy is left, all
+ * of them are used rather than failing every request.
+ */
+public class ForwardProxyGroup
+{
+	private final static Logger logger = Logger.getLogger(ForwardProxyGroup.class);
+
+	private static final int FAILURES_TO_EJECT = 5;
+	private static final long EJECTION_NANOS = TimeUnit.SECONDS.toNanos(30);
+	private static final long MAX_EJECTION_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+	private static final int PROBE_FAILURES_TO_MARK_DOWN = 2;
+
+	/* Points on the hash ring per proxy, so hosts spread evenly */
+	private static final int VIRTUAL_NODES = 64;
+
+	private final Options options;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/* Replaced when the configured proxies change */
+	private volatile Members members = new Members(Collections.<URI>emptyList(), new ForwardProxy[0]);
+
+	/* Where least-outstanding starts looking, so ties take turns */
+	private final AtomicInteger rotation = new AtomicInteger(0);
+
+	/* Created when the health probes start */
+	private volatile ScheduledExecutorService executor;
+
+	public ForwardProxyGroup(final Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * @return the proxy for a request to the host, or <code>null</code> if no
+	 *         forward proxy is configured
+	 */
+	public ForwardProxy choose(final String targetHost)
+	{
+		final ForwardProxy[] proxies = getMembers().proxies;
+
+		if (proxies.length <= 1)
+		{
+			return proxies.length == 0 ? null : proxies[0];
+		}
+
+		final long now = System.nanoTime();
+
+		switch (options.getForwardProxyBalance())
+		{
+			case HostHash:
+				return chooseByHost(targetHost, now);
+
+			case PowerOfTwoChoices:
+				return chooseOfTwo(available(proxies, now));
+
+			default:
+				return chooseLeastOutstanding(available(proxies, now));
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the proxy is configured and in rotation
+	 */
+	public boolean isAvailable(final ForwardProxy proxy)
+	{
+		return proxy.isAvailable(System.nanoTime())
+				&& Arrays.asList(getMembers().proxies).contains(proxy);
+	}
+
+	/**
+	 * Counts a request sent to the proxy as outstanding until
+	 * {@link #end(ForwardProxy, boolean)}.
+	 */
+	public void begin(final ForwardProxy proxy)
+	{
+		proxy.started();
+	}
+
+	/**
+	 * @param reachable
+	 *        <code>false</code> if the proxy couldn't be connected to or
+	 *        closed the connection before answering
+	 */
+	public void end(final ForwardProxy proxy, final boolean reachable)
+	{
+		proxy.finished(reachable);
+
+		synchronized (proxy)
+		{
+			if (reachable)
+			{
+				proxy.consecutiveFailures = 0;
+				return;
+			}
+
+			final long now = System.nanoTime();
+
+			if (++proxy.consecutiveFailures < FAILURES_TO_EJECT || proxy.isEjected(now) || !canEject(now))
+			{
+				return;
+			}
+
+			proxy.consecutiveFailures = 0;
+			proxy.ejections++;
+
+			final long duration = Math.min(EJECTION_NANOS * proxy.ejections, MAX_EJECTION_NANOS);
+			proxy.eject(now + duration);
+
+			logger.write(LogLevel.INFO, "Ejected forward proxy {} for {} seconds after {} failed requests",
+					proxy, TimeUnit.NANOSECONDS.toSeconds(duration), FAILURES_TO_EJECT);
+		}
+	}
+
+	/**
+	 * Starts probing the proxies in the background on the health interval in
+	 * {@link Options}, if it isn't 0.
+	 */
+	public void startHealthChecks()
+	{
+		final int interval = options.getForwardProxyHealthIntervalSeconds();
+
+		if (interval <= 0 || executor != null)
+		{
+			return;
+		}
+
+		final ScheduledExecutorService created = Executors.newScheduledThreadPool(4, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			public Thread newThread(Runnable r)
+			{
+				final Thread thread = new Thread(r, "ForwardProxyHealth-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		created.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				for (final ForwardProxy proxy : getMembers().proxies)
+				{
+					// In parallel, so one slow proxy doesn't delay the others
+					created.execute(new Runnable()
+					{
+						public void run()
+						{
+							probe(proxy);
+						}
+					});
+				}
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+
+		executor = created;
+	}
+
+	/**
+	 * @return a summary of each proxy for the metrics report, or
+	 *         <code>null</code> if no forward proxy is configured
+	 */
+	public String report()
+	{
+		final ForwardProxy[] proxies = getMembers().proxies;
+
+		if (proxies.length == 0)
+		{
+			return null;
+		}
+
+		final long now = System.nanoTime();
+		final StringBuilder report = new StringBuilder();
+
+		for (ForwardProxy proxy : proxies)
+		{
+			if (report.length() > 0)
+			{
+				report.append("; ");
+			}
+
+			report.append(proxy.report(now));
+		}
+
+		return report.toString();
+	}
+
+	private ForwardProxy chooseLeastOutstanding(final List<ForwardProxy> candidates)
+	{
+		final int start = rotation.getAndIncrement() & Integer.MAX_VALUE;
+		ForwardProxy best = null;
+
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			final ForwardProxy proxy = candidates.get((start + i) % candidates.size());
+
+			if (best == null || proxy.getOutstanding() < best.getOutstanding())
+			{
+				best = proxy;
+			}
+		}
+
+		return best;
+	}
+
+	private ForwardProxy chooseOfTwo(final List<ForwardProxy> candidates)
+	{
+		if (candidates.size() == 1)
+		{
+			return candidates.get(0);
+		}
+
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final int first = random.nextInt(candidates.size());
+		// Any of the others
+		final int second = (first + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+
+		final ForwardProxy a = candidates.get(first);
+		final ForwardProxy b = candidates.get(second);
+
+		return b.getOutstanding() < a.getOutstanding() ? b : a;
+	}
+
+	/**
+	 * Takes the first available proxy clockwise from the host on the hash
+	 * ring, so a host keeps going to the same proxy (and its cache) while that
+	 * proxy is in rotation.
+	 */
+	private ForwardProxy chooseByHost(final String targetHost, final long now)
+	{
+		final Members current = getMembers();
+		final long[] points = current.ringPoints;
+		final long hash = hash(targetHost != null ? targetHost.toLowerCase(Locale.ROOT) : "");
+
+		int start = Arrays.binarySearch(points, hash);
+		if (start < 0)
+		{
+			start = -start - 1;
+		}
+
+		for (int i = 0; i < points.length; i++)
+		{
+			final ForwardProxy proxy = current.ringOwners[(start + i) % points.length];
+
+			if (proxy.isAvailable(now))
+			{
+				return proxy;
+			}
+		}
+
+		return current.ringOwners[start % points.length];
+	}
+
+	/**
+	 * @return the proxies in rotation, or all of them if none is
+	 */
+	private static List<ForwardProxy> available(final ForwardProxy[] proxies, final long now)
+	{
+		final List<ForwardProxy> available = new ArrayList<ForwardProxy>(proxies.length);
+
+		for (ForwardProxy proxy : proxies)
+		{
+			if (proxy.isAvailable(now))
+			{
+				available.add(proxy);
+			}
+		}
+
+		return available.isEmpty() ? Arrays.asList(proxies) : available;
+	}
+
+	/**
+	 * @return <code>true</code> if ejecting one more proxy leaves at least
+	 *         half of them in rotation
+	 */
+	private boolean canEject(final long now)
+	{
+		final ForwardProxy[] proxies = getMembers().proxies;
+		int ejected = 1;
+
+		for (ForwardProxy proxy : proxies)
+		{
+			if (proxy.isEjected(now))
+			{
+				ejected++;
+			}
+		}
+
+		return ejected * 2 <= proxies.length;
+	}
+
+	private void probe(final ForwardProxy proxy)
+	{
+		boolean reached;
+
+		try (Socket socket = new Socket())
+		{
+			socket.connect(
+					new InetSocketAddress(options.getDnsCache().resolveAll(proxy.getHost())[0], proxy.getPort()),
+					options.getConnectTimeoutSeconds() * 1000);
+			reached = true;
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Health probe of forward proxy {} failed: {}", proxy, e.toString());
+			reached = false;
+		}
+
+		synchronized (proxy)
+		{
+			if (reached)
+			{
+				proxy.probeFailures = 0;
+
+				if (!proxy.isHealthy())
+				{
+					proxy.setHealthy(true);
+					logger.write(LogLevel.INFO, "Forward proxy {} is up", proxy);
+				}
+			}
+			else if (++proxy.probeFailures >= PROBE_FAILURES_TO_MARK_DOWN && proxy.isHealthy())
+			{
+				proxy.setHealthy(false);
+				logger.write(LogLevel.WARNING, "Forward proxy {} is down", proxy);
+			}
+		}
+	}
+
+	/**
+	 * @return the members for the configured proxies, keeping the state of
+	 *         proxies that were already configured
+	 */
+	private Members getMembers()
+	{
+		final List<URI> uris = options.getForwardProxyURIs();
+		Members current = members;
+
+		if (current.uris == uris)
+		{
+			return current;
+		}
+
+		lock.lock();
+		try
+		{
+			current = members;
+
+			if (current.uris != uris)
+			{
+				final Map<URI, ForwardProxy> existing = new HashMap<URI, ForwardProxy>();
+
+				for (ForwardProxy proxy : current.proxies)
+				{
+					existing.put(proxy.getURI(), proxy);
+				}
+
+				final ForwardProxy[] proxies = new ForwardProxy[uris.size()];
+
+				for (int i = 0; i < proxies.length; i++)
+				{
+					proxies[i] = existing.containsKey(uris.get(i)) ? existing.get(uris.get(i)) : new ForwardProxy(uris.get(i));
+				}
+
+				current = new Members(uris, proxies);
+				members = current;
+			}
+
+			return current;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * FNV-1a, then mixed (the MurmurHash3 finalizer) so similar strings land
+	 * far apart on the ring.
+	 */
+	private static long hash(final String string)
+	{
+		long hash = 0xcbf29ce484222325L;
+
+		for (byte b : string.getBytes(StandardCharsets.UTF_8))
+		{
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash;
+	}
+
+	private static class Members
+	{
+		private final List<URI> uris;
+		private final ForwardProxy[] proxies;
+
+		/* The hash ring: sorted points, and the proxy at each */
+		private final long[] ringPoints;
+		private final ForwardProxy[] ringOwners;
+
+		Members(final List<URI> uris, final ForwardProxy[] proxies)
+		{
+			this.uris = uris;
+			this.proxies = proxies;
+
+			final Map<Long, ForwardProxy> ring = new HashMap<Long, ForwardProxy>();
+
+			for (ForwardProxy proxy : proxies)
+			{
+				for (int i = 0; i < VIRTUAL_NODES; i++)
+				{
+					ring.put(hash(proxy.getURI() + "#" + i), proxy);
+				}
+			}
+
+			this.ringPoints = new long[ring.size()];
+			int i = 0;
+			for (Long point : ring.keySet())
+			{
+				ringPoints[i++] = point;
+			}
+			Arrays.sort(ringPoints);
+
+			this.ringOwners = new ForwardProxy[ringPoints.length];
+			for (i = 0; i < ringPoints.length; i++)
+			{
+				ringOwners[i] = ring.get(ringPoints[i]);
+			}
+		}
+	}
+}
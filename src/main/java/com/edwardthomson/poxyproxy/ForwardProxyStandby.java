@@ -0,0 +1,388 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Connected, unused sockets to the forward proxies, so a CONNECT doesn't wait
+ * for a TCP handshake with one. A CONNECT turns its socket into a tunnel, so
+ * sockets aren't returned; one taken is replaced in the background.
+ * <p>
+ * Each proxy has its own pool. The number kept follows the recent CONNECT
+ * rate to the proxy: enough to cover the CONNECTs that arrive while a
+ * replacement is connecting, at least one and at most the standby size in
+ * {@link Options} (0 disables the pool). Sockets unused for the upstream idle
+ * timeout are closed, since the forward proxy may have dropped them.
+ */
+public class ForwardProxyStandby
+{
+	private final static Logger logger = Logger.getLogger(ForwardProxyStandby.class);
+
+	private static final long TICK_MILLIS = 1000;
+
+	/* Weight of the last tick in the CONNECT rate */
+	private static final double RATE_SMOOTHING = 0.3;
+
+	/* Sockets to keep per CONNECT expected while one is being connected */
+	private static final int HEADROOM = 2;
+
+	/*
+	 * Replacing a socket takes at least this long even to a nearby proxy,
+	 * counting the wait for a connecting thread; CONNECTs come in bursts
+	 */
+	private static final long MIN_REFILL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final Options options;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/* Guarded by lock */
+	private final Map<URI, Pool> pools = new HashMap<URI, Pool>();
+
+	/* Created on first use */
+	private volatile ScheduledExecutorService executor;
+
+	public ForwardProxyStandby(final Options options)
+	{
+		this.options = options;
+	}
+
+	public boolean isEnabled()
+	{
+		return options.getForwardProxyStandbySize() > 0;
+	}
+
+	/**
+	 * Takes a connected socket to a forward proxy, and starts connecting its
+	 * replacement. Counts a CONNECT toward the proxy's rate either way.
+	 *
+	 * @return the socket, or <code>null</code> if none is ready; the caller
+	 *         connects its own then
+	 */
+	public Socket take(final URI forwardProxyURI)
+	{
+		if (!isEnabled())
+		{
+			return null;
+		}
+
+		Socket socket = null;
+		final Pool pool;
+
+		lock.lock();
+		try
+		{
+			Pool existing = pools.get(forwardProxyURI);
+
+			if (existing == null)
+			{
+				existing = new Pool(forwardProxyURI);
+				pools.put(forwardProxyURI, existing);
+			}
+
+			pool = existing;
+			pool.arrivals++;
+
+			Standby standby;
+			while (socket == null && (standby = pool.idle.pollFirst()) != null)
+			{
+				if (isUsable(standby))
+				{
+					socket = standby.socket;
+				}
+				else
+				{
+					IOUtils.close(standby.socket);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		refill(pool);
+		return socket;
+	}
+
+	/*
+	 * Called with the lock held.
+	 *
+	 * @return the number of sockets to keep for the recent CONNECT rate
+	 */
+	private int getTarget(final Pool pool)
+	{
+		final double perConnect = (double) Math.max(pool.connectNanos, MIN_REFILL_NANOS) / TimeUnit.SECONDS.toNanos(1);
+		// A burst counts before the next tick
+		final double currentRate = Math.max(pool.rate, pool.arrivals * 1000.0 / TICK_MILLIS);
+		final int target = (int) Math.ceil(currentRate * perConnect * HEADROOM);
+
+		return Math.max(1, Math.min(target, options.getForwardProxyStandbySize()));
+	}
+
+	/**
+	 * Starts connecting sockets until the idle and connecting ones reach the
+	 * target.
+	 */
+	private void refill(final Pool pool)
+	{
+		int needed;
+
+		lock.lock();
+		try
+		{
+			if (pools.get(pool.uri) != pool)
+			{
+				return;
+			}
+
+			needed = getTarget(pool) - pool.idle.size() - pool.connecting;
+			pool.connecting += Math.max(needed, 0);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		for (; needed > 0; needed--)
+		{
+			getExecutor().execute(new Runnable()
+			{
+				public void run()
+				{
+					connect(pool);
+				}
+			});
+		}
+	}
+
+	private void connect(final Pool pool)
+	{
+		final URI uri = pool.uri;
+		Socket socket = null;
+
+		try
+		{
+			final long start = System.nanoTime();
+
+			// With a channel, so a tunnel relay can take the socket
+			socket = options.getUpstreamConnector().connect(
+					uri.getHost(),
+					uri.getPort() > 0 ? uri.getPort() : 80,
+					true,
+					true);
+
+			pool.connectNanos = System.nanoTime() - start;
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not connect a standby socket to {}: {}", uri, e.getMessage());
+		}
+
+		lock.lock();
+		try
+		{
+			pool.connecting--;
+
+			if (socket != null)
+			{
+				if (pools.get(uri) == pool && isEnabled())
+				{
+					pool.idle.addFirst(new Standby(socket));
+					socket = null;
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		IOUtils.close(socket);
+	}
+
+	/**
+	 * Updates the CONNECT rates, closes stale and surplus sockets, drops the
+	 * pools of proxies no longer configured, and tops the others up.
+	 */
+	private void tick()
+	{
+		final List<Pool> refills = new ArrayList<Pool>();
+
+		lock.lock();
+		try
+		{
+			final List<URI> configured = options.getForwardProxyURIs();
+
+			for (Iterator<Pool> i = pools.values().iterator(); i.hasNext();)
+			{
+				final Pool pool = i.next();
+
+				if (!configured.contains(pool.uri))
+				{
+					// Its sockets are of no use
+					closeAllLocked(pool);
+					i.remove();
+					continue;
+				}
+
+				pool.rate = pool.rate * (1 - RATE_SMOOTHING) + pool.arrivals * RATE_SMOOTHING * 1000 / TICK_MILLIS;
+				pool.arrivals = 0;
+
+				for (Standby standby : pool.idle.toArray(new Standby[pool.idle.size()]))
+				{
+					if (!isUsable(standby))
+					{
+						pool.idle.remove(standby);
+						IOUtils.close(standby.socket);
+					}
+				}
+
+				final int target = isEnabled() ? getTarget(pool) : 0;
+
+				// The oldest go first
+				while (pool.idle.size() > target)
+				{
+					IOUtils.close(pool.idle.pollLast().socket);
+				}
+
+				refills.add(pool);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		for (Pool pool : refills)
+		{
+			refill(pool);
+		}
+	}
+
+	private boolean isUsable(final Standby standby)
+	{
+		final long maxIdle = TimeUnit.SECONDS.toNanos(options.getUpstreamIdleTimeoutSeconds());
+
+		try
+		{
+			return !standby.socket.isClosed()
+					&& System.nanoTime() - standby.connectedAt < maxIdle
+					&& standby.socket.getInputStream().available() == 0;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/* Called with the lock held */
+	private void closeAllLocked(final Pool pool)
+	{
+		Standby standby;
+		while ((standby = pool.idle.pollFirst()) != null)
+		{
+			IOUtils.close(standby.socket);
+		}
+	}
+
+	private ScheduledExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			lock.lock();
+			try
+			{
+				if (executor == null)
+				{
+					final ScheduledExecutorService created = Executors.newScheduledThreadPool(2, new ThreadFactory()
+					{
+						private final AtomicInteger count = new AtomicInteger(0);
+
+						public Thread newThread(Runnable r)
+						{
+							final Thread thread = new Thread(r, "ForwardProxyStandby-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+
+					created.scheduleWithFixedDelay(new Runnable()
+					{
+						public void run()
+						{
+							tick();
+						}
+					}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+					executor = created;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		return executor;
+	}
+
+	/*
+	 * The sockets to one forward proxy. All but connectNanos are guarded by
+	 * the lock.
+	 */
+	private static class Pool
+	{
+		private final URI uri;
+
+		/* Most recently connected first */
+		private final Deque<Standby> idle = new ArrayDeque<Standby>();
+		private int connecting = 0;
+
+		/* CONNECTs per second, and the count since the last tick */
+		private double rate = 0;
+		private int arrivals = 0;
+
+		/* How long connecting to the proxy takes, in nanoseconds */
+		private volatile long connectNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+		Pool(final URI uri)
+		{
+			this.uri = uri;
+		}
+	}
+
+	private static class Standby
+	{
+		private final Socket socket;
+		private final long connectedAt = System.nanoTime();
+
+		Standby(final Socket socket)
+		{
+			this.socket = socket;
+		}
+	}
+}
@@ -8,30 +8,51 @@ package com.edwardthomson.poxyproxy;
 
 /**
  * An exception thrown when the HTTP protocol is malformed or the request is
- * semantically invalid.
+ * semantically invalid. The client is answered with its status, 400 Bad
+ * Request unless given.
  */
 public class HTTPException
     extends RuntimeException
 {
 	private static final long serialVersionUID = -9187178406815885682L;
 
+    private final int status;
+
 	public HTTPException()
     {
         super();
+        this.status = Status.BAD_REQUEST;
     }
 
     public HTTPException(String message, Throwable cause)
     {
         super(message, cause);
+        this.status = Status.BAD_REQUEST;
     }
 
     public HTTPException(String message)
     {
         super(message);
+        this.status = Status.BAD_REQUEST;
+    }
+
+    public HTTPException(int status, String message)
+    {
+        super(message);
+        this.status = status;
     }
 
     public HTTPException(Throwable cause)
     {
         super(cause);
+        this.status = Status.BAD_REQUEST;
+    }
+
+    /**
+     * @return the status to answer the client with
+     */
+    public int getStatus()
+    {
+        return status;
     }
 }
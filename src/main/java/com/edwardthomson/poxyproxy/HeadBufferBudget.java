@@ -0,0 +1,85 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the memory every {@link HttpInputStream} holds beyond its initial
+ * buffer, across the process. A stream's buffer only grows to hold a head or
+ * line that doesn't fit, and each connection is already limited to the
+ * largest head allowed; this keeps many connections sending large heads at
+ * once from taking the heap.
+ */
+public class HeadBufferBudget
+{
+	private final Options options;
+
+	private final AtomicLong used = new AtomicLong(0);
+
+	/* Growths refused because the budget was spent */
+	private final LongAdder refused = new LongAdder();
+
+	public HeadBufferBudget(final Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * @return <code>false</code> if the bytes would take the total over the
+	 *         maximum in {@link Options}
+	 */
+	public boolean reserve(final long bytes)
+	{
+		final long max = options.getMaxHeadBufferBytes();
+
+		while (true)
+		{
+			final long current = used.get();
+
+			if (max > 0 && current + bytes > max)
+			{
+				refused.increment();
+				return false;
+			}
+
+			if (used.compareAndSet(current, current + bytes))
+			{
+				return true;
+			}
+		}
+	}
+
+	public void release(final long bytes)
+	{
+		used.addAndGet(-bytes);
+	}
+
+	/**
+	 * @return the bytes reserved now
+	 */
+	public long getUsed()
+	{
+		return used.get();
+	}
+
+	/**
+	 * @return a one-line summary for the metrics report, or <code>null</code>
+	 *         if no buffer has grown
+	 */
+	public String report()
+	{
+		if (used.get() == 0 && refused.sum() == 0)
+		{
+			return null;
+		}
+
+		final long max = options.getMaxHeadBufferBytes();
+		return "used=" + used.get() + (max > 0 ? "/" + max : "") + " refused=" + refused.sum();
+	}
+}
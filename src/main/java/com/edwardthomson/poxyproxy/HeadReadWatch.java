@@ -0,0 +1,160 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a client send a request head, from its first byte, and shuts down
+ * the socket's input (or closes a TLS socket) if the head takes longer than
+ * the header read timeout, or arrives slower than the minimum rate in
+ * {@link Options}. Either keeps a client that trickles in a head from holding
+ * a thread for long.
+ * <p>
+ * The rate is checked on the {@link TimingWheel} once a second, after a grace
+ * second: by then the head must have had the minimum rate on average. A head
+ * that arrives whole is usually read before the first check, which then never
+ * runs.
+ */
+public class HeadReadWatch
+	implements Runnable
+{
+	private static final long CHECK_MILLIS = 1000;
+	private static final long GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final TimingWheel wheel;
+	private final Socket socket;
+	private final HttpInputStream in;
+	private final long timeoutNanos;
+	private final int minBytesPerSecond;
+
+	private final long startNanos = System.nanoTime();
+	private final long startBytes;
+
+	/* Guarded by this */
+	private TimingWheel.Timeout timeout;
+	private boolean cancelled = false;
+
+	private volatile boolean timedOut = false;
+	private volatile boolean tooSlow = false;
+
+	/**
+	 * Starts watching, from now.
+	 *
+	 * @param timeoutSeconds
+	 *        the time allowed for the head; 0 for no limit
+	 * @param minBytesPerSecond
+	 *        the slowest the head may arrive; 0 for no limit
+	 */
+	public HeadReadWatch(
+			final TimingWheel wheel,
+			final Socket socket,
+			final HttpInputStream in,
+			final int timeoutSeconds,
+			final int minBytesPerSecond)
+	{
+		this.wheel = wheel;
+		this.socket = socket;
+		this.in = in;
+		this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		this.minBytesPerSecond = minBytesPerSecond;
+		this.startBytes = in.getBytesRead();
+
+		if (timeoutSeconds > 0 || minBytesPerSecond > 0)
+		{
+			synchronized (this)
+			{
+				timeout = wheel.schedule(this, nextCheckMillis(0));
+			}
+		}
+	}
+
+	/**
+	 * Stops watching.
+	 *
+	 * @return <code>true</code> if the head was cut off, too late or too slow
+	 */
+	public boolean cancel()
+	{
+		synchronized (this)
+		{
+			cancelled = true;
+
+			if (timeout != null)
+			{
+				timeout.cancel();
+			}
+		}
+
+		return timedOut || tooSlow;
+	}
+
+	/**
+	 * @return <code>true</code> if the head took longer than the timeout
+	 */
+	public boolean isTimedOut()
+	{
+		return timedOut;
+	}
+
+	/**
+	 * @return <code>true</code> if the head arrived slower than the minimum
+	 *         rate
+	 */
+	public boolean isTooSlow()
+	{
+		return tooSlow;
+	}
+
+	public void run()
+	{
+		synchronized (this)
+		{
+			if (cancelled)
+			{
+				return;
+			}
+
+			final long elapsed = System.nanoTime() - startNanos;
+
+			if (timeoutNanos > 0 && elapsed >= timeoutNanos)
+			{
+				timedOut = true;
+			}
+			else if (minBytesPerSecond > 0
+					&& elapsed > GRACE_NANOS
+					&& in.getBytesRead() - startBytes < minBytesPerSecond * (elapsed - GRACE_NANOS) / 1000000000L)
+			{
+				tooSlow = true;
+			}
+			else
+			{
+				timeout = wheel.schedule(this, nextCheckMillis(elapsed));
+				return;
+			}
+		}
+
+		SocketDeadline.shutDownInput(socket);
+	}
+
+	/**
+	 * @return the time to the next rate check, or to the timeout if that
+	 *         comes first
+	 */
+	private long nextCheckMillis(final long elapsed)
+	{
+		final long remaining = timeoutNanos - elapsed;
+
+		if (timeoutNanos > 0 && (minBytesPerSecond <= 0 || remaining < TimeUnit.MILLISECONDS.toNanos(CHECK_MILLIS)))
+		{
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+		}
+
+		return CHECK_MILLIS;
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+/**
+ * Thrown when a request or response head is over one of the limits in
+ * {@link Options}: its size, the length of a line, or the number of header
+ * fields.
+ */
+public class HeadTooLargeException
+    extends HTTPException
+{
+    private static final long serialVersionUID = 4290562017381649375L;
+
+    public HeadTooLargeException(int status, String message)
+    {
+        super(status, message);
+    }
+}
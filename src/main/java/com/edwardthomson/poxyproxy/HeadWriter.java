@@ -0,0 +1,245 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Serializes a request or response head into one pooled buffer, to be written
+ * with a single call once it is complete.
+ * <p>
+ * Nothing is allocated per head in the common case. Status lines with the
+ * standard reason phrase are copied whole from pre-encoded constants, headers
+ * parsed by {@link HttpInputStream} are copied from their raw bytes without
+ * being decoded, and ASCII strings are copied a character at a time rather
+ * than encoded. Only text outside ASCII is encoded as usual.
+ */
+public class HeadWriter
+{
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] SEPARATOR = { ':', ' ' };
+
+	private static final String[] VERSIONS = { Constants.VERSION_10, Constants.VERSION_11 };
+
+	/* Reason phrases by status */
+	private static final String[] REASONS = new String[600];
+
+	/* Whole status lines with the standard reason phrase, by version and status */
+	private static final byte[][][] STATUS_LINES = new byte[VERSIONS.length][REASONS.length][];
+
+	static
+	{
+		for (Map.Entry<Integer, String> entry : Status.NAMES.entrySet())
+		{
+			final int status = entry.getKey();
+			REASONS[status] = entry.getValue();
+
+			for (int v = 0; v < VERSIONS.length; v++)
+			{
+				STATUS_LINES[v][status] = UTF8Utils.encode(VERSIONS[v] + " " + status + " " + entry.getValue() + "\r\n");
+			}
+		}
+	}
+
+	private final BufferPool pool = BufferPool.getDefault();
+
+	private byte[] buffer = pool.acquireBytes(BufferPool.MIN_SIZE);
+	private int length = 0;
+
+	/**
+	 * Appends a status line.
+	 *
+	 * @param message
+	 *        the reason phrase, or <code>null</code> for the standard one
+	 */
+	public void statusLine(final String version, final int status, final String message)
+	{
+		final int v = versionIndex(version);
+		final String reason = status >= 0 && status < REASONS.length ? REASONS[status] : null;
+
+		if (v >= 0 && reason != null && (message == null || message.equals(reason)))
+		{
+			append(STATUS_LINES[v][status]);
+			return;
+		}
+
+		text(version);
+		append((byte) ' ');
+
+		if (status >= 100 && status <= 999)
+		{
+			ensureCapacity(3);
+			buffer[length++] = (byte) ('0' + status / 100);
+			buffer[length++] = (byte) ('0' + status / 10 % 10);
+			buffer[length++] = (byte) ('0' + status % 10);
+		}
+		else
+		{
+			text(Integer.toString(status));
+		}
+
+		append((byte) ' ');
+		text(message != null ? message : reason != null ? reason : "");
+		append(CRLF);
+	}
+
+	/**
+	 * Appends a request line.
+	 */
+	public void requestLine(final String method, final String uri, final String version)
+	{
+		text(method);
+		append((byte) ' ');
+		text(uri);
+		append((byte) ' ');
+		text(version);
+		append(CRLF);
+	}
+
+	public void header(final Header header)
+	{
+		header.writeTo(this);
+	}
+
+	void header(final String name, final String value)
+	{
+		text(name);
+		append(SEPARATOR);
+		text(value);
+		append(CRLF);
+	}
+
+	/**
+	 * Appends a header from the raw bytes of its name and value.
+	 */
+	void header(final byte[] raw, final int nameStart, final int nameEnd, final int valueStart, final int valueEnd)
+	{
+		append(raw, nameStart, nameEnd - nameStart);
+		append(SEPARATOR);
+		append(raw, valueStart, valueEnd - valueStart);
+		append(CRLF);
+	}
+
+	/**
+	 * Appends a line and a CRLF.
+	 */
+	public void line(final String line)
+	{
+		text(line);
+		append(CRLF);
+	}
+
+	/**
+	 * Appends the empty line that ends a head.
+	 */
+	public void end()
+	{
+		append(CRLF);
+	}
+
+	/**
+	 * @return the number of bytes appended and not yet written
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * Writes everything appended so far in one call, and empties the buffer.
+	 */
+	public void writeTo(final OutputStream out)
+		throws IOException
+	{
+		if (length > 0)
+		{
+			out.write(buffer, 0, length);
+			length = 0;
+		}
+	}
+
+	/**
+	 * Returns the buffer to the pool. Nothing more may be appended.
+	 */
+	public void release()
+	{
+		if (buffer != null)
+		{
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	private static int versionIndex(final String version)
+	{
+		for (int i = 0; i < VERSIONS.length; i++)
+		{
+			if (VERSIONS[i] == version || VERSIONS[i].equals(version))
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Copies ASCII characters as bytes, and encodes the rest of the string as
+	 * UTF-8 from the first that isn't.
+	 */
+	private void text(final String text)
+	{
+		final int count = text.length();
+		ensureCapacity(count);
+
+		for (int i = 0; i < count; i++)
+		{
+			final char c = text.charAt(i);
+
+			if (c >= 0x80)
+			{
+				append(UTF8Utils.encode(text.substring(i)));
+				return;
+			}
+
+			buffer[length++] = (byte) c;
+		}
+	}
+
+	private void append(final byte b)
+	{
+		ensureCapacity(1);
+		buffer[length++] = b;
+	}
+
+	private void append(final byte[] bytes)
+	{
+		append(bytes, 0, bytes.length);
+	}
+
+	private void append(final byte[] bytes, final int offset, final int count)
+	{
+		ensureCapacity(count);
+		System.arraycopy(bytes, offset, buffer, length, count);
+		length += count;
+	}
+
+	private void ensureCapacity(final int more)
+	{
+		if (length + more <= buffer.length)
+		{
+			return;
+		}
+
+		final byte[] larger = pool.acquireBytes(Math.max(buffer.length * 2, length + more));
+		System.arraycopy(buffer, 0, larger, 0, length);
+		pool.release(buffer);
+		buffer = larger;
+	}
+}
@@ -12,13 +12,39 @@ public class Header
 {
     static final Logger logger = Logger.getLogger(Header.class);
 
-    private final String name;
-    private final String value;
+    /*
+     * Headers parsed by HttpInputStream share the raw bytes of their head and
+     * decode the name and value lazily. Decoding twice from two threads is
+     * harmless, so there's no locking.
+     */
+    private final byte[] raw;
+    private final int nameStart;
+    private final int nameEnd;
+    private final int valueStart;
+    private final int valueEnd;
+
+    private String name;
+    private String value;
 
     public Header(final String name, final String value)
     {
         this.name = name;
         this.value = value;
+        this.raw = null;
+        this.nameStart = this.nameEnd = this.valueStart = this.valueEnd = 0;
+    }
+
+    /**
+     * Creates a header whose name and value are the given (already trimmed)
+     * ranges of the raw bytes. The bytes must not be modified afterward.
+     */
+    Header(final byte[] raw, final int nameStart, final int nameEnd, final int valueStart, final int valueEnd)
+    {
+        this.raw = raw;
+        this.nameStart = nameStart;
+        this.nameEnd = nameEnd;
+        this.valueStart = valueStart;
+        this.valueEnd = valueEnd;
     }
 
     public Header(String line)
@@ -38,6 +64,8 @@ public class Header
 
         this.name = parts[0].trim();
         this.value = parts[1].trim();
+        this.raw = null;
+        this.nameStart = this.nameEnd = this.valueStart = this.valueEnd = 0;
 
         if (this.name.length() == 0)
         {
@@ -49,23 +77,75 @@ public class Header
 
     public String getName()
     {
+        if (name == null)
+        {
+            name = decode(nameStart, nameEnd);
+        }
+
         return name;
     }
 
     public boolean matchesName(final String n)
     {
-        return name.equalsIgnoreCase(n);
+        if (name != null)
+        {
+            return name.equalsIgnoreCase(n);
+        }
+
+        // Header names are ASCII tokens, so compare bytes without decoding
+        if (n.length() != nameEnd - nameStart)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < n.length(); i++)
+        {
+            final char c = (char) (raw[nameStart + i] & 0xff);
+
+            if (c != n.charAt(i) && Character.toLowerCase(c) != Character.toLowerCase(n.charAt(i)))
+            {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     public String getValue()
     {
+        if (value == null)
+        {
+            value = decode(valueStart, valueEnd);
+        }
+
         return value;
     }
 
+    private String decode(final int start, final int end)
+    {
+        return new String(raw, start, end - start, UTF8Utils.UTF8_CHARSET);
+    }
+
+    /**
+     * Appends the header line to a head, copying the raw bytes when it was
+     * parsed rather than decoding and encoding them again.
+     */
+    void writeTo(final HeadWriter writer)
+    {
+        if (raw != null)
+        {
+            writer.header(raw, nameStart, nameEnd, valueStart, valueEnd);
+        }
+        else
+        {
+            writer.header(name.trim(), value);
+        }
+    }
+
     @Override
     public String toString()
     {
-        return name.trim() + ": " + value;
+        return getName().trim() + ": " + getValue();
     }
 
     @Override
@@ -81,7 +161,7 @@ public class Header
             return false;
         }
 
-        return ((Header) obj).name.equals(name) && ((Header) obj).value.equals(value);
+        return ((Header) obj).getName().equals(getName()) && ((Header) obj).getValue().equals(getValue());
     }
 
     @Override
@@ -89,8 +169,8 @@ public class Header
     {
         int result = 17;
 
-        result = result * 37 + name.hashCode();
-        result = result * 37 + value.hashCode();
+        result = result * 37 + getName().hashCode();
+        result = result * 37 + getValue().hashCode();
 
         return result;
     }
@@ -29,6 +29,23 @@ public abstract class HeaderUtils
 					"proxy-connection", "proxy-authorization", "proxy-authenticate", "connection", "keep-alive"
 			});
 
+	/**
+	 * @return the first header whose name is exactly <code>name</code>, or
+	 *         <code>null</code> if there is none
+	 */
+	public static Header findHeader(final String name, final List<Header> headers)
+	{
+		for (Header h : headers)
+		{
+			if (name.equals(h.getName()))
+			{
+				return h;
+			}
+		}
+
+		return null;
+	}
+
 	public static boolean isChunked(List<Header> headers)
 	{
 		for (Header h : headers)
@@ -86,6 +103,20 @@ public abstract class HeaderUtils
 		return false;
 	}
 
+	public static boolean isProxyConnectionKeepAlive(List<Header> headers)
+	{
+		for (Header h : headers)
+		{
+			if (h.matchesName(Constants.PROXY_CONNECTION_HEADER)
+					&& h.getValue().equalsIgnoreCase(Constants.CONNECTION_KEEP_ALIVE))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	public static long getContentLength(List<Header> headers)
 	{
 		for (Header h : headers)
@@ -0,0 +1,588 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * A buffered input stream that reads HTTP lines and heads without copying
+ * them. One instance should live as long as the socket it reads, because bytes
+ * read ahead of the current position (the start of a request body, or the next
+ * pipelined request) are only available through this stream.
+ * <p>
+ * Lines are returned as offsets into the internal buffer and are only valid
+ * until the next read. Headers are tokenized in place and copied out once per
+ * head; their names and values are decoded to {@link String}s only when they
+ * are asked for.
+ * <p>
+ * Lines, heads and the number of header fields are limited (by default, or to
+ * the limits in {@link Options} given to {@link #setLimits(Options)}), so the
+ * buffer grows no larger than the largest head allowed. Growth past the
+ * initial size can be counted against a {@link HeadBufferBudget}; the buffer
+ * shrinks back once it holds nothing.
+ */
+public class HttpInputStream
+    extends InputStream
+{
+    private final static Logger logger = Logger.getLogger(HttpInputStream.class);
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /* Limits until setLimits is called; also the defaults in Options */
+    public static final int DEFAULT_MAX_HEAD_BYTES = 32 * 1024;
+    public static final int DEFAULT_MAX_LINE_BYTES = 8 * 1024;
+    public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+
+    private final InputStream in;
+
+    private final int initialSize;
+    private byte[] buffer;
+
+    private int maxHeadBytes = DEFAULT_MAX_HEAD_BYTES;
+    private int maxLineBytes = DEFAULT_MAX_LINE_BYTES;
+    private int maxHeaderCount = DEFAULT_MAX_HEADER_COUNT;
+
+    /* Bytes the buffer has grown by, reserved from the budget if there is one */
+    private HeadBufferBudget budget;
+    private int reserved = 0;
+    private int position;
+    private int limit;
+
+    /* Start of the head being read; bytes from here on are kept when filling */
+    private int headStart = -1;
+
+    private int lineStart;
+    private int lineEnd;
+
+    /* Bytes read from the underlying stream; read by other threads to watch progress */
+    private volatile long bytesRead = 0;
+
+    public HttpInputStream(final InputStream in)
+    {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HttpInputStream(final InputStream in, final int bufferSize)
+    {
+        this.in = in;
+        this.initialSize = bufferSize;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Creates a stream over bytes already in memory. The array is used as the
+     * buffer (not copied) and must not be modified while the stream is in use.
+     */
+    public HttpInputStream(final byte[] bytes, final int offset, final int length)
+    {
+        this.in = null;
+        this.initialSize = bytes.length;
+        this.buffer = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * @return the bytes read from the underlying stream so far, including
+     *         ones still buffered
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * Applies the head limits in the options, and counts the buffer's growth
+     * against their budget until {@link #release()}.
+     */
+    public void setLimits(final Options options)
+    {
+        this.maxHeadBytes = options.getMaxHeaderSizeBytes();
+        this.maxLineBytes = options.getMaxHeaderLineBytes();
+        this.maxHeaderCount = options.getMaxHeaderCount();
+        this.budget = options.getHeadBufferBudget();
+    }
+
+    /**
+     * Returns the bytes the buffer has grown by to the budget, and stops
+     * counting it. The stream can still be read.
+     */
+    public void release()
+    {
+        if (budget != null)
+        {
+            budget.release(reserved);
+            budget = null;
+        }
+
+        reserved = 0;
+    }
+
+    /**
+     * @return the buffer holding the line last read by {@link #readLine()}
+     */
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * @return the offset in {@link #getBuffer()} of the first byte of the line
+     *         last read
+     */
+    public int getLineStart()
+    {
+        return lineStart;
+    }
+
+    /**
+     * @return the offset in {@link #getBuffer()} just past the last byte of the
+     *         line last read, not including the line terminator
+     */
+    public int getLineEnd()
+    {
+        return lineEnd;
+    }
+
+    /**
+     * @return the line last read by {@link #readLine()} as a string
+     */
+    public String getLine()
+    {
+        return new String(buffer, lineStart, lineEnd - lineStart, UTF8Utils.UTF8_CHARSET);
+    }
+
+    /**
+     * Reads one line according to HTTP RFC rules, consuming the first LF or
+     * CR/LF encountered. The line is available from {@link #getLineStart()} to
+     * {@link #getLineEnd()} in {@link #getBuffer()} until the next read.
+     *
+     * @return <code>true</code> if a line was read, <code>false</code> if
+     *         end-of-stream was encountered before reading any characters
+     * @throws IOException
+     *         if the end-of-stream was encountered after reading at least one
+     *         character on the line
+     * @throws HeadTooLargeException
+     *         if the line, or the head it is part of, is too long
+     */
+    public boolean readLine()
+        throws IOException
+    {
+        int scanned = 0;
+
+        while (true)
+        {
+            for (int i = position + scanned; i < limit; i++)
+            {
+                if (buffer[i] == '\n')
+                {
+                    if (i - position > maxLineBytes)
+                    {
+                        throw lineTooLong();
+                    }
+
+                    lineStart = position;
+                    lineEnd = i;
+
+                    if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r')
+                    {
+                        lineEnd--;
+                    }
+
+                    position = i + 1;
+                    return true;
+                }
+            }
+
+            scanned = limit - position;
+
+            if (scanned > maxLineBytes)
+            {
+                throw lineTooLong();
+            }
+
+            if (headStart != -1 && limit - headStart > maxHeadBytes)
+            {
+                throw headTooLarge();
+            }
+
+            if (fill() == -1)
+            {
+                if (scanned == 0)
+                {
+                    return false;
+                }
+
+                throw new IOException("End of stream while reading request line");
+            }
+        }
+    }
+
+    /**
+     * Reads header lines up to and including the empty line that ends them.
+     * The header bytes are copied once into an array shared by the returned
+     * headers.
+     */
+    public List<Header> readHeaders()
+        throws IOException
+    {
+        /*
+         * Offsets are relative to the start of the headers so they survive the
+         * buffer being compacted or grown while more lines are read. Each
+         * header takes four: name start and end, value start and end.
+         */
+        int[] offsets = new int[16 * 4];
+        int count = 0;
+
+        headStart = position;
+
+        try
+        {
+            while (true)
+            {
+                if (!readLine())
+                {
+                    throw new HTTPException("Connection closed while reading headers");
+                }
+
+                // An empty line means end of headers
+                if (lineEnd == lineStart)
+                {
+                    break;
+                }
+
+                if (position - headStart > maxHeadBytes)
+                {
+                    throw headTooLarge();
+                }
+
+                if (count == maxHeaderCount)
+                {
+                    throw new HeadTooLargeException(
+                        Status.REQUEST_HEADER_FIELDS_TOO_LARGE,
+                        "More than " + maxHeaderCount + " header fields");
+                }
+
+                if (count * 4 == offsets.length)
+                {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+
+                tokenizeHeader(offsets, count * 4);
+                count++;
+            }
+
+            final byte[] head = Arrays.copyOfRange(buffer, headStart, position);
+            final List<Header> headers = new ArrayList<Header>(count);
+
+            for (int i = 0; i < count * 4; i += 4)
+            {
+                final Header h = new Header(head, offsets[i], offsets[i + 1], offsets[i + 2], offsets[i + 3]);
+
+                if (logger.isEnabled(LogLevel.TRACE))
+                {
+                    logger.write(LogLevel.TRACE, h.getName() + ": " + h.getValue());
+                }
+
+                headers.add(h);
+            }
+
+            return headers;
+        }
+        finally
+        {
+            headStart = -1;
+        }
+    }
+
+    /**
+     * A request line is too long if the URI is; any other line is part of a
+     * head.
+     */
+    private HeadTooLargeException lineTooLong()
+    {
+        if (headStart == -1)
+        {
+            return new HeadTooLargeException(Status.URI_TOO_LONG, "Line longer than " + maxLineBytes + " bytes");
+        }
+
+        return new HeadTooLargeException(
+            Status.REQUEST_HEADER_FIELDS_TOO_LARGE,
+            "Header line longer than " + maxLineBytes + " bytes");
+    }
+
+    private HeadTooLargeException headTooLarge()
+    {
+        return new HeadTooLargeException(
+            Status.REQUEST_HEADER_FIELDS_TOO_LARGE,
+            "Headers larger than " + maxHeadBytes + " bytes");
+    }
+
+    /**
+     * Finds the trimmed name and value of the current line and stores their
+     * offsets relative to the start of the head.
+     */
+    private void tokenizeHeader(final int[] offsets, final int index)
+        throws HTTPException
+    {
+        int colon = -1;
+        for (int i = lineStart; i < lineEnd; i++)
+        {
+            if (buffer[i] == ':')
+            {
+                colon = i;
+                break;
+            }
+        }
+
+        if (colon == -1)
+        {
+            throw new HTTPException("Header line '" + getLine() + "' missing separator");
+        }
+
+        int nameStart = lineStart;
+        int nameEnd = colon;
+        while (nameStart < nameEnd && isWhitespace(buffer[nameStart]))
+        {
+            nameStart++;
+        }
+        while (nameEnd > nameStart && isWhitespace(buffer[nameEnd - 1]))
+        {
+            nameEnd--;
+        }
+
+        if (nameStart == nameEnd)
+        {
+            throw new HTTPException("Header line '" + getLine() + "' missing name");
+        }
+
+        // Value may be empty
+        int valueStart = colon + 1;
+        int valueEnd = lineEnd;
+        while (valueStart < valueEnd && isWhitespace(buffer[valueStart]))
+        {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1]))
+        {
+            valueEnd--;
+        }
+
+        offsets[index] = nameStart - headStart;
+        offsets[index + 1] = nameEnd - headStart;
+        offsets[index + 2] = valueStart - headStart;
+        offsets[index + 3] = valueEnd - headStart;
+    }
+
+    /**
+     * Matches {@link String#trim()}: control characters and space.
+     */
+    private static boolean isWhitespace(final byte b)
+    {
+        return b >= 0 && b <= ' ';
+    }
+
+    /**
+     * Checks whether the stream goes on with the given bytes, without
+     * consuming any. Reads only as far as it takes to tell.
+     *
+     * @return <code>false</code> if a byte differs or the stream ends first
+     */
+    public boolean startsWith(final byte[] prefix)
+        throws IOException
+    {
+        for (int i = 0; i < prefix.length; i++)
+        {
+            while (position + i >= limit)
+            {
+                if (fill() == -1)
+                {
+                    return false;
+                }
+            }
+
+            if (buffer[position + i] != prefix[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until at least one byte can be read without blocking, without
+     * consuming any.
+     *
+     * @return <code>false</code> if the stream ends first
+     */
+    public boolean awaitData()
+        throws IOException
+    {
+        return position < limit || fill() != -1;
+    }
+
+    /**
+     * Removes and returns the bytes already read from the underlying stream
+     * but not yet consumed, without reading more. Used when another reader
+     * takes over the underlying stream.
+     */
+    public byte[] takeBuffered()
+    {
+        final byte[] buffered = Arrays.copyOfRange(buffer, position, limit);
+        position = limit;
+        return buffered;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        if (position == limit && fill() == -1)
+        {
+            return -1;
+        }
+
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (position == limit)
+        {
+            // Large reads bypass the buffer; there is nothing to keep in it
+            if (len >= buffer.length && in != null)
+            {
+                final int read = in.read(b, off, len);
+
+                if (read > 0)
+                {
+                    bytesRead += read;
+                }
+
+                return read;
+            }
+
+            if (fill() == -1)
+            {
+                return -1;
+            }
+        }
+
+        final int count = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available()
+        throws IOException
+    {
+        return (limit - position) + (in != null ? in.available() : 0);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (in != null)
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads more bytes into the buffer after the ones already there, making
+     * room by discarding consumed bytes or growing the buffer.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    private int fill()
+        throws IOException
+    {
+        if (in == null)
+        {
+            return -1;
+        }
+
+        final int keep = headStart != -1 ? headStart : position;
+
+        if (limit == buffer.length)
+        {
+            if (keep > 0)
+            {
+                System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+                position -= keep;
+                limit -= keep;
+                lineStart -= keep;
+                lineEnd -= keep;
+
+                if (headStart != -1)
+                {
+                    headStart = 0;
+                }
+            }
+            else
+            {
+                // Only a head or line that fills the buffer makes it grow
+                if (budget != null && !budget.reserve(buffer.length))
+                {
+                    throw new HTTPException(Status.SERVICE_UNAVAILABLE, "Too much memory is buffering heads");
+                }
+
+                reserved += buffer.length;
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        else if (keep == limit)
+        {
+            // Nothing to keep; start over at the front
+            position = limit = 0;
+
+            if (buffer.length > initialSize)
+            {
+                buffer = new byte[initialSize];
+
+                if (budget != null)
+                {
+                    budget.release(reserved);
+                }
+                reserved = 0;
+            }
+
+            if (headStart != -1)
+            {
+                headStart = 0;
+            }
+        }
+
+        final int read = in.read(buffer, limit, buffer.length - limit);
+
+        if (read > 0)
+        {
+            limit += read;
+            bytesRead += read;
+        }
+
+        return read;
+    }
+}
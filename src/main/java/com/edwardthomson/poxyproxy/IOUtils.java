@@ -21,20 +21,46 @@ public class IOUtils
 {
     private final static Logger logger = Logger.getLogger(IOUtils.class);
 
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /**
+     * Reads one text line like {@link #readLine(InputStream, Options)}, within
+     * the default limits for streams other than {@link HttpInputStream}s.
+     */
+    public static String readLine(final InputStream input)
+        throws IOException
+    {
+        return readLine(input, null);
+    }
+
     /**
      * Reads one text line from an {@link InputStream} according to HTTP RFC
      * rules, consuming the first CR/LF or LF encountered.
      * 
+     * @param options
+     *        the line length limit for streams other than
+     *        {@link HttpInputStream}s, which have their own; the default if
+     *        <code>null</code>
      * @return the line read from the input stream, <code>null</code> if
      *         end-of-stream was encountered before reading any characters
      * @throws IOException
      *         if the end-of-stream was encountered after reading at least one
      *         character on the line
+     * @throws HeadTooLargeException
+     *         if the line is too long
      */
-    public static String readLine(final InputStream input)
+    public static String readLine(final InputStream input, final Options options)
         throws IOException
     {
-        final byte[] rawLine = readRawLine(input);
+        if (input instanceof HttpInputStream)
+        {
+            final HttpInputStream httpInput = (HttpInputStream) input;
+            return httpInput.readLine() ? httpInput.getLine() : null;
+        }
+
+        final byte[] rawLine = readRawLine(
+            input,
+            options != null ? options.getMaxHeaderLineBytes() : HttpInputStream.DEFAULT_MAX_LINE_BYTES);
 
         if (rawLine == null)
         {
@@ -44,7 +70,7 @@ public class IOUtils
         return UTF8Utils.decode(rawLine);
     }
 
-    private static byte[] readRawLine(final InputStream input)
+    private static byte[] readRawLine(final InputStream input, final int maxLineBytes)
         throws IOException
     {
         int read = 0;
@@ -76,6 +102,13 @@ public class IOUtils
             }
             else
             {
+                if (line.size() == maxLineBytes)
+                {
+                    throw new HeadTooLargeException(
+                        Status.REQUEST_HEADER_FIELDS_TOO_LARGE,
+                        "Line longer than " + maxLineBytes + " bytes");
+                }
+
                 line.write((byte) b);
             }
 
@@ -85,14 +118,47 @@ public class IOUtils
         return line.toByteArray();
     }
 
+    /**
+     * Reads header lines like {@link #readHeaders(InputStream, Options)},
+     * within the default limits for streams other than
+     * {@link HttpInputStream}s.
+     */
     public static List<Header> readHeaders(final InputStream input)
         throws IOException
     {
+        return readHeaders(input, null);
+    }
+
+    /**
+     * Reads header lines up to and including the empty line that ends them,
+     * within the limits of an {@link HttpInputStream}, or for other streams
+     * those in the options.
+     * 
+     * @param options
+     *        the limits for streams other than {@link HttpInputStream}s; the
+     *        defaults if <code>null</code>
+     * @throws HeadTooLargeException
+     *         if a limit is exceeded
+     */
+    public static List<Header> readHeaders(final InputStream input, final Options options)
+        throws IOException
+    {
+        if (input instanceof HttpInputStream)
+        {
+            return ((HttpInputStream) input).readHeaders();
+        }
+
+        final int maxHeadBytes =
+            options != null ? options.getMaxHeaderSizeBytes() : HttpInputStream.DEFAULT_MAX_HEAD_BYTES;
+        final int maxHeaderCount =
+            options != null ? options.getMaxHeaderCount() : HttpInputStream.DEFAULT_MAX_HEADER_COUNT;
+
         final List<Header> ret = new ArrayList<Header>();
+        int size = 0;
 
         while (true)
         {
-            final String line = IOUtils.readLine(input);
+            final String line = IOUtils.readLine(input, options);
 
             // A null line means end of stream, which shouldn't happen yet
             if (line == null)
@@ -106,8 +172,17 @@ public class IOUtils
                 break;
             }
 
+            size += line.length() + CRLF.length;
+
+            if (size > maxHeadBytes || ret.size() == maxHeaderCount)
+            {
+                throw new HeadTooLargeException(
+                    Status.REQUEST_HEADER_FIELDS_TOO_LARGE,
+                    "Headers larger than " + maxHeadBytes + " bytes or " + maxHeaderCount + " fields");
+            }
+
             final Header h = new Header(line);
-            logger.write(LogLevel.TRACE, h.getName() + ": " + h.getValue());
+            logger.write(LogLevel.TRACE, "{}: {}", h.getName(), h.getValue());
             ret.add(h);
         }
 
@@ -138,46 +213,73 @@ public class IOUtils
     public static void copyStream(final InputStream input, final OutputStream output, long count)
         throws IOException
     {
-        final byte[] buffer = new byte[64 * 1024];
+        // Small bodies (like most chunks) only need a small buffer
+        final int bufferSize = count < 0 || count > BufferPool.MAX_SIZE ? BufferPool.MAX_SIZE : (int) count;
+        final BufferPool pool = BufferPool.getDefault();
+        final byte[] buffer = pool.acquireBytes(bufferSize);
 
-        // Easier to duplicate loops than to unify control behavior
-        if (count < 0)
+        try
         {
-            int read;
-            while ((read = input.read(buffer)) != -1)
+            // Easier to duplicate loops than to unify control behavior
+            if (count < 0)
             {
-                output.write(buffer, 0, read);
+                int read;
+                while ((read = input.read(buffer)) != -1)
+                {
+                    output.write(buffer, 0, read);
+                }
             }
-        }
-        else
-        {
-            while (count > 0)
+            else
             {
-                // Safe to cast to int because it's less than the buffer size
-                int maxToRead = count > buffer.length ? buffer.length : (int) count;
+                while (count > 0)
+                {
+                    // Safe to cast to int because it's less than the buffer size
+                    int maxToRead = count > buffer.length ? buffer.length : (int) count;
 
-                final int read = input.read(buffer, 0, maxToRead);
+                    final int read = input.read(buffer, 0, maxToRead);
 
-                if (read == -1)
-                {
-                    return;
-                }
+                    if (read == -1)
+                    {
+                        return;
+                    }
 
-                count -= read;
+                    count -= read;
 
-                output.write(buffer, 0, read);
+                    output.write(buffer, 0, read);
+                }
             }
         }
+        finally
+        {
+            pool.release(buffer);
+        }
     }
 
     public static void copyChunkedStream(InputStream input, OutputStream output)
         throws IOException
+    {
+        copyChunkedStream(input, output, null);
+    }
+
+    /**
+     * Copies a chunked body. Chunk-size lines are limited like header lines:
+     * by an {@link HttpInputStream}'s own limits, or for other streams by
+     * those in the options (the defaults if <code>null</code>).
+     */
+    public static void copyChunkedStream(InputStream input, OutputStream output, Options options)
+        throws IOException
     {
         // See http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6.1
 
+        if (input instanceof HttpInputStream)
+        {
+            copyChunkedStream((HttpInputStream) input, output);
+            return;
+        }
+
         while (true)
         {
-            final String chunkSizeAndExtension = readLine(input);
+            final String chunkSizeAndExtension = readLine(input, options);
 
             if (chunkSizeAndExtension == null)
             {
@@ -199,18 +301,119 @@ public class IOUtils
                 logger.write(LogLevel.TRACE, "Got last chunk");
 
                 // Should be one CRLF after the last chunk
-                readLine(input);
+                readLine(input, options);
                 output.write(UTF8Utils.encode("\r\n"));
 
                 break;
             }
 
-            logger.write(LogLevel.TRACE, "Copying chunk of " + size + " bytes");
+            if (logger.isEnabled(LogLevel.TRACE))
+            {
+                logger.write(LogLevel.TRACE, "Copying chunk of " + size + " bytes");
+            }
+
             copyStream(input, output, size);
 
             // Should be one CRLF after the data
-            readLine(input);
+            readLine(input, options);
             output.write(UTF8Utils.encode("\r\n"));
         }
     }
+
+    /**
+     * Like {@link #copyChunkedStream(InputStream, OutputStream)}, but parses
+     * the chunk-size lines in the stream's buffer instead of decoding them.
+     */
+    private static void copyChunkedStream(final HttpInputStream input, final OutputStream output)
+        throws IOException
+    {
+        while (true)
+        {
+            if (!input.readLine())
+            {
+                throw new HTTPException("Did not receive "
+                    + Constants.TRANSFER_ENCODING_HEADER
+                    + " "
+                    + Constants.TRANSFER_ENCODING_CHUNKED
+                    + " header");
+            }
+
+            final long size = parseChunkSize(input);
+
+            output.write(input.getBuffer(), input.getLineStart(), input.getLineEnd() - input.getLineStart());
+            output.write(CRLF);
+
+            if (size == 0)
+            {
+                logger.write(LogLevel.TRACE, "Got last chunk");
+
+                // Should be one CRLF after the last chunk
+                input.readLine();
+                output.write(CRLF);
+
+                break;
+            }
+
+            if (logger.isEnabled(LogLevel.TRACE))
+            {
+                logger.write(LogLevel.TRACE, "Copying chunk of " + size + " bytes");
+            }
+
+            copyStream(input, output, size);
+
+            // Should be one CRLF after the data
+            input.readLine();
+            output.write(CRLF);
+        }
+    }
+
+    /**
+     * Parses the hexadecimal size from the chunk-size line last read, ignoring
+     * surrounding whitespace and any chunk extension.
+     */
+    private static long parseChunkSize(final HttpInputStream input)
+        throws HTTPException
+    {
+        final byte[] line = input.getBuffer();
+        final int end = input.getLineEnd();
+
+        int i = input.getLineStart();
+        while (i < end && line[i] >= 0 && line[i] <= ' ')
+        {
+            i++;
+        }
+
+        long size = 0;
+        int digits = 0;
+
+        for (; i < end && line[i] != ';'; i++)
+        {
+            final int digit = Character.digit(line[i], 16);
+
+            if (digit < 0)
+            {
+                if (line[i] >= 0 && line[i] <= ' ')
+                {
+                    break;
+                }
+
+                throw new HTTPException("Invalid chunk size '" + input.getLine() + "'");
+            }
+
+            if (size > (Long.MAX_VALUE >> 4))
+            {
+                throw new HTTPException("Chunk size too large '" + input.getLine() + "'");
+            }
+
+            size = (size << 4) + digit;
+            digits++;
+        }
+
+        if (digits == 0)
+        {
+            throw new HTTPException("Missing chunk size");
+        }
+
+        return size;
+    }
 }
@@ -9,11 +9,17 @@ package com.edwardthomson.poxyproxy;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.MessageFormat;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.edwardthomson.poxyproxy.cache.RequestCoalescer;
+import com.edwardthomson.poxyproxy.cache.ResponseCache;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
 
 public class Options
 {
@@ -48,6 +54,12 @@ public class Options
 	 */
 	private volatile int connectTimeoutSeconds = 10;
 
+	/**
+	 * When a host has several addresses, the next one is tried if a connect
+	 * hasn't succeeded after this many milliseconds (RFC 8305 recommends 250).
+	 */
+	private volatile int connectAttemptDelayMilliseconds = 250;
+
 	/**
 	 * Set on client-to-proxy and proxy-to-server sockets.
 	 * <p>
@@ -62,17 +74,290 @@ public class Options
 	private volatile int socketReadTimeoutSeconds = 300;
 
 	/**
-	 * Thread pool size for processing all requests.
+	 * A kept-alive client connection is closed if the client sends nothing
+	 * for this many seconds after a response; 0 for no limit.
+	 */
+	private volatile int keepAliveTimeoutSeconds = 60;
+
+	/**
+	 * A client that takes longer than this many seconds to send a request
+	 * head, from its first byte, or to start the first request on a new
+	 * connection, is answered 408 Request Timeout and closed; 0 for no limit.
+	 * Off by default, so a slow head waits only on the socket read timeout as
+	 * it always has; set --header-read-timeout (30 is a sensible value) to
+	 * turn it on.
+	 */
+	private volatile int headerReadTimeoutSeconds = 0;
+
+	/**
+	 * A client that sends a request head slower than this many bytes per
+	 * second on average, after its first second, is answered 408 Request
+	 * Timeout and closed; 0 for no limit. Off by default; set
+	 * --min-header-rate (500 is a sensible value) to turn it on.
+	 */
+	private volatile int minHeaderRateBytesPerSecond = 0;
+
+	/**
+	 * New connections from a client are refused once it has sent this many
+	 * heads too slowly or too late lately; 0 to never refuse. Off by default;
+	 * set --slow-client-refuse-after (5 is a sensible value) to turn it on.
+	 */
+	private volatile int slowClientRefuseThreshold = 0;
+
+	/**
+	 * How often the counts of slow heads are halved, in seconds, so clients
+	 * are forgiven.
+	 */
+	private volatile int slowClientDecaySeconds = 60;
+
+	/**
+	 * Counts slow heads by client address.
+	 */
+	private volatile SlowClientTable slowClientTable = new SlowClientTable(this);
+
+	/**
+	 * If a server (or forward proxy) hasn't started answering this many
+	 * seconds after the request was sent, the client gets a 504 Gateway
+	 * Timeout; 0 for no limit.
+	 */
+	private volatile int upstreamFirstByteTimeoutSeconds = 120;
+
+	/**
+	 * The most seconds from sending a request to a server to the end of its
+	 * response; 0 for no limit. Before the response starts the client gets a
+	 * 504 Gateway Timeout, after it the client connection is closed.
+	 */
+	private volatile int exchangeTimeoutSeconds = 0;
+
+	/**
+	 * A CONNECT tunnel is closed when no bytes have crossed it, in either
+	 * direction, for this many seconds; 0 to close it instead when either
+	 * side is silent for the socket read timeout.
+	 */
+	private volatile int tunnelIdleTimeoutSeconds = 300;
+
+	/**
+	 * Tracks the timeouts above for every connection.
+	 */
+	private volatile TimingWheel timingWheel = new TimingWheel(100, 512);
+
+	/**
+	 * The most proxy-to-server connections (idle or in use) the shared
+	 * upstream pool keeps open to one server or forward proxy; 0 for no
+	 * limit.
+	 */
+	private volatile int upstreamMaxPerHost = 64;
+
+	/**
+	 * The most proxy-to-server connections the shared upstream pool keeps open
+	 * in total; 0 for no limit.
+	 */
+	private volatile int upstreamMaxTotal = 512;
+
+	/**
+	 * Idle proxy-to-server connections in the shared upstream pool are closed
+	 * after this many seconds.
+	 */
+	private volatile int upstreamIdleTimeoutSeconds = 30;
+
+	/**
+	 * The most bytes of free buffers the {@link BufferPool} keeps for reuse
+	 * (for each of byte arrays and byte buffers); 0 disables pooling.
+	 */
+	private volatile long bufferPoolMaxBytes = 64L * 1024 * 1024;
+
+	/**
+	 * Whether pooled byte buffers (used to relay tunnels on selector threads)
+	 * are allocated outside the Java heap.
+	 */
+	private volatile boolean directBuffers = true;
+
+	/**
+	 * How long successful upstream host name lookups are cached; 0 disables
+	 * the DNS cache.
+	 */
+	private volatile int dnsCacheTtlSeconds = 60;
+
+	/**
+	 * How long failed upstream host name lookups are cached.
+	 */
+	private volatile int dnsCacheNegativeTtlSeconds = 5;
+
+	/**
+	 * The most host names kept in the DNS cache; 0 disables the DNS cache.
+	 */
+	private volatile int dnsCacheMaxEntries = 10000;
+
+	/**
+	 * Resolves upstream host names; reads the settings above on every lookup.
+	 */
+	private volatile DnsCache dnsCache = new DnsCache(this);
+
+	/**
+	 * Opens upstream sockets, racing the addresses of a host.
+	 */
+	private volatile UpstreamConnector upstreamConnector = new UpstreamConnector(this);
+
+	/**
+	 * The most bytes of responses kept in the response cache; 0 disables the
+	 * cache.
+	 */
+	private volatile long cacheMaxBytes = 0;
+
+	/**
+	 * The largest single response kept in the response cache.
+	 */
+	private volatile long cacheMaxObjectBytes = 16 * 1024 * 1024;
+
+	/**
+	 * Where responses too large for the heap are kept across restarts, or
+	 * <code>null</code> to keep responses in the heap alone.
+	 */
+	private volatile String cacheDirectory = null;
+
+	/**
+	 * The most bytes the cache directory's segment files may take.
+	 */
+	private volatile long cacheDiskMaxBytes = 1024L * 1024 * 1024;
+
+	/**
+	 * Stores GET responses; reads the settings above on every use.
+	 */
+	private volatile ResponseCache responseCache = new ResponseCache(this);
+
+	/**
+	 * Whether concurrent identical GETs share one upstream request.
+	 */
+	private volatile boolean collapsedForwarding = false;
+
+	/**
+	 * Tracks the GETs in flight that others can share.
+	 */
+	private volatile RequestCoalescer requestCoalescer = new RequestCoalescer(this);
+
+	/**
+	 * Latency histograms and counters fed by the connections and handlers.
+	 */
+	private volatile Metrics metrics = new Metrics();
+
+	/**
+	 * How often the metrics are logged; 0 disables the report.
+	 */
+	private volatile int metricsIntervalSeconds = 0;
+
+	/**
+	 * Thread pool size for processing all requests. Only used with the
+	 * {@link ExecutorType#Platform} executor.
 	 */
 	private volatile int maxThreads = 100;
 
 	/**
-	 * If set this {@link URI} is used as a proxy for all outgoing requests.
+	 * Thread pool size for relaying the blocking engine's CONNECT tunnels
+	 * with threads, two per tunnel. Separate from {@link #maxThreads} so
+	 * open tunnels can't take the threads requests need. Only used with the
+	 * {@link ExecutorType#Platform} executor.
+	 */
+	private volatile int tunnelThreads = 200;
+
+	/**
+	 * Runs connections and tunnel relays on fixed pools of platform threads
+	 * or on a new virtual thread each.
+	 */
+	private volatile ExecutorType executorType = ExecutorType.Platform;
+
+	/**
+	 * The maximum number of client connections served at once by the blocking
+	 * engine; 0 for no limit. Further clients wait to be accepted.
+	 */
+	private volatile int maxConnections = 0;
+
+	/**
+	 * The most accepted client connections of the blocking engine waiting
+	 * for a thread; more are answered 503 at once. 0 for no limit, the
+	 * default; set --admission-queue-size to turn it on.
+	 */
+	private volatile int admissionQueueSize = 0;
+
+	/**
+	 * How long a client connection of the blocking engine may wait for a
+	 * thread before it is answered 503 instead; 0 for no limit, the default;
+	 * set --admission-queue-timeout to turn it on.
+	 */
+	private volatile int admissionQueueTimeoutSeconds = 0;
+
+	/**
+	 * The most client connections the blocking engine serves or queues from
+	 * one address at once; more are answered 503. 0 for no limit.
+	 */
+	private volatile int maxConnectionsPerClient = 0;
+
+	/**
+	 * Applies the three settings above; reads them on every use.
+	 */
+	private volatile AdmissionControl admissionControl = new AdmissionControl(this);
+
+	/**
+	 * The most requests the blocking engine reads ahead of the response it is
+	 * writing on one client connection (HTTP/1.1 pipelining), counting that
+	 * one; queued GET and HEAD requests are sent upstream at once. 1 handles
+	 * each request only after the previous response was written.
+	 */
+	private volatile int pipelineDepth = 8;
+
+	/**
+	 * The most streams one HTTP/2 client connection may have open at once;
+	 * 0 serves HTTP/1.1 only. The blocking engine takes HTTP/2 with prior
+	 * knowledge on the plain port and offers it with ALPN on the TLS port,
+	 * unless authentication is required.
+	 */
+	private volatile int http2MaxStreams = 100;
+
+	/**
+	 * The engine that serves the plain HTTP port: a thread per connection
+	 * (blocking) or a few selector threads for all connections (NIO).
+	 */
+	private volatile EngineType engineType = EngineType.Blocking;
+
+	/**
+	 * Relays the bytes of the blocking engine's CONNECT tunnels with two
+	 * threads per tunnel, or on a few selector threads shared by all tunnels
+	 * (NIO). The NIO engine always relays on its own event loops.
+	 */
+	private volatile TunnelRelayType tunnelRelayType = TunnelRelayType.Threads;
+
+	/**
+	 * Number of event loop threads for the NIO engine, and for the NIO tunnel
+	 * relay; 0 means one per available processor.
+	 */
+	private volatile int eventLoopThreads = 0;
+
+	/**
+	 * If not empty these proxies are used for all outgoing requests, balanced
+	 * by the {@link #forwardProxyBalance}.
+	 *
+	 * Never modified; replaced with a new list on update.
+	 */
+	private volatile List<URI> forwardProxyURIs = Collections.emptyList();
+
+	/**
+	 * How requests are spread across the {@link #forwardProxyURIs}.
+	 */
+	private volatile ForwardProxyBalance forwardProxyBalance = ForwardProxyBalance.LeastOutstanding;
+
+	/**
+	 * How often each forward proxy is probed, so those that can't be reached
+	 * are taken out of rotation; 0 disables the probes.
+	 */
+	private volatile int forwardProxyHealthIntervalSeconds = 10;
+
+	/**
+	 * Chooses among the forward proxies; reads the settings above on every
+	 * use.
 	 */
-	private volatile URI forwardProxyURI = null;
+	private volatile ForwardProxyGroup forwardProxyGroup = new ForwardProxyGroup(this);
 
 	/**
-	 * Only used when {@link #forwardProxyURI} is set.
+	 * Only used when {@link #forwardProxyURIs} are set.
 	 *
 	 * This string (like ".corp.microsoft.com") is appended to host names
 	 * lacking a dot (".") when matched against {@link #forwardProxyBypassHosts}
@@ -81,14 +366,27 @@ public class Options
 	private volatile String forwardProxyBypassHostDefaultDomain = null;
 
 	/**
-	 * Only used when {@link #forwardProxyURI} is set.
+	 * Only used when {@link #forwardProxyURIs} are set.
 	 *
-	 * Request targets matching this list (of hosts and/or domains) are NOT
-	 * routed through the {@link #forwardProxyURI} if it is set.
+	 * Request targets matching this list (of hosts, domains, addresses and/or
+	 * networks, see {@link BypassList}) are NOT routed through the
+	 * {@link #forwardProxyURIs} if they are set.
 	 *
-	 * Synchronized on {@link #forwardProxyBypassHosts}.
+	 * Compiled for matching, and replaced on update so lookups need no lock.
+	 */
+	private volatile BypassList forwardProxyBypassHosts = BypassList.EMPTY;
+
+	/**
+	 * The most connected sockets kept ready for CONNECTs through each of the
+	 * {@link #forwardProxyURIs}; 0 disables the standby pool.
 	 */
-	private final Set<String> forwardProxyBypassHosts = new HashSet<String>();
+	private volatile int forwardProxyStandbySize = 0;
+
+	/**
+	 * Keeps sockets to the forward proxy ready; reads the setting above on
+	 * every use.
+	 */
+	private volatile ForwardProxyStandby forwardProxyStandby = new ForwardProxyStandby(this);
 
 	/**
 	 * If set to true, proxy authentication will be required.  Clients must
@@ -106,15 +404,38 @@ public class Options
 	 *
 	 * Map of username/password pairs that are permitted when proxy
 	 * authentication is enabled.
-	 *
-	 * Synchronized on {@link #proxyCredentials}.
 	 */
-	private final Map<String, String> proxyCredentials = new HashMap<String, String>();
+	private final Map<String, String> proxyCredentials = new ConcurrentHashMap<String, String>();
 
 	/**
-	 * The maximum HTTP header size for requests/responses.
+	 * The maximum HTTP header size for requests/responses. A larger request
+	 * head is answered 431 Request Header Fields Too Large; a larger response
+	 * head gets the client a 502 Bad Gateway.
 	 */
-	private final int maxHeaderSizeBytes = 32 * 1024;
+	private volatile int maxHeaderSizeBytes = HttpInputStream.DEFAULT_MAX_HEAD_BYTES;
+
+	/**
+	 * The longest request line, status line or header line, in bytes. A
+	 * longer request line is answered 414 URI Too Long.
+	 */
+	private volatile int maxHeaderLineBytes = HttpInputStream.DEFAULT_MAX_LINE_BYTES;
+
+	/**
+	 * The most header fields in a request or response head.
+	 */
+	private volatile int maxHeaderCount = HttpInputStream.DEFAULT_MAX_HEADER_COUNT;
+
+	/**
+	 * The most bytes all connections together may have buffered for heads
+	 * beyond their initial buffers; 0 for no limit. A connection that would
+	 * go over is answered 503 Service Unavailable.
+	 */
+	private volatile long maxHeadBufferBytes = 64L * 1024 * 1024;
+
+	/**
+	 * Counts the buffered bytes limited above.
+	 */
+	private volatile HeadBufferBudget headBufferBudget = new HeadBufferBudget(this);
 
 	/**
 	 * Time to sleep before returning the status code with the response.
@@ -185,6 +506,16 @@ public class Options
 		this.connectTimeoutSeconds = connectTimeoutSeconds;
 	}
 
+	public int getConnectAttemptDelayMilliseconds()
+	{
+		return this.connectAttemptDelayMilliseconds;
+	}
+
+	public void setConnectAttemptDelayMilliseconds(int connectAttemptDelayMilliseconds)
+	{
+		this.connectAttemptDelayMilliseconds = connectAttemptDelayMilliseconds;
+	}
+
 	public int getSocketReadTimeoutSeconds()
 	{
 		return this.socketReadTimeoutSeconds;
@@ -195,215 +526,709 @@ public class Options
 		this.socketReadTimeoutSeconds = socketReadTimeoutSeconds;
 	}
 
-	public int getResponseDelayMilliseconds()
+	public int getKeepAliveTimeoutSeconds()
 	{
-		return responseDelayMilliseconds;
+		return this.keepAliveTimeoutSeconds;
 	}
 
-	public void setResponseDelayMilliseconds(int responseDelayMilliseconds)
+	public void setKeepAliveTimeoutSeconds(int keepAliveTimeoutSeconds)
 	{
-		this.responseDelayMilliseconds = responseDelayMilliseconds;
+		this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds;
 	}
 
-	public int getMaxThreads()
+	public int getHeaderReadTimeoutSeconds()
 	{
-		return this.maxThreads;
+		return this.headerReadTimeoutSeconds;
 	}
 
-	public void setMaxThreads(int maxThreads)
+	public void setHeaderReadTimeoutSeconds(int headerReadTimeoutSeconds)
 	{
-		this.maxThreads = maxThreads;
+		this.headerReadTimeoutSeconds = headerReadTimeoutSeconds;
 	}
 
-	public URI getForwardProxyURI()
+	public int getMinHeaderRateBytesPerSecond()
 	{
-		return this.forwardProxyURI;
+		return this.minHeaderRateBytesPerSecond;
 	}
 
-	/**
-	 * Set the URI string of the proxy to forward all non-bypass requests
-	 * through.
-	 *
-	 * @param the
-	 *        URI string of the proxy
-	 */
-	public void setForwardProxyURI(String forwardProxyURIString)
+	public void setMinHeaderRateBytesPerSecond(int minHeaderRateBytesPerSecond)
 	{
-		if (forwardProxyURIString == null)
-		{
-			this.forwardProxyURI = null;
-		}
-		else
-		{
-			URI uri;
-
-			try
-			{
-				uri = new URI(forwardProxyURIString);
-			}
-			catch (URISyntaxException e)
-			{
-				throw new RuntimeException(MessageFormat.format("Invalid proxy URL: {0}", forwardProxyURIString), e);
-			}
-
-			this.forwardProxyURI = uri;
-		}
+		this.minHeaderRateBytesPerSecond = minHeaderRateBytesPerSecond;
 	}
 
-	public String getForwardProxyBypassHostDefaultDomain()
+	public int getSlowClientRefuseThreshold()
 	{
-		return this.forwardProxyBypassHostDefaultDomain;
+		return this.slowClientRefuseThreshold;
 	}
 
-	/**
-	 * Sets the canonical domain to append to domain-less host names before
-	 * matching against the proxy bypass list.
-	 *
-	 * @param domain
-	 *        the domain name suffix (like ".corp.microsoft.com")
-	 */
-	public void setForwardProxyBypassHostDefaultDomain(String domain)
+	public void setSlowClientRefuseThreshold(int slowClientRefuseThreshold)
 	{
-		this.forwardProxyBypassHostDefaultDomain = domain;
+		this.slowClientRefuseThreshold = slowClientRefuseThreshold;
 	}
 
-	/**
-	 * Add a proxy bypass host entry to an existing handler configuration
-	 *
-	 * @param hostOrDomain
-	 *        new proxy bypass entry
-	 */
-	public void addForwardProxyBypassHost(String hostOrDomain)
+	public int getSlowClientDecaySeconds()
 	{
-		if (hostOrDomain == null)
-		{
-			return;
-		}
-
-		synchronized (forwardProxyBypassHosts)
-		{
-			forwardProxyBypassHosts.add(hostOrDomain.trim());
-		}
+		return this.slowClientDecaySeconds;
 	}
 
-	/**
-	 * Re-initialize the proxy bypass list of existing handler object
-	 *
-	 * @param listOfHostOrDomain
-	 *        list of proxy bypass entries
-	 */
-	public void setForwardProxyBypassHosts(List<String> listOfHostOrDomain)
+	public void setSlowClientDecaySeconds(int slowClientDecaySeconds)
 	{
-		if (listOfHostOrDomain == null)
-		{
-			return;
-		}
-
-		synchronized (forwardProxyBypassHosts)
-		{
-			forwardProxyBypassHosts.clear();
-
-			for (final String entry : listOfHostOrDomain)
-			{
-				forwardProxyBypassHosts.add(entry.trim());
-			}
-		}
+		this.slowClientDecaySeconds = slowClientDecaySeconds;
 	}
 
-	public boolean hostMatchesForwardProxyBypassHosts(String host)
+	public SlowClientTable getSlowClientTable()
 	{
-		if (!host.contains("."))
-		{
-			if (forwardProxyBypassHostDefaultDomain != null)
-			{
-				host = host + "." + forwardProxyBypassHostDefaultDomain;
-			}
-		}
-
-		final String lowerHost = host.toLowerCase();
-
-		synchronized (forwardProxyBypassHosts)
-		{
-			for (String bypass : forwardProxyBypassHosts)
-			{
-				final String lowerBypass = bypass.toLowerCase();
-
-				if (lowerHost.equals(lowerBypass) || lowerHost.endsWith(lowerBypass))
-				{
-					return true;
-				}
-			}
-		}
-
-		return false;
+		return this.slowClientTable;
 	}
 
-	public Set<String> getForwardProxyBypassHosts()
+	public void setSlowClientTable(SlowClientTable slowClientTable)
 	{
-		synchronized (forwardProxyBypassHosts)
-		{
-			return new HashSet<String>(forwardProxyBypassHosts);
-		}
+		this.slowClientTable = slowClientTable;
 	}
 
-	public boolean isAuthenticationRequired()
+	public int getUpstreamFirstByteTimeoutSeconds()
 	{
-		return authenticationRequired;
+		return this.upstreamFirstByteTimeoutSeconds;
 	}
 
-	public void setAuthenticationRequired(boolean required)
+	public void setUpstreamFirstByteTimeoutSeconds(int upstreamFirstByteTimeoutSeconds)
 	{
-		this.authenticationRequired = required;
+		this.upstreamFirstByteTimeoutSeconds = upstreamFirstByteTimeoutSeconds;
 	}
 
-	public AuthenticationType getAuthenticationType()
+	public int getExchangeTimeoutSeconds()
 	{
-		return authenticationType;
+		return this.exchangeTimeoutSeconds;
 	}
 
-	public void setAuthenticationType(AuthenticationType authenticationType)
+	public void setExchangeTimeoutSeconds(int exchangeTimeoutSeconds)
 	{
-		this.authenticationType = authenticationType;
+		this.exchangeTimeoutSeconds = exchangeTimeoutSeconds;
 	}
 
-	public void setProxyCredentials(List<String> credentials)
+	public int getTunnelIdleTimeoutSeconds()
+	{
+		return this.tunnelIdleTimeoutSeconds;
+	}
+
+	public void setTunnelIdleTimeoutSeconds(int tunnelIdleTimeoutSeconds)
+	{
+		this.tunnelIdleTimeoutSeconds = tunnelIdleTimeoutSeconds;
+	}
+
+	public TimingWheel getTimingWheel()
+	{
+		return this.timingWheel;
+	}
+
+	public void setTimingWheel(TimingWheel timingWheel)
+	{
+		this.timingWheel = timingWheel;
+	}
+
+	public int getResponseDelayMilliseconds()
+	{
+		return responseDelayMilliseconds;
+	}
+
+	public void setResponseDelayMilliseconds(int responseDelayMilliseconds)
+	{
+		this.responseDelayMilliseconds = responseDelayMilliseconds;
+	}
+
+	public long getBufferPoolMaxBytes()
+	{
+		return this.bufferPoolMaxBytes;
+	}
+
+	public void setBufferPoolMaxBytes(long bufferPoolMaxBytes)
+	{
+		this.bufferPoolMaxBytes = bufferPoolMaxBytes;
+	}
+
+	public boolean isDirectBuffers()
+	{
+		return this.directBuffers;
+	}
+
+	public void setDirectBuffers(boolean directBuffers)
+	{
+		this.directBuffers = directBuffers;
+	}
+
+	public int getDnsCacheTtlSeconds()
+	{
+		return this.dnsCacheTtlSeconds;
+	}
+
+	public void setDnsCacheTtlSeconds(int dnsCacheTtlSeconds)
+	{
+		this.dnsCacheTtlSeconds = dnsCacheTtlSeconds;
+	}
+
+	public int getDnsCacheNegativeTtlSeconds()
+	{
+		return this.dnsCacheNegativeTtlSeconds;
+	}
+
+	public void setDnsCacheNegativeTtlSeconds(int dnsCacheNegativeTtlSeconds)
+	{
+		this.dnsCacheNegativeTtlSeconds = dnsCacheNegativeTtlSeconds;
+	}
+
+	public int getDnsCacheMaxEntries()
+	{
+		return this.dnsCacheMaxEntries;
+	}
+
+	public void setDnsCacheMaxEntries(int dnsCacheMaxEntries)
+	{
+		this.dnsCacheMaxEntries = dnsCacheMaxEntries;
+	}
+
+	public DnsCache getDnsCache()
+	{
+		return this.dnsCache;
+	}
+
+	public void setDnsCache(DnsCache dnsCache)
+	{
+		this.dnsCache = dnsCache;
+	}
+
+	public UpstreamConnector getUpstreamConnector()
+	{
+		return this.upstreamConnector;
+	}
+
+	public void setUpstreamConnector(UpstreamConnector upstreamConnector)
+	{
+		this.upstreamConnector = upstreamConnector;
+	}
+
+	public Metrics getMetrics()
+	{
+		return this.metrics;
+	}
+
+	public void setMetrics(Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public long getCacheMaxBytes()
+	{
+		return this.cacheMaxBytes;
+	}
+
+	public void setCacheMaxBytes(long cacheMaxBytes)
+	{
+		this.cacheMaxBytes = cacheMaxBytes;
+	}
+
+	public long getCacheMaxObjectBytes()
+	{
+		return this.cacheMaxObjectBytes;
+	}
+
+	public void setCacheMaxObjectBytes(long cacheMaxObjectBytes)
+	{
+		this.cacheMaxObjectBytes = cacheMaxObjectBytes;
+	}
+
+	public String getCacheDirectory()
+	{
+		return this.cacheDirectory;
+	}
+
+	public void setCacheDirectory(String cacheDirectory)
+	{
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public long getCacheDiskMaxBytes()
+	{
+		return this.cacheDiskMaxBytes;
+	}
+
+	public void setCacheDiskMaxBytes(long cacheDiskMaxBytes)
+	{
+		this.cacheDiskMaxBytes = cacheDiskMaxBytes;
+	}
+
+	public ResponseCache getResponseCache()
+	{
+		return this.responseCache;
+	}
+
+	public void setResponseCache(ResponseCache responseCache)
+	{
+		this.responseCache = responseCache;
+	}
+
+	public boolean isCollapsedForwarding()
+	{
+		return this.collapsedForwarding;
+	}
+
+	public void setCollapsedForwarding(boolean collapsedForwarding)
+	{
+		this.collapsedForwarding = collapsedForwarding;
+	}
+
+	public RequestCoalescer getRequestCoalescer()
+	{
+		return this.requestCoalescer;
+	}
+
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer)
+	{
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	public int getMetricsIntervalSeconds()
+	{
+		return this.metricsIntervalSeconds;
+	}
+
+	public void setMetricsIntervalSeconds(int metricsIntervalSeconds)
+	{
+		this.metricsIntervalSeconds = metricsIntervalSeconds;
+	}
+
+	public int getUpstreamMaxPerHost()
+	{
+		return this.upstreamMaxPerHost;
+	}
+
+	public void setUpstreamMaxPerHost(int upstreamMaxPerHost)
+	{
+		this.upstreamMaxPerHost = upstreamMaxPerHost;
+	}
+
+	public int getUpstreamMaxTotal()
+	{
+		return this.upstreamMaxTotal;
+	}
+
+	public void setUpstreamMaxTotal(int upstreamMaxTotal)
+	{
+		this.upstreamMaxTotal = upstreamMaxTotal;
+	}
+
+	public int getUpstreamIdleTimeoutSeconds()
+	{
+		return this.upstreamIdleTimeoutSeconds;
+	}
+
+	public void setUpstreamIdleTimeoutSeconds(int upstreamIdleTimeoutSeconds)
+	{
+		this.upstreamIdleTimeoutSeconds = upstreamIdleTimeoutSeconds;
+	}
+
+	public int getMaxThreads()
+	{
+		return this.maxThreads;
+	}
+
+	public void setMaxThreads(int maxThreads)
+	{
+		this.maxThreads = maxThreads;
+	}
+
+	public int getTunnelThreads()
+	{
+		return this.tunnelThreads;
+	}
+
+	public void setTunnelThreads(int tunnelThreads)
+	{
+		this.tunnelThreads = tunnelThreads;
+	}
+
+	public EngineType getEngineType()
+	{
+		return this.engineType;
+	}
+
+	public void setEngineType(EngineType engineType)
+	{
+		this.engineType = engineType;
+	}
+
+	public TunnelRelayType getTunnelRelayType()
+	{
+		return this.tunnelRelayType;
+	}
+
+	public void setTunnelRelayType(TunnelRelayType tunnelRelayType)
+	{
+		this.tunnelRelayType = tunnelRelayType;
+	}
+
+	public int getEventLoopThreads()
+	{
+		return this.eventLoopThreads;
+	}
+
+	public void setEventLoopThreads(int eventLoopThreads)
+	{
+		this.eventLoopThreads = eventLoopThreads;
+	}
+
+	public ExecutorType getExecutorType()
+	{
+		return this.executorType;
+	}
+
+	public void setExecutorType(ExecutorType executorType)
+	{
+		this.executorType = executorType;
+	}
+
+	public int getMaxConnections()
+	{
+		return this.maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections)
+	{
+		this.maxConnections = maxConnections;
+	}
+
+	public int getAdmissionQueueSize()
+	{
+		return this.admissionQueueSize;
+	}
+
+	public void setAdmissionQueueSize(int admissionQueueSize)
+	{
+		this.admissionQueueSize = admissionQueueSize;
+	}
+
+	public int getAdmissionQueueTimeoutSeconds()
+	{
+		return this.admissionQueueTimeoutSeconds;
+	}
+
+	public void setAdmissionQueueTimeoutSeconds(int admissionQueueTimeoutSeconds)
+	{
+		this.admissionQueueTimeoutSeconds = admissionQueueTimeoutSeconds;
+	}
+
+	public int getMaxConnectionsPerClient()
+	{
+		return this.maxConnectionsPerClient;
+	}
+
+	public void setMaxConnectionsPerClient(int maxConnectionsPerClient)
+	{
+		this.maxConnectionsPerClient = maxConnectionsPerClient;
+	}
+
+	public AdmissionControl getAdmissionControl()
+	{
+		return this.admissionControl;
+	}
+
+	public void setAdmissionControl(AdmissionControl admissionControl)
+	{
+		this.admissionControl = admissionControl;
+	}
+
+	public int getPipelineDepth()
+	{
+		return this.pipelineDepth;
+	}
+
+	public void setPipelineDepth(int pipelineDepth)
+	{
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	public int getHttp2MaxStreams()
+	{
+		return this.http2MaxStreams;
+	}
+
+	public void setHttp2MaxStreams(int http2MaxStreams)
+	{
+		this.http2MaxStreams = http2MaxStreams;
+	}
+
+	/**
+	 * @return <code>true</code> if clients may speak HTTP/2: it isn't turned
+	 *         off, and authentication (which NTLM ties to the connection)
+	 *         isn't required
+	 */
+	public boolean isHttp2Enabled()
 	{
-		synchronized (proxyCredentials)
+		return http2MaxStreams > 0 && !authenticationRequired;
+	}
+
+	public List<URI> getForwardProxyURIs()
+	{
+		return this.forwardProxyURIs;
+	}
+
+	/**
+	 * Set the URI string of the proxy to forward all non-bypass requests
+	 * through.
+	 *
+	 * @param the
+	 *        URI string of the proxy
+	 */
+	public void setForwardProxyURI(String forwardProxyURIString)
+	{
+		setForwardProxyURIs(forwardProxyURIString != null
+				? Collections.singletonList(forwardProxyURIString)
+				: Collections.<String>emptyList());
+	}
+
+	/**
+	 * Set the URI strings of the proxies to forward all non-bypass requests
+	 * through.
+	 *
+	 * @param listOfURIStrings
+	 *        URI strings of the proxies; each may be a comma-separated list
+	 */
+	public void setForwardProxyURIs(List<String> listOfURIStrings)
+	{
+		final List<URI> uris = new ArrayList<URI>();
+
+		for (String uriStrings : listOfURIStrings)
 		{
-			for (String credential : credentials)
+			for (String uriString : uriStrings.split(","))
 			{
-				String[] parts = credential.split(":",  2);
-				proxyCredentials.put(parts[0], parts[1]);
+				if (uriString.trim().length() == 0)
+				{
+					continue;
+				}
+
+				try
+				{
+					final URI uri = new URI(uriString.trim());
+
+					if (!uris.contains(uri))
+					{
+						uris.add(uri);
+					}
+				}
+				catch (URISyntaxException e)
+				{
+					throw new RuntimeException(MessageFormat.format("Invalid proxy URL: {0}", uriString), e);
+				}
 			}
 		}
+
+		this.forwardProxyURIs = Collections.unmodifiableList(uris);
 	}
 
-	public void addProxyCredential(String username, String password)
+	public ForwardProxyBalance getForwardProxyBalance()
+	{
+		return this.forwardProxyBalance;
+	}
+
+	public void setForwardProxyBalance(ForwardProxyBalance forwardProxyBalance)
+	{
+		this.forwardProxyBalance = forwardProxyBalance;
+	}
+
+	public int getForwardProxyHealthIntervalSeconds()
+	{
+		return this.forwardProxyHealthIntervalSeconds;
+	}
+
+	public void setForwardProxyHealthIntervalSeconds(int forwardProxyHealthIntervalSeconds)
+	{
+		this.forwardProxyHealthIntervalSeconds = forwardProxyHealthIntervalSeconds;
+	}
+
+	public ForwardProxyGroup getForwardProxyGroup()
+	{
+		return this.forwardProxyGroup;
+	}
+
+	public void setForwardProxyGroup(ForwardProxyGroup forwardProxyGroup)
+	{
+		this.forwardProxyGroup = forwardProxyGroup;
+	}
+
+	public int getForwardProxyStandbySize()
+	{
+		return this.forwardProxyStandbySize;
+	}
+
+	public void setForwardProxyStandbySize(int forwardProxyStandbySize)
+	{
+		this.forwardProxyStandbySize = forwardProxyStandbySize;
+	}
+
+	public ForwardProxyStandby getForwardProxyStandby()
+	{
+		return this.forwardProxyStandby;
+	}
+
+	public void setForwardProxyStandby(ForwardProxyStandby forwardProxyStandby)
+	{
+		this.forwardProxyStandby = forwardProxyStandby;
+	}
+
+	public String getForwardProxyBypassHostDefaultDomain()
+	{
+		return this.forwardProxyBypassHostDefaultDomain;
+	}
+
+	/**
+	 * Sets the canonical domain to append to domain-less host names before
+	 * matching against the proxy bypass list.
+	 *
+	 * @param domain
+	 *        the domain name suffix (like ".corp.microsoft.com")
+	 */
+	public void setForwardProxyBypassHostDefaultDomain(String domain)
+	{
+		this.forwardProxyBypassHostDefaultDomain = domain;
+	}
+
+	/**
+	 * Add a proxy bypass host entry to an existing handler configuration
+	 *
+	 * @param hostOrDomain
+	 *        new proxy bypass entry
+	 */
+	public void addForwardProxyBypassHost(String hostOrDomain)
 	{
-		synchronized (proxyCredentials)
+		if (hostOrDomain == null)
+		{
+			return;
+		}
+
+		synchronized (this)
 		{
-			proxyCredentials.put(username, password);
+			final Set<String> hosts = new HashSet<String>(forwardProxyBypassHosts.getEntries());
+			hosts.add(hostOrDomain);
+			forwardProxyBypassHosts = BypassList.compile(hosts);
 		}
 	}
 
-	public String getProxyCredentials(String username)
+	/**
+	 * Re-initialize the proxy bypass list of existing handler object
+	 *
+	 * @param listOfHostOrDomain
+	 *        list of proxy bypass entries
+	 */
+	public void setForwardProxyBypassHosts(List<String> listOfHostOrDomain)
 	{
-		synchronized (proxyCredentials)
+		if (listOfHostOrDomain == null)
 		{
-			return proxyCredentials.get(username);
+			return;
 		}
+
+		forwardProxyBypassHosts = BypassList.compile(listOfHostOrDomain);
 	}
 
-	public boolean credentialsMatchProxyCredentials(String username, String password)
+	public boolean hostMatchesForwardProxyBypassHosts(String host)
+	{
+		return forwardProxyBypassHosts.matches(host, forwardProxyBypassHostDefaultDomain);
+	}
+
+	public Set<String> getForwardProxyBypassHosts()
+	{
+		return new HashSet<String>(forwardProxyBypassHosts.getEntries());
+	}
+
+	public boolean isAuthenticationRequired()
+	{
+		return authenticationRequired;
+	}
+
+	public void setAuthenticationRequired(boolean required)
+	{
+		this.authenticationRequired = required;
+	}
+
+	public AuthenticationType getAuthenticationType()
 	{
-		synchronized (proxyCredentials)
+		return authenticationType;
+	}
+
+	public void setAuthenticationType(AuthenticationType authenticationType)
+	{
+		this.authenticationType = authenticationType;
+	}
+
+	public void setProxyCredentials(List<String> credentials)
+	{
+		for (String credential : credentials)
 		{
-			return password.equals(proxyCredentials.get(username));
+			String[] parts = credential.split(":",  2);
+			proxyCredentials.put(parts[0], parts[1]);
 		}
 	}
 
+	public void addProxyCredential(String username, String password)
+	{
+		proxyCredentials.put(username, password);
+	}
+
+	public String getProxyCredentials(String username)
+	{
+		return proxyCredentials.get(username);
+	}
+
+	public boolean credentialsMatchProxyCredentials(String username, String password)
+	{
+		return password.equals(proxyCredentials.get(username));
+	}
+
 	public int getMaxHeaderSizeBytes()
 	{
 		return maxHeaderSizeBytes;
 	}
+
+	public void setMaxHeaderSizeBytes(int maxHeaderSizeBytes)
+	{
+		this.maxHeaderSizeBytes = maxHeaderSizeBytes;
+	}
+
+	public int getMaxHeaderLineBytes()
+	{
+		return maxHeaderLineBytes;
+	}
+
+	public void setMaxHeaderLineBytes(int maxHeaderLineBytes)
+	{
+		this.maxHeaderLineBytes = maxHeaderLineBytes;
+	}
+
+	public int getMaxHeaderCount()
+	{
+		return maxHeaderCount;
+	}
+
+	public void setMaxHeaderCount(int maxHeaderCount)
+	{
+		this.maxHeaderCount = maxHeaderCount;
+	}
+
+	public long getMaxHeadBufferBytes()
+	{
+		return maxHeadBufferBytes;
+	}
+
+	public void setMaxHeadBufferBytes(long maxHeadBufferBytes)
+	{
+		this.maxHeadBufferBytes = maxHeadBufferBytes;
+	}
+
+	public HeadBufferBudget getHeadBufferBudget()
+	{
+		return headBufferBudget;
+	}
+
+	public void setHeadBufferBudget(HeadBufferBudget headBufferBudget)
+	{
+		this.headBufferBudget = headBufferBudget;
+	}
 }
@@ -0,0 +1,363 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.handlers.DefaultRequestHandler;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * A request a {@link Connection} read from its client, possibly ahead of the
+ * response it is writing (HTTP/1.1 pipelining).
+ * <p>
+ * A GET or HEAD read ahead can be started on another thread, which writes its
+ * response into a buffer until the connection gets to it; the connection then
+ * copies the response to the client as the handler goes on writing it. The
+ * buffer is bounded, so a handler that gets far ahead waits. A request that
+ * wasn't started by the time the connection gets to it is handled by the
+ * connection itself.
+ * <p>
+ * The buffer is guarded by a {@link ReentrantLock} rather than synchronized
+ * blocks, so a virtual thread waiting on either side doesn't pin its carrier.
+ * <p>
+ * A request that couldn't be read (end of stream or an error) is kept too, so
+ * the connection deals with it once the responses before it are written.
+ */
+class PipelinedRequest
+implements Runnable
+{
+	private final static Logger logger = Logger.getLogger(PipelinedRequest.class);
+
+	/* Response bytes buffered for the client before the handler waits */
+	private static final int MAX_BUFFERED_BYTES = 256 * 1024;
+
+	private final Request request;
+
+	/* Whether the request asked to keep the connection open, or null if it didn't say */
+	private final Boolean keepAlive;
+
+	/* Why the request couldn't be read: an IOException or HTTPException */
+	private final Exception failure;
+
+	/* Set by whichever of the worker and the connection handles the request */
+	private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/* Signalled when a chunk is buffered or the handler finishes */
+	private final Condition notEmpty = lock.newCondition();
+
+	/* Signalled when a chunk is taken or the response is abandoned */
+	private final Condition notFull = lock.newCondition();
+
+	/* Guarded by lock */
+	private final Deque<byte[]> chunks = new ArrayDeque<byte[]>();
+	private int bufferedBytes = 0;
+	private boolean finished = false;
+	private boolean abandoned = false;
+	private Response response;
+	private boolean handled = false;
+
+	/* Set when started */
+	private Connection connection;
+
+	/**
+	 * @param request
+	 *        the request, or <code>null</code> if the stream ended before one
+	 *        could be read
+	 */
+	PipelinedRequest(final Request request, final Boolean keepAlive)
+	{
+		this.request = request;
+		this.keepAlive = keepAlive;
+		this.failure = null;
+	}
+
+	PipelinedRequest(final Exception failure)
+	{
+		this.request = null;
+		this.keepAlive = null;
+		this.failure = failure;
+	}
+
+	/**
+	 * @return the request, or <code>null</code> if the stream ended before one
+	 *         could be read
+	 * @throws IOException
+	 *         if the request couldn't be read
+	 * @throws HTTPException
+	 *         if the request wasn't valid
+	 */
+	Request getRequest()
+			throws IOException
+	{
+		if (failure instanceof IOException)
+		{
+			throw (IOException) failure;
+		}
+
+		if (failure instanceof RuntimeException)
+		{
+			throw (RuntimeException) failure;
+		}
+
+		return request;
+	}
+
+	/**
+	 * @return <code>true</code> or <code>false</code> if the request's
+	 *         Connection header (or its version, for the first request) asks
+	 *         to keep the connection open or to close it, <code>null</code>
+	 *         if it doesn't say
+	 */
+	Boolean getKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	/**
+	 * @return <code>true</code> if the request was read and the connection
+	 *         can read the next one before handling it: a GET or HEAD without
+	 *         a body, which can be sent upstream without waiting for the
+	 *         responses before it
+	 */
+	boolean isIdempotent()
+	{
+		if (request == null)
+		{
+			return false;
+		}
+
+		if (!request.getMethod().equals(Constants.GET_METHOD) && !request.getMethod().equals(Constants.HEAD_METHOD))
+		{
+			return false;
+		}
+
+		final Header contentLength = HeaderUtils.findHeader(Constants.CONTENT_LENGTH_HEADER, request.getHeaders());
+
+		return HeaderUtils.findHeader(Constants.TRANSFER_ENCODING_HEADER, request.getHeaders()) == null
+				&& (contentLength == null || contentLength.getValue().trim().equals("0"));
+	}
+
+	/**
+	 * Hands the request to a thread of the connection's executor.
+	 */
+	void start(final Connection connection)
+	{
+		this.connection = connection;
+		connection.getExecutorService().execute(this);
+	}
+
+	public void run()
+	{
+		if (!claimed.compareAndSet(false, true))
+		{
+			// The connection got to it first
+			return;
+		}
+
+		final Response response = new Response(new BufferStream(), request.getVersion());
+		boolean handled = false;
+
+		try
+		{
+			handled = new DefaultRequestHandler(connection).handle(request, response);
+			response.flush();
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Pipelined request {} failed: {}", request, e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			logger.write(LogLevel.WARNING, "Unhandled exception in pipelined request " + request, e);
+		}
+		finally
+		{
+			lock.lock();
+			try
+			{
+				this.response = response;
+				this.handled = handled;
+				finished = true;
+				notEmpty.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Copies the response to the client as it is written, until the handler
+	 * is done.
+	 *
+	 * @return the response, or <code>null</code> if the request wasn't started
+	 *         and the caller must handle it itself
+	 */
+	Response writeTo(final OutputStream out)
+			throws IOException
+	{
+		if (claimed.compareAndSet(false, true))
+		{
+			return null;
+		}
+
+		try
+		{
+			byte[] chunk;
+			while ((chunk = takeChunk()) != null)
+			{
+				out.write(chunk);
+			}
+		}
+		catch (IOException e)
+		{
+			abandon();
+			throw e;
+		}
+
+		return response;
+	}
+
+	/**
+	 * @return what the handler returned; valid once {@link #writeTo} returned
+	 *         a response
+	 */
+	boolean isHandled()
+	{
+		lock.lock();
+		try
+		{
+			return handled;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives up on the response because the connection is closing: the request
+	 * won't be started, and a handler writing its response fails.
+	 */
+	void abandon()
+	{
+		claimed.set(true);
+
+		lock.lock();
+		try
+		{
+			abandoned = true;
+			chunks.clear();
+			bufferedBytes = 0;
+			notFull.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private byte[] takeChunk()
+			throws InterruptedIOException
+	{
+		lock.lock();
+		try
+		{
+			while (chunks.isEmpty() && !finished)
+			{
+				notEmpty.await();
+			}
+
+			final byte[] chunk = chunks.pollFirst();
+
+			if (chunk != null)
+			{
+				bufferedBytes -= chunk.length;
+				notFull.signal();
+			}
+
+			return chunk;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for pipelined response to " + request);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void putChunk(final byte[] chunk)
+			throws IOException
+	{
+		lock.lock();
+		try
+		{
+			while (bufferedBytes >= MAX_BUFFERED_BYTES && !abandoned)
+			{
+				notFull.await();
+			}
+
+			if (abandoned)
+			{
+				throw new IOException("Client connection closed before pipelined response to " + request);
+			}
+
+			chunks.addLast(chunk);
+			bufferedBytes += chunk.length;
+			notEmpty.signal();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted buffering pipelined response to " + request);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The stream the handler's response writes to.
+	 */
+	private class BufferStream
+			extends OutputStream
+	{
+		@Override
+		public void write(final int b)
+				throws IOException
+		{
+			putChunk(new byte[] { (byte) b });
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException
+		{
+			if (len > 0)
+			{
+				putChunk(Arrays.copyOfRange(b, off, off + len));
+			}
+		}
+	}
+}
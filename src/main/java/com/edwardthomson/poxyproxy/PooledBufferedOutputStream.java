@@ -0,0 +1,125 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered output stream that borrows its buffer from a {@link BufferPool}
+ * only while it holds unwritten bytes: the buffer is taken on the first write
+ * and given back on {@link #flush()}, so an idle stream holds no buffer.
+ * Writes at least as large as the buffer go straight to the underlying stream.
+ */
+public class PooledBufferedOutputStream
+    extends OutputStream
+{
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final OutputStream out;
+    private final BufferPool pool;
+
+    private byte[] buffer;
+    private int count;
+
+    public PooledBufferedOutputStream(final OutputStream out, final BufferPool pool)
+    {
+        this.out = out;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(final int b)
+        throws IOException
+    {
+        if (buffer == null)
+        {
+            buffer = pool.acquireBytes(BUFFER_SIZE);
+        }
+        else if (count == buffer.length)
+        {
+            flushBuffer();
+        }
+
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (len >= BUFFER_SIZE)
+        {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+
+        if (buffer == null)
+        {
+            buffer = pool.acquireBytes(BUFFER_SIZE);
+        }
+        else if (len > buffer.length - count)
+        {
+            flushBuffer();
+        }
+
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        try
+        {
+            flushBuffer();
+        }
+        finally
+        {
+            releaseBuffer();
+        }
+
+        out.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if (count > 0)
+        {
+            final int length = count;
+            count = 0;
+            out.write(buffer, 0, length);
+        }
+    }
+
+    private void releaseBuffer()
+    {
+        if (buffer != null)
+        {
+            pool.release(buffer);
+            buffer = null;
+            count = 0;
+        }
+    }
+}
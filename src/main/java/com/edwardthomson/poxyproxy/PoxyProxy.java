@@ -6,29 +6,45 @@
 
 package com.edwardthomson.poxyproxy;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 
 import com.edwardthomson.poxyproxy.GetOptions.Option;
 import com.edwardthomson.poxyproxy.GetOptions.OptionException;
+import com.edwardthomson.poxyproxy.cache.ResponseCache;
+import com.edwardthomson.poxyproxy.logger.AsyncLogWriter;
 import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.LogOverflowPolicy;
 import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.logger.SynchronousLogWriter;
+import com.edwardthomson.poxyproxy.nio.NioEngine;
+import com.edwardthomson.poxyproxy.nio.NioSocketListener;
+import com.edwardthomson.poxyproxy.nio.TunnelRelay;
 
 public class PoxyProxy
 {
 	private final Logger logger = Logger.getLogger(PoxyProxy.class);
 
-	private ExecutorService executorService;
+	/* Client connections, and the CONNECT tunnels relayed with threads */
+	private WorkerPool executorService;
+	private WorkerPool tunnelExecutorService;
 
 	public static void main(String[] args)
 	{
@@ -47,11 +63,35 @@ public class PoxyProxy
 		System.err.println("Usage: PoxyProxy [-q|--quiet] [-d|--debug] [--trace]");
 		System.err.println("       [-a|--address address] [-p|--port port] [-s|--ssl-port port]");
 		System.err.println("       [--ssl-keystore file] [--ssl-keystore-password pass]");
-		System.err.println("       [--max-threads num] [--connect-timeout secs]");
-		System.err.println("       [--socket-read-timeout secs] [--forward-proxy url]");
+		System.err.println("       [--max-threads num] [--tunnel-threads num] [--connect-timeout secs]");
+		System.err.println("       [--connect-attempt-delay ms]");
+		System.err.println("       [--socket-read-timeout secs] [--keep-alive-timeout secs]");
+		System.err.println("       [--header-read-timeout secs] [--upstream-first-byte-timeout secs]");
+		System.err.println("       [--exchange-timeout secs] [--tunnel-idle-timeout secs]");
+		System.err.println("       [--min-header-rate bytes/sec] [--slow-client-refuse-after num]");
+		System.err.println("       [--slow-client-decay secs]");
+		System.err.println("       [--forward-proxy url,...]");
 		System.err.println("       [--forward-proxy-bypass host1,...] [--default-domain domain]");
+		System.err.println("       [--forward-proxy-standby num]");
+		System.err.println("       [--forward-proxy-balance least-outstanding|two-choices|host-hash]");
+		System.err.println("       [--forward-proxy-health-interval secs]");
 		System.err.println("       [--add-response-delay ms] [--credentials username:password,...]");
-		System.err.println("       [--auth-type basic|ntlm]");
+		System.err.println("       [--auth-type basic|ntlm] [--engine blocking|nio]");
+		System.err.println("       [--event-loop-threads num] [--executor platform|virtual]");
+		System.err.println("       [--max-connections num] [--pipeline-depth num]");
+		System.err.println("       [--admission-queue-size num] [--admission-queue-timeout secs]");
+		System.err.println("       [--max-connections-per-client num]");
+		System.err.println("       [--http2-max-streams num] [--upstream-max-per-host num]");
+		System.err.println("       [--upstream-max-total num] [--upstream-idle-timeout secs]");
+		System.err.println("       [--tunnel-relay threads|nio] [--buffer-pool-size bytes]");
+		System.err.println("       [--heap-buffers] [--max-header-size bytes] [--max-header-line bytes]");
+		System.err.println("       [--max-header-count num] [--head-buffer-memory bytes]");
+		System.err.println("       [--dns-cache-ttl secs]");
+		System.err.println("       [--dns-cache-negative-ttl secs] [--dns-cache-size num]");
+		System.err.println("       [--log-buffer-size num] [--log-when-full block|drop]");
+		System.err.println("       [--metrics-interval secs] [--cache-size bytes]");
+		System.err.println("       [--cache-max-object-size bytes] [--collapse-forwarding]");
+		System.err.println("       [--cache-dir dir] [--cache-disk-size bytes]");
 	}
 
 	public void run()
@@ -64,21 +104,106 @@ public class PoxyProxy
 			System.exit(1);
 		}
 
-		executorService = Executors.newFixedThreadPool(options.getMaxThreads());
+		BufferPool.setDefault(new BufferPool(options.getBufferPoolMaxBytes(), options.isDirectBuffers()));
+
+		if (options.getExecutorType() == ExecutorType.Virtual && !VirtualThreads.isSupported())
+		{
+			System.err.println("The virtual executor requires Java 21 or later");
+			System.exit(1);
+		}
+
+		executorService = new WorkerPool("Connection", options.getExecutorType(), options.getMaxThreads());
+		tunnelExecutorService = new WorkerPool("Tunnel", options.getExecutorType(), options.getTunnelThreads());
+
+		if (options.getMetricsIntervalSeconds() > 0)
+		{
+			startMetricsReporter(options);
+		}
+
+		if (options.getForwardProxyURIs().size() > 1)
+		{
+			options.getForwardProxyGroup().startHealthChecks();
+		}
+
+		if (options.getCacheDirectory() != null)
+		{
+			openDiskCache(options);
+		}
+
+		final Semaphore connectionPermits =
+				options.getMaxConnections() > 0 ? new Semaphore(options.getMaxConnections()) : null;
+
+		// Proxy-to-server connections shared by the blocking listeners
+		final UpstreamPool upstreamPool = new UpstreamPool(options);
+
+		// Only used by the blocking engine, when enabled
+		TunnelRelay tunnelRelay = null;
 
 		try
 		{
-			final ServerSocket httpSocket = new ServerSocket(options.getLocalPort(), 4096,
-					InetAddress.getByName(options.getLocalAddress()));
-			listenerThreads.add(new Thread(new SocketListener(httpSocket, executorService, options)));
+			if (options.getEngineType() == EngineType.NIO)
+			{
+				final NioEngine engine = new NioEngine(options);
+				final ServerSocketChannel httpChannel = ServerSocketChannel.open();
+				httpChannel.bind(new InetSocketAddress(InetAddress.getByName(options.getLocalAddress()),
+						options.getLocalPort()), 4096);
+
+				engine.start();
+				listenerThreads.add(new Thread(new NioSocketListener(httpChannel, engine)));
+			}
+			else
+			{
+				final ServerSocket httpSocket;
+
+				if (options.getTunnelRelayType() == TunnelRelayType.NIO || options.getCacheDirectory() != null)
+				{
+					/*
+					 * Accepted sockets need channels to be handed to the relay,
+					 * and to send bodies from the disk cache with transferTo
+					 */
+					final ServerSocketChannel httpChannel = ServerSocketChannel.open();
+					httpChannel.bind(new InetSocketAddress(InetAddress.getByName(options.getLocalAddress()),
+							options.getLocalPort()), 4096);
+
+					httpSocket = httpChannel.socket();
+				}
+				else
+				{
+					httpSocket = new ServerSocket(options.getLocalPort(), 4096,
+							InetAddress.getByName(options.getLocalAddress()));
+				}
+
+				if (options.getTunnelRelayType() == TunnelRelayType.NIO)
+				{
+					tunnelRelay = new TunnelRelay(options);
+					tunnelRelay.start();
+				}
+
+				listenerThreads.add(new Thread(new SocketListener(
+						httpSocket,
+						executorService,
+						tunnelExecutorService,
+						options,
+						connectionPermits,
+						upstreamPool,
+						tunnelRelay)));
+			}
 
 			if (options.getLocalSSLPort() != 0)
 			{
 				final SSLContext sslContext = configureSSL(options);
 				final ServerSocket httpsSocket = new ServerSocket(options.getLocalSSLPort(), 4096,
 						InetAddress.getByName(options.getLocalAddress()));
-				listenerThreads
-				.add(new Thread(new SSLSocketListener(httpsSocket, executorService, options, sslContext)));
+				listenerThreads.add(new Thread(
+						new SSLSocketListener(
+								httpsSocket,
+								executorService,
+								tunnelExecutorService,
+								options,
+								connectionPermits,
+								upstreamPool,
+								tunnelRelay,
+								sslContext)));
 			}
 		}
 		catch (GeneralSecurityException e)
@@ -139,6 +264,133 @@ public class PoxyProxy
 		return sslContext;
 	}
 
+	/**
+	 * Opens the disk tier of the response cache, and checkpoints it when the
+	 * process exits so the next run starts with its responses.
+	 */
+	private void openDiskCache(final Options options)
+	{
+		final ResponseCache cache = options.getResponseCache();
+
+		try
+		{
+			cache.openDisk(new File(options.getCacheDirectory()));
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.FATAL, "Could not open the cache directory " + options.getCacheDirectory(), e);
+			System.exit(1);
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> cache.close(), "Disk cache shutdown"));
+	}
+
+	/**
+	 * Logs the metrics summary every metrics interval.
+	 */
+	private void startMetricsReporter(final Options options)
+	{
+		final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				final Thread thread = new Thread(r, "Metrics-Reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final long period = options.getMetricsIntervalSeconds();
+
+		reporter.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				logger.write(LogLevel.INFO, "Metrics: {}", options.getMetrics().report());
+				logger.write(LogLevel.INFO, "Executors: {}; {}",
+						executorService.report(),
+						tunnelExecutorService.report());
+
+				final String forwardProxies = options.getForwardProxyGroup().report();
+				if (forwardProxies != null)
+				{
+					logger.write(LogLevel.INFO, "Forward proxies: {}", forwardProxies);
+				}
+
+				final String headBuffers = options.getHeadBufferBudget().report();
+				if (headBuffers != null)
+				{
+					logger.write(LogLevel.INFO, "Head buffers: {}", headBuffers);
+				}
+
+				final String dnsCache = options.getDnsCache().report();
+				if (dnsCache != null)
+				{
+					logger.write(LogLevel.INFO, "DNS cache: {}", dnsCache);
+				}
+
+				final String bufferPool = BufferPool.getDefault().report();
+				if (bufferPool != null)
+				{
+					logger.write(LogLevel.INFO, "Buffer pool: {}", bufferPool);
+				}
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Sets up the log writer: by default messages are queued for a background
+	 * writer, or written directly if the log buffer size is 0.
+	 *
+	 * @return <code>false</code> if the options were invalid
+	 */
+	private boolean configureLogWriter(final GetOptions getOptions)
+	{
+		int bufferSize = Logger.DEFAULT_BUFFER_SIZE;
+		LogOverflowPolicy overflowPolicy = LogOverflowPolicy.Block;
+
+		if (getOptions.getArgument("log-buffer-size") != null)
+		{
+			try
+			{
+				bufferSize = Integer.parseInt(getOptions.getArgument("log-buffer-size"));
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Number expected " + e.getMessage());
+				return false;
+			}
+		}
+
+		if (getOptions.getArgument("log-when-full") != null)
+		{
+			if (getOptions.getArgument("log-when-full").equalsIgnoreCase("block"))
+			{
+				overflowPolicy = LogOverflowPolicy.Block;
+			}
+			else if (getOptions.getArgument("log-when-full").equalsIgnoreCase("drop"))
+			{
+				overflowPolicy = LogOverflowPolicy.Drop;
+			}
+			else
+			{
+				System.err.println("Log overflow policy must be block or drop");
+				return false;
+			}
+		}
+
+		if (bufferSize <= 0)
+		{
+			Logger.setWriter(new SynchronousLogWriter());
+		}
+		else
+		{
+			Logger.setWriter(new AsyncLogWriter(bufferSize, overflowPolicy));
+		}
+
+		return true;
+	}
+
 	/**
 	 * Parses options and configures the logging (with debug enabled if that option
 	 * was set).
@@ -164,15 +416,58 @@ public class PoxyProxy
 				new Option("quiet", 'q'),
 				new Option("debug", 'd'),
 				new Option("trace"),
+				new Option("log-buffer-size", true),
+				new Option("log-when-full", true, "block"),
+				new Option("metrics-interval", true),
 
 				/* IO */
 				new Option("max-threads", true),
+				new Option("tunnel-threads", true),
 				new Option("connect-timeout", true),
+				new Option("connect-attempt-delay", true),
 				new Option("socket-read-timeout", true),
+				new Option("keep-alive-timeout", true),
+				new Option("header-read-timeout", true),
+				new Option("min-header-rate", true),
+				new Option("slow-client-refuse-after", true),
+				new Option("slow-client-decay", true),
+				new Option("upstream-first-byte-timeout", true),
+				new Option("exchange-timeout", true),
+				new Option("tunnel-idle-timeout", true),
+				new Option("engine", true, "blocking"),
+				new Option("event-loop-threads", true),
+				new Option("tunnel-relay", true, "threads"),
+				new Option("executor", true, "platform"),
+				new Option("max-connections", true),
+				new Option("pipeline-depth", true),
+				new Option("admission-queue-size", true),
+				new Option("admission-queue-timeout", true),
+				new Option("max-connections-per-client", true),
+				new Option("http2-max-streams", true),
+				new Option("upstream-max-per-host", true),
+				new Option("upstream-max-total", true),
+				new Option("upstream-idle-timeout", true),
+				new Option("buffer-pool-size", true),
+				new Option("max-header-size", true),
+				new Option("max-header-line", true),
+				new Option("max-header-count", true),
+				new Option("head-buffer-memory", true),
+				new Option("heap-buffers"),
+				new Option("dns-cache-ttl", true),
+				new Option("dns-cache-negative-ttl", true),
+				new Option("dns-cache-size", true),
+				new Option("cache-size", true),
+				new Option("cache-max-object-size", true),
+				new Option("collapse-forwarding"),
+				new Option("cache-dir", true),
+				new Option("cache-disk-size", true),
 
 				/* Proxy chaining */
-				new Option("forward-proxy", true),
+				new Option("forward-proxy", true, true),
 				new Option("forward-proxy-bypass", true, true),
+				new Option("forward-proxy-standby", true),
+				new Option("forward-proxy-balance", true),
+				new Option("forward-proxy-health-interval", true),
 				new Option("default-domain", true),
 
 				/* Authentication */
@@ -225,6 +520,12 @@ public class PoxyProxy
 			logger.write(LogLevel.TRACE, "Log level set to " + LogLevel.TRACE);
 		}
 
+		if (!configureLogWriter(getOptions))
+		{
+			usage();
+			return null;
+		}
+
 		// Integer options
 		try
 		{
@@ -258,17 +559,195 @@ public class PoxyProxy
 				proxyOptions.setMaxThreads(Integer.parseInt(getOptions.getArgument("max-threads")));
 			}
 
+			if (getOptions.getArgument("tunnel-threads") != null)
+			{
+				proxyOptions.setTunnelThreads(Integer.parseInt(getOptions.getArgument("tunnel-threads")));
+			}
+
+			if (getOptions.getArgument("buffer-pool-size") != null)
+			{
+				proxyOptions.setBufferPoolMaxBytes(Long.parseLong(getOptions.getArgument("buffer-pool-size")));
+			}
+
+			if (getOptions.getArgument("max-header-size") != null)
+			{
+				proxyOptions.setMaxHeaderSizeBytes(Integer.parseInt(getOptions.getArgument("max-header-size")));
+			}
+
+			if (getOptions.getArgument("max-header-line") != null)
+			{
+				proxyOptions.setMaxHeaderLineBytes(Integer.parseInt(getOptions.getArgument("max-header-line")));
+			}
+
+			if (getOptions.getArgument("max-header-count") != null)
+			{
+				proxyOptions.setMaxHeaderCount(Integer.parseInt(getOptions.getArgument("max-header-count")));
+			}
+
+			if (getOptions.getArgument("head-buffer-memory") != null)
+			{
+				proxyOptions.setMaxHeadBufferBytes(Long.parseLong(getOptions.getArgument("head-buffer-memory")));
+			}
+
+			if (getOptions.getArgument("dns-cache-ttl") != null)
+			{
+				proxyOptions.setDnsCacheTtlSeconds(Integer.parseInt(getOptions.getArgument("dns-cache-ttl")));
+			}
+
+			if (getOptions.getArgument("dns-cache-negative-ttl") != null)
+			{
+				proxyOptions
+				.setDnsCacheNegativeTtlSeconds(Integer.parseInt(getOptions.getArgument("dns-cache-negative-ttl")));
+			}
+
+			if (getOptions.getArgument("dns-cache-size") != null)
+			{
+				proxyOptions.setDnsCacheMaxEntries(Integer.parseInt(getOptions.getArgument("dns-cache-size")));
+			}
+
+			if (getOptions.getArgument("cache-size") != null)
+			{
+				proxyOptions.setCacheMaxBytes(Long.parseLong(getOptions.getArgument("cache-size")));
+			}
+
+			if (getOptions.getArgument("cache-max-object-size") != null)
+			{
+				proxyOptions.setCacheMaxObjectBytes(Long.parseLong(getOptions.getArgument("cache-max-object-size")));
+			}
+
+			if (getOptions.getArgument("cache-disk-size") != null)
+			{
+				proxyOptions.setCacheDiskMaxBytes(Long.parseLong(getOptions.getArgument("cache-disk-size")));
+			}
+
+			if (getOptions.getArgument("forward-proxy-standby") != null)
+			{
+				proxyOptions.setForwardProxyStandbySize(Integer.parseInt(getOptions.getArgument("forward-proxy-standby")));
+			}
+
+			if (getOptions.getArgument("forward-proxy-health-interval") != null)
+			{
+				proxyOptions.setForwardProxyHealthIntervalSeconds(
+						Integer.parseInt(getOptions.getArgument("forward-proxy-health-interval")));
+			}
+
+			if (getOptions.getArgument("metrics-interval") != null)
+			{
+				proxyOptions.setMetricsIntervalSeconds(Integer.parseInt(getOptions.getArgument("metrics-interval")));
+			}
+
+			if (getOptions.getArgument("upstream-max-per-host") != null)
+			{
+				proxyOptions.setUpstreamMaxPerHost(Integer.parseInt(getOptions.getArgument("upstream-max-per-host")));
+			}
+
+			if (getOptions.getArgument("upstream-max-total") != null)
+			{
+				proxyOptions.setUpstreamMaxTotal(Integer.parseInt(getOptions.getArgument("upstream-max-total")));
+			}
+
+			if (getOptions.getArgument("upstream-idle-timeout") != null)
+			{
+				proxyOptions
+				.setUpstreamIdleTimeoutSeconds(Integer.parseInt(getOptions.getArgument("upstream-idle-timeout")));
+			}
+
+			if (getOptions.getArgument("max-connections") != null)
+			{
+				proxyOptions.setMaxConnections(Integer.parseInt(getOptions.getArgument("max-connections")));
+			}
+
+			if (getOptions.getArgument("admission-queue-size") != null)
+			{
+				proxyOptions.setAdmissionQueueSize(Integer.parseInt(getOptions.getArgument("admission-queue-size")));
+			}
+
+			if (getOptions.getArgument("admission-queue-timeout") != null)
+			{
+				proxyOptions.setAdmissionQueueTimeoutSeconds(
+						Integer.parseInt(getOptions.getArgument("admission-queue-timeout")));
+			}
+
+			if (getOptions.getArgument("max-connections-per-client") != null)
+			{
+				proxyOptions.setMaxConnectionsPerClient(
+						Integer.parseInt(getOptions.getArgument("max-connections-per-client")));
+			}
+
+			if (getOptions.getArgument("pipeline-depth") != null)
+			{
+				proxyOptions.setPipelineDepth(Integer.parseInt(getOptions.getArgument("pipeline-depth")));
+			}
+
+			if (getOptions.getArgument("http2-max-streams") != null)
+			{
+				proxyOptions.setHttp2MaxStreams(Integer.parseInt(getOptions.getArgument("http2-max-streams")));
+			}
+
+			if (getOptions.getArgument("event-loop-threads") != null)
+			{
+				proxyOptions.setEventLoopThreads(Integer.parseInt(getOptions.getArgument("event-loop-threads")));
+			}
+
 			if (getOptions.getArgument("connect-timeout") != null)
 			{
 				proxyOptions.setConnectTimeoutSeconds(Integer.parseInt(getOptions.getArgument("connect-timeout")));
 			}
 
+			if (getOptions.getArgument("connect-attempt-delay") != null)
+			{
+				proxyOptions.setConnectAttemptDelayMilliseconds(
+						Integer.parseInt(getOptions.getArgument("connect-attempt-delay")));
+			}
+
 			if (getOptions.getArgument("socket-read-timeout") != null)
 			{
 				proxyOptions
 				.setSocketReadTimeoutSeconds(Integer.parseInt(getOptions.getArgument("socket-read-timeout")));
 			}
 
+			if (getOptions.getArgument("keep-alive-timeout") != null)
+			{
+				proxyOptions.setKeepAliveTimeoutSeconds(Integer.parseInt(getOptions.getArgument("keep-alive-timeout")));
+			}
+
+			if (getOptions.getArgument("header-read-timeout") != null)
+			{
+				proxyOptions.setHeaderReadTimeoutSeconds(Integer.parseInt(getOptions.getArgument("header-read-timeout")));
+			}
+
+			if (getOptions.getArgument("min-header-rate") != null)
+			{
+				proxyOptions.setMinHeaderRateBytesPerSecond(Integer.parseInt(getOptions.getArgument("min-header-rate")));
+			}
+
+			if (getOptions.getArgument("slow-client-refuse-after") != null)
+			{
+				proxyOptions.setSlowClientRefuseThreshold(
+						Integer.parseInt(getOptions.getArgument("slow-client-refuse-after")));
+			}
+
+			if (getOptions.getArgument("slow-client-decay") != null)
+			{
+				proxyOptions.setSlowClientDecaySeconds(Integer.parseInt(getOptions.getArgument("slow-client-decay")));
+			}
+
+			if (getOptions.getArgument("upstream-first-byte-timeout") != null)
+			{
+				proxyOptions.setUpstreamFirstByteTimeoutSeconds(
+						Integer.parseInt(getOptions.getArgument("upstream-first-byte-timeout")));
+			}
+
+			if (getOptions.getArgument("exchange-timeout") != null)
+			{
+				proxyOptions.setExchangeTimeoutSeconds(Integer.parseInt(getOptions.getArgument("exchange-timeout")));
+			}
+
+			if (getOptions.getArgument("tunnel-idle-timeout") != null)
+			{
+				proxyOptions.setTunnelIdleTimeoutSeconds(Integer.parseInt(getOptions.getArgument("tunnel-idle-timeout")));
+			}
+
 			if (getOptions.getArgument("add-response-delay") != null)
 			{
 				proxyOptions
@@ -282,11 +761,114 @@ public class PoxyProxy
 			return null;
 		}
 
+		if (getOptions.getArguments().get("heap-buffers") != null)
+		{
+			proxyOptions.setDirectBuffers(false);
+		}
+
+		if (getOptions.getArgument("cache-dir") != null)
+		{
+			proxyOptions.setCacheDirectory(getOptions.getArgument("cache-dir"));
+		}
+
+		if (getOptions.getArguments().get("collapse-forwarding") != null)
+		{
+			proxyOptions.setCollapsedForwarding(true);
+		}
+
+		// Engine options
+		if (getOptions.getArgument("engine") != null)
+		{
+			if (getOptions.getArgument("engine").equalsIgnoreCase("blocking"))
+			{
+				proxyOptions.setEngineType(EngineType.Blocking);
+			}
+			else if (getOptions.getArgument("engine").equalsIgnoreCase("nio"))
+			{
+				proxyOptions.setEngineType(EngineType.NIO);
+			}
+			else
+			{
+				System.err.println("Engine must be blocking or nio");
+				usage();
+				return null;
+			}
+		}
+
+		if (getOptions.getArgument("tunnel-relay") != null)
+		{
+			if (getOptions.getArgument("tunnel-relay").equalsIgnoreCase("threads"))
+			{
+				proxyOptions.setTunnelRelayType(TunnelRelayType.Threads);
+			}
+			else if (getOptions.getArgument("tunnel-relay").equalsIgnoreCase("nio"))
+			{
+				proxyOptions.setTunnelRelayType(TunnelRelayType.NIO);
+			}
+			else
+			{
+				System.err.println("Tunnel relay must be threads or nio");
+				usage();
+				return null;
+			}
+		}
+
+		if (getOptions.getArgument("executor") != null)
+		{
+			if (getOptions.getArgument("executor").equalsIgnoreCase("platform"))
+			{
+				proxyOptions.setExecutorType(ExecutorType.Platform);
+			}
+			else if (getOptions.getArgument("executor").equalsIgnoreCase("virtual"))
+			{
+				proxyOptions.setExecutorType(ExecutorType.Virtual);
+			}
+			else
+			{
+				System.err.println("Executor must be platform or virtual");
+				usage();
+				return null;
+			}
+		}
+
+		if (getOptions.getArgument("forward-proxy-balance") != null)
+		{
+			if (getOptions.getArgument("forward-proxy-balance").equalsIgnoreCase("least-outstanding"))
+			{
+				proxyOptions.setForwardProxyBalance(ForwardProxyBalance.LeastOutstanding);
+			}
+			else if (getOptions.getArgument("forward-proxy-balance").equalsIgnoreCase("two-choices"))
+			{
+				proxyOptions.setForwardProxyBalance(ForwardProxyBalance.PowerOfTwoChoices);
+			}
+			else if (getOptions.getArgument("forward-proxy-balance").equalsIgnoreCase("host-hash"))
+			{
+				proxyOptions.setForwardProxyBalance(ForwardProxyBalance.HostHash);
+			}
+			else
+			{
+				System.err.println("Forward proxy balance must be least-outstanding, two-choices or host-hash");
+				usage();
+				return null;
+			}
+		}
+
 		// Forwarding options
 		if (getOptions.getArgument("forward-proxy") != null)
 		{
-			proxyOptions.setForwardProxyURI(getOptions.getArgument("forward-proxy"));
-			proxyOptions.setForwardProxyBypassHosts(getOptions.getArguments("forward-proxy-bypass"));
+			proxyOptions.setForwardProxyURIs(getOptions.getArguments("forward-proxy"));
+
+			try
+			{
+				proxyOptions.setForwardProxyBypassHosts(getOptions.getArguments("forward-proxy-bypass"));
+			}
+			catch (IllegalArgumentException e)
+			{
+				System.err.println(e.getMessage());
+				usage();
+				return null;
+			}
+
 			proxyOptions.setForwardProxyBypassHostDefaultDomain(getOptions.getArgument("default-domain"));
 		}
 
@@ -0,0 +1,150 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Performs proxy authentication for one client-to-proxy connection. Session
+ * auth mechanisms like NTLM authenticate the entire keep-alive session, so an
+ * instance must live exactly as long as the client connection does.
+ */
+public class ProxyAuthenticator
+{
+	private final static Logger logger = Logger.getLogger(ProxyAuthenticator.class);
+
+	private final Options options;
+
+	private boolean authenticated = false;
+	private NTLMMessage.Type2Message ntlmChallenge;
+
+	public ProxyAuthenticator(final Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Checks the request's credentials. If the request is not authenticated,
+	 * a complete 407 response (including any challenge) is written to the
+	 * response and flushed.
+	 *
+	 * @return <code>true</code> if the request may proceed,
+	 *         <code>false</code> if a challenge was written instead
+	 */
+	public boolean authenticate(Request request, Response response)
+			throws Exception
+	{
+		final Header authentication = HeaderUtils.findHeader(Constants.PROXY_AUTHORIZATION_HEADER, request.getHeaders());
+		final List<Header> responseHeaders = response.getHeaders();
+		String challengeMessage = null;
+
+		if (authentication != null)
+		{
+			logger.write(LogLevel.TRACE, "Received authentication header: {}", authentication.getValue());
+		}
+
+		if (authenticated)
+		{
+			logger.write(LogLevel.DEBUG, "Connection authentication; continuing");
+			return true;
+		}
+		else if (options.getAuthenticationType() == AuthenticationType.NTLM &&
+				authentication != null &&
+				authentication.getValue().startsWith("NTLM "))
+		{
+			byte[] data = Base64.getDecoder().decode(authentication.getValue().substring(5));
+			NTLMMessage message = NTLMMessage.parse(data);
+
+			if (message.getType() == 1)
+			{
+				ntlmChallenge = NTLM.createChallenge((NTLMMessage.Type1Message)message);
+				challengeMessage = Base64.getEncoder().encodeToString(ntlmChallenge.createMessage());
+			}
+			else if (ntlmChallenge != null && message.getType() == 3)
+			{
+				NTLMMessage.Type3Message responseMessage = (NTLMMessage.Type3Message)message;
+				String username = responseMessage.getUsername();
+				String password = options.getProxyCredentials(username);
+
+				if (password != null && NTLM.verifyResponse(username, null, password, ntlmChallenge, responseMessage))
+				{
+					logger.write(LogLevel.DEBUG,  "NTLM authentication accepted");
+
+					authenticated = true;
+					return true;
+				}
+
+				logger.write(LogLevel.DEBUG, "Authentication failed in NTLM response");
+				ntlmChallenge = null;
+			}
+			else
+			{
+				logger.write(LogLevel.DEBUG, "Invalid NTLM message received");
+				ntlmChallenge = null;
+			}
+		}
+		else if (options.getAuthenticationType() == AuthenticationType.Basic &&
+				authentication != null &&
+				authentication.getValue().startsWith("Basic "))
+		{
+			String value = new String(
+					Base64.getDecoder().decode(authentication.getValue().substring(6)),
+					Charset.forName("UTF-8"));
+			String[] credentials = value.split(":", 2);
+
+			if (options.credentialsMatchProxyCredentials(credentials[0], credentials[1]))
+			{
+				logger.write(LogLevel.DEBUG,  "Basic authentication accepted");
+				return true;
+			}
+
+			logger.write(LogLevel.DEBUG, "Authentication failed in Basic response");
+		}
+
+		response.writeStatus(Status.PROXY_AUTHENTICATION_REQUIRED, "Proxy Authentication Required");
+
+		if (options.getAuthenticationType() == AuthenticationType.NTLM)
+		{
+			if (challengeMessage != null)
+			{
+				logger.write(LogLevel.DEBUG, "Sending NTLM challenge");
+				logger.write(LogLevel.TRACE, "Challenge is: NTLM {}", challengeMessage);
+
+				responseHeaders.add(new Header(Constants.PROXY_AUTHENTICATE_HEADER, "NTLM " + challengeMessage));
+			}
+			else
+			{
+				logger.write(LogLevel.DEBUG, "Sending NTLM authentication request");
+				responseHeaders.add(new Header(Constants.PROXY_AUTHENTICATE_HEADER, "NTLM"));
+			}
+		}
+		else if (options.getAuthenticationType() == AuthenticationType.Basic)
+		{
+			logger.write(LogLevel.DEBUG, "Sending Basic authentication request");
+			responseHeaders.add(new Header(Constants.PROXY_AUTHENTICATE_HEADER, "Basic realm=\"Proxy\""));
+		}
+
+		String responseHtml = "<html><head><title>Proxy Authentication Required</title></head><body><p>Proxy Authentication Required</p></body></html>";
+		byte[] responseBytes = responseHtml.getBytes(StandardCharsets.US_ASCII);
+
+		responseHeaders.add(new Header(Constants.CONTENT_LENGTH_HEADER, Integer.toString(responseBytes.length)));
+		responseHeaders.add(new Header(Constants.CONTENT_TYPE_HEADER, Constants.CONTENT_TYPE_TEXT_HTML + "; charset=iso-8859-1"));
+
+		response.writeHeaders(responseHeaders);
+		response.endHeaders();
+
+		response.getStream().write(responseBytes);
+		response.flush();
+		return false;
+	}
+}
@@ -19,16 +19,35 @@ public class Request
 {
     private final static Logger logger = Logger.getLogger(Request.class);
 
-    private final InputStream in;
+    private static final String[] KNOWN_METHODS =
+    {
+        Constants.GET_METHOD, Constants.POST_METHOD, Constants.HEAD_METHOD, Constants.CONNECT_METHOD
+    };
+
+    private static final String[] KNOWN_VERSIONS =
+    {
+        Constants.VERSION_11, Constants.VERSION_10
+    };
+
+    private final HttpInputStream in;
 
     private final List<Header> headers = new ArrayList<Header>();
     private String method;
     private String uri;
     private String version = Constants.VERSION_10;
 
+    /* When the request line was read, by System.nanoTime() */
+    private long requestLineNanos;
+
+    /**
+     * @param in
+     *        the stream to read from; for keep-alive connections this should be
+     *        the same {@link HttpInputStream} for every request, because it may
+     *        have read ahead into the next one
+     */
     public Request(final InputStream in)
     {
-        this.in = in;
+        this.in = in instanceof HttpInputStream ? (HttpInputStream) in : new HttpInputStream(in);
     }
 
     /**
@@ -40,7 +59,8 @@ public class Request
     {
         if (readRequestLine())
         {
-            headers.addAll(IOUtils.readHeaders(in));
+            requestLineNanos = System.nanoTime();
+            headers.addAll(in.readHeaders());
 
             // Now positioned at the start of the POST data
             return true;
@@ -75,6 +95,28 @@ public class Request
         return headers;
     }
 
+    /**
+     * @return <code>true</code> if the method is safe (RFC 7231 section 4.2.1),
+     *         so the request may be sent again when a connection fails before
+     *         the server answers
+     */
+    public boolean isSafeMethod()
+    {
+        return Constants.GET_METHOD.equals(method)
+            || Constants.HEAD_METHOD.equals(method)
+            || Constants.OPTIONS_METHOD.equals(method)
+            || Constants.TRACE_METHOD.equals(method);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} when the request line was read,
+     *         which separates waiting for the request from parsing its headers
+     */
+    public long getRequestLineNanos()
+    {
+        return requestLineNanos;
+    }
+
     @Override
     public String toString()
     {
@@ -94,67 +136,128 @@ public class Request
     private boolean readRequestLine()
         throws IOException
     {
-        final String line = IOUtils.readLine(in);
-
         /*
-         * A null line means end of stream, which can happen if the client wants
-         * to close a keep-alive connection.
+         * End of stream can happen if the client wants to close a keep-alive
+         * connection.
          */
-        if (line == null)
+        if (!in.readLine())
         {
             return false;
         }
 
-        final String[] parts = line.split(" ", 3);
-        if (parts.length != 3)
+        /*
+         * Split into three parts on the first two spaces (the version is
+         * whatever follows the second), working on the line's bytes in the
+         * stream's buffer.
+         */
+        final byte[] line = in.getBuffer();
+        final int start = in.getLineStart();
+        final int end = in.getLineEnd();
+
+        final int methodEnd = indexOf(line, start, end, (byte) ' ');
+        final int uriEnd = methodEnd == -1 ? -1 : indexOf(line, methodEnd + 1, end, (byte) ' ');
+
+        if (uriEnd == -1)
         {
-            throw new HTTPException("Not enough parts in request line '" + line + "'");
+            throw new HTTPException("Not enough parts in request line '" + in.getLine() + "'");
         }
 
-        parseMethod(parts[0]);
-        parseURI(parts[1]);
-        parseVersion(parts[2]);
+        parseMethod(line, start, methodEnd);
+        parseURI(line, methodEnd + 1, uriEnd);
+        parseVersion(line, uriEnd + 1, end);
 
-        logger.write(LogLevel.DEBUG, method + " " + uri + " " + version);
+        logger.write(LogLevel.DEBUG, "{} {} {}", method, uri, version);
 
         return true;
     }
 
-    private void parseVersion(String string)
+    private void parseVersion(final byte[] line, final int start, final int end)
         throws HTTPException
     {
-        if (string == null || string.length() == 0)
+        if (start == end)
         {
             throw new HTTPException("Empty request version");
         }
 
-        if (!string.equals(Constants.VERSION_10) && !string.equals(Constants.VERSION_11))
+        version = match(KNOWN_VERSIONS, line, start, end);
+
+        if (version == null)
         {
-            throw new HTTPException("Unknown version '" + string + "'");
+            throw new HTTPException("Unknown version '" + decode(line, start, end) + "'");
         }
-
-        version = string;
     }
 
-    private void parseURI(String string)
+    private void parseURI(final byte[] line, final int start, final int end)
         throws HTTPException
     {
-        if (string == null || string.length() == 0)
+        if (start == end)
         {
             throw new HTTPException("Empty request URI");
         }
 
-        uri = string;
+        uri = decode(line, start, end);
     }
 
-    private void parseMethod(String string)
+    private void parseMethod(final byte[] line, final int start, final int end)
         throws HTTPException
     {
-        if (string == null || string.length() == 0)
+        if (start == end)
         {
             throw new HTTPException("Empty request method");
         }
 
-        method = string;
+        // Share the constant strings for common methods rather than decoding
+        method = match(KNOWN_METHODS, line, start, end);
+
+        if (method == null)
+        {
+            method = decode(line, start, end);
+        }
+    }
+
+    private static int indexOf(final byte[] bytes, final int start, final int end, final byte b)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (bytes[i] == b)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the candidate exactly equal to the bytes, or <code>null</code>
+     *         if there is none (candidates must be ASCII)
+     */
+    private static String match(final String[] candidates, final byte[] bytes, final int start, final int end)
+    {
+        for (String candidate : candidates)
+        {
+            if (candidate.length() != end - start)
+            {
+                continue;
+            }
+
+            int i = 0;
+            while (i < candidate.length() && bytes[start + i] == candidate.charAt(i))
+            {
+                i++;
+            }
+
+            if (i == candidate.length())
+            {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private static String decode(final byte[] bytes, final int start, final int end)
+    {
+        return new String(bytes, start, end - start, UTF8Utils.UTF8_CHARSET);
     }
 }
@@ -6,9 +6,10 @@
 
 package com.edwardthomson.poxyproxy;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -29,15 +30,24 @@ public class Response
 {
     private final static Logger logger = Logger.getLogger(Response.class);
 
+    private final static byte[] CRLF = { '\r', '\n' };
+
     private final CountingOutputStream out;
 
     private String version;
+    private int status;
     private long contentLength = -1;
     private List<Header> headers = new ArrayList<Header>();
 
+    /* The channel of the socket the stream writes to, if it has one */
+    private WritableByteChannel channel;
+
+    /* The head being written, from the status line until it ends */
+    private HeadWriter head;
+
     public Response(final OutputStream out, final String version)
     {
-        this.out = new CountingOutputStream(new BufferedOutputStream(out));
+        this.out = new CountingOutputStream(new PooledBufferedOutputStream(out, BufferPool.getDefault()));
         this.version = version;
     }
 
@@ -61,11 +71,34 @@ public class Response
         return contentLength;
     }
 
+    /**
+     * @return the status written, or 0 if none was written yet
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
     public long getActualResponseBodyLength()
     {
         return out.getCount();
     }
 
+    /**
+     * @return the channel of the client's socket, which the stream writes to,
+     *         or <code>null</code> if the stream doesn't go straight to a
+     *         socket with a channel
+     */
+    public WritableByteChannel getChannel()
+    {
+        return channel;
+    }
+
+    public void setChannel(WritableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
     public void setHeaders(List<Header> headers)
     {
         this.headers = headers;
@@ -107,6 +140,10 @@ public class Response
         flush();
     }
 
+    /**
+     * The head must have been ended with {@link #endHeaders()} before writing
+     * to the stream.
+     */
     public OutputStream getStream()
     {
         return out;
@@ -127,12 +164,15 @@ public class Response
     public void writeStatus(int status, String message, String httpVersion)
         throws IOException
     {
-        final String s =
-            MessageFormat.format("{0} {1} {2}", httpVersion, Integer.toString(status), message != null ? message
-                : Status.NAMES.get(status));
+        this.status = status;
+
+        if (logger.isEnabled(LogLevel.DEBUG))
+        {
+            logger.write(LogLevel.DEBUG, MessageFormat.format("{0} {1} {2}", httpVersion, Integer.toString(status),
+                message != null ? message : Status.NAMES.get(status)));
+        }
 
-        logger.write(LogLevel.DEBUG, s);
-        writeLine(s);
+        head().statusLine(httpVersion, status, message);
     }
 
     public void writeHeaders(Iterable<Header> headers)
@@ -153,7 +193,7 @@ public class Response
         }
 
         // Sanity test for the ConnectionHandler
-        if (h.getName().equalsIgnoreCase(Constants.CONTENT_LENGTH_HEADER))
+        if (h.matchesName(Constants.CONTENT_LENGTH_HEADER))
         {
             try
             {
@@ -165,13 +205,17 @@ public class Response
             }
         }
 
-        writeLine(h.toString());
+        head().header(h);
     }
 
+    /**
+     * Ends the head and writes it to the stream in one write.
+     */
     public void endHeaders()
         throws IOException
     {
-        writeLine("");
+        head().end();
+        writeHead();
 
         // Reset so we can measure response content size
         out.resetCount();
@@ -191,13 +235,83 @@ public class Response
             return;
         }
 
-        out.write(UTF8Utils.encode(line + "\r\n"));
+        if (head != null)
+        {
+            head.line(line);
+            return;
+        }
+
+        out.write(UTF8Utils.encode(line));
+        out.write(CRLF);
     }
 
     public void flush()
         throws IOException
     {
+        writeHead();
         out.flush();
     }
 
+    private HeadWriter head()
+    {
+        if (head == null)
+        {
+            head = new HeadWriter();
+        }
+
+        return head;
+    }
+
+    /**
+     * Writes whatever of the head has been assembled and returns its buffer.
+     */
+    private void writeHead()
+        throws IOException
+    {
+        if (head == null)
+        {
+            return;
+        }
+
+        try
+        {
+            head.writeTo(out);
+        }
+        finally
+        {
+            head.release();
+            head = null;
+        }
+    }
+
+    /**
+     * Flushes the response, then writes part of a file straight to the
+     * channel of the socket the response's stream writes to, so the kernel
+     * can send it without copying it through the heap. The bytes count as
+     * body bytes written to the response.
+     *
+     * @return the number of bytes written
+     */
+    public long transferFrom(FileChannel file, long position, long count, WritableByteChannel channel)
+        throws IOException
+    {
+        flush();
+
+        long written = 0;
+        while (written < count)
+        {
+            final long n = file.transferTo(position + written, count - written, channel);
+
+            if (n <= 0)
+            {
+                throw new IOException("Could not transfer from file at " + (position + written));
+            }
+
+            written += n;
+        }
+
+        out.addCount(written);
+        return written;
+    }
+
 }
@@ -3,18 +3,24 @@ package com.edwardthomson.poxyproxy;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 
+import com.edwardthomson.poxyproxy.nio.TunnelRelay;
+
 public class SSLSocketListener extends SocketListener
 {
     private final SSLContext sslContext;
 
-    public SSLSocketListener(ServerSocket serverSocket, ExecutorService executorService, Options options,
-            SSLContext sslContext)
+    public SSLSocketListener(ServerSocket serverSocket, ExecutorService executorService,
+            WorkerPool tunnelExecutorService, Options options, Semaphore connectionPermits,
+            UpstreamPool upstreamPool, TunnelRelay tunnelRelay, SSLContext sslContext)
     {
-        super(serverSocket, executorService, options);
+        super(serverSocket, executorService, tunnelExecutorService, options, connectionPermits, upstreamPool,
+            tunnelRelay);
 
         this.sslContext = sslContext;
     }
@@ -28,6 +34,14 @@ public class SSLSocketListener extends SocketListener
                 rawSocket.getPort(), false);
         sslSocket.setUseClientMode(false);
 
+        if (getOptions().isHttp2Enabled())
+        {
+            // The connection tells which protocol was picked from the preface
+            final SSLParameters parameters = sslSocket.getSSLParameters();
+            parameters.setApplicationProtocols(new String[] { "h2", "http/1.1" });
+            sslSocket.setSSLParameters(parameters);
+        }
+
         return sslSocket;
     }
 }
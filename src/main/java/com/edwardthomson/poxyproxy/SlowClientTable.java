@@ -0,0 +1,145 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which client addresses keep sending request heads too slowly, so
+ * their new connections can be refused before they take a thread.
+ * <p>
+ * The counts are kept in a fixed table, a count-min sketch: each address
+ * counts in two slots picked by hashing it, and its count is the smaller of
+ * the two. That takes the same small memory however many clients there are,
+ * and can only overestimate when addresses share both slots. All counts are
+ * halved every decay interval in {@link Options}, so an address is forgiven
+ * once it stops.
+ */
+public class SlowClientTable
+{
+	private static final int SLOTS = 4096;
+
+	private final Options options;
+
+	private final AtomicIntegerArray counts = new AtomicIntegerArray(SLOTS);
+
+	/* When the counts are next halved, by System.nanoTime() */
+	private final AtomicLong nextDecay = new AtomicLong(System.nanoTime());
+
+	public SlowClientTable(final Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Counts a request head the client sent too slowly.
+	 */
+	public void record(final InetAddress address)
+	{
+		decay();
+
+		final int hash = hash(address);
+		final int first = hash & (SLOTS - 1);
+		final int second = secondSlot(hash);
+
+		// Only the smaller counts go up, which keeps collisions from adding up
+		final int count = Math.min(counts.get(first), counts.get(second));
+
+		if (counts.get(first) == count)
+		{
+			counts.incrementAndGet(first);
+		}
+
+		if (counts.get(second) == count)
+		{
+			counts.incrementAndGet(second);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the client has sent slow heads often enough
+	 *         lately that its connections are refused
+	 */
+	public boolean isRefused(final InetAddress address)
+	{
+		final int threshold = options.getSlowClientRefuseThreshold();
+
+		if (threshold <= 0 || address == null)
+		{
+			return false;
+		}
+
+		decay();
+
+		final int hash = hash(address);
+		final int first = hash & (SLOTS - 1);
+		final int second = secondSlot(hash);
+
+		return Math.min(counts.get(first), counts.get(second)) >= threshold;
+	}
+
+	/**
+	 * Halves every count if the decay interval has passed. Only the thread
+	 * that moves the next decay time does it.
+	 */
+	private void decay()
+	{
+		final long now = System.nanoTime();
+		final long next = nextDecay.get();
+
+		if (now - next < 0)
+		{
+			return;
+		}
+
+		final long interval = TimeUnit.SECONDS.toNanos(Math.max(1, options.getSlowClientDecaySeconds()));
+
+		if (!nextDecay.compareAndSet(next, now + interval))
+		{
+			return;
+		}
+
+		for (int i = 0; i < SLOTS; i++)
+		{
+			int count;
+			do
+			{
+				count = counts.get(i);
+			}
+			while (count > 0 && !counts.compareAndSet(i, count, count / 2));
+		}
+	}
+
+	private static int secondSlot(final int hash)
+	{
+		return (hash >>> 16 ^ hash * 0x9e3779b9) & (SLOTS - 1);
+	}
+
+	/**
+	 * FNV-1a over the address bytes, with a final mix so nearby addresses
+	 * spread over the table.
+	 */
+	private static int hash(final InetAddress address)
+	{
+		int hash = 0x811c9dc5;
+
+		for (byte b : address.getAddress())
+		{
+			hash ^= b & 0xff;
+			hash *= 0x01000193;
+		}
+
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+
+		return hash;
+	}
+}
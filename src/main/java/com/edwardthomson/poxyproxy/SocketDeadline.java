@@ -0,0 +1,103 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Ends reads from a socket when a deadline on the {@link TimingWheel}
+ * passes, so a thread blocked reading it sees the end of the stream and can
+ * tell from {@link #isExpired()} why. The socket can still be written, to
+ * answer the timeout, unless it is TLS: those are closed, because TLS can't
+ * shut down one direction.
+ */
+public class SocketDeadline
+	implements Runnable
+{
+	/* A deadline that never passes */
+	public static final SocketDeadline NONE = new SocketDeadline(null);
+
+	private final Socket socket;
+
+	private volatile boolean expired = false;
+
+	/* null for none */
+	private TimingWheel.Timeout timeout;
+
+	private SocketDeadline(final Socket socket)
+	{
+		this.socket = socket;
+	}
+
+	/**
+	 * @param seconds
+	 *        the time allowed; 0 for no deadline
+	 * @return the deadline, or {@link #NONE}
+	 */
+	public static SocketDeadline start(final TimingWheel wheel, final Socket socket, final int seconds)
+	{
+		if (seconds <= 0)
+		{
+			return NONE;
+		}
+
+		final SocketDeadline deadline = new SocketDeadline(socket);
+		deadline.timeout = wheel.schedule(deadline, seconds * 1000L);
+		return deadline;
+	}
+
+	/**
+	 * Stops the deadline.
+	 *
+	 * @return <code>true</code> if it had already passed
+	 */
+	public boolean cancel()
+	{
+		if (timeout != null)
+		{
+			timeout.cancel();
+		}
+
+		return expired;
+	}
+
+	public boolean isExpired()
+	{
+		return expired;
+	}
+
+	public void run()
+	{
+		expired = true;
+		shutDownInput(socket);
+	}
+
+	/**
+	 * Ends reads from the socket, leaving it open for writing unless it is
+	 * TLS.
+	 */
+	public static void shutDownInput(final Socket socket)
+	{
+		if (socket instanceof SSLSocket)
+		{
+			IOUtils.close(socket);
+			return;
+		}
+
+		try
+		{
+			socket.shutdownInput();
+		}
+		catch (IOException e)
+		{
+			IOUtils.close(socket);
+		}
+	}
+}
@@ -3,9 +3,11 @@ package com.edwardthomson.poxyproxy;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import com.edwardthomson.poxyproxy.logger.LogLevel;
 import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.nio.TunnelRelay;
 
 public class SocketListener implements Runnable
 {
@@ -13,13 +15,37 @@ public class SocketListener implements Runnable
 
     private final ServerSocket serverSocket;
     private final ExecutorService executorService;
+    private final WorkerPool tunnelExecutorService;
     private final Options options;
+    private final Semaphore connectionPermits;
+    private final UpstreamPool upstreamPool;
+    private final TunnelRelay tunnelRelay;
 
-    public SocketListener(ServerSocket serverSocket, ExecutorService executorService, Options options)
+    /**
+     * @param executorService
+     *        runs client connections
+     * @param tunnelExecutorService
+     *        relays CONNECT tunnels that aren't handed to the tunnelRelay
+     * @param connectionPermits
+     *        one permit is held for each open client connection, shared by all
+     *        listeners (may be <code>null</code> for no limit)
+     * @param upstreamPool
+     *        the proxy-to-server connections shared by all listeners
+     * @param tunnelRelay
+     *        relays CONNECT tunnels whose sockets have channels (may be
+     *        <code>null</code> to relay every tunnel with two threads)
+     */
+    public SocketListener(ServerSocket serverSocket, ExecutorService executorService,
+            WorkerPool tunnelExecutorService, Options options, Semaphore connectionPermits,
+            UpstreamPool upstreamPool, TunnelRelay tunnelRelay)
     {
         this.serverSocket = serverSocket;
         this.executorService = executorService;
+        this.tunnelExecutorService = tunnelExecutorService;
         this.options = options;
+        this.connectionPermits = connectionPermits;
+        this.upstreamPool = upstreamPool;
+        this.tunnelRelay = tunnelRelay;
     }
 
     protected ServerSocket getServerSocket()
@@ -43,6 +69,23 @@ public class SocketListener implements Runnable
         {
             Socket client;
 
+            try
+            {
+                /*
+                 * Don't accept more clients than we may serve; they wait in
+                 * the listen backlog until a connection closes.
+                 */
+                if (connectionPermits != null)
+                {
+                    connectionPermits.acquire();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                logger.write(LogLevel.FATAL, "Interrupted waiting for a connection permit", e);
+                return;
+            }
+
             try
             {
                 client = accept();
@@ -50,10 +93,61 @@ public class SocketListener implements Runnable
             catch (Exception e)
             {
                 logger.write(LogLevel.FATAL, "Could not accept client socket", e);
+                releasePermit();
+                continue;
+            }
+
+            final AdmissionControl admissionControl = options.getAdmissionControl();
+            final AdmissionControl.Admission admission = admissionControl.admit(client);
+
+            if (admission == null)
+            {
+                // Answered and closed
+                releasePermit();
                 continue;
             }
 
-            executorService.submit(new Connection(client, options, executorService));
+            final Connection connection = new Connection(client, options, executorService, tunnelExecutorService,
+                upstreamPool, tunnelRelay);
+
+            executorService.submit(new Runnable()
+            {
+                public void run()
+                {
+                    if (!admissionControl.start(admission))
+                    {
+                        // Answered and closed
+                        releasePermit();
+                        return;
+                    }
+
+                    // Held until the client is gone, which for a tunnel is after run() returns
+                    connection.setOnClosed(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                admissionControl.finish(admission);
+                            }
+                            finally
+                            {
+                                releasePermit();
+                            }
+                        }
+                    });
+
+                    connection.run();
+                }
+            });
+        }
+    }
+
+    private void releasePermit()
+    {
+        if (connectionPermits != null)
+        {
+            connectionPermits.release();
         }
     }
 }
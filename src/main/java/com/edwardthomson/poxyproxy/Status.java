@@ -16,11 +16,18 @@ public class Status
 {
     public static final int OK = 200;
 
+    public static final int NOT_MODIFIED = 304;
+
     public static final int BAD_REQUEST = 400;    
+    public static final int UNAUTHORIZED = 401;
     public static final int PROXY_AUTHENTICATION_REQUIRED = 407;
+    public static final int REQUEST_TIMEOUT = 408;
+    public static final int URI_TOO_LONG = 414;
+    public static final int REQUEST_HEADER_FIELDS_TOO_LARGE = 431;
 
     public static final int INTERNAL_SERVER_ERROR = 500;
     public static final int BAD_GATEWAY = 502;
+    public static final int SERVICE_UNAVAILABLE = 503;
     public static final int GATEWAY_TIMEOUT = 504;
 
     public final static Map<Integer, String> NAMES = new HashMap<Integer, String>();
@@ -28,11 +35,18 @@ public class Status
     {
         NAMES.put(OK, "OK");
 
+        NAMES.put(NOT_MODIFIED, "Not Modified");
+
         NAMES.put(BAD_REQUEST, "Bad Request");
+        NAMES.put(UNAUTHORIZED, "Unauthorized");
         NAMES.put(PROXY_AUTHENTICATION_REQUIRED, "Proxy Authentication Required");
+        NAMES.put(REQUEST_TIMEOUT, "Request Timeout");
+        NAMES.put(URI_TOO_LONG, "URI Too Long");
+        NAMES.put(REQUEST_HEADER_FIELDS_TOO_LARGE, "Request Header Fields Too Large");
 
         NAMES.put(INTERNAL_SERVER_ERROR, "Internal Server Error");
         NAMES.put(BAD_GATEWAY, "Bad Gateway");
+        NAMES.put(SERVICE_UNAVAILABLE, "Service Unavailable");
         NAMES.put(GATEWAY_TIMEOUT, "Gateway Timeout");
     }
 }
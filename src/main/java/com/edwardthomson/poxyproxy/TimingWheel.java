@@ -0,0 +1,223 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.util.concurrent.TimeUnit;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Deadlines for every connection on one thread: a hashed timing wheel, where
+ * scheduling and cancelling take constant time however many deadlines are
+ * pending.
+ * <p>
+ * The wheel has a slot per tick. A deadline goes in the slot its tick falls
+ * in, with the number of turns of the wheel still to wait. Every tick the
+ * wheel's thread advances to the next slot and runs the deadlines due there,
+ * so a deadline runs up to a tick late. Tasks run on the wheel's thread and
+ * must be quick, like closing a socket.
+ */
+public class TimingWheel
+{
+	private final static Logger logger = Logger.getLogger(TimingWheel.class);
+
+	private final long tickNanos;
+
+	/* Each slot is a list of timeouts with a sentinel head; guarded by this */
+	private final Timeout[] slots;
+
+	/* Ticks since the wheel started; guarded by this */
+	private long tick = 0;
+
+	/* Started on first use */
+	private volatile Thread thread;
+	private long startNanos;
+
+	/**
+	 * @param tickMillis
+	 *        how late a deadline may run
+	 * @param slotCount
+	 *        slots in the wheel; a turn takes this many ticks
+	 */
+	public TimingWheel(final long tickMillis, final int slotCount)
+	{
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.slots = new Timeout[slotCount];
+
+		for (int i = 0; i < slotCount; i++)
+		{
+			slots[i] = new Timeout(null);
+			slots[i].next = slots[i];
+			slots[i].previous = slots[i];
+		}
+	}
+
+	/**
+	 * Runs the task on the wheel's thread after the delay, unless the
+	 * returned timeout is cancelled first.
+	 */
+	public Timeout schedule(final Runnable task, final long delayMillis)
+	{
+		start();
+
+		final Timeout timeout = new Timeout(task);
+		final long delayTicks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+
+		synchronized (this)
+		{
+			final long due = tick + delayTicks;
+			final Timeout head = slots[(int) (due % slots.length)];
+
+			timeout.rounds = (delayTicks - 1) / slots.length;
+			timeout.previous = head.previous;
+			timeout.next = head;
+			head.previous.next = timeout;
+			head.previous = timeout;
+		}
+
+		return timeout;
+	}
+
+	private void start()
+	{
+		if (thread != null)
+		{
+			return;
+		}
+
+		synchronized (this)
+		{
+			if (thread == null)
+			{
+				startNanos = System.nanoTime();
+
+				final Thread created = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						turn();
+					}
+				}, "TimingWheel");
+				created.setDaemon(true);
+				created.start();
+
+				thread = created;
+			}
+		}
+	}
+
+	private void turn()
+	{
+		while (true)
+		{
+			Timeout expired = null;
+
+			synchronized (this)
+			{
+				final long wait = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+
+				if (wait > 0)
+				{
+					try
+					{
+						TimeUnit.NANOSECONDS.timedWait(this, wait);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					continue;
+				}
+
+				tick++;
+
+				// Unlink the ones due, keeping them in a list of their own
+				final Timeout head = slots[(int) (tick % slots.length)];
+				Timeout timeout = head.next;
+
+				while (timeout != head)
+				{
+					final Timeout next = timeout.next;
+
+					if (timeout.rounds > 0)
+					{
+						timeout.rounds--;
+					}
+					else
+					{
+						timeout.unlink();
+						timeout.next = expired;
+						expired = timeout;
+					}
+
+					timeout = next;
+				}
+			}
+
+			for (; expired != null; expired = expired.next)
+			{
+				try
+				{
+					expired.task.run();
+				}
+				catch (RuntimeException e)
+				{
+					logger.write(LogLevel.WARNING, "Timeout task failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public class Timeout
+	{
+		private final Runnable task;
+
+		/* Turns of the wheel to wait before running */
+		private long rounds;
+
+		/* Guarded by the wheel; null once run or cancelled */
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(final Runnable task)
+		{
+			this.task = task;
+		}
+
+		/**
+		 * Keeps the task from running, if it hasn't yet.
+		 *
+		 * @return <code>true</code> if it won't run
+		 */
+		public boolean cancel()
+		{
+			synchronized (TimingWheel.this)
+			{
+				if (previous == null)
+				{
+					return false;
+				}
+
+				unlink();
+				return true;
+			}
+		}
+
+		/* Called with the wheel locked */
+		private void unlink()
+		{
+			previous.next = next;
+			next.previous = previous;
+			previous = null;
+			next = null;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A proxy-to-server socket owned by an {@link UpstreamPool}. The input stream
+ * is kept with the socket so bytes it buffered are never lost between
+ * requests.
+ */
+public class UpstreamConnection
+{
+	private final UpstreamKey key;
+	private final Socket socket;
+	private final HttpInputStream input;
+	private final OutputStream output;
+
+	/* Guarded by the pool's lock */
+	private boolean reused = false;
+	private long idleSince;
+
+	/* Set by the thread using it, and never cleared */
+	private boolean authenticationBound = false;
+
+	UpstreamConnection(final UpstreamKey key, final Socket socket, final Options options)
+			throws IOException
+	{
+		this.key = key;
+		this.socket = socket;
+		this.input = new HttpInputStream(socket.getInputStream());
+		this.input.setLimits(options);
+		this.output = socket.getOutputStream();
+	}
+
+	public UpstreamKey getKey()
+	{
+		return key;
+	}
+
+	public Socket getSocket()
+	{
+		return socket;
+	}
+
+	public HttpInputStream getInputStream()
+	{
+		return input;
+	}
+
+	public OutputStream getOutputStream()
+	{
+		return output;
+	}
+
+	/**
+	 * @return <code>true</code> if the connection was taken from the pool's
+	 *         idle connections rather than newly connected; a reused connection
+	 *         may have been closed by the server while it was idle
+	 */
+	public boolean isReused()
+	{
+		return reused;
+	}
+
+	void setReused(final boolean reused)
+	{
+		this.reused = reused;
+	}
+
+	/**
+	 * @return <code>true</code> if the server has started a connection-based
+	 *         (NTLM or Negotiate) authentication handshake on the connection,
+	 *         so it may be authenticated as one client and must never be
+	 *         shared with others
+	 */
+	public boolean isAuthenticationBound()
+	{
+		return authenticationBound;
+	}
+
+	public void setAuthenticationBound()
+	{
+		this.authenticationBound = true;
+	}
+
+	long getIdleSince()
+	{
+		return idleSince;
+	}
+
+	void setIdleSince(final long idleSince)
+	{
+		this.idleSince = idleSince;
+	}
+
+	void close()
+	{
+		IOUtils.close(socket);
+		input.release();
+	}
+
+	@Override
+	public String toString()
+	{
+		return socket.toString();
+	}
+}
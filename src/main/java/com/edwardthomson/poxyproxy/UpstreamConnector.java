@@ -0,0 +1,351 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+
+/**
+ * Opens upstream sockets to hosts that may have several addresses, racing
+ * the connects like RFC 8305 ("Happy Eyeballs"): the addresses are tried in
+ * an order that alternates between IPv6 and IPv4, each attempt starting the
+ * connect attempt delay (from {@link Options}) after the previous one, or as
+ * soon as the previous one fails. The first socket to connect is used and
+ * the others are closed.
+ * <p>
+ * Addresses that failed to connect, or lost a race to an address tried
+ * after them, are remembered for a while and tried last, so one dead address
+ * doesn't cost every request an attempt delay.
+ */
+public class UpstreamConnector
+{
+	private final static Logger logger = Logger.getLogger(UpstreamConnector.class);
+
+	/* How long an address that failed to connect is tried last */
+	private static final long FAILURE_MEMORY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private final Options options;
+
+	/* When each failed address may be tried first again, by System.nanoTime() */
+	private final Map<InetAddress, Long> failures = new ConcurrentHashMap<InetAddress, Long>();
+
+	/* Created on first race */
+	private volatile ExecutorService attemptExecutor;
+
+	public UpstreamConnector(final Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Connects to the host using the connect timeout from the options. NoDelay
+	 * is enabled on the socket and its read timeout set.
+	 * <p>
+	 * The time taken is recorded as connecting to a forward proxy if
+	 * <code>forwardProxy</code> is set, otherwise as connecting directly.
+	 *
+	 * @param withChannel
+	 *        whether the socket must be created from a channel, so it can be
+	 *        handed to a tunnel relay
+	 */
+	public Socket connect(final String host, final int port, final boolean forwardProxy, final boolean withChannel)
+			throws IOException
+	{
+		final long start = System.nanoTime();
+		final List<InetAddress> addresses = order(options.getDnsCache().resolveAll(host));
+
+		final Socket socket = addresses.size() == 1
+				? connectOne(new InetSocketAddress(addresses.get(0), port), withChannel)
+				: race(addresses, port, withChannel);
+
+		options.getMetrics().record(Metrics.connectPhase(forwardProxy), start);
+		socket.setSoTimeout(options.getSocketReadTimeoutSeconds() * 1000);
+
+		return socket;
+	}
+
+	/**
+	 * @return the addresses alternating between families, starting with the
+	 *         family of the first address, with recently failed addresses last
+	 */
+	private List<InetAddress> order(final InetAddress[] resolved)
+	{
+		final List<InetAddress> first = new ArrayList<InetAddress>(resolved.length);
+		final List<InetAddress> second = new ArrayList<InetAddress>(resolved.length);
+		final boolean firstIsV6 = resolved.length > 0 && resolved[0] instanceof Inet6Address;
+
+		for (InetAddress address : resolved)
+		{
+			((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+		}
+
+		final List<InetAddress> ordered = new ArrayList<InetAddress>(resolved.length);
+
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++)
+		{
+			if (i < first.size())
+			{
+				ordered.add(first.get(i));
+			}
+
+			if (i < second.size())
+			{
+				ordered.add(second.get(i));
+			}
+		}
+
+		final List<InetAddress> failed = new ArrayList<InetAddress>(0);
+		final long now = System.nanoTime();
+
+		for (int i = 0; i < ordered.size();)
+		{
+			final Long until = failures.get(ordered.get(i));
+
+			if (until != null && now - until < 0)
+			{
+				failed.add(ordered.remove(i));
+			}
+			else
+			{
+				i++;
+			}
+		}
+
+		ordered.addAll(failed);
+		return ordered;
+	}
+
+	private Socket connectOne(final InetSocketAddress address, final boolean withChannel)
+			throws IOException
+	{
+		final Socket socket = newSocket(withChannel);
+
+		try
+		{
+			socket.connect(address, options.getConnectTimeoutSeconds() * 1000);
+		}
+		catch (IOException e)
+		{
+			IOUtils.close(socket);
+			connectFailed(address.getAddress());
+			throw e;
+		}
+
+		connectSucceeded(address.getAddress());
+		return socket;
+	}
+
+	/**
+	 * Starts a connect to each address in turn until one succeeds, all fail,
+	 * or the connect timeout passes.
+	 */
+	private Socket race(final List<InetAddress> addresses, final int port, final boolean withChannel)
+			throws IOException
+	{
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getConnectTimeoutSeconds());
+		final long attemptDelay = TimeUnit.MILLISECONDS.toNanos(options.getConnectAttemptDelayMilliseconds());
+		final BlockingQueue<Attempt> finished = new LinkedBlockingQueue<Attempt>();
+		final List<Attempt> started = new ArrayList<Attempt>(addresses.size());
+
+		Attempt winner = null;
+		IOException lastFailure = null;
+		int failed = 0;
+
+		try
+		{
+			long nextStart = System.nanoTime();
+
+			while (winner == null)
+			{
+				final long now = System.nanoTime();
+
+				if (started.size() < addresses.size() && now - nextStart >= 0)
+				{
+					final Attempt attempt = new Attempt(
+							new InetSocketAddress(addresses.get(started.size()), port),
+							newSocket(withChannel),
+							deadline,
+							finished);
+
+					started.add(attempt);
+					getAttemptExecutor().execute(attempt);
+					nextStart = now + attemptDelay;
+				}
+
+				if (now - deadline >= 0)
+				{
+					throw new SocketTimeoutException("Timed out connecting to " + addresses + " port " + port);
+				}
+
+				final long wait = started.size() < addresses.size()
+						? Math.min(nextStart - now, deadline - now)
+						: deadline - now;
+
+				final Attempt done = finished.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+
+				if (done == null)
+				{
+					continue;
+				}
+
+				if (done.failure == null)
+				{
+					winner = done;
+					connectSucceeded(done.address.getAddress());
+					continue;
+				}
+
+				connectFailed(done.address.getAddress());
+				lastFailure = done.failure;
+				failed++;
+
+				logger.write(LogLevel.DEBUG, "Could not connect to {}: {}", done.address, done.failure.getMessage());
+
+				if (failed == addresses.size())
+				{
+					throw lastFailure;
+				}
+
+				// Don't wait out the delay after a failure
+				nextStart = System.nanoTime();
+			}
+
+			logger.write(LogLevel.DEBUG, "Connected to {} after {} attempts", winner.address, started.size());
+
+			// Attempts that started earlier failed or are slower by at least the delay
+			for (Attempt attempt : started.subList(0, started.indexOf(winner)))
+			{
+				connectFailed(attempt.address.getAddress());
+			}
+
+			return winner.socket;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted connecting to " + addresses, e);
+		}
+		finally
+		{
+			// Closing a socket aborts its connect
+			for (Attempt attempt : started)
+			{
+				if (attempt != winner)
+				{
+					IOUtils.close(attempt.socket);
+				}
+			}
+		}
+	}
+
+	private void connectFailed(final InetAddress address)
+	{
+		failures.put(address, System.nanoTime() + FAILURE_MEMORY_NANOS);
+	}
+
+	private void connectSucceeded(final InetAddress address)
+	{
+		failures.remove(address);
+	}
+
+	private static Socket newSocket(final boolean withChannel)
+			throws IOException
+	{
+		final Socket socket = withChannel ? SocketChannel.open().socket() : new Socket();
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	private ExecutorService getAttemptExecutor()
+	{
+		if (attemptExecutor == null)
+		{
+			synchronized (this)
+			{
+				if (attemptExecutor == null)
+				{
+					attemptExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+					{
+						private final AtomicInteger count = new AtomicInteger(0);
+
+						public Thread newThread(Runnable r)
+						{
+							final Thread thread = new Thread(r, "Connect-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+		}
+
+		return attemptExecutor;
+	}
+
+	/**
+	 * One connect in a race; reports to the racing thread when it's done.
+	 */
+	private static class Attempt
+			implements Runnable
+	{
+		private final InetSocketAddress address;
+		private final Socket socket;
+		private final long deadline;
+		private final BlockingQueue<Attempt> finished;
+
+		private volatile IOException failure;
+
+		Attempt(final InetSocketAddress address, final Socket socket, final long deadline, final BlockingQueue<Attempt> finished)
+		{
+			this.address = address;
+			this.socket = socket;
+			this.deadline = deadline;
+			this.finished = finished;
+		}
+
+		public void run()
+		{
+			try
+			{
+				final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+				if (remaining <= 0)
+				{
+					throw new SocketTimeoutException("Timed out connecting to " + address);
+				}
+
+				socket.connect(address, (int) Math.min(remaining, Integer.MAX_VALUE));
+			}
+			catch (IOException e)
+			{
+				failure = e;
+			}
+
+			finished.add(this);
+		}
+	}
+}
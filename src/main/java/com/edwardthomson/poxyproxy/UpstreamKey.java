@@ -0,0 +1,82 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+/**
+ * Identifies the upstream connections in an {@link UpstreamPool} that may be
+ * used interchangeably: the host and port connected to, and the forward proxy
+ * (if any) they belong to. Connections to the same host as different proxies
+ * are never mixed, because a proxy URI may carry its own identity.
+ * <p>
+ * The address is unresolved: a host's connections may go to any of its
+ * addresses (see {@link UpstreamConnector}).
+ */
+public class UpstreamKey
+{
+	private final InetSocketAddress address;
+	private final URI forwardProxyURI;
+
+	/**
+	 * @param forwardProxyURI
+	 *        the forward proxy the address belongs to, or <code>null</code> for
+	 *        a direct connection to an origin server
+	 */
+	public UpstreamKey(final InetSocketAddress address, final URI forwardProxyURI)
+	{
+		this.address = address;
+		this.forwardProxyURI = forwardProxyURI;
+	}
+
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	public URI getForwardProxyURI()
+	{
+		return forwardProxyURI;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int result = 17;
+
+		result = result * 37 + address.hashCode();
+		result = result * 37 + (forwardProxyURI != null ? forwardProxyURI.hashCode() : 0);
+
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (obj == this)
+		{
+			return true;
+		}
+
+		if (obj instanceof UpstreamKey == false)
+		{
+			return false;
+		}
+
+		final UpstreamKey other = (UpstreamKey) obj;
+
+		return other.address.equals(address)
+				&& (forwardProxyURI == null ? other.forwardProxyURI == null : forwardProxyURI.equals(other.forwardProxyURI));
+	}
+
+	@Override
+	public String toString()
+	{
+		return forwardProxyURI != null ? address + " (proxy " + forwardProxyURI + ")" : address.toString();
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Proxy-to-server connections shared by every client {@link Connection}.
+ * <p>
+ * Idle connections are kept per {@link UpstreamKey} and reused most recently
+ * used first, so the warmest sockets are reused and the coldest age out. The
+ * number of open connections (idle or in use) is limited per key and in
+ * total; when a limit is reached, callers wait for a connection to be
+ * released, up to the connect timeout. Idle connections are closed after the
+ * upstream idle timeout.
+ * <p>
+ * A {@link ReentrantLock} is used rather than synchronized blocks so virtual
+ * threads waiting for a connection don't pin their carrier.
+ */
+public class UpstreamPool
+{
+	private final static Logger logger = Logger.getLogger(UpstreamPool.class);
+
+	private final Options options;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	/* Guarded by lock */
+	private final Map<UpstreamKey, Host> hosts = new HashMap<UpstreamKey, Host>();
+	private int totalOpen = 0;
+
+	private final ScheduledExecutorService evictor;
+
+	public UpstreamPool(final Options options)
+	{
+		this.options = options;
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				final Thread thread = new Thread(r, "UpstreamPool-Evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final long period = Math.max(1000L, options.getUpstreamIdleTimeoutSeconds() * 1000L / 2);
+
+		evictor.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes an idle connection for the key or connects a new one.
+	 *
+	 * @throws SocketTimeoutException
+	 *         if the connection limits were reached and no connection was
+	 *         released within the connect timeout, or connecting timed out
+	 */
+	public UpstreamConnection acquire(final UpstreamKey key)
+			throws IOException
+	{
+		final long timeout = options.getConnectTimeoutSeconds() * 1000L;
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		lock.lock();
+		try
+		{
+			while (true)
+			{
+				final Host host = getHost(key);
+
+				UpstreamConnection idle;
+				while ((idle = host.idle.pollFirst()) != null)
+				{
+					if (isUsable(idle))
+					{
+						idle.setReused(true);
+						logger.write(LogLevel.DEBUG, "Reusing proxy-to-server socket {}", idle);
+						return idle;
+					}
+
+					closeLocked(host, idle);
+				}
+
+				if (hasCapacity(host))
+				{
+					host.open++;
+					totalOpen++;
+					break;
+				}
+
+				// Free a slot held by another key's idle connection
+				if (!withinLimit(totalOpen, options.getUpstreamMaxTotal()) && closeOldestIdleLocked())
+				{
+					continue;
+				}
+
+				final long remaining = deadline - System.nanoTime();
+
+				if (timeout > 0 && remaining <= 0)
+				{
+					throw new SocketTimeoutException("Timed out waiting for a connection to " + key);
+				}
+
+				try
+				{
+					if (timeout > 0)
+					{
+						released.awaitNanos(remaining);
+					}
+					else
+					{
+						released.await();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for a connection to " + key, e);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		// A slot is reserved; connect outside the lock
+		try
+		{
+			logger.write(LogLevel.DEBUG, "Connecting new proxy-to-server socket to {}", key);
+			return new UpstreamConnection(key, connect(key), options);
+		}
+		catch (IOException e)
+		{
+			lock.lock();
+			try
+			{
+				releaseSlotLocked(getHost(key));
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool after a request.
+	 *
+	 * @param reusable
+	 *        <code>true</code> if the exchange completed and the server will
+	 *        keep the connection open; otherwise the connection is closed, as
+	 *        is one bound to a client by authentication
+	 */
+	public void release(final UpstreamConnection connection, final boolean reusable)
+	{
+		if (!reusable || connection.isAuthenticationBound() || connection.getSocket().isClosed())
+		{
+			discard(connection);
+			return;
+		}
+
+		lock.lock();
+		try
+		{
+			connection.setIdleSince(System.nanoTime());
+			getHost(connection.getKey()).idle.addFirst(connection);
+			released.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes a connection that failed or can't be reused.
+	 */
+	public void discard(final UpstreamConnection connection)
+	{
+		if (connection == null)
+		{
+			return;
+		}
+
+		connection.close();
+
+		lock.lock();
+		try
+		{
+			releaseSlotLocked(getHost(connection.getKey()));
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes every idle connection that has been idle longer than the upstream
+	 * idle timeout.
+	 */
+	void evictIdle()
+	{
+		final long maxIdle = TimeUnit.SECONDS.toNanos(options.getUpstreamIdleTimeoutSeconds());
+		final long now = System.nanoTime();
+
+		lock.lock();
+		try
+		{
+			final Iterator<Host> hostIterator = hosts.values().iterator();
+
+			while (hostIterator.hasNext())
+			{
+				final Host host = hostIterator.next();
+
+				// Oldest are at the end
+				UpstreamConnection c;
+				while ((c = host.idle.peekLast()) != null && now - c.getIdleSince() >= maxIdle)
+				{
+					host.idle.pollLast();
+					logger.write(LogLevel.DEBUG, "Closing idle proxy-to-server socket {}", c);
+					c.close();
+					host.open--;
+					totalOpen--;
+				}
+
+				if (host.open == 0)
+				{
+					hostIterator.remove();
+				}
+			}
+
+			released.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private Socket connect(final UpstreamKey key)
+			throws IOException
+	{
+		return options.getUpstreamConnector().connect(
+				key.getAddress().getHostString(),
+				key.getAddress().getPort(),
+				key.getForwardProxyURI() != null,
+				false);
+	}
+
+	private boolean isUsable(final UpstreamConnection connection)
+	{
+		final long maxIdle = TimeUnit.SECONDS.toNanos(options.getUpstreamIdleTimeoutSeconds());
+
+		/*
+		 * Unread bytes on an idle connection mean the server sent something
+		 * unsolicited (often a close notice); don't trust it.
+		 */
+		try
+		{
+			return !connection.getSocket().isClosed()
+					&& System.nanoTime() - connection.getIdleSince() < maxIdle
+					&& connection.getInputStream().available() == 0;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	private boolean hasCapacity(final Host host)
+	{
+		return withinLimit(host.open, options.getUpstreamMaxPerHost())
+				&& withinLimit(totalOpen, options.getUpstreamMaxTotal());
+	}
+
+	private static boolean withinLimit(final int open, final int limit)
+	{
+		return limit <= 0 || open < limit;
+	}
+
+	private boolean closeOldestIdleLocked()
+	{
+		Host oldestHost = null;
+		UpstreamConnection oldest = null;
+
+		for (Host host : hosts.values())
+		{
+			final UpstreamConnection c = host.idle.peekLast();
+
+			if (c != null && (oldest == null || c.getIdleSince() - oldest.getIdleSince() < 0))
+			{
+				oldestHost = host;
+				oldest = c;
+			}
+		}
+
+		if (oldest == null)
+		{
+			return false;
+		}
+
+		oldestHost.idle.pollLast();
+		closeLocked(oldestHost, oldest);
+		return true;
+	}
+
+	private void closeLocked(final Host host, final UpstreamConnection connection)
+	{
+		connection.close();
+		releaseSlotLocked(host);
+	}
+
+	private void releaseSlotLocked(final Host host)
+	{
+		host.open--;
+		totalOpen--;
+		released.signalAll();
+	}
+
+	private Host getHost(final UpstreamKey key)
+	{
+		Host host = hosts.get(key);
+
+		if (host == null)
+		{
+			host = new Host();
+			hosts.put(key, host);
+		}
+
+		return host;
+	}
+
+	/**
+	 * The connections for one key. Idle connections are most recently used
+	 * first.
+	 */
+	private static class Host
+	{
+		private final Deque<UpstreamConnection> idle = new ArrayDeque<UpstreamConnection>();
+		private int open = 0;
+	}
+}
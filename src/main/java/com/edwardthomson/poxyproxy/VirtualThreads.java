@@ -0,0 +1,88 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21 and later). The proxy builds for older
+ * runtimes too, so the API is looked up reflectively and virtual threads are
+ * simply unsupported when it is missing.
+ */
+public class VirtualThreads
+{
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class,
+			"newVirtualThreadPerTaskExecutor");
+
+	private static final Method IS_VIRTUAL = findMethod(Thread.class, "isVirtual");
+
+	public static boolean isSupported()
+	{
+		return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * @return an executor that starts a new virtual thread for each task
+	 * @throws UnsupportedOperationException
+	 *         if the runtime does not support virtual threads
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor()
+	{
+		if (!isSupported())
+		{
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		}
+
+		try
+		{
+			return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new UnsupportedOperationException("Could not create virtual thread executor", e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new UnsupportedOperationException("Could not create virtual thread executor", e.getCause());
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the thread is a virtual thread
+	 */
+	public static boolean isVirtual(final Thread thread)
+	{
+		if (IS_VIRTUAL == null)
+		{
+			return false;
+		}
+
+		try
+		{
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+
+	private static Method findMethod(final Class<?> c, final String name)
+	{
+		try
+		{
+			return c.getMethod(name);
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.edwardthomson.poxyproxy.metrics.Histogram;
+
+/**
+ * An executor for one kind of work, with the numbers that show when it is
+ * saturated: tasks running and waiting, and how long they waited. Work is
+ * isolated by giving each kind its own pool, so a burst of one can't take
+ * the threads of another.
+ * <p>
+ * Tasks that only make progress together (like the two directions of a
+ * tunnel) can {@link #reserve(int, long) reserve} their threads first, so
+ * one never runs while the other waits in the queue. A pool used that way
+ * must start all its tasks with {@link #executeReserved(Runnable)}.
+ */
+public class WorkerPool
+	extends AbstractExecutorService
+{
+	private final String name;
+	private final ExecutorService executor;
+
+	/* The most tasks run at once, or 0 for no limit */
+	private final int maxThreads;
+
+	/* Threads not reserved, or null for no limit */
+	private final Semaphore unreserved;
+
+	private final AtomicInteger running = new AtomicInteger(0);
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final LongAdder completed = new LongAdder();
+
+	/* Tasks that had to wait because every thread was busy */
+	private final LongAdder saturated = new LongAdder();
+
+	private final Histogram waits = new Histogram();
+
+	/**
+	 * @param name
+	 *        names the pool in reports, and its threads
+	 * @param executorType
+	 *        platform threads, at most maxThreads, or a virtual thread for
+	 *        each task
+	 */
+	public WorkerPool(final String name, final ExecutorType executorType, final int maxThreads)
+	{
+		this.name = name;
+
+		if (executorType == ExecutorType.Virtual)
+		{
+			this.executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+			this.maxThreads = 0;
+			this.unreserved = null;
+		}
+		else
+		{
+			this.executor = Executors.newFixedThreadPool(maxThreads, new ThreadFactory()
+			{
+				private final AtomicInteger count = new AtomicInteger(0);
+
+				public Thread newThread(Runnable r)
+				{
+					return new Thread(r, name + "-" + count.incrementAndGet());
+				}
+			});
+			this.maxThreads = maxThreads;
+			this.unreserved = new Semaphore(maxThreads, true);
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void execute(final Runnable command)
+	{
+		final long submitted = System.nanoTime();
+
+		if (maxThreads > 0 && running.get() >= maxThreads)
+		{
+			saturated.increment();
+		}
+
+		waiting.incrementAndGet();
+
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				waiting.decrementAndGet();
+				running.incrementAndGet();
+				waits.record(System.nanoTime() - submitted);
+
+				try
+				{
+					command.run();
+				}
+				finally
+				{
+					running.decrementAndGet();
+					completed.increment();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reserves threads for tasks that will be started with
+	 * {@link #executeReserved(Runnable)}, all at once, waiting up to the
+	 * timeout for them to be free.
+	 *
+	 * @return <code>false</code> if they weren't free in time; nothing is
+	 *         reserved then
+	 */
+	public boolean reserve(final int threads, final long timeoutMilliseconds)
+			throws InterruptedException
+	{
+		if (unreserved == null)
+		{
+			return true;
+		}
+
+		if (timeoutMilliseconds <= 0)
+		{
+			unreserved.acquire(threads);
+			return true;
+		}
+
+		return unreserved.tryAcquire(threads, timeoutMilliseconds, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gives back threads that were reserved but won't be used.
+	 */
+	public void unreserve(final int threads)
+	{
+		if (unreserved != null)
+		{
+			unreserved.release(threads);
+		}
+	}
+
+	/**
+	 * Runs the task on a thread reserved for it, which is free again when the
+	 * task ends.
+	 */
+	public void executeReserved(final Runnable command)
+	{
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					command.run();
+				}
+				finally
+				{
+					unreserve(1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the tasks running now
+	 */
+	public int getRunning()
+	{
+		return running.get();
+	}
+
+	/**
+	 * @return the tasks waiting for a thread now
+	 */
+	public int getWaiting()
+	{
+		return waiting.get();
+	}
+
+	/**
+	 * @return a one-line summary for the metrics report
+	 */
+	public String report()
+	{
+		final Histogram.Snapshot snapshot = waits.snapshot();
+		final StringBuilder out = new StringBuilder(128);
+
+		out.append(name).append(": running=").append(running.get());
+		if (maxThreads > 0)
+		{
+			out.append('/').append(maxThreads);
+		}
+		out.append(" waiting=").append(waiting.get());
+		out.append(" completed=").append(completed.sum());
+		out.append(" saturated=").append(saturated.sum());
+		out.append(" wait p99=").append(String.format("%.3fms", snapshot.getValueAtPercentile(99) / 1000000.0));
+		out.append(" max=").append(String.format("%.3fms", waits.getMax() / 1000000.0));
+
+		return out.toString();
+	}
+
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	public List<Runnable> shutdownNow()
+	{
+		return executor.shutdownNow();
+	}
+
+	public boolean isShutdown()
+	{
+		return executor.isShutdown();
+	}
+
+	public boolean isTerminated()
+	{
+		return executor.isTerminated();
+	}
+
+	public boolean awaitTermination(final long timeout, final TimeUnit unit)
+			throws InterruptedException
+	{
+		return executor.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.util.List;
+
+import com.edwardthomson.poxyproxy.Header;
+
+/**
+ * The Cache-Control directives of a request or a response (RFC 7234 section
+ * 5.2), plus the HTTP/1.0 <code>Pragma: no-cache</code>. Unknown directives
+ * are ignored. Directives qualified with field names, like
+ * <code>private="Set-Cookie"</code>, are treated as if they applied to the
+ * whole message.
+ */
+public class CacheControl
+{
+	/** A delta-seconds directive that wasn't given */
+	public static final long UNSET = -1;
+
+	private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+	private static final String PRAGMA_HEADER = "Pragma";
+
+	private boolean noStore;
+	private boolean noCache;
+	private boolean privateDirective;
+	private boolean publicDirective;
+	private boolean mustRevalidate;
+	private boolean proxyRevalidate;
+	private boolean onlyIfCached;
+
+	private long maxAge = UNSET;
+	private long sharedMaxAge = UNSET;
+	private long maxStale = UNSET;
+	private long minFresh = UNSET;
+
+	private CacheControl()
+	{
+	}
+
+	public static CacheControl parse(final List<Header> headers)
+	{
+		final CacheControl cacheControl = new CacheControl();
+		boolean hasCacheControl = false;
+		boolean pragmaNoCache = false;
+
+		for (Header h : headers)
+		{
+			if (h.matchesName(CACHE_CONTROL_HEADER))
+			{
+				hasCacheControl = true;
+				cacheControl.parseDirectives(h.getValue());
+			}
+			else if (h.matchesName(PRAGMA_HEADER) && h.getValue().toLowerCase().contains("no-cache"))
+			{
+				pragmaNoCache = true;
+			}
+		}
+
+		// Pragma is only honored when there is no Cache-Control
+		if (pragmaNoCache && !hasCacheControl)
+		{
+			cacheControl.noCache = true;
+		}
+
+		return cacheControl;
+	}
+
+	public boolean isNoStore()
+	{
+		return noStore;
+	}
+
+	public boolean isNoCache()
+	{
+		return noCache;
+	}
+
+	public boolean isPrivate()
+	{
+		return privateDirective;
+	}
+
+	public boolean isPublic()
+	{
+		return publicDirective;
+	}
+
+	/**
+	 * @return <code>true</code> if a shared cache must not use the response
+	 *         once it is stale: <code>must-revalidate</code>,
+	 *         <code>proxy-revalidate</code> or <code>s-maxage</code>
+	 */
+	public boolean isRevalidateWhenStale()
+	{
+		return mustRevalidate || proxyRevalidate || sharedMaxAge != UNSET;
+	}
+
+	public boolean isMustRevalidate()
+	{
+		return mustRevalidate;
+	}
+
+	public boolean isOnlyIfCached()
+	{
+		return onlyIfCached;
+	}
+
+	public long getMaxAge()
+	{
+		return maxAge;
+	}
+
+	public long getSharedMaxAge()
+	{
+		return sharedMaxAge;
+	}
+
+	/**
+	 * @return the staleness the client accepts, {@link Long#MAX_VALUE} for
+	 *         <code>max-stale</code> without a value, or {@link #UNSET}
+	 */
+	public long getMaxStale()
+	{
+		return maxStale;
+	}
+
+	public long getMinFresh()
+	{
+		return minFresh;
+	}
+
+	private void parseDirectives(final String value)
+	{
+		int start = 0;
+		boolean quoted = false;
+
+		for (int i = 0; i <= value.length(); i++)
+		{
+			final char c = i < value.length() ? value.charAt(i) : ',';
+
+			if (c == '"')
+			{
+				quoted = !quoted;
+			}
+			else if (c == ',' && !quoted)
+			{
+				parseDirective(value.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+	}
+
+	private void parseDirective(final String directive)
+	{
+		if (directive.length() == 0)
+		{
+			return;
+		}
+
+		final int equals = directive.indexOf('=');
+		final String name = (equals < 0 ? directive : directive.substring(0, equals)).trim().toLowerCase();
+		final String argument = equals < 0 ? null : directive.substring(equals + 1).trim();
+
+		switch (name)
+		{
+			case "no-store":
+				noStore = true;
+				break;
+			case "no-cache":
+				noCache = true;
+				break;
+			case "private":
+				privateDirective = true;
+				break;
+			case "public":
+				publicDirective = true;
+				break;
+			case "must-revalidate":
+				mustRevalidate = true;
+				break;
+			case "proxy-revalidate":
+				proxyRevalidate = true;
+				break;
+			case "only-if-cached":
+				onlyIfCached = true;
+				break;
+			case "max-age":
+				maxAge = parseSeconds(argument);
+				break;
+			case "s-maxage":
+				sharedMaxAge = parseSeconds(argument);
+				break;
+			case "max-stale":
+				maxStale = argument == null ? Long.MAX_VALUE : parseSeconds(argument);
+				break;
+			case "min-fresh":
+				minFresh = parseSeconds(argument);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Parses delta-seconds. An invalid value is taken as 0, which makes a
+	 * response stale rather than fresh for longer than intended.
+	 */
+	private static long parseSeconds(String argument)
+	{
+		if (argument == null)
+		{
+			return 0;
+		}
+
+		if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\""))
+		{
+			argument = argument.substring(1, argument.length() - 1);
+		}
+
+		try
+		{
+			final long seconds = Long.parseLong(argument);
+			return seconds < 0 ? 0 : seconds;
+		}
+		catch (NumberFormatException e)
+		{
+			// Larger than a long is effectively forever
+			return argument.length() > 0 && argument.chars().allMatch(Character::isDigit) ? Long.MAX_VALUE : 0;
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+import com.edwardthomson.poxyproxy.Constants;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.HeaderFilter;
+import com.edwardthomson.poxyproxy.HeaderUtils;
+import com.edwardthomson.poxyproxy.Request;
+import com.edwardthomson.poxyproxy.Status;
+
+/**
+ * Decides what a shared cache may store and use, following RFC 7234.
+ */
+public abstract class CachePolicy
+{
+	static final String DATE_HEADER = "Date";
+	static final String EXPIRES_HEADER = "Expires";
+	static final String AGE_HEADER = "Age";
+	static final String VARY_HEADER = "Vary";
+	static final String ETAG_HEADER = "ETag";
+	static final String LAST_MODIFIED_HEADER = "Last-Modified";
+	static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+
+	/*
+	 * Requests with these headers are passed through: the cache only answers
+	 * whole-representation GETs and the simple validators.
+	 */
+	private static final String[] UNSUPPORTED_REQUEST_HEADERS =
+	{
+		"Range", "If-Range", "If-Match", "If-Unmodified-Since"
+	};
+
+	/*
+	 * The client's own validators are replaced by the stored response's when
+	 * the cache revalidates; the client's are then evaluated by the cache.
+	 */
+	private static final HeaderFilter CONDITIONAL_FILTER = new HeaderFilter(new String[]
+	{
+		IF_NONE_MATCH_HEADER, IF_MODIFIED_SINCE_HEADER
+	});
+
+	/* Heuristic freshness is allowed for these (RFC 7231 section 6.1) */
+	private static final int[] HEURISTICALLY_CACHEABLE =
+	{
+		200, 203, 204, 300, 301, 404, 405, 410, 414, 501
+	};
+
+	/* Stored only with explicit freshness */
+	private static final int[] EXPLICITLY_CACHEABLE =
+	{
+		302, 307, 308
+	};
+
+	/* RFC 7234 section 4.2.2 suggests 10% of the time since modification */
+	private static final int HEURISTIC_FRACTION = 10;
+	private static final long MAX_HEURISTIC_SECONDS = 24 * 60 * 60;
+
+	/**
+	 * @return <code>true</code> if the request may be answered from the cache
+	 */
+	public static boolean isCacheableRequest(final Request request)
+	{
+		final String method = request.getMethod();
+
+		if (!method.equals(Constants.GET_METHOD) && !method.equals(Constants.HEAD_METHOD))
+		{
+			return false;
+		}
+
+		final List<Header> headers = request.getHeaders();
+
+		// A body would have to be consumed and can't be part of the key
+		if (HeaderUtils.isChunked(headers) || HeaderUtils.getContentLength(headers) > 0)
+		{
+			return false;
+		}
+
+		for (String name : UNSUPPORTED_REQUEST_HEADERS)
+		{
+			if (findHeader(name, headers) != null)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if a successful response to the method
+	 *         invalidates stored responses for the URI (RFC 7234 section 4.4)
+	 */
+	public static boolean isUnsafe(final String method)
+	{
+		return !method.equals(Constants.GET_METHOD)
+				&& !method.equals(Constants.HEAD_METHOD)
+				&& !method.equals("OPTIONS")
+				&& !method.equals("TRACE");
+	}
+
+	/**
+	 * @param responseHeaders
+	 *        the response headers that would be forwarded
+	 * @return <code>true</code> if the response to the request may be stored
+	 *         (RFC 7234 section 3)
+	 */
+	public static boolean isStorable(final Request request, final int statusCode, final List<Header> responseHeaders)
+	{
+		// Only GET responses are stored; HEAD is answered from them
+		if (!request.getMethod().equals(Constants.GET_METHOD))
+		{
+			return false;
+		}
+
+		final CacheControl requestCacheControl = CacheControl.parse(request.getHeaders());
+		final CacheControl responseCacheControl = CacheControl.parse(responseHeaders);
+
+		if (requestCacheControl.isNoStore() || responseCacheControl.isNoStore() || responseCacheControl.isPrivate())
+		{
+			return false;
+		}
+
+		final Header vary = findHeader(VARY_HEADER, responseHeaders);
+		if (vary != null && vary.getValue().trim().equals("*"))
+		{
+			return false;
+		}
+
+		// Responses to authenticated requests are for that user alone (section 3.2)
+		if (findHeader("Authorization", request.getHeaders()) != null
+				&& !responseCacheControl.isPublic()
+				&& !responseCacheControl.isMustRevalidate()
+				&& responseCacheControl.getSharedMaxAge() == CacheControl.UNSET)
+		{
+			return false;
+		}
+
+		// RFC 7234 allows it, but a shared cache replaying cookies is a hazard
+		if (findHeader("Set-Cookie", responseHeaders) != null)
+		{
+			return false;
+		}
+
+		final boolean explicit = responseCacheControl.getSharedMaxAge() != CacheControl.UNSET
+				|| responseCacheControl.getMaxAge() != CacheControl.UNSET
+				|| findHeader(EXPIRES_HEADER, responseHeaders) != null;
+
+		if (!contains(HEURISTICALLY_CACHEABLE, statusCode) && !(explicit && contains(EXPLICITLY_CACHEABLE, statusCode)))
+		{
+			return false;
+		}
+
+		// Worth keeping only if it can be reused or revalidated
+		return explicit
+				|| findHeader(LAST_MODIFIED_HEADER, responseHeaders) != null
+				|| findHeader(ETAG_HEADER, responseHeaders) != null;
+	}
+
+	/**
+	 * @return the request headers with the client's If-None-Match and
+	 *         If-Modified-Since replaced by the given ones
+	 */
+	public static List<Header> withConditionalHeaders(
+			final List<Header> requestHeaders,
+			final List<Header> conditionalHeaders)
+	{
+		final List<Header> headers = CONDITIONAL_FILTER.filter(requestHeaders);
+		headers.addAll(conditionalHeaders);
+		return headers;
+	}
+
+	/**
+	 * @return <code>true</code> if the client's own validators match the
+	 *         stored response, so a 304 answers the request
+	 */
+	public static boolean isNotModified(final List<Header> requestHeaders, final CachedResponse cached)
+	{
+		if (cached.getStatusCode() != Status.OK)
+		{
+			return false;
+		}
+
+		final Header ifNoneMatch = findHeader(IF_NONE_MATCH_HEADER, requestHeaders);
+
+		// If-None-Match takes precedence (RFC 7232 section 6)
+		if (ifNoneMatch != null)
+		{
+			final String etag = cached.getETag();
+
+			if (etag == null)
+			{
+				return false;
+			}
+
+			for (String candidate : ifNoneMatch.getValue().split(","))
+			{
+				candidate = candidate.trim();
+
+				if (candidate.equals("*") || weakEquals(candidate, etag))
+				{
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		final Header ifModifiedSince = findHeader(IF_MODIFIED_SINCE_HEADER, requestHeaders);
+
+		if (ifModifiedSince != null && cached.getLastModified() != null)
+		{
+			final long since = parseDate(ifModifiedSince.getValue());
+			final long lastModified = parseDate(cached.getLastModified());
+
+			return since >= 0 && lastModified >= 0 && lastModified <= since;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the freshness lifetime in seconds for a shared cache (RFC 7234
+	 *         section 4.2.1), or 0 if the response is stale when received
+	 */
+	static long getFreshnessLifetime(
+			final int statusCode,
+			final CacheControl cacheControl,
+			final List<Header> headers,
+			final long dateMillis)
+	{
+		if (cacheControl.getSharedMaxAge() != CacheControl.UNSET)
+		{
+			return cacheControl.getSharedMaxAge();
+		}
+
+		if (cacheControl.getMaxAge() != CacheControl.UNSET)
+		{
+			return cacheControl.getMaxAge();
+		}
+
+		final Header expires = findHeader(EXPIRES_HEADER, headers);
+
+		if (expires != null)
+		{
+			// Invalid dates, like "0", mean already expired
+			final long expiresMillis = parseDate(expires.getValue());
+			return expiresMillis > dateMillis ? (expiresMillis - dateMillis) / 1000 : 0;
+		}
+
+		final Header lastModified = findHeader(LAST_MODIFIED_HEADER, headers);
+
+		if (lastModified != null && contains(HEURISTICALLY_CACHEABLE, statusCode))
+		{
+			final long lastModifiedMillis = parseDate(lastModified.getValue());
+
+			if (lastModifiedMillis >= 0 && lastModifiedMillis < dateMillis)
+			{
+				return Math.min((dateMillis - lastModifiedMillis) / 1000 / HEURISTIC_FRACTION, MAX_HEURISTIC_SECONDS);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @return the HTTP date in milliseconds since the epoch, or -1 if it
+	 *         can't be parsed
+	 */
+	static long parseDate(final String value)
+	{
+		try
+		{
+			return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(value.trim())).toEpochMilli();
+		}
+		catch (DateTimeParseException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Like {@link HeaderUtils#findHeader(String, List)}, but ignores case.
+	 */
+	static Header findHeader(final String name, final List<Header> headers)
+	{
+		for (Header h : headers)
+		{
+			if (h.matchesName(name))
+			{
+				return h;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean weakEquals(final String a, final String b)
+	{
+		return stripWeak(a).equals(stripWeak(b));
+	}
+
+	private static String stripWeak(final String etag)
+	{
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	private static boolean contains(final int[] values, final int value)
+	{
+		for (int v : values)
+		{
+			if (v == value)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.edwardthomson.poxyproxy.Constants;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Copies a response body into the cache as it is forwarded to the client.
+ * The body is kept as it appeared on the wire, so a hit replays the same
+ * bytes. A body that is too large for the heap goes to the
+ * {@link DiskStore}, if there is one, from the start or as soon as it
+ * outgrows the heap. If the body grows past the largest object the cache
+ * accepts, the copy is dropped and forwarding goes on.
+ */
+public class CacheWriter
+{
+	private final static Logger logger = Logger.getLogger(CacheWriter.class);
+
+	private final ResponseCache cache;
+	private final DiskStore disk;
+	private final String key;
+	private final int statusCode;
+	private final String message;
+	private final String version;
+	private final List<Header> headers;
+	private final List<Header> requestHeaders;
+	private final Map<String, String> varyValues;
+	private final long requestTime;
+	private final long responseTime;
+
+	/* The Content-Length, or -1 for a chunked body or one that ends at close */
+	private final long expectedLength;
+	private final boolean delimitedByClose;
+	private final long memoryMaxBytes;
+	private final long diskMaxBytes;
+
+	/* One of them is set until the writer is aborted or committed */
+	private ByteArrayOutputStream body;
+	private DiskStore.Writer diskWriter;
+
+	CacheWriter(
+			final ResponseCache cache,
+			final DiskStore disk,
+			final String key,
+			final int statusCode,
+			final String message,
+			final String version,
+			final List<Header> headers,
+			final List<Header> requestHeaders,
+			final Map<String, String> varyValues,
+			final long requestTime,
+			final long responseTime,
+			final long expectedLength,
+			final boolean delimitedByClose,
+			final long memoryMaxBytes,
+			final long diskMaxBytes)
+	{
+		this.cache = cache;
+		this.disk = disk;
+		this.key = key;
+		this.statusCode = statusCode;
+		this.message = message;
+		this.version = version;
+		this.headers = headers;
+		this.requestHeaders = requestHeaders;
+		this.varyValues = varyValues;
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+		this.expectedLength = expectedLength;
+		this.delimitedByClose = delimitedByClose;
+		this.memoryMaxBytes = memoryMaxBytes;
+		this.diskMaxBytes = diskMaxBytes;
+
+		if (expectedLength > memoryMaxBytes)
+		{
+			startDisk();
+		}
+		else
+		{
+			this.body = new ByteArrayOutputStream(expectedLength > 0 ? (int) expectedLength : 1024);
+		}
+	}
+
+	public void write(final byte[] b, final int off, final int len)
+	{
+		if (body != null && body.size() + (long) len > memoryMaxBytes)
+		{
+			// Too large for the heap: move what we have to disk
+			final byte[] bytes = body.toByteArray();
+			body = null;
+
+			if (startDisk())
+			{
+				writeToDisk(bytes, 0, bytes.length);
+			}
+		}
+
+		if (body != null)
+		{
+			body.write(b, off, len);
+		}
+		else if (diskWriter != null)
+		{
+			writeToDisk(b, off, len);
+		}
+	}
+
+	/**
+	 * Copies the buffer's remaining bytes without moving its position.
+	 */
+	public void write(final ByteBuffer buffer)
+	{
+		if (body == null && diskWriter == null)
+		{
+			return;
+		}
+
+		if (buffer.hasArray())
+		{
+			write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		else
+		{
+			final byte[] copy = new byte[buffer.remaining()];
+			buffer.duplicate().get(copy);
+			write(copy, 0, copy.length);
+		}
+	}
+
+	/**
+	 * @return a stream that writes to <code>out</code> and to this writer
+	 */
+	public OutputStream tee(final OutputStream out)
+	{
+		return new FilterOutputStream(out)
+		{
+			@Override
+			public void write(final int b)
+					throws IOException
+			{
+				out.write(b);
+				CacheWriter.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len)
+					throws IOException
+			{
+				out.write(b, off, len);
+				CacheWriter.this.write(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Drops the copy; nothing is stored.
+	 */
+	public void abort()
+	{
+		body = null;
+
+		if (diskWriter != null)
+		{
+			diskWriter.abort();
+			diskWriter = null;
+		}
+	}
+
+	/**
+	 * Stores the response. Call only once the whole body was forwarded.
+	 *
+	 * @return the stored response, or <code>null</code> if it was dropped or
+	 *         the body was shorter than its Content-Length
+	 */
+	public CachedResponse commit()
+	{
+		if (diskWriter != null)
+		{
+			final DiskStore.Writer writer = diskWriter;
+			diskWriter = null;
+
+			if (expectedLength >= 0 && writer.getLength() != expectedLength)
+			{
+				writer.abort();
+				return null;
+			}
+
+			return cache.putOnDisk(
+					writer,
+					key,
+					statusCode,
+					message,
+					version,
+					getStoredHeaders(writer.getLength()),
+					varyValues,
+					requestTime,
+					responseTime,
+					requestHeaders);
+		}
+
+		if (body == null)
+		{
+			return null;
+		}
+
+		final byte[] bytes = body.toByteArray();
+		body = null;
+
+		if (expectedLength >= 0 && bytes.length != expectedLength)
+		{
+			return null;
+		}
+
+		return cache.put(new CachedResponse(
+				key,
+				statusCode,
+				message,
+				version,
+				getStoredHeaders(bytes.length),
+				new StoredBody.Heap(bytes),
+				varyValues,
+				requestTime,
+				responseTime),
+				requestHeaders);
+	}
+
+	private List<Header> getStoredHeaders(final long length)
+	{
+		if (!delimitedByClose)
+		{
+			return headers;
+		}
+
+		// Hits are served on connections that stay open
+		final List<Header> storedHeaders = new ArrayList<Header>(headers);
+		storedHeaders.add(new Header(Constants.CONTENT_LENGTH_HEADER, Long.toString(length)));
+		return storedHeaders;
+	}
+
+	/**
+	 * @return <code>false</code> if there is no disk store or it couldn't
+	 *         take the body; the copy is dropped then
+	 */
+	private boolean startDisk()
+	{
+		if (disk == null)
+		{
+			abort();
+			return false;
+		}
+
+		try
+		{
+			diskWriter = disk.startWrite();
+			return true;
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.WARNING, "Could not store " + key + " in the disk cache", e);
+			abort();
+			return false;
+		}
+	}
+
+	private void writeToDisk(final byte[] b, final int off, final int len)
+	{
+		if (diskWriter.getLength() + len > diskMaxBytes)
+		{
+			abort();
+			return;
+		}
+
+		try
+		{
+			diskWriter.write(b, off, len);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.WARNING, "Could not store " + key + " in the disk cache", e);
+			abort();
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.edwardthomson.poxyproxy.Constants;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.HeaderFilter;
+import com.edwardthomson.poxyproxy.Response;
+import com.edwardthomson.poxyproxy.Status;
+import com.edwardthomson.poxyproxy.Utils;
+
+/**
+ * A stored response: its status line, headers and body exactly as they were
+ * forwarded to the client, plus what is needed to compute its age and match
+ * it to later requests. The body is in the heap or on disk (see
+ * {@link StoredBody}). Immutable; revalidation makes a new one.
+ */
+public class CachedResponse
+{
+	/*
+	 * Hop-by-hop headers describe the connection the response arrived on,
+	 * not the response; Age is computed when the response is served.
+	 */
+	static final HeaderFilter NOT_STORED_FILTER = new HeaderFilter(new String[]
+	{
+		"connection", "keep-alive", "proxy-connection", "age"
+	});
+
+	/* Headers in a 304 that must not replace the stored ones */
+	private static final HeaderFilter NOT_UPDATED_FILTER = new HeaderFilter(new String[]
+	{
+		"connection", "keep-alive", "proxy-connection", "content-length", "transfer-encoding"
+	});
+
+	/* Rough per-entry bookkeeping, so tiny responses still have a weight */
+	private static final int OVERHEAD_BYTES = 256;
+
+	private final String key;
+	private final int statusCode;
+	private final String message;
+	private final String version;
+	private final List<Header> headers;
+	private final StoredBody body;
+
+	/* Request header values the response varies on, by lowercase name */
+	private final Map<String, String> varyValues;
+
+	/* When the request was sent and the response head arrived, in milliseconds */
+	private final long requestTime;
+	private final long responseTime;
+
+	private final CacheControl cacheControl;
+	private final long freshnessLifetime;
+	private final long correctedInitialAge;
+	private final String etag;
+	private final String lastModified;
+	private final long weight;
+
+	CachedResponse(
+			final String key,
+			final int statusCode,
+			final String message,
+			final String version,
+			final List<Header> headers,
+			final StoredBody body,
+			final Map<String, String> varyValues,
+			final long requestTime,
+			final long responseTime)
+	{
+		this.key = key;
+		this.statusCode = statusCode;
+		this.message = message;
+		this.version = version;
+		this.headers = Collections.unmodifiableList(NOT_STORED_FILTER.filter(headers));
+		this.body = body;
+		this.varyValues = varyValues;
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+
+		final Header dateHeader = CachePolicy.findHeader(CachePolicy.DATE_HEADER, headers);
+		final long parsedDate = dateHeader != null ? CachePolicy.parseDate(dateHeader.getValue()) : -1;
+		final long date = parsedDate >= 0 ? parsedDate : responseTime;
+
+		this.cacheControl = CacheControl.parse(headers);
+		this.freshnessLifetime = CachePolicy.getFreshnessLifetime(statusCode, cacheControl, headers, date);
+
+		// RFC 7234 section 4.2.3
+		final long apparentAge = Math.max(0, responseTime - date) / 1000;
+		final long responseDelay = Math.max(0, responseTime - requestTime) / 1000;
+		this.correctedInitialAge = Math.max(apparentAge, parseAge(headers) + responseDelay);
+
+		final Header etagHeader = CachePolicy.findHeader(CachePolicy.ETAG_HEADER, headers);
+		final Header lastModifiedHeader = CachePolicy.findHeader(CachePolicy.LAST_MODIFIED_HEADER, headers);
+		this.etag = etagHeader != null ? etagHeader.getValue() : null;
+		this.lastModified = lastModifiedHeader != null ? lastModifiedHeader.getValue() : null;
+
+		long headerBytes = 0;
+		for (Header h : this.headers)
+		{
+			headerBytes += h.getName().length() + h.getValue().length() + 4;
+		}
+		// Only a body in the heap counts against the memory budget
+		this.weight = (isOnDisk() ? 0 : body.length()) + headerBytes + OVERHEAD_BYTES;
+	}
+
+	public String getKey()
+	{
+		return key;
+	}
+
+	public int getStatusCode()
+	{
+		return statusCode;
+	}
+
+	public List<Header> getHeaders()
+	{
+		return headers;
+	}
+
+	public long getBodyLength()
+	{
+		return body.length();
+	}
+
+	/**
+	 * @return the body as it was sent on the wire (including any chunked
+	 *         framing), read-only; a body on disk is mapped
+	 */
+	public ByteBuffer getBody()
+			throws IOException
+	{
+		return body.buffer();
+	}
+
+	/**
+	 * @return <code>true</code> if the body is in the {@link DiskStore}
+	 */
+	public boolean isOnDisk()
+	{
+		return !(body instanceof StoredBody.Heap);
+	}
+
+	public String getETag()
+	{
+		return etag;
+	}
+
+	public String getLastModified()
+	{
+		return lastModified;
+	}
+
+	String getMessage()
+	{
+		return message;
+	}
+
+	String getVersion()
+	{
+		return version;
+	}
+
+	Map<String, String> getVaryValues()
+	{
+		return varyValues;
+	}
+
+	long getRequestTime()
+	{
+		return requestTime;
+	}
+
+	long getResponseTime()
+	{
+		return responseTime;
+	}
+
+	StoredBody getStoredBody()
+	{
+		return body;
+	}
+
+	/**
+	 * @return the size this response counts against the memory budget
+	 */
+	public long getWeight()
+	{
+		return weight;
+	}
+
+	/**
+	 * @return the current age in seconds (RFC 7234 section 4.2.3)
+	 */
+	public long getAge(final long now)
+	{
+		return correctedInitialAge + Math.max(0, now - responseTime) / 1000;
+	}
+
+	/**
+	 * @return <code>true</code> if this response may be sent for a request
+	 *         with the given Cache-Control without asking the server first
+	 */
+	public boolean isUsable(final CacheControl request, final long now)
+	{
+		if (cacheControl.isNoCache() || request.isNoCache())
+		{
+			return false;
+		}
+
+		final long age = getAge(now);
+
+		if (request.getMaxAge() != CacheControl.UNSET && age > request.getMaxAge())
+		{
+			return false;
+		}
+
+		if (request.getMinFresh() != CacheControl.UNSET && freshnessLifetime - age < request.getMinFresh())
+		{
+			return false;
+		}
+
+		if (freshnessLifetime > age)
+		{
+			return true;
+		}
+
+		// Stale: only if the client accepts it and the server allows it
+		return !cacheControl.isRevalidateWhenStale()
+				&& request.getMaxStale() != CacheControl.UNSET
+				&& age - freshnessLifetime <= request.getMaxStale();
+	}
+
+	/**
+	 * @return <code>true</code> if the server can be asked whether this
+	 *         response is still current
+	 */
+	public boolean hasValidator()
+	{
+		return etag != null || lastModified != null;
+	}
+
+	/**
+	 * @return the headers that ask the server whether this response is still
+	 *         current
+	 */
+	public List<Header> getConditionalHeaders()
+	{
+		final List<Header> conditional = new ArrayList<Header>(2);
+
+		if (etag != null)
+		{
+			conditional.add(new Header(CachePolicy.IF_NONE_MATCH_HEADER, etag));
+		}
+
+		if (lastModified != null)
+		{
+			conditional.add(new Header(CachePolicy.IF_MODIFIED_SINCE_HEADER, lastModified));
+		}
+
+		return conditional;
+	}
+
+	/**
+	 * @return <code>true</code> if this response was stored for a request
+	 *         with the same values of the headers it varies on
+	 */
+	public boolean matches(final List<Header> requestHeaders)
+	{
+		return matches(varyValues, requestHeaders);
+	}
+
+	/**
+	 * @return <code>true</code> if the request has the given values of the
+	 *         headers a response varies on
+	 */
+	static boolean matches(final Map<String, String> varyValues, final List<Header> requestHeaders)
+	{
+		for (Map.Entry<String, String> vary : varyValues.entrySet())
+		{
+			if (!Objects.equals(vary.getValue(), getRequestValue(vary.getKey(), requestHeaders)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return a copy of this response with the headers of a 304 that
+	 *         validated it (RFC 7234 section 4.3.4), aged from the new exchange
+	 */
+	CachedResponse revalidate(final List<Header> notModifiedHeaders, final long newRequestTime, final long newResponseTime)
+	{
+		final List<Header> updates = NOT_UPDATED_FILTER.filter(notModifiedHeaders);
+		final List<Header> merged = new ArrayList<Header>(headers.size() + updates.size());
+
+		for (Header h : headers)
+		{
+			if (CachePolicy.findHeader(h.getName(), updates) == null)
+			{
+				merged.add(h);
+			}
+		}
+
+		merged.addAll(updates);
+
+		return new CachedResponse(
+				key,
+				statusCode,
+				message,
+				version,
+				merged,
+				body,
+				varyValues,
+				newRequestTime,
+				newResponseTime);
+	}
+
+	/**
+	 * Writes the status line and headers, and the body unless
+	 * <code>withBody</code> is <code>false</code>. With
+	 * <code>notModified</code> a 304 is written instead, without a body.
+	 *
+	 * @param channel
+	 *        the channel of the client's socket, which a body on disk is
+	 *        sent to directly, or <code>null</code>
+	 * @return the number of body bytes sent to the channel directly
+	 */
+	public long writeTo(
+			final Response response,
+			final long now,
+			final boolean notModified,
+			final boolean withBody,
+			final WritableByteChannel channel)
+			throws IOException
+	{
+		final List<Header> out = new ArrayList<Header>(headers.size() + 2);
+
+		for (Header h : headers)
+		{
+			// A 304 has no body, so it must not describe one
+			if (!notModified
+					|| !(h.matchesName(Constants.CONTENT_LENGTH_HEADER) || h.matchesName(Constants.TRANSFER_ENCODING_HEADER)))
+			{
+				out.add(h);
+			}
+		}
+
+		out.add(new Header(CachePolicy.AGE_HEADER, Long.toString(getAge(now))));
+		out.add(new Header("Via", "1.0 " + Utils.getHostname()));
+
+		if (notModified)
+		{
+			response.writeStatus(Status.NOT_MODIFIED, Status.NAMES.get(Status.NOT_MODIFIED), version);
+		}
+		else
+		{
+			response.writeStatus(statusCode, message, version);
+		}
+
+		response.setHeaders(out);
+		response.writeHeaders(out);
+		response.endHeaders();
+
+		if (withBody && !notModified)
+		{
+			return body.writeTo(response, channel);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @return the request's values for the headers the response varies on
+	 */
+	static Map<String, String> getVaryValues(final List<Header> responseHeaders, final List<Header> requestHeaders)
+	{
+		final Map<String, String> values = new LinkedHashMap<String, String>();
+
+		for (Header vary : responseHeaders)
+		{
+			if (!vary.matchesName(CachePolicy.VARY_HEADER))
+			{
+				continue;
+			}
+
+			for (String name : vary.getValue().split(","))
+			{
+				name = name.trim().toLowerCase();
+
+				if (name.length() > 0)
+				{
+					values.put(name, getRequestValue(name, requestHeaders));
+				}
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * @return every value of the request header, combined like a list
+	 *         header, or <code>null</code> if there is none
+	 */
+	private static String getRequestValue(final String name, final List<Header> requestHeaders)
+	{
+		String value = null;
+
+		for (Header h : requestHeaders)
+		{
+			if (h.matchesName(name))
+			{
+				value = value == null ? h.getValue().trim() : value + ", " + h.getValue().trim();
+			}
+		}
+
+		return value;
+	}
+
+	private static long parseAge(final List<Header> headers)
+	{
+		final Header age = CachePolicy.findHeader(CachePolicy.AGE_HEADER, headers);
+
+		if (age == null)
+		{
+			return 0;
+		}
+
+		try
+		{
+			return Math.max(0, Long.parseLong(age.getValue().trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,1623 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.Options;
+import com.edwardthomson.poxyproxy.Response;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * The disk tier of the response cache, for responses too large to keep in
+ * the heap. It persists across restarts.
+ * <p>
+ * Bodies and heads are appended to segment files that are sized up front.
+ * Each response is streamed into a segment that no other response is being
+ * written to, so bodies go straight to the file as they are forwarded. A
+ * memory-mapped index of fixed-size slots records, for each response, the
+ * hash of its key, where its head and body are, and when it was last used.
+ * Only the index is read at startup; a response's head is read when its key
+ * is first looked up, so a restart keeps the working set without scanning
+ * the segments.
+ * <p>
+ * A background thread evicts the least recently used responses when the
+ * segments outgrow the disk budget, moves the live responses out of
+ * segments that are mostly dead, and checkpoints the index. After a crash,
+ * responses stored since the last checkpoint are dropped, since their bytes
+ * may not have reached the disk.
+ */
+public class DiskStore
+{
+	private final static Logger logger = Logger.getLogger(DiskStore.class);
+
+	/* New segments are this size; a response larger than what's left runs past it */
+	static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+	private static final String INDEX_FILE = "index.dat";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final int INDEX_MAGIC = 0x50584931;
+	private static final int HEAD_MAGIC = 0x50584831;
+
+	/* Index header: magic, slot count, clean shutdown flag, checkpoint time */
+	private static final int INDEX_HEADER_BYTES = 64;
+	private static final int HEADER_SLOT_COUNT = 4;
+	private static final int HEADER_CLEAN = 8;
+	private static final int HEADER_CHECKPOINT = 16;
+
+	/* Index slots */
+	private static final int SLOT_BYTES = 64;
+	private static final int INITIAL_SLOTS = 4096;
+	private static final int SLOT_STATE = 0;
+	private static final int SLOT_HEAD_SEGMENT = 4;
+	private static final int SLOT_KEY_HASH = 8;
+	private static final int SLOT_HEAD_OFFSET = 16;
+	private static final int SLOT_HEAD_LENGTH = 24;
+	private static final int SLOT_BODY_SEGMENT = 28;
+	private static final int SLOT_BODY_OFFSET = 32;
+	private static final int SLOT_BODY_LENGTH = 40;
+	private static final int SLOT_LAST_ACCESS = 48;
+	private static final int SLOT_STORED = 56;
+
+	private static final int FREE = 0;
+	private static final int LIVE = 1;
+
+	/* Eviction frees down to this share of the budget, so it runs in batches */
+	private static final int LOW_WATER_PERCENT = 90;
+
+	/* Segments with less live data than this share are compacted */
+	private static final int COMPACT_LIVE_PERCENT = 50;
+
+	private static final long MAINTENANCE_INTERVAL_SECONDS = 30;
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+	private static final class Segment
+	{
+		final int id;
+		final File file;
+		final FileChannel channel;
+
+		/* Guarded by the store's lock */
+		long end = 0;
+		long liveBytes = 0;
+		boolean writing = false;
+		boolean compacting = false;
+		boolean deleted = false;
+		int readers = 0;
+
+		Segment(final int id, final File file, final FileChannel channel)
+		{
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		long getDiskBytes()
+		{
+			return Math.max(end, SEGMENT_BYTES);
+		}
+	}
+
+	/* One stored response; mirrors its index slot. Guarded by the store's lock. */
+	private static final class Entry
+	{
+		final int slot;
+		final long keyHash;
+		Segment headSegment;
+		long headOffset;
+		int headLength;
+		Segment bodySegment;
+		long bodyOffset;
+		long bodyLength;
+		long lastAccess;
+		long stored;
+		boolean live = true;
+
+		/* Read from the head when first looked up */
+		CachedResponse response;
+
+		Entry(final int slot, final long keyHash)
+		{
+			this.slot = slot;
+			this.keyHash = keyHash;
+		}
+	}
+
+	private final File directory;
+	private final Options options;
+	private final FileChannel indexChannel;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/* Guarded by lock */
+	private MappedByteBuffer index;
+	private int slotCount;
+	private Entry[] slots;
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+	private final Map<Long, List<Entry>> entries = new HashMap<Long, List<Entry>>();
+	private final Map<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private final ArrayDeque<Segment> appendable = new ArrayDeque<Segment>();
+	private int nextSegmentId = 1;
+	private long liveBytes = 0;
+	private boolean closed = false;
+
+	private final ScheduledExecutorService maintenance;
+	private final AtomicBoolean maintenancePending = new AtomicBoolean();
+
+	private DiskStore(final File directory, final Options options)
+			throws IOException
+	{
+		this.directory = directory;
+		this.options = options;
+		this.indexChannel = FileChannel.open(
+				new File(directory, INDEX_FILE).toPath(),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				final Thread thread = new Thread(r, "Disk-Cache-Maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Opens the store in the directory, creating it if needed, and loads the
+	 * index left by an earlier run.
+	 */
+	public static DiskStore open(final File directory, final Options options)
+			throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create cache directory " + directory);
+		}
+
+		final DiskStore store = new DiskStore(directory, options);
+
+		store.lock.lock();
+		try
+		{
+			store.load();
+		}
+		finally
+		{
+			store.lock.unlock();
+		}
+
+		store.maintenance.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				store.maintain();
+			}
+		}, MAINTENANCE_INTERVAL_SECONDS, MAINTENANCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+		return store;
+	}
+
+	/**
+	 * @return the largest response body the store accepts: a quarter of the
+	 *         budget, so one response can't push out everything else
+	 */
+	public long getMaxObjectBytes()
+	{
+		return Math.min(options.getCacheDiskMaxBytes() / 4, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the bytes the segments take on disk
+	 */
+	public long getDiskBytes()
+	{
+		lock.lock();
+		try
+		{
+			long total = 0;
+			for (Segment segment : segments.values())
+			{
+				total += segment.getDiskBytes();
+			}
+			return total;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of stored responses
+	 */
+	public int getCount()
+	{
+		lock.lock();
+		try
+		{
+			return slotCount - freeSlots.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the stored response for the key that matches the request's
+	 *         headers, or <code>null</code> if there is none
+	 */
+	CachedResponse get(final String key, final List<Header> requestHeaders)
+	{
+		lock.lock();
+		try
+		{
+			for (Entry entry : find(key))
+			{
+				if (entry.response.matches(requestHeaders))
+				{
+					entry.lastAccess = System.currentTimeMillis();
+					index.putLong(slotBase(entry.slot) + SLOT_LAST_ACCESS, entry.lastAccess);
+					return entry.response;
+				}
+			}
+
+			return null;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts writing a response body.
+	 */
+	Writer startWrite()
+			throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				throw new IOException("The disk cache is closed");
+			}
+
+			final Segment segment = acquireSegment();
+			return new Writer(segment, segment.end);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends the head of a response whose body the writer wrote and adds it
+	 * to the index, replacing any variant the request would have selected.
+	 *
+	 * @return the stored response, or <code>null</code> if it couldn't be
+	 *         written
+	 */
+	CachedResponse commit(
+			final Writer writer,
+			final String key,
+			final int statusCode,
+			final String message,
+			final String version,
+			final List<Header> headers,
+			final Map<String, String> varyValues,
+			final long requestTime,
+			final long responseTime,
+			final List<Header> requestHeaders)
+	{
+		final Segment segment = writer.segment;
+		final long bodyOffset = writer.start;
+		final long bodyLength = writer.length;
+
+		final CachedResponse response = new CachedResponse(
+				key,
+				statusCode,
+				message,
+				version,
+				headers,
+				new SegmentBody(segment, bodyOffset, bodyLength),
+				varyValues,
+				requestTime,
+				responseTime);
+
+		final byte[] head;
+
+		try
+		{
+			head = encodeHead(response);
+			write(segment.channel, head, bodyOffset + bodyLength);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.WARNING, "Could not write " + key + " to the disk cache", e);
+			writer.abort();
+			return null;
+		}
+
+		lock.lock();
+		try
+		{
+			segment.end = bodyOffset + bodyLength + head.length;
+			segment.writing = false;
+
+			if (closed)
+			{
+				return null;
+			}
+
+			removeMatching(key, requestHeaders);
+
+			final Entry entry = new Entry(allocateSlot(), hash(key));
+			entry.headSegment = segment;
+			entry.headOffset = bodyOffset + bodyLength;
+			entry.headLength = head.length;
+			entry.bodySegment = segment;
+			entry.bodyOffset = bodyOffset;
+			entry.bodyLength = bodyLength;
+			entry.lastAccess = System.currentTimeMillis();
+			entry.stored = entry.lastAccess;
+			entry.response = response;
+
+			link(entry);
+			offerAppendable(segment);
+
+			options.getMetrics().countCacheStore(bodyLength);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.WARNING, "Could not index " + key + " in the disk cache", e);
+			offerAppendable(segment);
+			return null;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if (getDiskBytes() > options.getCacheDiskMaxBytes())
+		{
+			scheduleMaintenance();
+		}
+
+		return response;
+	}
+
+	/**
+	 * Replaces the head of a stored response that was revalidated; the body
+	 * stays where it is.
+	 */
+	void update(final CachedResponse cached, final CachedResponse updated)
+	{
+		lock.lock();
+		try
+		{
+			for (Entry entry : find(cached.getKey()))
+			{
+				if (entry.response != cached)
+				{
+					continue;
+				}
+
+				final byte[] head = encodeHead(updated);
+				final Segment segment = acquireSegment();
+				final long offset = segment.end;
+
+				try
+				{
+					write(segment.channel, head, offset);
+					segment.end = offset + head.length;
+				}
+				finally
+				{
+					segment.writing = false;
+					offerAppendable(segment);
+				}
+
+				final Segment oldSegment = entry.headSegment;
+				unlinkBytes(entry);
+
+				entry.headSegment = segment;
+				entry.headOffset = offset;
+				entry.headLength = head.length;
+				entry.stored = System.currentTimeMillis();
+				entry.response = updated;
+
+				linkBytes(entry);
+				writeSlot(entry);
+				maybeDelete(oldSegment);
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.WARNING, "Could not update " + cached.getKey() + " in the disk cache", e);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes every stored response for the key.
+	 */
+	void invalidate(final String key)
+	{
+		lock.lock();
+		try
+		{
+			for (Entry entry : find(key))
+			{
+				unlink(entry);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the stored responses for the key that the request would
+	 * select.
+	 */
+	void remove(final String key, final List<Header> requestHeaders)
+	{
+		lock.lock();
+		try
+		{
+			removeMatching(key, requestHeaders);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops maintenance and checkpoints the index, so the next run starts
+	 * with every response.
+	 */
+	public void close()
+	{
+		maintenance.shutdownNow();
+
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			checkpoint(true);
+			closed = true;
+
+			for (Segment segment : segments.values())
+			{
+				closeQuietly(segment.channel);
+			}
+
+			closeQuietly(indexChannel);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.WARNING, "Could not checkpoint the disk cache", e);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Streams one response body into a segment that no other writer is using.
+	 */
+	final class Writer
+	{
+		private final Segment segment;
+		private final long start;
+		private long length = 0;
+
+		private Writer(final Segment segment, final long start)
+		{
+			this.segment = segment;
+			this.start = start;
+		}
+
+		void write(final byte[] b, final int off, final int len)
+				throws IOException
+		{
+			DiskStore.write(segment.channel, ByteBuffer.wrap(b, off, len), start + length);
+			length += len;
+		}
+
+		long getLength()
+		{
+			return length;
+		}
+
+		/**
+		 * Gives the segment back; what was written is overwritten later.
+		 */
+		void abort()
+		{
+			lock.lock();
+			try
+			{
+				segment.writing = false;
+				offerAppendable(segment);
+				maybeDelete(segment);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A body in a segment. A segment that is deleted while a body is being
+	 * sent from it stays open until the body was sent.
+	 */
+	private final class SegmentBody
+	extends StoredBody
+	{
+		private final Segment segment;
+		private final long offset;
+		private final long length;
+
+		/* Mapped on first use; stays valid after the segment is deleted */
+		private volatile ByteBuffer mapped;
+
+		SegmentBody(final Segment segment, final long offset, final long length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		long length()
+		{
+			return length;
+		}
+
+		@Override
+		ByteBuffer buffer()
+				throws IOException
+		{
+			ByteBuffer buffer = mapped;
+
+			if (buffer == null)
+			{
+				retain(segment);
+				try
+				{
+					buffer = segment.channel.map(MapMode.READ_ONLY, offset, length);
+				}
+				finally
+				{
+					release(segment);
+				}
+
+				mapped = buffer;
+			}
+
+			return buffer.duplicate();
+		}
+
+		@Override
+		long writeTo(final Response response, final WritableByteChannel channel)
+				throws IOException
+		{
+			retain(segment);
+			try
+			{
+				if (channel != null)
+				{
+					return response.transferFrom(segment.channel, offset, length, channel);
+				}
+
+				final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_BYTES, Math.max(length, 1)));
+				long position = offset;
+				final long end = offset + length;
+
+				while (position < end)
+				{
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+					final int read = segment.channel.read(buffer, position);
+					if (read < 0)
+					{
+						throw new IOException(segment.file + " is truncated");
+					}
+
+					response.getStream().write(buffer.array(), 0, read);
+					position += read;
+				}
+
+				return 0;
+			}
+			finally
+			{
+				release(segment);
+			}
+		}
+	}
+
+	/* Called with the lock held */
+	private void load()
+			throws IOException
+	{
+		final long size = indexChannel.size();
+		int count = INITIAL_SLOTS;
+		boolean valid = false;
+		boolean clean = false;
+		long checkpoint = 0;
+
+		if (size >= INDEX_HEADER_BYTES)
+		{
+			final ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+			read(indexChannel, header, 0);
+
+			if (header.getInt(0) == INDEX_MAGIC)
+			{
+				final int existingCount = header.getInt(HEADER_SLOT_COUNT);
+
+				if (existingCount > 0 && size >= INDEX_HEADER_BYTES + (long) existingCount * SLOT_BYTES)
+				{
+					count = existingCount;
+					valid = true;
+					clean = header.getInt(HEADER_CLEAN) != 0;
+					checkpoint = header.getLong(HEADER_CHECKPOINT);
+				}
+			}
+		}
+
+		if (!valid && size > 0)
+		{
+			logger.write(LogLevel.WARNING, "Disk cache index in {} is not usable; starting empty", directory);
+		}
+
+		mapIndex(count);
+		slots = new Entry[count];
+
+		int dropped = 0;
+
+		for (int i = 0; i < count; i++)
+		{
+			final int base = slotBase(i);
+
+			if (!valid || index.getInt(base + SLOT_STATE) != LIVE)
+			{
+				index.putInt(base + SLOT_STATE, FREE);
+				freeSlots.add(i);
+				continue;
+			}
+
+			final Entry entry = new Entry(i, index.getLong(base + SLOT_KEY_HASH));
+			entry.headSegment = openSegment(index.getInt(base + SLOT_HEAD_SEGMENT));
+			entry.headOffset = index.getLong(base + SLOT_HEAD_OFFSET);
+			entry.headLength = index.getInt(base + SLOT_HEAD_LENGTH);
+			entry.bodySegment = openSegment(index.getInt(base + SLOT_BODY_SEGMENT));
+			entry.bodyOffset = index.getLong(base + SLOT_BODY_OFFSET);
+			entry.bodyLength = index.getLong(base + SLOT_BODY_LENGTH);
+			entry.lastAccess = index.getLong(base + SLOT_LAST_ACCESS);
+			entry.stored = index.getLong(base + SLOT_STORED);
+
+			// After a crash, only what was checkpointed is known to be on disk
+			final boolean usable = entry.headSegment != null
+					&& entry.bodySegment != null
+					&& (clean || entry.stored <= checkpoint)
+					&& entry.headSegment.channel.size() >= entry.headOffset + entry.headLength
+					&& entry.bodySegment.channel.size() >= entry.bodyOffset + entry.bodyLength;
+
+			if (!usable)
+			{
+				index.putInt(base + SLOT_STATE, FREE);
+				freeSlots.add(i);
+				dropped++;
+				continue;
+			}
+
+			slots[i] = entry;
+			addToMap(entry);
+			linkBytes(entry);
+
+			entry.headSegment.end = Math.max(entry.headSegment.end, entry.headOffset + entry.headLength);
+			entry.bodySegment.end = Math.max(entry.bodySegment.end, entry.bodyOffset + entry.bodyLength);
+		}
+
+		// Segments no response refers to are left over from a crash or an eviction
+		final File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				final int id = parseSegmentId(file.getName());
+
+				if (id > 0)
+				{
+					nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+					if (!segments.containsKey(id) && !file.delete())
+					{
+						logger.write(LogLevel.WARNING, "Could not delete unused disk cache segment {}", file);
+					}
+				}
+			}
+		}
+
+		for (Segment segment : new ArrayList<Segment>(segments.values()))
+		{
+			if (segment.liveBytes == 0)
+			{
+				maybeDelete(segment);
+			}
+			else
+			{
+				offerAppendable(segment);
+			}
+		}
+
+		// Until the next clean shutdown, only checkpoints vouch for the segments
+		index.putInt(HEADER_CLEAN, 0);
+		index.force();
+
+		if (dropped > 0)
+		{
+			logger.write(LogLevel.WARNING, "Dropped {} disk cache responses that were not checkpointed", dropped);
+		}
+
+		logger.write(LogLevel.INFO, "Disk cache in {} has {} responses in {} segments",
+				directory, count - freeSlots.size(), segments.size());
+	}
+
+	/**
+	 * Evicts, compacts and checkpoints. Runs on the maintenance thread.
+	 */
+	private void maintain()
+	{
+		maintenancePending.set(false);
+
+		try
+		{
+			evict();
+			compact();
+
+			lock.lock();
+			try
+			{
+				if (!closed)
+				{
+					checkpoint(false);
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		catch (Throwable t)
+		{
+			logger.write(LogLevel.WARNING, "Disk cache maintenance failed", t);
+		}
+	}
+
+	private void scheduleMaintenance()
+	{
+		if (maintenancePending.compareAndSet(false, true))
+		{
+			maintenance.execute(new Runnable()
+			{
+				public void run()
+				{
+					maintain();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Evicts the least recently used responses until the live ones fit well
+	 * within the budget; compaction then gives the space back.
+	 */
+	private void evict()
+	{
+		lock.lock();
+		try
+		{
+			final long maxBytes = options.getCacheDiskMaxBytes();
+
+			if (closed || getDiskBytes() <= maxBytes)
+			{
+				return;
+			}
+
+			final long target = maxBytes * LOW_WATER_PERCENT / 100;
+			final List<Entry> byLastAccess = new ArrayList<Entry>();
+
+			for (Entry entry : slots)
+			{
+				if (entry != null)
+				{
+					byLastAccess.add(entry);
+				}
+			}
+
+			byLastAccess.sort(new Comparator<Entry>()
+			{
+				public int compare(Entry a, Entry b)
+				{
+					return Long.compare(a.lastAccess, b.lastAccess);
+				}
+			});
+
+			for (Entry entry : byLastAccess)
+			{
+				if (liveBytes <= target)
+				{
+					break;
+				}
+
+				unlink(entry);
+				options.getMetrics().countCacheEviction();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the live responses out of full segments that are mostly dead,
+	 * then deletes them. Copies run without the lock held.
+	 */
+	private void compact()
+			throws IOException
+	{
+		final Set<Segment> attempted = new HashSet<Segment>();
+
+		while (true)
+		{
+			Segment victim = null;
+			final List<Entry> moving = new ArrayList<Entry>();
+
+			lock.lock();
+			try
+			{
+				if (closed)
+				{
+					return;
+				}
+
+				for (Segment segment : segments.values())
+				{
+					if (!segment.writing
+							&& !attempted.contains(segment)
+							&& segment.end >= SEGMENT_BYTES
+							&& segment.liveBytes * 100 < segment.end * COMPACT_LIVE_PERCENT)
+					{
+						victim = segment;
+						break;
+					}
+				}
+
+				if (victim == null)
+				{
+					return;
+				}
+
+				attempted.add(victim);
+				victim.compacting = true;
+				appendable.remove(victim);
+
+				for (Entry entry : slots)
+				{
+					if (entry != null && (entry.headSegment == victim || entry.bodySegment == victim))
+					{
+						moving.add(entry);
+					}
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			for (Entry entry : moving)
+			{
+				move(entry, victim);
+			}
+
+			lock.lock();
+			try
+			{
+				victim.compacting = false;
+				maybeDelete(victim);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Copies the parts of a response that are in the segment to another one.
+	 */
+	private void move(final Entry entry, final Segment from)
+			throws IOException
+	{
+		final Segment to;
+		final Segment headSegment;
+		final long headOffset;
+		final int headLength;
+		final Segment bodySegment;
+		final long bodyOffset;
+		final long bodyLength;
+
+		lock.lock();
+		try
+		{
+			if (!entry.live || closed)
+			{
+				return;
+			}
+
+			to = acquireSegment();
+			headSegment = entry.headSegment;
+			headOffset = entry.headOffset;
+			headLength = entry.headLength;
+			bodySegment = entry.bodySegment;
+			bodyOffset = entry.bodyOffset;
+			bodyLength = entry.bodyLength;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		long position = to.end;
+		long newBodyOffset = bodyOffset;
+		long newHeadOffset = headOffset;
+
+		try
+		{
+			if (bodySegment == from)
+			{
+				copy(from.channel, bodyOffset, bodyLength, to.channel, position);
+				newBodyOffset = position;
+				position += bodyLength;
+			}
+
+			if (headSegment == from)
+			{
+				copy(from.channel, headOffset, headLength, to.channel, position);
+				newHeadOffset = position;
+				position += headLength;
+			}
+		}
+		finally
+		{
+			lock.lock();
+			try
+			{
+				to.end = Math.max(to.end, position);
+				to.writing = false;
+
+				// Unless it was removed or revalidated meanwhile
+				if (entry.live
+						&& entry.headSegment == headSegment
+						&& entry.headOffset == headOffset
+						&& entry.bodySegment == bodySegment)
+				{
+					unlinkBytes(entry);
+
+					if (bodySegment == from)
+					{
+						entry.bodySegment = to;
+						entry.bodyOffset = newBodyOffset;
+						entry.response = null;
+					}
+
+					if (headSegment == from)
+					{
+						entry.headSegment = to;
+						entry.headOffset = newHeadOffset;
+					}
+
+					entry.stored = System.currentTimeMillis();
+					linkBytes(entry);
+					writeSlot(entry);
+				}
+
+				offerAppendable(to);
+				maybeDelete(to);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * Called with the lock held. The segments are forced before the index, so
+	 * the index never vouches for bytes that aren't on disk.
+	 */
+	private void checkpoint(final boolean clean)
+			throws IOException
+	{
+		for (Segment segment : segments.values())
+		{
+			segment.channel.force(false);
+		}
+
+		index.putLong(HEADER_CHECKPOINT, System.currentTimeMillis());
+		index.putInt(HEADER_CLEAN, clean ? 1 : 0);
+		index.force();
+	}
+
+	/*
+	 * Called with the lock held.
+	 *
+	 * @return the live entries for the key, with their heads read; entries
+	 *         whose head can't be read are removed
+	 */
+	private List<Entry> find(final String key)
+	{
+		final List<Entry> candidates = entries.get(hash(key));
+
+		if (candidates == null)
+		{
+			return new ArrayList<Entry>(0);
+		}
+
+		final List<Entry> found = new ArrayList<Entry>(candidates.size());
+		final List<Entry> broken = new ArrayList<Entry>(0);
+
+		for (Entry entry : candidates)
+		{
+			if (entry.response == null)
+			{
+				try
+				{
+					entry.response = readHead(entry);
+				}
+				catch (IOException e)
+				{
+					logger.write(LogLevel.WARNING, "Could not read a disk cache head from " + entry.headSegment.file, e);
+					broken.add(entry);
+					continue;
+				}
+			}
+
+			if (entry.response.getKey().equals(key))
+			{
+				found.add(entry);
+			}
+		}
+
+		for (Entry entry : broken)
+		{
+			unlink(entry);
+		}
+
+		return found;
+	}
+
+	/* Called with the lock held */
+	private void removeMatching(final String key, final List<Header> requestHeaders)
+	{
+		for (Entry entry : find(key))
+		{
+			if (entry.response.matches(requestHeaders))
+			{
+				unlink(entry);
+			}
+		}
+	}
+
+	/* Called with the lock held */
+	private CachedResponse readHead(final Entry entry)
+			throws IOException
+	{
+		final ByteBuffer head = ByteBuffer.allocate(entry.headLength);
+		read(entry.headSegment.channel, head, entry.headOffset);
+
+		return decodeHead(
+				head.array(),
+				new SegmentBody(entry.bodySegment, entry.bodyOffset, entry.bodyLength));
+	}
+
+	/* Called with the lock held */
+	private Segment acquireSegment()
+			throws IOException
+	{
+		Segment segment;
+
+		while ((segment = appendable.poll()) != null)
+		{
+			if (!segment.deleted && !segment.compacting && segment.end < SEGMENT_BYTES)
+			{
+				break;
+			}
+		}
+
+		if (segment == null)
+		{
+			final int id = nextSegmentId++;
+			final File file = segmentFile(id);
+			final FileChannel channel = FileChannel.open(
+					file.toPath(),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+
+			// Size the file up front; the remainder is written over in place
+			channel.write(ByteBuffer.allocate(1), SEGMENT_BYTES - 1);
+
+			segment = new Segment(id, file, channel);
+			segments.put(id, segment);
+		}
+
+		segment.writing = true;
+		return segment;
+	}
+
+	/* Called with the lock held */
+	private void offerAppendable(final Segment segment)
+	{
+		if (!segment.deleted
+				&& !segment.writing
+				&& !segment.compacting
+				&& segment.end < SEGMENT_BYTES
+				&& !appendable.contains(segment))
+		{
+			appendable.add(segment);
+		}
+	}
+
+	/* Called with the lock held; deletes a segment nothing lives in anymore */
+	private void maybeDelete(final Segment segment)
+	{
+		if (segment.deleted || segment.liveBytes > 0 || segment.writing || segment.compacting)
+		{
+			return;
+		}
+
+		segment.deleted = true;
+		segments.remove(segment.id);
+		appendable.remove(segment);
+
+		if (!segment.file.delete())
+		{
+			logger.write(LogLevel.WARNING, "Could not delete disk cache segment {}", segment.file);
+		}
+
+		// Bodies being sent from it keep it open until they're done
+		if (segment.readers == 0)
+		{
+			closeQuietly(segment.channel);
+		}
+	}
+
+	private void retain(final Segment segment)
+			throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (!segment.channel.isOpen())
+			{
+				throw new IOException(segment.file + " was removed from the disk cache");
+			}
+
+			segment.readers++;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void release(final Segment segment)
+	{
+		lock.lock();
+		try
+		{
+			segment.readers--;
+
+			if (segment.deleted && segment.readers == 0)
+			{
+				closeQuietly(segment.channel);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/* Called with the lock held */
+	private Segment openSegment(final int id)
+			throws IOException
+	{
+		Segment segment = segments.get(id);
+
+		if (segment == null && id > 0)
+		{
+			final File file = segmentFile(id);
+
+			if (file.isFile())
+			{
+				segment = new Segment(id, file, FileChannel.open(
+						file.toPath(),
+						StandardOpenOption.READ,
+						StandardOpenOption.WRITE));
+				segments.put(id, segment);
+			}
+		}
+
+		return segment;
+	}
+
+	/* Called with the lock held */
+	private void link(final Entry entry)
+	{
+		slots[entry.slot] = entry;
+		addToMap(entry);
+		linkBytes(entry);
+		writeSlot(entry);
+	}
+
+	/* Called with the lock held */
+	private void unlink(final Entry entry)
+	{
+		if (!entry.live)
+		{
+			return;
+		}
+
+		entry.live = false;
+
+		final List<Entry> candidates = entries.get(entry.keyHash);
+		candidates.remove(entry);
+		if (candidates.isEmpty())
+		{
+			entries.remove(entry.keyHash);
+		}
+
+		unlinkBytes(entry);
+
+		index.putInt(slotBase(entry.slot) + SLOT_STATE, FREE);
+		slots[entry.slot] = null;
+		freeSlots.add(entry.slot);
+
+		maybeDelete(entry.headSegment);
+		maybeDelete(entry.bodySegment);
+	}
+
+	/* Called with the lock held */
+	private void addToMap(final Entry entry)
+	{
+		List<Entry> candidates = entries.get(entry.keyHash);
+
+		if (candidates == null)
+		{
+			candidates = new ArrayList<Entry>(1);
+			entries.put(entry.keyHash, candidates);
+		}
+
+		candidates.add(entry);
+	}
+
+	/* Called with the lock held */
+	private void linkBytes(final Entry entry)
+	{
+		entry.headSegment.liveBytes += entry.headLength;
+		entry.bodySegment.liveBytes += entry.bodyLength;
+		liveBytes += entry.headLength + entry.bodyLength;
+	}
+
+	/* Called with the lock held */
+	private void unlinkBytes(final Entry entry)
+	{
+		entry.headSegment.liveBytes -= entry.headLength;
+		entry.bodySegment.liveBytes -= entry.bodyLength;
+		liveBytes -= entry.headLength + entry.bodyLength;
+	}
+
+	/* Called with the lock held; the state is written last */
+	private void writeSlot(final Entry entry)
+	{
+		final int base = slotBase(entry.slot);
+
+		index.putInt(base + SLOT_HEAD_SEGMENT, entry.headSegment.id);
+		index.putLong(base + SLOT_KEY_HASH, entry.keyHash);
+		index.putLong(base + SLOT_HEAD_OFFSET, entry.headOffset);
+		index.putInt(base + SLOT_HEAD_LENGTH, entry.headLength);
+		index.putInt(base + SLOT_BODY_SEGMENT, entry.bodySegment.id);
+		index.putLong(base + SLOT_BODY_OFFSET, entry.bodyOffset);
+		index.putLong(base + SLOT_BODY_LENGTH, entry.bodyLength);
+		index.putLong(base + SLOT_LAST_ACCESS, entry.lastAccess);
+		index.putLong(base + SLOT_STORED, entry.stored);
+		index.putInt(base + SLOT_STATE, LIVE);
+	}
+
+	/* Called with the lock held */
+	private int allocateSlot()
+			throws IOException
+	{
+		if (freeSlots.isEmpty())
+		{
+			final int oldCount = slotCount;
+
+			mapIndex(oldCount * 2);
+			slots = Arrays.copyOf(slots, slotCount);
+
+			for (int i = oldCount; i < slotCount; i++)
+			{
+				freeSlots.add(i);
+			}
+		}
+
+		return freeSlots.poll();
+	}
+
+	/* Called with the lock held; mapping past the end grows the file with free slots */
+	private void mapIndex(final int count)
+			throws IOException
+	{
+		index = indexChannel.map(MapMode.READ_WRITE, 0, INDEX_HEADER_BYTES + (long) count * SLOT_BYTES);
+		index.putInt(0, INDEX_MAGIC);
+		index.putInt(HEADER_SLOT_COUNT, count);
+		slotCount = count;
+	}
+
+	private File segmentFile(final int id)
+	{
+		return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * @return the segment id in the file name, or -1 if it isn't a segment
+	 */
+	private static int parseSegmentId(final String name)
+	{
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+		{
+			return -1;
+		}
+
+		try
+		{
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private static int slotBase(final int slot)
+	{
+		return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+	}
+
+	/**
+	 * @return a 64-bit FNV-1a hash of the key; heads hold the whole key, so
+	 *         collisions are told apart when they are read
+	 */
+	static long hash(final String key)
+	{
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < key.length(); i++)
+		{
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+
+	private static byte[] encodeHead(final CachedResponse response)
+			throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(HEAD_MAGIC);
+		out.writeUTF(response.getKey());
+		out.writeInt(response.getStatusCode());
+		writeNullable(out, response.getMessage());
+		out.writeUTF(response.getVersion());
+
+		out.writeInt(response.getHeaders().size());
+		for (Header h : response.getHeaders())
+		{
+			out.writeUTF(h.getName());
+			out.writeUTF(h.getValue());
+		}
+
+		out.writeInt(response.getVaryValues().size());
+		for (Map.Entry<String, String> vary : response.getVaryValues().entrySet())
+		{
+			out.writeUTF(vary.getKey());
+			writeNullable(out, vary.getValue());
+		}
+
+		out.writeLong(response.getRequestTime());
+		out.writeLong(response.getResponseTime());
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	private static CachedResponse decodeHead(final byte[] head, final StoredBody body)
+			throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(head));
+
+		if (in.readInt() != HEAD_MAGIC)
+		{
+			throw new IOException("Not a disk cache head");
+		}
+
+		final String key = in.readUTF();
+		final int statusCode = in.readInt();
+		final String message = readNullable(in);
+		final String version = in.readUTF();
+
+		final int headerCount = in.readInt();
+		final List<Header> headers = new ArrayList<Header>(headerCount);
+		for (int i = 0; i < headerCount; i++)
+		{
+			headers.add(new Header(in.readUTF(), in.readUTF()));
+		}
+
+		final int varyCount = in.readInt();
+		final Map<String, String> varyValues = new LinkedHashMap<String, String>();
+		for (int i = 0; i < varyCount; i++)
+		{
+			varyValues.put(in.readUTF(), readNullable(in));
+		}
+
+		final long requestTime = in.readLong();
+		final long responseTime = in.readLong();
+
+		return new CachedResponse(key, statusCode, message, version, headers, body, varyValues, requestTime, responseTime);
+	}
+
+	private static void writeNullable(final DataOutputStream out, final String value)
+			throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null)
+		{
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullable(final DataInputStream in)
+			throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void write(final FileChannel channel, final byte[] bytes, final long position)
+			throws IOException
+	{
+		write(channel, ByteBuffer.wrap(bytes), position);
+	}
+
+	private static void write(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException
+	{
+		final int start = buffer.position();
+
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, position + buffer.position() - start);
+		}
+	}
+
+	private static void read(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+	private static void copy(
+			final FileChannel from,
+			final long position,
+			final long count,
+			final FileChannel to,
+			final long toPosition)
+			throws IOException
+	{
+		long copied = 0;
+
+		while (copied < count)
+		{
+			to.position(toPosition + copied);
+
+			final long n = from.transferTo(position + copied, count - copied, to);
+			if (n <= 0)
+			{
+				throw new IOException("Could not copy from disk cache segment at " + (position + copied));
+			}
+
+			copied += n;
+		}
+	}
+
+	private static void closeQuietly(final FileChannel channel)
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Error closing disk cache file", e);
+		}
+	}
+}
@@ -0,0 +1,654 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.HTTPException;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.HeaderUtils;
+import com.edwardthomson.poxyproxy.Request;
+
+/**
+ * A response that one request (the leader) is fetching and that identical
+ * requests (followers) share. The leader publishes the status line and
+ * headers, then appends the body as it arrives, exactly as it is written to
+ * its own client; each follower reads from its own position.
+ * <p>
+ * The body is kept until the response completes, so followers can attach
+ * at any time, up to the largest object the cache accepts. A response that
+ * grows past that fails the followers that haven't finished.
+ * <p>
+ * Followers can wait by blocking or, on an event loop, by registering a
+ * callback that runs once when something changes.
+ */
+public class InFlightResponse
+{
+	private static final int PENDING = 0;
+	private static final int STREAMING = 1;
+	private static final int COMPLETE = 2;
+	private static final int FAILED = 3;
+
+	/* Not shared because the connection or the credentials are the client's */
+	private static final int[] UNSHAREABLE_STATUS =
+	{
+		401, 407
+	};
+
+	private final RequestCoalescer coalescer;
+	private final String key;
+	private final long maxBytes;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	/* Guarded by lock */
+	private int state = PENDING;
+	private boolean shareable;
+	private int statusCode;
+	private String message;
+	private String version;
+	private List<Header> headers;
+	private Map<String, String> varyValues;
+	private CachedResponse result;
+	private final List<byte[]> chunks = new ArrayList<byte[]>();
+	private long length = 0;
+	private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+	InFlightResponse(final RequestCoalescer coalescer, final String key, final long maxBytes)
+	{
+		this.coalescer = coalescer;
+		this.key = key;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Publishes the response head. Followers are only given the response if
+	 * it can be shared: it isn't an authentication challenge, private or
+	 * no-store, doesn't set cookies, and its body ends without closing the
+	 * connection.
+	 *
+	 * @param headers
+	 *        the response headers that are forwarded to the client
+	 */
+	public void publishHead(
+			final Request request,
+			final int statusCode,
+			final String message,
+			final String version,
+			final List<Header> headers)
+	{
+		final boolean canShare = isShareable(request, statusCode, headers);
+
+		List<Runnable> toRun;
+
+		lock.lock();
+		try
+		{
+			if (state != PENDING)
+			{
+				return;
+			}
+
+			this.statusCode = statusCode;
+			this.message = message;
+			this.version = version;
+			this.headers = Collections.unmodifiableList(CachedResponse.NOT_STORED_FILTER.filter(headers));
+			this.varyValues = CachedResponse.getVaryValues(headers, request.getHeaders());
+			this.shareable = canShare;
+			this.state = STREAMING;
+
+			changed.signalAll();
+			toRun = takeCallbacks();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		run(toRun);
+
+		if (!canShare)
+		{
+			// Nothing to wait for; later requests fetch their own
+			coalescer.remove(key, this);
+		}
+	}
+
+	/**
+	 * Publishes a complete response: the leader answered from a stored
+	 * response that the server said is still current.
+	 */
+	public void publish(final CachedResponse cached)
+	{
+		List<Runnable> toRun;
+
+		lock.lock();
+		try
+		{
+			if (state != PENDING)
+			{
+				return;
+			}
+
+			this.result = cached;
+			this.shareable = true;
+			this.state = COMPLETE;
+
+			changed.signalAll();
+			toRun = takeCallbacks();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		coalescer.remove(key, this);
+		run(toRun);
+	}
+
+	/**
+	 * Appends body bytes, as written to the leader's client.
+	 */
+	public void write(final byte[] b, final int off, final int len)
+	{
+		if (len == 0)
+		{
+			return;
+		}
+
+		List<Runnable> toRun;
+
+		lock.lock();
+		try
+		{
+			if (state != STREAMING || !shareable)
+			{
+				return;
+			}
+
+			if (length + len > maxBytes)
+			{
+				toRun = finish(FAILED);
+			}
+			else
+			{
+				final byte[] chunk = new byte[len];
+				System.arraycopy(b, off, chunk, 0, len);
+
+				chunks.add(chunk);
+				length += len;
+
+				changed.signalAll();
+				toRun = takeCallbacks();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		run(toRun);
+	}
+
+	/**
+	 * Appends the buffer's remaining bytes without moving its position.
+	 */
+	public void write(final ByteBuffer buffer)
+	{
+		if (buffer.hasArray())
+		{
+			write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		else
+		{
+			final byte[] copy = new byte[buffer.remaining()];
+			buffer.duplicate().get(copy);
+			write(copy, 0, copy.length);
+		}
+	}
+
+	/**
+	 * @return a stream that writes to <code>out</code> and appends to this
+	 *         response
+	 */
+	public OutputStream tee(final OutputStream out)
+	{
+		return new FilterOutputStream(out)
+		{
+			@Override
+			public void write(final int b)
+					throws IOException
+			{
+				out.write(b);
+				InFlightResponse.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len)
+					throws IOException
+			{
+				out.write(b, off, len);
+				InFlightResponse.this.write(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Marks the body complete.
+	 */
+	public void complete()
+	{
+		end(COMPLETE);
+	}
+
+	/**
+	 * Marks the response failed. Followers still waiting for the head fetch
+	 * their own; followers partway through the body are cut off. Does
+	 * nothing if the response already completed.
+	 */
+	public void fail()
+	{
+		end(FAILED);
+	}
+
+	/**
+	 * @return a follower reading from the start, or <code>null</code> if the
+	 *         response has already failed
+	 */
+	Follower follow(final List<Header> requestHeaders)
+	{
+		lock.lock();
+		try
+		{
+			return state == FAILED || (state != PENDING && !shareable) ? null : new Follower(requestHeaders);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void end(final int endState)
+	{
+		List<Runnable> toRun;
+
+		lock.lock();
+		try
+		{
+			if (state == COMPLETE || state == FAILED)
+			{
+				return;
+			}
+
+			toRun = finish(endState);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		run(toRun);
+	}
+
+	/* Called with the lock held; the callbacks must be run after unlocking */
+	private List<Runnable> finish(final int endState)
+	{
+		state = endState;
+		changed.signalAll();
+
+		coalescer.remove(key, this);
+
+		return takeCallbacks();
+	}
+
+	/* Called with the lock held */
+	private List<Runnable> takeCallbacks()
+	{
+		if (callbacks.isEmpty())
+		{
+			return null;
+		}
+
+		final List<Runnable> toRun = callbacks;
+		callbacks = new ArrayList<Runnable>();
+		return toRun;
+	}
+
+	private static void run(final List<Runnable> toRun)
+	{
+		if (toRun != null)
+		{
+			for (Runnable callback : toRun)
+			{
+				callback.run();
+			}
+		}
+	}
+
+	private static boolean isShareable(final Request request, final int statusCode, final List<Header> headers)
+	{
+		// Switching protocols belongs to the connection
+		if (statusCode < 200)
+		{
+			return false;
+		}
+
+		for (int status : UNSHAREABLE_STATUS)
+		{
+			if (status == statusCode)
+			{
+				return false;
+			}
+		}
+
+		// Followers can't tell where a body that ends at close ends
+		if (!HeaderUtils.isChunked(headers)
+				&& HeaderUtils.getContentLength(headers) < 0
+				&& (HeaderUtils.isConnectionClose(headers) || HeaderUtils.isProxyConnectionClose(headers)))
+		{
+			return false;
+		}
+
+		final CacheControl requestCacheControl = CacheControl.parse(request.getHeaders());
+		final CacheControl responseCacheControl = CacheControl.parse(headers);
+
+		// Not stored, but also not for anyone else
+		if (requestCacheControl.isNoStore() || responseCacheControl.isNoStore() || responseCacheControl.isPrivate())
+		{
+			return false;
+		}
+
+		final Header vary = CachePolicy.findHeader(CachePolicy.VARY_HEADER, headers);
+		if (vary != null && vary.getValue().trim().equals("*"))
+		{
+			return false;
+		}
+
+		// Cookies are issued to one client
+		return CachePolicy.findHeader("Set-Cookie", headers) == null;
+	}
+
+	/**
+	 * One request's view of the shared response.
+	 */
+	public class Follower
+	{
+		private final List<Header> requestHeaders;
+
+		/* The next chunk to read */
+		private int next = 0;
+
+		private Follower(final List<Header> requestHeaders)
+		{
+			this.requestHeaders = requestHeaders;
+		}
+
+		/**
+		 * Waits for the leader to publish the head.
+		 *
+		 * @return <code>true</code> if this follower can be given the
+		 *         response; <code>false</code> if the request must be sent
+		 *         on its own (the response can't be shared, varies on
+		 *         headers this request doesn't match, or didn't arrive in
+		 *         time)
+		 */
+		public boolean awaitHead(final long timeoutMillis)
+		{
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+			lock.lock();
+			try
+			{
+				while (state == PENDING && remaining > 0)
+				{
+					remaining = changed.awaitNanos(remaining);
+				}
+
+				return isUsable();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if the head was published or the
+		 *         response failed, so {@link #isUsable()} is final
+		 */
+		public boolean isHeadReady()
+		{
+			lock.lock();
+			try
+			{
+				return state != PENDING;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if the head was published and this
+		 *         follower can be given the response
+		 */
+		public boolean isUsable()
+		{
+			lock.lock();
+			try
+			{
+				if (state == PENDING || state == FAILED || !shareable)
+				{
+					return false;
+				}
+
+				return result != null ? result.matches(requestHeaders) : CachedResponse.matches(varyValues, requestHeaders);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return the stored response the leader answered with, or
+		 *         <code>null</code> if the response is streamed
+		 */
+		public CachedResponse getResult()
+		{
+			lock.lock();
+			try
+			{
+				return result;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public int getStatusCode()
+		{
+			return statusCode;
+		}
+
+		public String getMessage()
+		{
+			return message;
+		}
+
+		public String getVersion()
+		{
+			return version;
+		}
+
+		/**
+		 * @return the response headers, without hop-by-hop headers
+		 */
+		public List<Header> getHeaders()
+		{
+			return headers;
+		}
+
+		/**
+		 * Waits for the next part of the body.
+		 *
+		 * @param timeoutMillis
+		 *        how long to wait for more bytes; 0 waits as long as the
+		 *        leader keeps the response in flight
+		 * @return the bytes, or <code>null</code> at the end of the body
+		 * @throws IOException
+		 *         if the leader failed, or nothing arrived within the timeout
+		 */
+		public byte[] read(final long timeoutMillis)
+				throws IOException
+		{
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+			lock.lock();
+			try
+			{
+				while (next == chunks.size() && state == STREAMING)
+				{
+					if (timeoutMillis <= 0)
+					{
+						changed.await();
+						continue;
+					}
+
+					if (remaining <= 0)
+					{
+						throw new HTTPException("Timed out waiting for the shared response");
+					}
+
+					remaining = changed.awaitNanos(remaining);
+				}
+
+				return take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new HTTPException("Interrupted waiting for the shared response");
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Like {@link #read(long)}, but never waits.
+		 *
+		 * @return the next part of the body, or <code>null</code> if none has
+		 *         arrived yet or the body is complete (see
+		 *         {@link #isComplete()})
+		 */
+		public ByteBuffer poll()
+				throws IOException
+		{
+			lock.lock();
+			try
+			{
+				if (next == chunks.size() && state == STREAMING)
+				{
+					return null;
+				}
+
+				final byte[] chunk = take();
+				return chunk != null ? ByteBuffer.wrap(chunk).asReadOnlyBuffer() : null;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if every part of a complete body was read
+		 */
+		public boolean isComplete()
+		{
+			lock.lock();
+			try
+			{
+				return state == COMPLETE && next == chunks.size();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Registers a callback to run once when the head is published, body
+		 * bytes arrive or the response ends. The callback runs on the
+		 * leader's thread, so it should only hand off.
+		 *
+		 * @return <code>false</code> if there is already something to act on
+		 *         (the callback isn't registered)
+		 */
+		public boolean onChange(final Runnable callback)
+		{
+			lock.lock();
+			try
+			{
+				if (state == COMPLETE || state == FAILED || (state == STREAMING && next < chunks.size()))
+				{
+					return false;
+				}
+
+				if (state == STREAMING && !shareable)
+				{
+					return false;
+				}
+
+				callbacks.add(callback);
+				return true;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/* Called with the lock held */
+		private byte[] take()
+				throws IOException
+		{
+			if (next < chunks.size())
+			{
+				return chunks.get(next++);
+			}
+
+			if (state == FAILED)
+			{
+				throw new HTTPException("The shared response failed");
+			}
+
+			// Complete
+			return null;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.edwardthomson.poxyproxy.Constants;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.Options;
+import com.edwardthomson.poxyproxy.Request;
+
+/**
+ * Collapses concurrent identical GETs into one upstream request: the first
+ * one leads and the rest follow its {@link InFlightResponse}.
+ * <p>
+ * Requests are identical when they have the same absolute URI and the same
+ * credentials and cookies. Headers the response varies on are compared once
+ * the leader's response arrives; followers that don't match send their own
+ * request.
+ */
+public class RequestCoalescer
+{
+	/* A response can't depend on these without being for one client alone */
+	private static final String[] KEY_HEADERS =
+	{
+		"Authorization", "Proxy-Authorization", "Cookie"
+	};
+
+	private final Options options;
+
+	private final Map<String, InFlightResponse> flights = new ConcurrentHashMap<String, InFlightResponse>();
+
+	public RequestCoalescer(final Options options)
+	{
+		this.options = options;
+	}
+
+	public boolean isEnabled()
+	{
+		return options.isCollapsedForwarding();
+	}
+
+	/**
+	 * @param cacheKey
+	 *        the {@link ResponseCache#key(java.net.URI)} of the request's URI
+	 * @return the key for requests identical to this one, or <code>null</code>
+	 *         if it can't be collapsed with others
+	 */
+	public static String key(final String cacheKey, final Request request)
+	{
+		if (!request.getMethod().equals(Constants.GET_METHOD) || !CachePolicy.isCacheableRequest(request))
+		{
+			return null;
+		}
+
+		final List<Header> headers = request.getHeaders();
+
+		if (CacheControl.parse(headers).isNoStore())
+		{
+			return null;
+		}
+
+		final StringBuilder key = new StringBuilder(cacheKey);
+
+		for (String name : KEY_HEADERS)
+		{
+			for (Header h : headers)
+			{
+				if (h.matchesName(name))
+				{
+					key.append('\n').append(name).append(':').append(h.getValue().trim());
+				}
+			}
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * @return a follower of the identical request in flight, or
+	 *         <code>null</code> if there is none
+	 */
+	public InFlightResponse.Follower follow(final String key, final List<Header> requestHeaders)
+	{
+		final InFlightResponse flight = flights.get(key);
+		return flight != null ? flight.follow(requestHeaders) : null;
+	}
+
+	/**
+	 * Starts a response for others to follow. The caller must complete or
+	 * fail it.
+	 *
+	 * @return the new response, or <code>null</code> if an identical request
+	 *         started first
+	 */
+	public InFlightResponse lead(final String key)
+	{
+		final InFlightResponse flight = new InFlightResponse(this, key, options.getCacheMaxObjectBytes());
+		return flights.putIfAbsent(key, flight) == null ? flight : null;
+	}
+
+	void remove(final String key, final InFlightResponse flight)
+	{
+		flights.remove(key, flight);
+	}
+}
@@ -0,0 +1,583 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.HeaderUtils;
+import com.edwardthomson.poxyproxy.Options;
+import com.edwardthomson.poxyproxy.Request;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * A shared in-memory cache of responses to GET requests, bounded by the total
+ * size of the stored responses (the cache size in {@link Options}; 0
+ * disables the cache).
+ * <p>
+ * Eviction is a segmented LRU: new responses enter a probationary segment and
+ * move to a protected segment, which holds up to 80% of the budget, when they
+ * are used again. Responses that are fetched once, like a crawl of many
+ * artifacts, are evicted from the probationary segment before they can push
+ * out responses that are used repeatedly.
+ * <p>
+ * With a cache directory, responses too large for the heap are kept in a
+ * {@link DiskStore} instead, which has its own budget and survives restarts.
+ * A response is in one tier or the other, never both.
+ */
+public class ResponseCache
+{
+	private final static Logger logger = Logger.getLogger(ResponseCache.class);
+
+	private static final int PROTECTED_PERCENT = 80;
+
+	private static final class Node
+	{
+		CachedResponse response;
+		boolean inProtected;
+		Node prev;
+		Node next;
+
+		Node(final CachedResponse response)
+		{
+			this.response = response;
+		}
+	}
+
+	private final Options options;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/* Null unless a cache directory was opened */
+	private volatile DiskStore disk;
+
+	/* Guarded by lock. Each key has one node per variant (see Vary). */
+	private final Map<String, List<Node>> nodes = new HashMap<String, List<Node>>();
+
+	/* Guarded by lock. Circular lists; the node after the head is the most recent. */
+	private final Node probation = newHead();
+	private final Node protectedSegment = newHead();
+	private long probationWeight = 0;
+	private long protectedWeight = 0;
+	private int count = 0;
+
+	public ResponseCache(final Options options)
+	{
+		this.options = options;
+	}
+
+	public boolean isEnabled()
+	{
+		return options.getCacheMaxBytes() > 0 || disk != null;
+	}
+
+	/**
+	 * Adds a disk tier in the directory, with the responses a previous run
+	 * left there.
+	 */
+	public void openDisk(final File directory)
+			throws IOException
+	{
+		disk = DiskStore.open(directory, options);
+	}
+
+	/**
+	 * Checkpoints the disk tier, if there is one, so the next run starts with
+	 * its responses.
+	 */
+	public void close()
+	{
+		final DiskStore disk = this.disk;
+
+		if (disk != null)
+		{
+			disk.close();
+		}
+	}
+
+	/**
+	 * @return the key for responses from the absolute URI
+	 */
+	public static String key(final URI targetURI)
+	{
+		return targetURI.toASCIIString();
+	}
+
+	/**
+	 * @return the stored response for the key that matches the request's
+	 *         headers, fresh or not, or <code>null</code> if there is none
+	 */
+	public CachedResponse get(final String key, final List<Header> requestHeaders)
+	{
+		final CachedResponse response = getFromMemory(key, requestHeaders);
+		final DiskStore disk = this.disk;
+
+		if (response == null && disk != null)
+		{
+			return disk.get(key, requestHeaders);
+		}
+
+		return response;
+	}
+
+	private CachedResponse getFromMemory(final String key, final List<Header> requestHeaders)
+	{
+		lock.lock();
+		try
+		{
+			final List<Node> variants = nodes.get(key);
+
+			if (variants == null)
+			{
+				return null;
+			}
+
+			for (Node node : variants)
+			{
+				if (node.response.matches(requestHeaders))
+				{
+					touch(node);
+					return node.response;
+				}
+			}
+
+			return null;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts storing a response whose head was just read.
+	 *
+	 * @param headers
+	 *        the response headers that are forwarded to the client
+	 * @param requestTime
+	 *        when the request was sent, by {@link System#currentTimeMillis()}
+	 * @return a writer to copy the body into, or <code>null</code> if the
+	 *         response can't be stored
+	 */
+	public CacheWriter startStore(
+			final String key,
+			final Request request,
+			final int statusCode,
+			final String message,
+			final String version,
+			final List<Header> headers,
+			final long requestTime)
+	{
+		if (!isEnabled() || !CachePolicy.isStorable(request, statusCode, headers))
+		{
+			return null;
+		}
+
+		final DiskStore disk = this.disk;
+		final long memoryMaxBytes = Math.min(options.getCacheMaxObjectBytes(), options.getCacheMaxBytes());
+		final long diskMaxBytes = disk != null ? disk.getMaxObjectBytes() : 0;
+
+		// Frame the body the way the handlers do
+		long expectedLength = -1;
+		boolean delimitedByClose = false;
+
+		if (!HeaderUtils.isChunked(headers))
+		{
+			final long length = HeaderUtils.getContentLength(headers);
+
+			if (length > 0)
+			{
+				expectedLength = length;
+			}
+			else if (HeaderUtils.isConnectionClose(headers) || HeaderUtils.isProxyConnectionClose(headers))
+			{
+				delimitedByClose = true;
+			}
+			else
+			{
+				expectedLength = 0;
+			}
+		}
+
+		if (expectedLength > Math.max(memoryMaxBytes, diskMaxBytes))
+		{
+			return null;
+		}
+
+		return new CacheWriter(
+				this,
+				disk,
+				key,
+				statusCode,
+				message,
+				version,
+				new ArrayList<Header>(headers),
+				request.getHeaders(),
+				CachedResponse.getVaryValues(headers, request.getHeaders()),
+				requestTime,
+				System.currentTimeMillis(),
+				expectedLength,
+				delimitedByClose,
+				memoryMaxBytes,
+				diskMaxBytes);
+	}
+
+	/**
+	 * Updates a stored response that the server said is still current.
+	 *
+	 * @param notModifiedHeaders
+	 *        the headers of the server's 304 response
+	 * @return the updated response
+	 */
+	public CachedResponse revalidate(
+			final CachedResponse cached,
+			final List<Header> notModifiedHeaders,
+			final long requestTime)
+	{
+		final CachedResponse updated =
+				cached.revalidate(notModifiedHeaders, requestTime, System.currentTimeMillis());
+
+		if (cached.isOnDisk())
+		{
+			disk.update(cached, updated);
+			return updated;
+		}
+
+		lock.lock();
+		try
+		{
+			final Node node = find(cached);
+
+			// Same body, so the weight barely changes
+			if (node != null)
+			{
+				adjustWeight(node, updated.getWeight() - cached.getWeight());
+				node.response = updated;
+				evict();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return updated;
+	}
+
+	/**
+	 * Removes every stored response for the key.
+	 */
+	public void invalidate(final String key)
+	{
+		final DiskStore disk = this.disk;
+
+		if (disk != null)
+		{
+			disk.invalidate(key);
+		}
+
+		lock.lock();
+		try
+		{
+			final List<Node> variants = nodes.remove(key);
+
+			if (variants != null)
+			{
+				for (Node node : variants)
+				{
+					unlink(node);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the total weight of the stored responses in bytes
+	 */
+	public long getWeight()
+	{
+		lock.lock();
+		try
+		{
+			return probationWeight + protectedWeight;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public int getCount()
+	{
+		lock.lock();
+		try
+		{
+			return count;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the response, replacing any variant that the request it answered
+	 * would have selected, and evicts until the cache fits its budget.
+	 *
+	 * @return the response, or <code>null</code> if it is too large to store
+	 */
+	CachedResponse put(final CachedResponse response, final List<Header> requestHeaders)
+	{
+		if (response.getWeight() > options.getCacheMaxBytes())
+		{
+			return null;
+		}
+
+		final DiskStore disk = this.disk;
+
+		if (disk != null)
+		{
+			disk.remove(response.getKey(), requestHeaders);
+		}
+
+		lock.lock();
+		try
+		{
+			final List<Node> variants = removeMatching(response.getKey(), requestHeaders);
+			final Node node = new Node(response);
+			variants.add(node);
+			linkFirst(probation, node);
+			probationWeight += response.getWeight();
+			count++;
+
+			options.getMetrics().countCacheStore(response.getBodyLength());
+
+			evict();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return response;
+	}
+
+	/**
+	 * Adds a response whose body the writer wrote to the disk tier,
+	 * replacing any variant that the request it answered would have selected.
+	 *
+	 * @return the response, or <code>null</code> if it couldn't be stored
+	 */
+	CachedResponse putOnDisk(
+			final DiskStore.Writer writer,
+			final String key,
+			final int statusCode,
+			final String message,
+			final String version,
+			final List<Header> headers,
+			final Map<String, String> varyValues,
+			final long requestTime,
+			final long responseTime,
+			final List<Header> requestHeaders)
+	{
+		lock.lock();
+		try
+		{
+			final List<Node> variants = removeMatching(key, requestHeaders);
+
+			if (variants.isEmpty())
+			{
+				nodes.remove(key);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return disk.commit(
+				writer,
+				key,
+				statusCode,
+				message,
+				version,
+				headers,
+				varyValues,
+				requestTime,
+				responseTime,
+				requestHeaders);
+	}
+
+	/*
+	 * Called with the lock held. Removes the variants the request would have
+	 * selected.
+	 *
+	 * @return the key's remaining variants
+	 */
+	private List<Node> removeMatching(final String key, final List<Header> requestHeaders)
+	{
+		List<Node> variants = nodes.get(key);
+
+		if (variants == null)
+		{
+			variants = new ArrayList<Node>(1);
+			nodes.put(key, variants);
+		}
+
+		for (Iterator<Node> i = variants.iterator(); i.hasNext();)
+		{
+			final Node existing = i.next();
+
+			if (existing.response.matches(requestHeaders))
+			{
+				i.remove();
+				unlink(existing);
+			}
+		}
+
+		return variants;
+	}
+
+	/* Called with the lock held */
+	private void touch(final Node node)
+	{
+		if (node.inProtected)
+		{
+			unlinkFromList(node);
+			linkFirst(protectedSegment, node);
+			return;
+		}
+
+		// Used again: promote from probation
+		unlinkFromList(node);
+		probationWeight -= node.response.getWeight();
+
+		node.inProtected = true;
+		linkFirst(protectedSegment, node);
+		protectedWeight += node.response.getWeight();
+
+		// Demote the least recently used protected responses that don't fit
+		final long protectedMax = options.getCacheMaxBytes() * PROTECTED_PERCENT / 100;
+
+		while (protectedWeight > protectedMax && protectedSegment.prev != node)
+		{
+			final Node demoted = protectedSegment.prev;
+
+			unlinkFromList(demoted);
+			protectedWeight -= demoted.response.getWeight();
+
+			demoted.inProtected = false;
+			linkFirst(probation, demoted);
+			probationWeight += demoted.response.getWeight();
+		}
+	}
+
+	/* Called with the lock held */
+	private void evict()
+	{
+		final long maxBytes = options.getCacheMaxBytes();
+
+		while (probationWeight + protectedWeight > maxBytes && count > 0)
+		{
+			final Node victim = probation.prev != probation ? probation.prev : protectedSegment.prev;
+
+			final List<Node> variants = nodes.get(victim.response.getKey());
+			variants.remove(victim);
+
+			if (variants.isEmpty())
+			{
+				nodes.remove(victim.response.getKey());
+			}
+
+			unlink(victim);
+
+			options.getMetrics().countCacheEviction();
+
+			if (logger.isEnabled(LogLevel.TRACE))
+			{
+				logger.write(LogLevel.TRACE, "Evicted " + victim.response.getKey() + " from the response cache");
+			}
+		}
+	}
+
+	/* Called with the lock held */
+	private Node find(final CachedResponse response)
+	{
+		final List<Node> variants = nodes.get(response.getKey());
+
+		if (variants != null)
+		{
+			for (Node node : variants)
+			{
+				if (node.response == response)
+				{
+					return node;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/* Called with the lock held */
+	private void adjustWeight(final Node node, final long delta)
+	{
+		if (node.inProtected)
+		{
+			protectedWeight += delta;
+		}
+		else
+		{
+			probationWeight += delta;
+		}
+	}
+
+	/* Called with the lock held; removes the node from its segment and the counts */
+	private void unlink(final Node node)
+	{
+		unlinkFromList(node);
+		adjustWeight(node, -node.response.getWeight());
+		count--;
+	}
+
+	private static Node newHead()
+	{
+		final Node head = new Node(null);
+		head.prev = head;
+		head.next = head;
+		return head;
+	}
+
+	private static void linkFirst(final Node head, final Node node)
+	{
+		node.prev = head;
+		node.next = head.next;
+		head.next.prev = node;
+		head.next = node;
+	}
+
+	private static void unlinkFromList(final Node node)
+	{
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+	}
+}
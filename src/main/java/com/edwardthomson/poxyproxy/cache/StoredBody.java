@@ -0,0 +1,75 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.edwardthomson.poxyproxy.Response;
+
+/**
+ * Where a stored response's body is kept: in the heap, or in a segment of
+ * the {@link DiskStore}. Either way it is the body as it was sent on the
+ * wire, including any chunked framing.
+ */
+abstract class StoredBody
+{
+	abstract long length();
+
+	/**
+	 * @return the body, read-only
+	 */
+	abstract ByteBuffer buffer()
+			throws IOException;
+
+	/**
+	 * Writes the body after the response's head.
+	 *
+	 * @param channel
+	 *        the channel of the client's socket, or <code>null</code> if the
+	 *        response's stream has to be used
+	 * @return the number of bytes written to the channel directly, which the
+	 *         response's stream didn't see
+	 */
+	abstract long writeTo(Response response, WritableByteChannel channel)
+			throws IOException;
+
+	/**
+	 * A body in the heap.
+	 */
+	static final class Heap
+	extends StoredBody
+	{
+		private final byte[] bytes;
+
+		Heap(final byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		@Override
+		long length()
+		{
+			return bytes.length;
+		}
+
+		@Override
+		ByteBuffer buffer()
+		{
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+
+		@Override
+		long writeTo(final Response response, final WritableByteChannel channel)
+				throws IOException
+		{
+			response.getStream().write(bytes);
+			return 0;
+		}
+	}
+}
@@ -14,24 +14,36 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.edwardthomson.poxyproxy.BufferPool;
 import com.edwardthomson.poxyproxy.Connection;
+import com.edwardthomson.poxyproxy.ForwardProxy;
+import com.edwardthomson.poxyproxy.ForwardProxyGroup;
+import com.edwardthomson.poxyproxy.ForwardProxyStandby;
 import com.edwardthomson.poxyproxy.HTTPException;
 import com.edwardthomson.poxyproxy.Header;
 import com.edwardthomson.poxyproxy.HeaderUtils;
+import com.edwardthomson.poxyproxy.HttpInputStream;
 import com.edwardthomson.poxyproxy.IOUtils;
+import com.edwardthomson.poxyproxy.Options;
 import com.edwardthomson.poxyproxy.Request;
 import com.edwardthomson.poxyproxy.Response;
 import com.edwardthomson.poxyproxy.Status;
+import com.edwardthomson.poxyproxy.TimingWheel;
 import com.edwardthomson.poxyproxy.UTF8Utils;
+import com.edwardthomson.poxyproxy.WorkerPool;
 import com.edwardthomson.poxyproxy.logger.LogLevel;
 import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.MeteredOutputStream;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+import com.edwardthomson.poxyproxy.nio.TunnelRelay;
 
 public class ConnectRequestHandler
     extends RequestHandler
@@ -49,77 +61,249 @@ public class ConnectRequestHandler
         throws HTTPException,
             IOException
     {
-        List<Header> headers = new ArrayList<Header>();
+        final List<Header> headers = new ArrayList<Header>();
 
-        final Socket clientToProxySocket;
-        final Socket proxyToServerSocket;
-        try
+        final Socket clientToProxySocket = connection.getClientToProxySocket();
+        final Socket proxyToServerSocket = openTunnel(request, response, headers);
+
+        if (proxyToServerSocket == null)
         {
-            clientToProxySocket = connection.getClientToProxySocket();
-            proxyToServerSocket = connect(request, response, headers);
+            return false;
         }
-        catch (SocketTimeoutException e)
+
+        final TunnelRelay relay = connection.getTunnelRelay();
+
+        if (relay != null && clientToProxySocket.getChannel() != null && proxyToServerSocket.getChannel() != null)
         {
-            // We can improve the message for this one
-            response.writeError(Status.GATEWAY_TIMEOUT, "Timed out connecting to " + request.getURI());
-            return false;
+            writeEstablished(response, headers);
+
+            /*
+             * Hand both channels to the relay's event loops and let this
+             * connection's thread go. Any bytes the client sent after the
+             * CONNECT head are already buffered in the request's stream.
+             */
+            final InputStream clientInput = request.getInputStream();
+            final byte[] clientPending =
+                clientInput instanceof HttpInputStream ? ((HttpInputStream) clientInput).takeBuffered() : null;
+
+            relay.relay(
+                clientToProxySocket.getChannel(),
+                clientPending != null ? ByteBuffer.wrap(clientPending) : null,
+                proxyToServerSocket.getChannel(),
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        connection.tunnelClosed();
+                    }
+                });
+
+            connection.detach();
+            return true;
         }
-        catch (HTTPException e)
+
+        /*
+         * Relay with two threads of the tunnel executor and let this
+         * connection's thread go, so open tunnels can't take the threads
+         * requests need. Both threads are reserved before the tunnel starts:
+         * if one direction ran while the other waited for a thread, the
+         * tunnel would hang until the idle timeout, holding the running one.
+         */
+        final WorkerPool tunnelExecutor = connection.getTunnelExecutorService();
+
+        if (!reserveThreads(tunnelExecutor))
         {
-            // Conversation error talking to forward proxy
-            response.writeError(Status.BAD_GATEWAY, e.getMessage());
+            IOUtils.close(proxyToServerSocket);
+            response.writeError(Status.SERVICE_UNAVAILABLE, "No tunnel threads free for " + request.getURI());
             return false;
         }
+
+        try
+        {
+            writeEstablished(response, headers);
+            startThreads(request, clientToProxySocket, proxyToServerSocket, tunnelExecutor);
+        }
         catch (IOException e)
         {
-            response.writeError(Status.BAD_GATEWAY, e);
-            return false;
+            tunnelExecutor.unreserve(2);
+            throw e;
         }
 
-        response.writeStatus(Status.OK);
+        connection.detach();
+        return true;
+    }
 
-        headers = HeaderUtils.NEVER_TRANSMIT_FILTER.filter(headers);
-        response.writeHeaders(headers);
+    private static void writeEstablished(final Response response, final List<Header> headers)
+        throws IOException
+    {
+        response.writeStatus(Status.OK);
+        response.writeHeaders(HeaderUtils.NEVER_TRANSMIT_FILTER.filter(headers));
         response.endHeaders();
         response.flush();
+    }
 
+    /**
+     * Relays the tunnel on the two threads reserved for it. The client side
+     * reads through the request's stream, which may already hold bytes the
+     * client sent after the CONNECT head. That stream is already metered; what
+     * is written back to the client is counted here.
+     */
+    private void startThreads(
+        final Request request,
+        final Socket clientToProxySocket,
+        final Socket proxyToServerSocket,
+        final WorkerPool tunnelExecutor)
+        throws IOException
+    {
         final long threadID = threadCounter.incrementAndGet();
+        final Metrics metrics = connection.getOptions().getMetrics();
+
+        /*
+         * A tunnel is often quiet one way while busy the other (a download,
+         * or a server pushing events), so with an idle timeout the read
+         * timeouts are off and the tunnel is closed only when neither side
+         * has sent anything.
+         */
+        final int idleTimeoutSeconds = connection.getOptions().getTunnelIdleTimeoutSeconds();
+        final IdleWatch idleWatch;
+
+        if (idleTimeoutSeconds > 0)
+        {
+            clientToProxySocket.setSoTimeout(0);
+            proxyToServerSocket.setSoTimeout(0);
+
+            idleWatch =
+                new IdleWatch(
+                    connection.getOptions().getTimingWheel(),
+                    idleTimeoutSeconds,
+                    clientToProxySocket,
+                    proxyToServerSocket);
+        }
+        else
+        {
+            idleWatch = null;
+        }
 
-        // Start two IO threads using the executor service
-
-        Future<?> clientToProxyFuture =
-            connection.getExecutorService().submit(
-                new IORunner("ClientToProxy-" + threadID, clientToProxySocket, proxyToServerSocket));
+        final IORunner clientToProxy =
+            new IORunner(
+                "ClientToProxy-" + threadID,
+                request.getInputStream(),
+                proxyToServerSocket.getOutputStream(),
+                clientToProxySocket,
+                proxyToServerSocket,
+                idleWatch);
+
+        final IORunner proxyToServer =
+            new IORunner(
+                "ProxyToServer-" + threadID,
+                proxyToServerSocket.getInputStream(),
+                new MeteredOutputStream(clientToProxySocket.getOutputStream(), metrics),
+                proxyToServerSocket,
+                clientToProxySocket,
+                idleWatch);
+
+        metrics.tunnelOpened();
+
+        if (idleWatch != null)
+        {
+            idleWatch.start();
+        }
 
-        Future<?> proxyToServerFuture =
-            connection.getExecutorService().submit(
-                new IORunner("ProxyToServer-" + threadID, proxyToServerSocket, clientToProxySocket));
+        // The tunnel is closed when both directions have stopped
+        final Runnable directionStopped = new Runnable()
+        {
+            private final AtomicInteger running = new AtomicInteger(2);
 
-        getFutureResult(clientToProxyFuture);
-        getFutureResult(proxyToServerFuture);
+            public void run()
+            {
+                if (running.decrementAndGet() == 0)
+                {
+                    metrics.tunnelClosed();
+                    connection.tunnelClosed();
+                }
+            }
+        };
 
-        return true;
+        tunnelExecutor.executeReserved(andThen(clientToProxy, directionStopped));
+        tunnelExecutor.executeReserved(andThen(proxyToServer, directionStopped));
     }
 
     /**
-     * Gets the future result and logs any errors.
+     * Connects to the target of the CONNECT request, directly or through the
+     * forward proxy, or writes an error response if it can't. Collects the
+     * headers the forward proxy answered with in the headers list.
+     *
+     * @return the connected socket, or <code>null</code> if an error response
+     *         was written
      */
-    private Object getFutureResult(final Future<?> future)
+    public Socket openTunnel(Request request, Response response, List<Header> headers)
+        throws IOException
     {
         try
         {
-            return future.get();
+            return connect(request, response, headers);
         }
-        catch (InterruptedException e)
+        catch (SocketTimeoutException e)
         {
-            logger.write(LogLevel.WARNING, "Interrupted waiting on IO thread", e);
+            // We can improve the message for this one
+            response.writeError(Status.GATEWAY_TIMEOUT, "Timed out connecting to " + request.getURI());
+            return null;
+        }
+        catch (HTTPException e)
+        {
+            // Conversation error talking to forward proxy
+            response.writeError(Status.BAD_GATEWAY, e.getMessage());
+            return null;
         }
-        catch (ExecutionException e)
+        catch (IOException e)
         {
-            logger.write(LogLevel.WARNING, "Execution exception in IO thread", e);
+            response.writeError(Status.BAD_GATEWAY, e);
+            return null;
         }
+    }
 
-        return null;
+    /**
+     * Reserves a thread of the tunnel executor for each direction, waiting up
+     * to the connect timeout.
+     *
+     * @return <code>false</code> if they weren't free in time
+     */
+    private boolean reserveThreads(final WorkerPool tunnelExecutor)
+    {
+        try
+        {
+            if (tunnelExecutor.reserve(2, connection.getOptions().getConnectTimeoutSeconds() * 1000L))
+            {
+                return true;
+            }
+
+            logger.write(LogLevel.WARNING, "Timed out waiting for tunnel threads");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            logger.write(LogLevel.WARNING, "Interrupted waiting for tunnel threads", e);
+        }
+
+        return false;
+    }
+
+    private static Runnable andThen(final Runnable first, final Runnable then)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    first.run();
+                }
+                finally
+                {
+                    then.run();
+                }
+            }
+        };
     }
 
     /**
@@ -133,48 +317,91 @@ public class ConnectRequestHandler
         final InetSocketAddress targetAddress = parseTargetAddress(request);
 
         // See if we need to forward to another proxy
-        if (connection.getOptions().getForwardProxyURI() != null
+        if (!connection.getOptions().getForwardProxyURIs().isEmpty()
             && !connection.getOptions().hostMatchesForwardProxyBypassHosts(targetAddress.getHostName()))
         {
-            return connectViaProxy(connection.getOptions().getForwardProxyURI(), targetAddress, headers);
+            final ForwardProxyGroup proxies = connection.getOptions().getForwardProxyGroup();
+            final ForwardProxy proxy = proxies.choose(targetAddress.getHostName());
+
+            // Outstanding until the proxy answers; a tunnel isn't a request
+            proxies.begin(proxy);
+            boolean reachable = false;
+
+            try
+            {
+                final Socket socket = connectViaProxy(proxy.getURI(), targetAddress, headers);
+                reachable = true;
+                return socket;
+            }
+            catch (HTTPException e)
+            {
+                // It answered, but with an error
+                reachable = true;
+                throw e;
+            }
+            finally
+            {
+                proxies.end(proxy, reachable);
+            }
         }
 
         // Direct connection
-        return connect(targetAddress);
+        return connect(targetAddress.getHostName(), targetAddress.getPort(), false);
     }
 
     /**
      * Connects to the given address via the given HTTP proxy. Collects headers
      * read from the proxy in the headers list.
+     * <p>
+     * A socket from the {@link ForwardProxyStandby} is used if one is ready.
+     * If the forward proxy closed it before answering, the CONNECT is sent
+     * again on a new socket.
      */
     private Socket connectViaProxy(URI forwardProxyURI, InetSocketAddress address, List<Header> headers)
         throws IOException
     {
-        // Is 80 a good default port here? Proxies configured for CONNECT can be
-        // anywhere.
+        Socket proxyToServer = connection.getOptions().getForwardProxyStandby().take(forwardProxyURI);
+        String statusLine = null;
 
-        final Socket proxyToServer =
-            connect(new InetSocketAddress(forwardProxyURI.getHost(), forwardProxyURI.getPort() > 0
-                ? forwardProxyURI.getPort() : 80));
+        if (proxyToServer != null)
+        {
+            try
+            {
+                statusLine = sendConnect(proxyToServer, address, connection.getOptions());
+            }
+            catch (SocketException e)
+            {
+                // Reset while it was idle
+                statusLine = null;
+            }
 
-        final OutputStream proxyToServerOutput = proxyToServer.getOutputStream();
-        final InputStream proxyToServerInput = proxyToServer.getInputStream();
+            if (statusLine == null)
+            {
+                logger.write(LogLevel.DEBUG, "Standby connection to {} was closed; connecting again", forwardProxyURI);
+                IOUtils.close(proxyToServer);
+                proxyToServer = null;
+            }
+        }
 
-        proxyToServerOutput.write(UTF8Utils.encode(MessageFormat.format(
-            "CONNECT {0}:{1} HTTP/1.0\r\n\r\n",
-            address.getHostName(),
-            Integer.toString(address.getPort()))));
+        if (proxyToServer == null)
+        {
+            // Is 80 a good default port here? Proxies configured for CONNECT can be
+            // anywhere.
 
-        proxyToServerOutput.flush();
+            proxyToServer =
+                connect(forwardProxyURI.getHost(), forwardProxyURI.getPort() > 0 ? forwardProxyURI.getPort() : 80, true);
 
-        final String statusLine = IOUtils.readLine(proxyToServerInput);
+            statusLine = sendConnect(proxyToServer, address, connection.getOptions());
+        }
+
+        final InputStream proxyToServerInput = proxyToServer.getInputStream();
 
         if (statusLine == null)
         {
             throw new HTTPException("Connection closed by " + address);
         }
 
-        logger.write(LogLevel.DEBUG, "Forward proxy responds: " + statusLine);
+        logger.write(LogLevel.DEBUG, "Forward proxy responds: {}", statusLine);
 
         final String[] parts = statusLine.split(" ", 3);
         // Need at least 2; message is optional
@@ -201,13 +428,39 @@ public class ConnectRequestHandler
         }
 
         // Read all headers
-        headers.addAll(IOUtils.readHeaders(proxyToServerInput));
+        headers.addAll(IOUtils.readHeaders(proxyToServerInput, connection.getOptions()));
 
         // Socket is connected and positioned at the content (if there is any)
         return proxyToServer;
     }
 
-    private InetSocketAddress parseTargetAddress(final Request request)
+    /**
+     * Sends a CONNECT for the address to the forward proxy.
+     *
+     * @return the forward proxy's status line, or <code>null</code> if it
+     *         closed the connection
+     */
+    private static String sendConnect(Socket proxyToServer, InetSocketAddress address, Options options)
+        throws IOException
+    {
+        final OutputStream proxyToServerOutput = proxyToServer.getOutputStream();
+
+        proxyToServerOutput.write(UTF8Utils.encode(MessageFormat.format(
+            "CONNECT {0}:{1} HTTP/1.0\r\n\r\n",
+            address.getHostName(),
+            Integer.toString(address.getPort()))));
+
+        proxyToServerOutput.flush();
+
+        return IOUtils.readLine(proxyToServer.getInputStream(), options);
+    }
+
+    /**
+     * Parses the host and port a CONNECT request targets. The address is not
+     * resolved; when the tunnel goes through a forward proxy, the proxy
+     * resolves the name.
+     */
+    public static InetSocketAddress parseTargetAddress(final Request request)
         throws HTTPException
     {
         // The connect URI will just be host:port for CONNECTs
@@ -231,29 +484,105 @@ public class ConnectRequestHandler
             }
         }
 
-        return new InetSocketAddress(host, port);
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * Closes both sockets of a tunnel once nothing has crossed it, either
+     * way, for the idle timeout. Checks on the timing wheel when the timeout
+     * would run out, and checks again later if there was activity since.
+     */
+    private static class IdleWatch
+        implements Runnable
+    {
+        private final TimingWheel wheel;
+        private final long timeoutNanos;
+        private final Socket clientToProxySocket;
+        private final Socket proxyToServerSocket;
+
+        /* By System.nanoTime() */
+        private volatile long lastActivity = System.nanoTime();
+
+        public IdleWatch(
+            final TimingWheel wheel,
+            final int timeoutSeconds,
+            final Socket clientToProxySocket,
+            final Socket proxyToServerSocket)
+        {
+            this.wheel = wheel;
+            this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            this.clientToProxySocket = clientToProxySocket;
+            this.proxyToServerSocket = proxyToServerSocket;
+        }
+
+        public void start()
+        {
+            wheel.schedule(this, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        }
+
+        public void touch()
+        {
+            lastActivity = System.nanoTime();
+        }
+
+        public void run()
+        {
+            if (clientToProxySocket.isClosed() && proxyToServerSocket.isClosed())
+            {
+                return;
+            }
+
+            final long idle = System.nanoTime() - lastActivity;
+
+            if (idle < timeoutNanos)
+            {
+                wheel.schedule(this, TimeUnit.NANOSECONDS.toMillis(timeoutNanos - idle));
+                return;
+            }
+
+            logger.write(LogLevel.DEBUG, "Closing idle tunnel {}", clientToProxySocket);
+            IOUtils.close(clientToProxySocket);
+            IOUtils.close(proxyToServerSocket);
+        }
     }
 
     private static class IORunner
         implements Runnable
     {
-        private final byte[] buffer = new byte[64 * 1024];
+        private static final int BUFFER_SIZE = 64 * 1024;
 
         private final String name;
+        private final InputStream input;
+        private final OutputStream output;
         private final Socket inputSocket;
         private final Socket outputSocket;
 
-        public IORunner(final String name, final Socket inputSocket, final Socket outputSocket)
+        /* May be null */
+        private final IdleWatch idleWatch;
+
+        public IORunner(
+            final String name,
+            final InputStream input,
+            final OutputStream output,
+            final Socket inputSocket,
+            final Socket outputSocket,
+            final IdleWatch idleWatch)
         {
             this.name = name;
+            this.input = input;
+            this.output = output;
             this.inputSocket = inputSocket;
             this.outputSocket = outputSocket;
+            this.idleWatch = idleWatch;
         }
 
         public void run()
         {
             String oldName = Thread.currentThread().getName();
             Thread.currentThread().setName(name);
+
+            final BufferPool pool = BufferPool.getDefault();
+            final byte[] buffer = pool.acquireBytes(BUFFER_SIZE);
             try
             {
                 /*
@@ -268,9 +597,6 @@ public class ConnectRequestHandler
 
                 try
                 {
-                    final InputStream input = inputSocket.getInputStream();
-                    final OutputStream output = outputSocket.getOutputStream();
-
                     while (true)
                     {
                         final int read = input.read(buffer);
@@ -281,6 +607,11 @@ public class ConnectRequestHandler
                             break;
                         }
 
+                        if (idleWatch != null)
+                        {
+                            idleWatch.touch();
+                        }
+
                         // Other side closed, so can't write; stop
                         if (outputSocket.isClosed())
                         {
@@ -298,7 +629,7 @@ public class ConnectRequestHandler
                 }
                 catch (SocketTimeoutException e)
                 {
-                    // Normal read timeout
+                    // Normal read timeout, when there's no idle watch
                 }
                 catch (SocketException e)
                 {
@@ -329,6 +660,7 @@ public class ConnectRequestHandler
             }
             finally
             {
+                pool.release(buffer);
                 Thread.currentThread().setName(oldName);
             }
         }
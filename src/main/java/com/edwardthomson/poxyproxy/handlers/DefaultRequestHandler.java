@@ -10,26 +10,41 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
 
 import com.edwardthomson.poxyproxy.Connection;
 import com.edwardthomson.poxyproxy.Constants;
+import com.edwardthomson.poxyproxy.ForwardProxy;
+import com.edwardthomson.poxyproxy.ForwardProxyGroup;
 import com.edwardthomson.poxyproxy.HTTPException;
+import com.edwardthomson.poxyproxy.HeadTooLargeException;
+import com.edwardthomson.poxyproxy.HeadWriter;
 import com.edwardthomson.poxyproxy.Header;
 import com.edwardthomson.poxyproxy.HeaderUtils;
 import com.edwardthomson.poxyproxy.IOUtils;
-import com.edwardthomson.poxyproxy.PersistentServerSocketMapKey;
 import com.edwardthomson.poxyproxy.Request;
 import com.edwardthomson.poxyproxy.Response;
+import com.edwardthomson.poxyproxy.SocketDeadline;
 import com.edwardthomson.poxyproxy.Status;
-import com.edwardthomson.poxyproxy.UTF8Utils;
+import com.edwardthomson.poxyproxy.TimingWheel;
+import com.edwardthomson.poxyproxy.UpstreamConnection;
+import com.edwardthomson.poxyproxy.UpstreamKey;
 import com.edwardthomson.poxyproxy.Utils;
+import com.edwardthomson.poxyproxy.cache.CacheControl;
+import com.edwardthomson.poxyproxy.cache.CachePolicy;
+import com.edwardthomson.poxyproxy.cache.CacheWriter;
+import com.edwardthomson.poxyproxy.cache.CachedResponse;
+import com.edwardthomson.poxyproxy.cache.InFlightResponse;
+import com.edwardthomson.poxyproxy.cache.RequestCoalescer;
+import com.edwardthomson.poxyproxy.cache.ResponseCache;
 import com.edwardthomson.poxyproxy.logger.LogLevel;
 import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+import com.edwardthomson.poxyproxy.metrics.Phase;
 
 /**
  * Handles GET, POST, and HEAD requests.
@@ -39,6 +54,17 @@ extends RequestHandler
 {
 	private static final Logger logger = Logger.getLogger(DefaultRequestHandler.class);
 
+	/* The same for every response, so built once */
+	private static final Header VIA = new Header("Via", "1.0 " + Utils.getHostname());
+
+	/* Set by transferResponse */
+	private boolean serverKeepsAlive = false;
+	private boolean authenticationPending = false;
+
+	/* Set by forward; they shut down the proxy-to-server socket's input */
+	private SocketDeadline exchangeDeadline = SocketDeadline.NONE;
+	private SocketDeadline firstByteDeadline = SocketDeadline.NONE;
+
 	public DefaultRequestHandler(Connection connection)
 	{
 		super(connection);
@@ -57,18 +83,125 @@ extends RequestHandler
 			return false;
 		}
 
+		final Metrics metrics = connection.getOptions().getMetrics();
+
+		// Answer from the cache if a stored response can be used
+
+		final ResponseCache cache = connection.getOptions().getResponseCache();
+		final String cacheKey = cache.isEnabled() ? ResponseCache.key(targetURI) : null;
+		final boolean cacheable = cacheKey != null && CachePolicy.isCacheableRequest(request);
+		CachedResponse cached = null;
+
+		if (cacheable)
+		{
+			final CacheControl cacheControl = CacheControl.parse(request.getHeaders());
+			cached = cache.get(cacheKey, request.getHeaders());
+
+			if (cached != null && cached.isUsable(cacheControl, System.currentTimeMillis()))
+			{
+				writeCachedResponse(request, response, cached);
+				metrics.countCacheHit(cached.getBodyLength());
+				return true;
+			}
+
+			// A stale response is only worth keeping if the server can confirm it
+			if (cached != null && !cached.hasValidator())
+			{
+				cached = null;
+			}
+
+			if (cached == null && cacheControl.isOnlyIfCached())
+			{
+				response.writeError(Status.GATEWAY_TIMEOUT, "Not in cache: " + request.getURI());
+				return true;
+			}
+		}
+
+		// Share the response to an identical request that's already in flight
+
+		final RequestCoalescer coalescer = connection.getOptions().getRequestCoalescer();
+		final String flightKey = coalescer.isEnabled() ? RequestCoalescer.key(ResponseCache.key(targetURI), request) : null;
+		InFlightResponse flight = null;
+
+		if (flightKey != null)
+		{
+			InFlightResponse.Follower follower = coalescer.follow(flightKey, request.getHeaders());
+
+			if (follower == null)
+			{
+				flight = coalescer.lead(flightKey);
+
+				// Lost the race to lead
+				if (flight == null)
+				{
+					follower = coalescer.follow(flightKey, request.getHeaders());
+				}
+			}
+
+			// Otherwise this request is sent on its own
+			if (follower != null && follower.awaitHead(getHeadTimeoutMillis()))
+			{
+				return writeSharedResponse(request, response, follower);
+			}
+		}
+
+		try
+		{
+			return forward(request, response, targetURI, cacheable ? cacheKey : null, cached, flight);
+		}
+		finally
+		{
+			exchangeDeadline.cancel();
+			firstByteDeadline.cancel();
+
+			// Followers waiting for a response that won't come send their own
+			if (flight != null)
+			{
+				flight.fail();
+			}
+		}
+	}
+
+	/**
+	 * Sends the request to the server (or forward proxy) and forwards the
+	 * response.
+	 *
+	 * @param cacheKey
+	 *        the cache key if the response may be stored, or <code>null</code>
+	 * @param cached
+	 *        the stored response to revalidate, or <code>null</code>
+	 * @param flight
+	 *        the response to publish for identical requests, or
+	 *        <code>null</code>
+	 * @return <code>true</code> if more requests can be read from the client
+	 */
+	private boolean forward(
+			Request request,
+			Response response,
+			URI targetURI,
+			String cacheKey,
+			CachedResponse cached,
+			InFlightResponse flight)
+			throws IOException
+	{
+		final Metrics metrics = connection.getOptions().getMetrics();
+		final ResponseCache cache = connection.getOptions().getResponseCache();
+
 		// Connect to forward proxy or directly
 
 		final boolean useProxy =
-				connection.getOptions().getForwardProxyURI() != null
+				!connection.getOptions().getForwardProxyURIs().isEmpty()
 				&& !connection.getOptions().hostMatchesForwardProxyBypassHosts(targetURI.getHost());
 
+		final ForwardProxyGroup proxies = connection.getOptions().getForwardProxyGroup();
+		final ForwardProxy proxy = useProxy ? proxies.choose(targetURI.getHost()) : null;
+
 		final String host;
 		final int port;
 		if (useProxy)
 		{
-			host = connection.getOptions().getForwardProxyURI().getHost();
-			port = connection.getOptions().getForwardProxyURI().getPort();
+			host = proxy.getHost();
+			port = proxy.getPort();
 		}
 		else
 		{
@@ -76,66 +209,173 @@ extends RequestHandler
 			port = targetURI.getPort();
 		}
 
-		final InetSocketAddress serverAddress = new InetSocketAddress(host, port > 0 ? port : 80);
+		// Resolved when connecting, so every address of the host can be tried
+		final InetSocketAddress serverAddress = InetSocketAddress.createUnresolved(host, port > 0 ? port : 80);
+
+		final UpstreamKey key =
+				new UpstreamKey(serverAddress, useProxy ? proxy.getURI() : null);
 
 		/*
-		 * If this socket fails for this request, it will be forgotten (removed
-		 * from the map of persistent sockets if it was in it). If the request
-		 * finishes without error, it will be added to the map (if it was not
-		 * already there).
+		 * A connection reused from the pool may have been closed by the server
+		 * while it was idle. If one fails before the server answers, a request
+		 * with a safe method and no body is retried on another connection.
+		 * Others may already have been acted on (RFC 7230 section 6.3.1).
 		 */
-		Socket proxyToServerSocket = null;
+		final boolean canRetry = request.isSafeMethod()
+				&& !HeaderUtils.isChunked(request.getHeaders())
+				&& HeaderUtils.getContentLength(request.getHeaders()) <= 0;
 
-		final OutputStream serverOutput;
-		final InputStream serverInput;
-		try
-		{
-			proxyToServerSocket = connectOrGetExistingSocket(serverAddress);
+		// Ask the server whether the stored response is still current
+		final List<Header> conditionalHeaders = cached != null ? cached.getConditionalHeaders() : null;
 
-			serverOutput = proxyToServerSocket.getOutputStream();
-			serverInput = proxyToServerSocket.getInputStream();
+		final TimingWheel wheel = connection.getOptions().getTimingWheel();
 
-			transferRequest(request, serverOutput, useProxy);
-		}
-		catch (SocketTimeoutException e)
-		{
-			// We can still send an error message because no response data
-			// has been forwarded
-			response.writeError(Status.GATEWAY_TIMEOUT, "Timed out connecting to " + request.getURI());
-			forgetSocket(proxyToServerSocket);
+		UpstreamConnection upstream = null;
+		String statusLine = null;
+		long phaseStart = 0;
+		long requestTime = 0;
 
-			// We can return true to process more requests because we read the
-			// entire request
-			return true;
-		}
-		catch (HTTPException e)
+		// Outstanding at the forward proxy until the response is transferred
+		if (proxy != null)
 		{
-			// Conversation error talking to forward proxy
-			response.writeError(Status.BAD_GATEWAY, e.getMessage());
-			forgetSocket(proxyToServerSocket);
-
-			// We can return true to process more requests because we read the
-			// entire request
-			return true;
+			proxies.begin(proxy);
 		}
-		catch (IOException e)
+
+		while (statusLine == null)
 		{
-			response.writeError(Status.BAD_GATEWAY, e);
-			forgetSocket(proxyToServerSocket);
+			upstream = null;
+			exchangeDeadline.cancel();
 
-			// We can return true to process more requests because we read the
-			// entire request
-			return true;
+			try
+			{
+				upstream = connection.acquireUpstream(key);
+				exchangeDeadline = SocketDeadline.start(
+						wheel, upstream.getSocket(), connection.getOptions().getExchangeTimeoutSeconds());
+
+				phaseStart = System.nanoTime();
+				requestTime = System.currentTimeMillis();
+				transferRequest(request, upstream.getOutputStream(), useProxy, conditionalHeaders);
+				phaseStart = metrics.record(Phase.RequestForward, phaseStart);
+
+				firstByteDeadline = SocketDeadline.start(
+						wheel, upstream.getSocket(), connection.getOptions().getUpstreamFirstByteTimeoutSeconds());
+				statusLine = IOUtils.readLine(upstream.getInputStream(), connection.getOptions());
+				firstByteDeadline.cancel();
+
+				if (statusLine == null)
+				{
+					throw new HTTPException("Connection closed by " + serverAddress);
+				}
+			}
+			catch (SocketTimeoutException e)
+			{
+				// We can still send an error message because no response data
+				// has been forwarded
+				response.writeError(Status.GATEWAY_TIMEOUT, "Timed out connecting to " + request.getURI());
+				connection.discardUpstream(upstream);
+				endProxy(proxy, false);
+
+				// We can return true to process more requests because we read the
+				// entire request
+				return true;
+			}
+			catch (HTTPException e)
+			{
+				connection.discardUpstream(upstream);
+
+				if (firstByteDeadline.cancel() || exchangeDeadline.isExpired())
+				{
+					return writeUpstreamTimeout(request, response, proxy);
+				}
+
+				if (e instanceof HeadTooLargeException)
+				{
+					metrics.countOversizedResponseHead();
+				}
+				else if (upstream != null && upstream.isReused() && canRetry)
+				{
+					logger.write(LogLevel.DEBUG, "Retrying on a new connection: {}", e.getMessage());
+					continue;
+				}
+
+				// Conversation error talking to forward proxy
+				response.writeError(Status.BAD_GATEWAY, e.getMessage());
+				endProxy(proxy, false);
+
+				// We can return true to process more requests because we read the
+				// entire request
+				return true;
+			}
+			catch (IOException e)
+			{
+				connection.discardUpstream(upstream);
+
+				if (firstByteDeadline.cancel() || exchangeDeadline.isExpired())
+				{
+					return writeUpstreamTimeout(request, response, proxy);
+				}
+
+				if (upstream != null && upstream.isReused() && canRetry)
+				{
+					logger.write(LogLevel.DEBUG, "Retrying on a new connection: {}", e.toString());
+					continue;
+				}
+
+				response.writeError(Status.BAD_GATEWAY, e);
+				endProxy(proxy, false);
+
+				// We can return true to process more requests because we read the
+				// entire request
+				return true;
+			}
 		}
 
 		/*
-		 * At this point the request has been sent but nothing has been read
-		 * from the socket.
+		 * At this point the request has been sent and the status line read.
 		 */
 
+		phaseStart = metrics.record(Phase.TimeToFirstByte, phaseStart);
+
 		try
 		{
-			transferResponse(request, response, serverInput, serverAddress);
+			transferResponse(
+					request,
+					response,
+					statusLine,
+					upstream.getInputStream(),
+					serverAddress,
+					cacheKey,
+					cached,
+					requestTime,
+					flight);
+			metrics.record(Phase.BodyTransfer, phaseStart);
+
+			// The body was cut off where the deadline shut the socket
+			if (exchangeDeadline.cancel())
+			{
+				logger.write(LogLevel.DEBUG, "Exchange with {} timed out during the response to {}", serverAddress,
+						request.getURI());
+				connection.discardUpstream(upstream);
+				return false;
+			}
+		}
+		catch (HTTPException e)
+		{
+			// A malformed or oversized response head; nothing was written yet
+			connection.discardUpstream(upstream);
+
+			if (e instanceof HeadTooLargeException)
+			{
+				metrics.countOversizedResponseHead();
+			}
+
+			if (response.getStatus() != 0)
+			{
+				return false;
+			}
+
+			response.writeError(Status.BAD_GATEWAY, e.getMessage());
+			return true;
 		}
 		catch (SocketTimeoutException e)
 		{
@@ -143,7 +383,7 @@ extends RequestHandler
 			 * This error is likely from reading from the proxy-to-server
 			 * socket. We can't safely send error information to the client now.
 			 */
-			forgetSocket(proxyToServerSocket);
+			connection.discardUpstream(upstream);
 
 			// Prevent more requets from this client because we don't know what
 			// we may have written to the client
@@ -155,23 +395,157 @@ extends RequestHandler
 			 * This error is likely from writing to the response (maybe socket
 			 * closed?).
 			 */
-			forgetSocket(proxyToServerSocket);
+			connection.discardUpstream(upstream);
 
 			// Prevent more requets from this client because we don't know what
 			// we may have written to the client
 			return false;
 		}
+		finally
+		{
+			// It answered, whatever happened to the body
+			endProxy(proxy, true);
+		}
 
 		/*
-		 * Request was successful and complete. Remember this socket for further
-		 * requests if it's not already in the mamp.
+		 * Request was successful and complete. Return the connection to the
+		 * pool if the server keeps it open, or keep it for this client from
+		 * now on if the server is authenticating the connection.
 		 */
-		rememberSocket(proxyToServerSocket);
+		if (authenticationPending)
+		{
+			upstream.setAuthenticationBound();
+		}
+
+		connection.releaseUpstream(upstream, serverKeepsAlive);
+
+		// Stored responses for the URI are out of date after a successful POST
+		if (cache.isEnabled() && CachePolicy.isUnsafe(request.getMethod()) && response.getStatus() < 400)
+		{
+			cache.invalidate(ResponseCache.key(targetURI));
+		}
 
 		return true;
 	}
 
-	private URI parseURI(Request request, Response response)
+	/**
+	 * Answers a request the server didn't start answering before the first
+	 * byte or exchange deadline.
+	 *
+	 * @return <code>true</code>, since the whole request was read
+	 */
+	private boolean writeUpstreamTimeout(Request request, Response response, ForwardProxy proxy)
+			throws IOException
+	{
+		response.writeError(Status.GATEWAY_TIMEOUT, "Timed out waiting for a response to " + request.getURI());
+		endProxy(proxy, false);
+		return true;
+	}
+
+	/**
+	 * Finishes a request to the forward proxy, if one was used.
+	 */
+	private void endProxy(ForwardProxy proxy, boolean reachable)
+	{
+		if (proxy != null)
+		{
+			connection.getOptions().getForwardProxyGroup().end(proxy, reachable);
+		}
+	}
+
+	/**
+	 * Writes a stored response, or a 304 if the client's own validators
+	 * match it. A body on disk goes straight to the client's socket when the
+	 * response has its channel.
+	 */
+	private void writeCachedResponse(Request request, Response response, CachedResponse cached)
+			throws IOException
+	{
+		final long transferred = cached.writeTo(
+				response,
+				System.currentTimeMillis(),
+				CachePolicy.isNotModified(request.getHeaders(), cached),
+				!request.getMethod().equalsIgnoreCase(Constants.HEAD_METHOD),
+				response.getChannel());
+
+		// The metered stream didn't see those
+		connection.getOptions().getMetrics().addBytesOut(transferred);
+
+		response.flush();
+	}
+
+	/**
+	 * Writes the response to an identical request as the request that leads
+	 * it reads it from the server.
+	 *
+	 * @return <code>false</code> if the response was cut off, so the client
+	 *         can't be sent more
+	 */
+	private boolean writeSharedResponse(Request request, Response response, InFlightResponse.Follower follower)
+			throws IOException
+	{
+		final Metrics metrics = connection.getOptions().getMetrics();
+
+		// The leader revalidated a stored response
+		final CachedResponse result = follower.getResult();
+
+		if (result != null)
+		{
+			writeCachedResponse(request, response, result);
+			metrics.countCoalesced(result.getBodyLength());
+			return true;
+		}
+
+		final List<Header> headers = new ArrayList<Header>(follower.getHeaders());
+		headers.add(VIA);
+
+		response.writeStatus(follower.getStatusCode(), follower.getMessage(), follower.getVersion());
+		response.setHeaders(headers);
+		response.writeHeaders(headers);
+		response.endHeaders();
+
+		final long timeout = connection.getOptions().getSocketReadTimeoutSeconds() * 1000L;
+		final OutputStream out = response.getStream();
+		long length = 0;
+
+		try
+		{
+			byte[] chunk;
+
+			while ((chunk = follower.read(timeout)) != null)
+			{
+				out.write(chunk);
+				length += chunk.length;
+			}
+		}
+		catch (HTTPException e)
+		{
+			logger.write(LogLevel.DEBUG, "Shared response for {} was cut off: {}", request.getURI(), e.getMessage());
+			return false;
+		}
+
+		response.flush();
+		metrics.countCoalesced(length);
+		return true;
+	}
+
+	/**
+	 * @return how long a request waits for an identical request to receive
+	 *         its response head before sending its own
+	 */
+	private long getHeadTimeoutMillis()
+	{
+		return (connection.getOptions().getConnectTimeoutSeconds() + connection.getOptions().getSocketReadTimeoutSeconds())
+				* 1000L;
+	}
+
+	/**
+	 * Parses the request's absolute target URI. If it can't be used, an error
+	 * response is written.
+	 *
+	 * @return the target URI, or <code>null</code> if an error was written
+	 */
+	public static URI parseURI(Request request, Response response)
 			throws IOException
 	{
 		final URI targetURI;
@@ -204,54 +578,66 @@ extends RequestHandler
 		return targetURI;
 	}
 
-	private void forgetSocket(final Socket socket)
+	private void transferRequest(
+			Request request,
+			OutputStream serverOutput,
+			boolean useProxy,
+			List<Header> conditionalHeaders)
+			throws IOException
 	{
-		if (socket == null)
+		final List<Header> headers = writeRequestHead(request, serverOutput, useProxy, conditionalHeaders);
+
+		long length = 0;
+		if (HeaderUtils.isChunked(headers))
 		{
-			return;
+			logger.write(LogLevel.DEBUG, "Transferring chunked request content bytes");
+			IOUtils.copyChunkedStream(request.getInputStream(), serverOutput, connection.getOptions());
 		}
-
-		connection.removePersistentProxyToServerSocket(getSocketMapKey(socket));
-	}
-
-	private void rememberSocket(Socket serverSocket)
-	{
-		connection.putPersistentProxyToServerSocket(getSocketMapKey(serverSocket), serverSocket);
-	}
-
-	private Socket connectOrGetExistingSocket(InetSocketAddress serverAddress)
-			throws IOException
-	{
-		final Socket socket = connection.getPersistentProxyToServerSocket(getSocketMapKey(serverAddress));
-		if (socket == null)
+		else if ((length = HeaderUtils.getContentLength(headers)) > 0)
 		{
-			logger.write(LogLevel.DEBUG, "No previous proxy-to-server socket, connecting to " + serverAddress);
-			return connect(serverAddress);
+			if (logger.isEnabled(LogLevel.DEBUG))
+			{
+				logger.write(LogLevel.DEBUG, "Transferring " + length + " request content bytes");
+			}
+			IOUtils.copyStream(request.getInputStream(), serverOutput, length);
 		}
 		else
 		{
-			logger.write(LogLevel.DEBUG, "Found existing proxy-to-server socket " + socket);
+			logger.write(LogLevel.DEBUG, "Request has no content");
 		}
 
-		return socket;
-	}
-
-	private PersistentServerSocketMapKey getSocketMapKey(InetSocketAddress serverAddress)
-	{
-		return new PersistentServerSocketMapKey(connection.getClientToProxySocket(), serverAddress);
+		serverOutput.flush();
 	}
 
-	private PersistentServerSocketMapKey getSocketMapKey(Socket serverSocket)
+	/**
+	 * Writes the request line and the headers that may be forwarded for the
+	 * request to the server (or forward proxy), followed by the empty line
+	 * that ends the headers.
+	 *
+	 * @return the headers that were written, which determine how the request
+	 *         body (if any) is framed
+	 */
+	public static List<Header> writeRequestHead(Request request, OutputStream serverOutput, boolean useProxy)
+			throws IOException
 	{
-		return new PersistentServerSocketMapKey(connection.getClientToProxySocket(), new InetSocketAddress(
-				serverSocket.getInetAddress(),
-				serverSocket.getPort()));
+		return writeRequestHead(request, serverOutput, useProxy, null);
 	}
 
-	private void transferRequest(Request request, OutputStream serverOutput, boolean useProxy)
+	/**
+	 * Like {@link #writeRequestHead(Request, OutputStream, boolean)}, but when
+	 * <code>conditionalHeaders</code> is not <code>null</code> they replace
+	 * the client's own If-None-Match and If-Modified-Since, to revalidate a
+	 * stored response.
+	 */
+	public static List<Header> writeRequestHead(
+			Request request,
+			OutputStream serverOutput,
+			boolean useProxy,
+			List<Header> conditionalHeaders)
 			throws IOException
 	{
-		serverOutput.write(UTF8Utils.encode(request.toString() + "\r\n"));
+		final HeadWriter head = new HeadWriter();
+		head.requestLine(request.getMethod(), request.getURI(), request.getVersion());
 
 		List<Header> headers = request.getHeaders();
 
@@ -262,9 +648,14 @@ extends RequestHandler
 			headers = HeaderUtils.DISALLOW_FOR_DIRECT_REQUESTS.filter(headers);
 		}
 
+		if (conditionalHeaders != null)
+		{
+			headers = CachePolicy.withConditionalHeaders(headers, conditionalHeaders);
+		}
+
 		for (Header h : headers)
 		{
-			serverOutput.write(UTF8Utils.encode(h.toString() + "\r\n"));
+			head.header(h);
 		}
 
 		/*
@@ -273,39 +664,33 @@ extends RequestHandler
 		 * sockets alive, which breaks NTLM. So we're just a sneaky proxy!
 		 */
 
-		serverOutput.write(UTF8Utils.encode("\r\n"));
+		head.end();
 
-		long length = 0;
-		if (HeaderUtils.isChunked(headers))
-		{
-			logger.write(LogLevel.DEBUG, "Transferring chunked request content bytes");
-			IOUtils.copyChunkedStream(request.getInputStream(), serverOutput);
-		}
-		else if ((length = HeaderUtils.getContentLength(headers)) > 0)
+		try
 		{
-			logger.write(LogLevel.DEBUG, "Transferring " + length + " request content bytes");
-			IOUtils.copyStream(request.getInputStream(), serverOutput, length);
+			head.writeTo(serverOutput);
 		}
-		else
+		finally
 		{
-			logger.write(LogLevel.DEBUG, "Request has no content");
+			head.release();
 		}
 
-		serverOutput.flush();
+		return headers;
 	}
 
-	private void transferResponse(Request request, Response response, InputStream serverInput, InetSocketAddress address)
+	private void transferResponse(
+			Request request,
+			Response response,
+			String statusLine,
+			InputStream serverInput,
+			InetSocketAddress address,
+			String cacheKey,
+			CachedResponse cached,
+			long requestTime,
+			InFlightResponse flight)
 			throws IOException
 	{
-		final String statusLine = IOUtils.readLine(serverInput);
-
-		if (statusLine == null)
-		{
-			response.writeError(Status.BAD_GATEWAY, "Connection closed by " + address);
-			return;
-		}
-
-		logger.write(LogLevel.DEBUG, "Forward proxy responds: " + statusLine);
+		logger.write(LogLevel.DEBUG, "Forward proxy responds: {}", statusLine);
 
 		final String[] parts = statusLine.split(" ", 3);
 		// Need at least 2; message is optional
@@ -317,7 +702,7 @@ extends RequestHandler
 
 		final String version = parts[0];
 		final int statusCode = Integer.parseInt(parts[1]);
-		final String message = parts[2];
+		final String message = parts.length > 2 ? parts[2] : null;
 
 		// The user may have enabled a sleep here
 		final int delay = connection.getOptions().getResponseDelayMilliseconds();
@@ -333,6 +718,44 @@ extends RequestHandler
 			}
 		}
 
+		List<Header> headers = IOUtils.readHeaders(serverInput, connection.getOptions());
+
+		serverKeepsAlive = isPersistent(version, headers);
+		authenticationPending = isConnectionAuthenticationChallenge(statusCode, headers);
+
+		headers = HeaderUtils.NEVER_TRANSMIT_FILTER.filter(headers);
+
+		final ResponseCache cache = connection.getOptions().getResponseCache();
+		final Metrics metrics = connection.getOptions().getMetrics();
+
+		if (cached != null && statusCode == Status.NOT_MODIFIED)
+		{
+			// The stored response is still current; a 304 has no body
+			final CachedResponse revalidated = cache.revalidate(cached, headers, requestTime);
+			writeCachedResponse(request, response, revalidated);
+			metrics.countCacheRevalidation(revalidated.getBodyLength());
+
+			if (flight != null)
+			{
+				flight.publish(revalidated);
+			}
+
+			return;
+		}
+
+		if (flight != null)
+		{
+			flight.publishHead(request, statusCode, message, version, headers);
+		}
+
+		CacheWriter cacheWriter = null;
+
+		if (cacheKey != null)
+		{
+			metrics.countCacheMiss();
+			cacheWriter = cache.startStore(cacheKey, request, statusCode, message, version, headers, requestTime);
+		}
+
 		/*
 		 * After this point we can't call response.writeError() because it would
 		 * mix with the status, headers, and content we're writing.
@@ -340,9 +763,7 @@ extends RequestHandler
 
 		response.writeStatus(statusCode, message, version);
 
-		List<Header> headers = IOUtils.readHeaders(serverInput);
-		headers = HeaderUtils.NEVER_TRANSMIT_FILTER.filter(headers);
-		headers.add(new Header("Via", "1.0 " + Utils.getHostname()));
+		headers.add(VIA);
 
 		// Just saves them for later inspection; doesn't write anything
 		response.setHeaders(headers);
@@ -351,6 +772,19 @@ extends RequestHandler
 
 		response.endHeaders();
 
+		// Copy the body into the cache and to identical requests as it's forwarded
+		OutputStream body = response.getStream();
+
+		if (cacheWriter != null)
+		{
+			body = cacheWriter.tee(body);
+		}
+
+		if (flight != null)
+		{
+			body = flight.tee(body);
+		}
+
 		/*
 		 * Copy the response body if the method isn't HEAD.
 		 */
@@ -360,17 +794,21 @@ extends RequestHandler
 			if (HeaderUtils.isChunked(headers))
 			{
 				logger.write(LogLevel.DEBUG, "Transferring chunked response content bytes");
-				IOUtils.copyChunkedStream(serverInput, response.getStream());
+				IOUtils.copyChunkedStream(serverInput, body, connection.getOptions());
 			}
 			else if ((length = HeaderUtils.getContentLength(headers)) > 0)
 			{
-				logger.write(LogLevel.DEBUG, "Transferring " + length + " response content bytes");
-				IOUtils.copyStream(serverInput, response.getStream(), length);
+				if (logger.isEnabled(LogLevel.DEBUG))
+				{
+					logger.write(LogLevel.DEBUG, "Transferring " + length + " response content bytes");
+				}
+				IOUtils.copyStream(serverInput, body, length);
 			}
 			else if (HeaderUtils.isConnectionClose(headers) || HeaderUtils.isProxyConnectionClose(headers))
 			{
 				logger.write(LogLevel.DEBUG, "Transferring response bytes until end of stream because of Connection: close or Proxy-Connection: close");
-				IOUtils.copyStream(serverInput, response.getStream(), -1);
+				IOUtils.copyStream(serverInput, body, -1);
+				serverKeepsAlive = false;
 			}
 			else
 			{
@@ -379,5 +817,75 @@ extends RequestHandler
 		}
 
 		response.flush();
+
+		if (cacheWriter != null)
+		{
+			cacheWriter.commit();
+		}
+
+		if (flight != null)
+		{
+			flight.complete();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the server will keep the connection open
+	 *         after a response with this version and these headers
+	 */
+	private static boolean isPersistent(final String version, final List<Header> headers)
+	{
+		if (HeaderUtils.isConnectionClose(headers) || HeaderUtils.isProxyConnectionClose(headers))
+		{
+			return false;
+		}
+
+		if (Constants.VERSION_11.equals(version))
+		{
+			return true;
+		}
+
+		return HeaderUtils.isConnectionKeepAlive(headers) || HeaderUtils.isProxyConnectionKeepAlive(headers);
+	}
+
+	/**
+	 * NTLM and Negotiate authenticate the connection rather than the request,
+	 * so the client's next request must use the connection that carried the
+	 * challenge.
+	 *
+	 * @return <code>true</code> if the response is a challenge for a
+	 *         connection-based authentication scheme
+	 */
+	private static boolean isConnectionAuthenticationChallenge(final int statusCode, final List<Header> headers)
+	{
+		final String challengeHeader;
+
+		if (statusCode == Status.UNAUTHORIZED)
+		{
+			challengeHeader = Constants.WWW_AUTHENTICATE_HEADER;
+		}
+		else if (statusCode == Status.PROXY_AUTHENTICATION_REQUIRED)
+		{
+			challengeHeader = Constants.PROXY_AUTHENTICATE_HEADER;
+		}
+		else
+		{
+			return false;
+		}
+
+		for (Header h : headers)
+		{
+			if (h.matchesName(challengeHeader))
+			{
+				final String scheme = h.getValue().split(" ", 2)[0];
+
+				if (scheme.equalsIgnoreCase("NTLM") || scheme.equalsIgnoreCase("Negotiate"))
+				{
+					return true;
+				}
+			}
+		}
+
+		return false;
 	}
 }
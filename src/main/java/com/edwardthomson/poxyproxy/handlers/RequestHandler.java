@@ -7,12 +7,13 @@
 package com.edwardthomson.poxyproxy.handlers;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import com.edwardthomson.poxyproxy.Connection;
 import com.edwardthomson.poxyproxy.Request;
 import com.edwardthomson.poxyproxy.Response;
+import com.edwardthomson.poxyproxy.UpstreamConnector;
+import com.edwardthomson.poxyproxy.nio.TunnelRelay;
 
 public abstract class RequestHandler
 {
@@ -33,22 +34,24 @@ public abstract class RequestHandler
         throws IOException;
 
     /**
-     * Connects directly to the given address using the connect timeout
-     * specified in the {@link #connection}'s options.
+     * Connects directly to the given host with the {@link UpstreamConnector}
+     * in the {@link #connection}'s options, which races the host's addresses.
      * <p>
-     * NoDelay is enabled on the socket.
+     * The time taken is recorded as connecting to a forward proxy if
+     * <code>forwardProxy</code> is set, otherwise as connecting directly.
+     * <p>
+     * NoDelay is enabled on the socket. When the connection relays tunnels
+     * with a {@link TunnelRelay}, the socket is created from a channel so it
+     * can be handed to the relay.
      */
-    protected Socket connect(InetSocketAddress address)
+    protected Socket connect(String host, int port, boolean forwardProxy)
         throws IOException
     {
-        final Socket socket = new Socket();
-
-        socket.setTcpNoDelay(true);
-        socket.connect(address, connection.getOptions().getConnectTimeoutSeconds() * 1000);
-
-        socket.setSoTimeout(connection.getOptions().getSocketReadTimeoutSeconds() * 1000);
-
-        return socket;
+        return connection.getOptions().getUpstreamConnector().connect(
+            host,
+            port,
+            forwardProxy,
+            connection.getTunnelRelay() != null);
     }
 
     @Override
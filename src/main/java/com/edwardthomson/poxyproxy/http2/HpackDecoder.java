@@ -0,0 +1,171 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.edwardthomson.poxyproxy.Header;
+
+/**
+ * Decodes the header blocks a client sends (RFC 7541). Blocks must be
+ * decoded in the order they arrive, because they update the dynamic table.
+ * Header names and values are decoded as ISO-8859-1, so their bytes are kept
+ * as they are.
+ */
+class HpackDecoder
+{
+	private final HpackTable table;
+
+	/* The table size we allow the client in our settings */
+	private final int maxTableSize;
+
+	/* The block being decoded */
+	private byte[] block;
+	private int position;
+	private int end;
+
+	HpackDecoder(final int maxTableSize)
+	{
+		this.table = new HpackTable(maxTableSize);
+		this.maxTableSize = maxTableSize;
+	}
+
+	/**
+	 * @throws Http2Exception
+	 *         if the block can't be decoded, which leaves the table unusable
+	 *         and so is a connection error
+	 */
+	List<Header> decode(final byte[] block, final int length)
+			throws Http2Exception
+	{
+		this.block = block;
+		this.position = 0;
+		this.end = length;
+
+		final List<Header> headers = new ArrayList<Header>();
+
+		// Size updates may only come first
+		boolean first = true;
+
+		while (position < end)
+		{
+			final int b = block[position] & 0xff;
+
+			if ((b & 0x80) != 0)
+			{
+				// Indexed
+				headers.add(table.get(readInteger(7)));
+			}
+			else if ((b & 0x40) != 0)
+			{
+				// Literal with incremental indexing
+				final Header header = readLiteral(6);
+				table.add(header);
+				headers.add(header);
+			}
+			else if ((b & 0x20) != 0)
+			{
+				final int size = readInteger(5);
+
+				if (!first || size > maxTableSize)
+				{
+					throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Invalid table size update " + size);
+				}
+
+				table.setMaxSize(size);
+				continue;
+			}
+			else
+			{
+				// Literal without indexing, or never indexed
+				headers.add(readLiteral(4));
+			}
+
+			first = false;
+		}
+
+		this.block = null;
+		return headers;
+	}
+
+	private Header readLiteral(final int prefixBits)
+			throws Http2Exception
+	{
+		final int index = readInteger(prefixBits);
+		final String name = index == 0 ? readString() : table.get(index).getName();
+
+		return new Header(name, readString());
+	}
+
+	private String readString()
+			throws Http2Exception
+	{
+		if (position == end)
+		{
+			throw truncated();
+		}
+
+		final boolean huffman = (block[position] & 0x80) != 0;
+		final int length = readInteger(7);
+
+		if (length > end - position)
+		{
+			throw truncated();
+		}
+
+		final String string = huffman
+				? new String(Huffman.decode(block, position, length), StandardCharsets.ISO_8859_1)
+				: new String(block, position, length, StandardCharsets.ISO_8859_1);
+
+		position += length;
+		return string;
+	}
+
+	/**
+	 * Reads an integer with an N-bit prefix (RFC 7541 section 5.1).
+	 */
+	private int readInteger(final int prefixBits)
+			throws Http2Exception
+	{
+		final int max = (1 << prefixBits) - 1;
+		int value = block[position++] & max;
+
+		if (value < max)
+		{
+			return value;
+		}
+
+		for (int shift = 0;; shift += 7)
+		{
+			if (position == end)
+			{
+				throw truncated();
+			}
+
+			final int b = block[position++] & 0xff;
+
+			if (shift > 21)
+			{
+				throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Integer too large");
+			}
+
+			value += (b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+
+	private static Http2Exception truncated()
+	{
+		return Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+	}
+}
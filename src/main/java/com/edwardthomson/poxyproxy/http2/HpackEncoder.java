@@ -0,0 +1,149 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.edwardthomson.poxyproxy.Header;
+
+/**
+ * Encodes the header blocks sent to a client (RFC 7541). Blocks must be sent
+ * in the order they were encoded, because they update the client's copy of
+ * the dynamic table.
+ * <p>
+ * Headers are indexed in the dynamic table unless their values change with
+ * every response or they carry credentials. Strings are Huffman coded when
+ * that makes them shorter.
+ */
+class HpackEncoder
+{
+	/* The largest dynamic table we use, whatever the client allows */
+	private static final int MAX_TABLE_SIZE = 4096;
+
+	/* Values that are rarely sent twice, so indexing them only evicts others */
+	private static final Set<String> UNINDEXED = new HashSet<String>(Arrays.asList(
+			"content-length", "date", "etag", "last-modified", "age", "expires", "content-range", "location"));
+
+	/* Values the table mustn't keep, even in intermediaries (RFC 7541 section 7.1.3) */
+	private static final Set<String> NEVER_INDEXED = new HashSet<String>(Arrays.asList(
+			"set-cookie", "authorization", "proxy-authorization"));
+
+	/* Starts at the protocol's default size */
+	private final HpackTable table = new HpackTable(MAX_TABLE_SIZE);
+
+	/* A size to announce at the start of the next block, or -1 */
+	private int pendingSizeUpdate = -1;
+
+	/**
+	 * Applies the client's SETTINGS_HEADER_TABLE_SIZE.
+	 */
+	void setMaxTableSize(final int clientMaxSize)
+	{
+		final int size = Math.min(clientMaxSize, MAX_TABLE_SIZE);
+
+		if (size != table.getMaxSize())
+		{
+			table.setMaxSize(size);
+			pendingSizeUpdate = size;
+		}
+	}
+
+	/**
+	 * @param headers
+	 *        headers with lower case names, pseudo-headers first
+	 */
+	void encode(final List<Header> headers, final ByteArrayOutputStream out)
+	{
+		if (pendingSizeUpdate != -1)
+		{
+			writeInteger(out, 0x20, 5, pendingSizeUpdate);
+			pendingSizeUpdate = -1;
+		}
+
+		for (Header header : headers)
+		{
+			final String name = header.getName();
+			final String value = header.getValue();
+			final int index = table.find(name, value);
+
+			if (index > 0)
+			{
+				writeInteger(out, 0x80, 7, index);
+				continue;
+			}
+
+			if (NEVER_INDEXED.contains(name))
+			{
+				writeInteger(out, 0x10, 4, -index);
+			}
+			else if (UNINDEXED.contains(name) || HpackTable.entrySize(header) > table.getMaxSize() / 2)
+			{
+				writeInteger(out, 0x00, 4, -index);
+			}
+			else
+			{
+				writeInteger(out, 0x40, 6, -index);
+				table.add(header);
+			}
+
+			if (index == 0)
+			{
+				writeString(out, name);
+			}
+
+			writeString(out, value);
+		}
+	}
+
+	private static void writeString(final ByteArrayOutputStream out, final String string)
+	{
+		final byte[] bytes = string.getBytes(StandardCharsets.ISO_8859_1);
+		final int huffmanLength = Huffman.encodedLength(bytes);
+
+		if (huffmanLength < bytes.length)
+		{
+			writeInteger(out, 0x80, 7, huffmanLength);
+			Huffman.encode(bytes, out);
+		}
+		else
+		{
+			writeInteger(out, 0x00, 7, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Writes an integer with an N-bit prefix (RFC 7541 section 5.1) after the
+	 * flag bits of the first byte.
+	 */
+	private static void writeInteger(final ByteArrayOutputStream out, final int flags, final int prefixBits, int value)
+	{
+		final int max = (1 << prefixBits) - 1;
+
+		if (value < max)
+		{
+			out.write(flags | value);
+			return;
+		}
+
+		out.write(flags | max);
+		value -= max;
+
+		while (value >= 0x80)
+		{
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write(value);
+	}
+}
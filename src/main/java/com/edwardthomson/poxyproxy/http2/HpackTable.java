@@ -0,0 +1,215 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.http2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.edwardthomson.poxyproxy.Header;
+
+/**
+ * The HPACK header table of one direction of a connection (RFC 7541 section
+ * 2.3): the static table every connection shares, followed by a dynamic
+ * table of recently indexed headers, newest first, whose size is bounded.
+ */
+class HpackTable
+{
+	/* RFC 7541 Appendix A; index 1 is the first entry */
+	private static final Header[] STATIC =
+	{
+		new Header(":authority", ""),
+		new Header(":method", "GET"),
+		new Header(":method", "POST"),
+		new Header(":path", "/"),
+		new Header(":path", "/index.html"),
+		new Header(":scheme", "http"),
+		new Header(":scheme", "https"),
+		new Header(":status", "200"),
+		new Header(":status", "204"),
+		new Header(":status", "206"),
+		new Header(":status", "304"),
+		new Header(":status", "400"),
+		new Header(":status", "404"),
+		new Header(":status", "500"),
+		new Header("accept-charset", ""),
+		new Header("accept-encoding", "gzip, deflate"),
+		new Header("accept-language", ""),
+		new Header("accept-ranges", ""),
+		new Header("accept", ""),
+		new Header("access-control-allow-origin", ""),
+		new Header("age", ""),
+		new Header("allow", ""),
+		new Header("authorization", ""),
+		new Header("cache-control", ""),
+		new Header("content-disposition", ""),
+		new Header("content-encoding", ""),
+		new Header("content-language", ""),
+		new Header("content-length", ""),
+		new Header("content-location", ""),
+		new Header("content-range", ""),
+		new Header("content-type", ""),
+		new Header("cookie", ""),
+		new Header("date", ""),
+		new Header("etag", ""),
+		new Header("expect", ""),
+		new Header("expires", ""),
+		new Header("from", ""),
+		new Header("host", ""),
+		new Header("if-match", ""),
+		new Header("if-modified-since", ""),
+		new Header("if-none-match", ""),
+		new Header("if-range", ""),
+		new Header("if-unmodified-since", ""),
+		new Header("last-modified", ""),
+		new Header("link", ""),
+		new Header("location", ""),
+		new Header("max-forwards", ""),
+		new Header("proxy-authenticate", ""),
+		new Header("proxy-authorization", ""),
+		new Header("range", ""),
+		new Header("referer", ""),
+		new Header("refresh", ""),
+		new Header("retry-after", ""),
+		new Header("server", ""),
+		new Header("set-cookie", ""),
+		new Header("strict-transport-security", ""),
+		new Header("transfer-encoding", ""),
+		new Header("user-agent", ""),
+		new Header("vary", ""),
+		new Header("via", ""),
+		new Header("www-authenticate", "")
+	};
+
+	/* Static indexes by "name" and by "name\0value"; the lowest for each */
+	private static final Map<String, Integer> STATIC_INDEX = new HashMap<String, Integer>();
+
+	/* Counted for each entry besides its name and value */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	static
+	{
+		for (int i = STATIC.length - 1; i >= 0; i--)
+		{
+			STATIC_INDEX.put(STATIC[i].getName(), i + 1);
+			STATIC_INDEX.put(STATIC[i].getName() + '\0' + STATIC[i].getValue(), i + 1);
+		}
+	}
+
+	/* Newest first */
+	private final List<Header> dynamic = new ArrayList<Header>();
+	private int size = 0;
+	private int maxSize;
+
+	HpackTable(final int maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	static int entrySize(final Header header)
+	{
+		return header.getName().length() + header.getValue().length() + ENTRY_OVERHEAD;
+	}
+
+	int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	Header get(final int index)
+			throws Http2Exception
+	{
+		if (index >= 1 && index <= STATIC.length)
+		{
+			return STATIC[index - 1];
+		}
+
+		final int position = index - STATIC.length - 1;
+
+		if (position < 0 || position >= dynamic.size())
+		{
+			throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Invalid header table index " + index);
+		}
+
+		return dynamic.get(position);
+	}
+
+	/**
+	 * @return the index of an entry with the name and value, or minus the
+	 *         index of an entry with just the name, or 0 if there is neither
+	 */
+	int find(final String name, final String value)
+	{
+		final Integer exact = STATIC_INDEX.get(name + '\0' + value);
+
+		if (exact != null)
+		{
+			return exact;
+		}
+
+		int nameIndex = 0;
+
+		for (int i = 0; i < dynamic.size(); i++)
+		{
+			final Header entry = dynamic.get(i);
+
+			if (entry.getName().equals(name))
+			{
+				if (entry.getValue().equals(value))
+				{
+					return STATIC.length + 1 + i;
+				}
+
+				if (nameIndex == 0)
+				{
+					nameIndex = STATIC.length + 1 + i;
+				}
+			}
+		}
+
+		final Integer staticName = STATIC_INDEX.get(name);
+
+		if (staticName != null)
+		{
+			return -staticName;
+		}
+
+		return -nameIndex;
+	}
+
+	/**
+	 * Adds an entry, evicting the oldest ones to make room. An entry larger
+	 * than the whole table empties it and isn't added.
+	 */
+	void add(final Header header)
+	{
+		final int entrySize = entrySize(header);
+
+		evict(maxSize - entrySize);
+
+		if (entrySize <= maxSize)
+		{
+			dynamic.add(0, header);
+			size += entrySize;
+		}
+	}
+
+	void setMaxSize(final int maxSize)
+	{
+		this.maxSize = maxSize;
+		evict(maxSize);
+	}
+
+	private void evict(final int targetSize)
+	{
+		while (size > targetSize && !dynamic.isEmpty())
+		{
+			size -= entrySize(dynamic.remove(dynamic.size() - 1));
+		}
+	}
+}
@@ -0,0 +1,959 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.http2;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.Connection;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.Options;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Serves a client connection that speaks HTTP/2 (RFC 7540), either with prior
+ * knowledge on the plain port or negotiated with ALPN on the TLS port.
+ * <p>
+ * The {@link Connection}'s thread reads frames and decodes header blocks.
+ * Each stream is handled by an {@link Http2Stream} on the connection's
+ * executor, through the same request handlers as HTTP/1.1; many streams share
+ * one client socket. Streams write frames through this class, which keeps
+ * frames whole and waits for the client's flow control windows.
+ * <p>
+ * Locks are {@link ReentrantLock}s rather than synchronized blocks, so a
+ * virtual thread writing to the socket or waiting for a window doesn't pin
+ * its carrier.
+ */
+public class Http2Connection
+{
+	private final static Logger logger = Logger.getLogger(Http2Connection.class);
+
+	/* The client connection preface, which starts like a request line */
+	public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/* Frame types */
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int PRIORITY = 0x2;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+
+	/* Frame flags */
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	/* Settings */
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+	/* We don't raise the largest frame we accept from the default */
+	private static final int MAX_FRAME_SIZE = 16384;
+	private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+
+	/* The window each stream, and the connection, gives the client for its bodies */
+	static final int STREAM_WINDOW_SIZE = 256 * 1024;
+	private static final int CONNECTION_WINDOW_SIZE = 1024 * 1024;
+
+	/* The size we allow the client's encoder for its dynamic table */
+	private static final int HEADER_TABLE_SIZE = 4096;
+
+	private final Connection connection;
+	private final InputStream in;
+	private final OutputStream out;
+	private final Options options;
+
+	private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE);
+
+	/* Held while writing frames, so they reach the client whole */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/* Guarded by writeLock */
+	private final HpackEncoder encoder = new HpackEncoder();
+
+	/* Open streams; added by the reading thread, removed by the stream's */
+	private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<Integer, Http2Stream>();
+
+	/* Used by the reading thread only */
+	private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+	private final byte[] payload = new byte[MAX_FRAME_SIZE];
+	private int lastStreamId = 0;
+	private boolean goingAway = false;
+	private int unacknowledgedBytes = 0;
+	private long receiveWindow = CONNECTION_WINDOW_SIZE;
+
+	/* A header block spread over CONTINUATION frames */
+	private ByteArrayOutputStream headerBlock;
+	private int headerBlockStreamId;
+	private boolean headerBlockEndsStream;
+
+	/* Guards the client's settings and the send windows, signalled when they change */
+	private final ReentrantLock windowLock = new ReentrantLock();
+	private final Condition windowChanged = windowLock.newCondition();
+
+	/* The client's settings and the send windows; guarded by windowLock */
+	private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+	private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+	private volatile int maxSendFrameSize = MAX_FRAME_SIZE;
+	private boolean closed = false;
+
+	/**
+	 * @param in
+	 *        the client's stream, positioned at the connection preface
+	 * @param out
+	 *        the client's stream
+	 */
+	public Http2Connection(final Connection connection, final InputStream in, final OutputStream out)
+	{
+		this.connection = connection;
+		this.in = in;
+		this.out = new BufferedOutputStream(out, FRAME_HEADER_LENGTH + MAX_FRAME_SIZE);
+		this.options = connection.getOptions();
+	}
+
+	Connection getConnection()
+	{
+		return connection;
+	}
+
+	/**
+	 * Serves streams until the client closes the connection, an error ends
+	 * it, or it is idle for the socket read timeout.
+	 */
+	public void run()
+			throws IOException
+	{
+		readFully(new byte[PREFACE.length], PREFACE.length, false);
+
+		writeSettings();
+		writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+
+		try
+		{
+			while (readFrame())
+			{
+				// Next
+			}
+		}
+		catch (Http2Exception e)
+		{
+			logger.write(LogLevel.DEBUG, "HTTP/2 connection error {}: {}", e.getErrorCode(), e.getMessage());
+			writeGoAway(e.getErrorCode(), e.getMessage());
+		}
+		finally
+		{
+			windowLock.lock();
+			try
+			{
+				closed = true;
+				windowChanged.signalAll();
+			}
+			finally
+			{
+				windowLock.unlock();
+			}
+
+			for (Http2Stream stream : streams.values())
+			{
+				stream.reset();
+			}
+		}
+	}
+
+	/**
+	 * Reads and acts on one frame.
+	 *
+	 * @return <code>false</code> if the connection is done
+	 */
+	private boolean readFrame()
+			throws IOException
+	{
+		try
+		{
+			if (!readFully(frameHeader, FRAME_HEADER_LENGTH, true))
+			{
+				return false;
+			}
+		}
+		catch (SocketTimeoutException e)
+		{
+			if (!streams.isEmpty())
+			{
+				// Responses are still being written
+				return true;
+			}
+
+			writeGoAway(Http2Exception.NO_ERROR, "Idle");
+			return false;
+		}
+
+		final int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+		final int type = frameHeader[3] & 0xff;
+		final int flags = frameHeader[4] & 0xff;
+		final int streamId = readInt(frameHeader, 5) & 0x7fffffff;
+
+		if (length > MAX_FRAME_SIZE)
+		{
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+		}
+
+		readFully(payload, length, false);
+
+		if (headerBlock != null && (type != CONTINUATION || streamId != headerBlockStreamId))
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION");
+		}
+
+		try
+		{
+			switch (type)
+			{
+				case DATA:
+					onData(streamId, flags, length);
+					break;
+				case HEADERS:
+					onHeaders(streamId, flags, length);
+					break;
+				case PRIORITY:
+					onPriority(streamId, length);
+					break;
+				case RST_STREAM:
+					onResetStream(streamId, length);
+					break;
+				case SETTINGS:
+					onSettings(streamId, flags, length);
+					break;
+				case PUSH_PROMISE:
+					throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Clients can't push");
+				case PING:
+					onPing(streamId, flags, length);
+					break;
+				case GOAWAY:
+					// Streams already open go on; the client will close when they're done
+					goingAway = true;
+					break;
+				case WINDOW_UPDATE:
+					onWindowUpdate(streamId, length);
+					break;
+				case CONTINUATION:
+					onContinuation(streamId, flags, length);
+					break;
+				default:
+					// Unknown frame types are ignored
+					break;
+			}
+		}
+		catch (Http2Exception e)
+		{
+			if (e.getStreamId() == 0)
+			{
+				throw e;
+			}
+
+			logger.write(LogLevel.DEBUG, "HTTP/2 stream {} error {}: {}", e.getStreamId(), e.getErrorCode(), e.getMessage());
+
+			final Http2Stream stream = streams.get(e.getStreamId());
+
+			if (stream != null)
+			{
+				stream.reset();
+			}
+
+			writeResetStream(e.getStreamId(), e.getErrorCode());
+		}
+
+		return true;
+	}
+
+	private void onData(final int streamId, final int flags, final int length)
+			throws IOException
+	{
+		if (streamId == 0)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+		}
+
+		final int padding = getPadding(flags, length);
+		final int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+
+		// The whole frame counts against the window
+		receiveWindow -= length;
+
+		if (receiveWindow < 0)
+		{
+			throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Connection window exceeded");
+		}
+
+		// Bodies are bounded by the stream windows, so the connection's is given back at once
+		unacknowledgedBytes += length;
+
+		if (unacknowledgedBytes >= CONNECTION_WINDOW_SIZE / 2)
+		{
+			writeWindowUpdate(0, unacknowledgedBytes);
+			receiveWindow += unacknowledgedBytes;
+			unacknowledgedBytes = 0;
+		}
+
+		final Http2Stream stream = streams.get(streamId);
+
+		if (stream == null)
+		{
+			if (streamId > lastStreamId)
+			{
+				throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+			}
+
+			// Its response was finished or it was reset; the rest of its body is dropped
+			return;
+		}
+
+		stream.receiveData(payload, offset, length - offset - padding, length, (flags & FLAG_END_STREAM) != 0);
+	}
+
+	private void onHeaders(final int streamId, final int flags, final int length)
+			throws IOException
+	{
+		if (streamId == 0 || (streamId & 1) == 0)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+		}
+
+		final int padding = getPadding(flags, length);
+		int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+
+		if ((flags & FLAG_PRIORITY) != 0)
+		{
+			// Stream dependency and weight; priorities aren't used
+			offset += 5;
+		}
+
+		if (offset + padding > length)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "HEADERS padding too long");
+		}
+
+		headerBlock = new ByteArrayOutputStream(length);
+		headerBlock.write(payload, offset, length - offset - padding);
+		headerBlockStreamId = streamId;
+		headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+
+		if ((flags & FLAG_END_HEADERS) != 0)
+		{
+			onHeaderBlock();
+		}
+	}
+
+	private void onContinuation(final int streamId, final int flags, final int length)
+			throws IOException
+	{
+		if (headerBlock == null)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+		}
+
+		headerBlock.write(payload, 0, length);
+
+		if ((flags & FLAG_END_HEADERS) != 0)
+		{
+			onHeaderBlock();
+		}
+	}
+
+	/**
+	 * Decodes a complete header block and opens its stream, or ends the body
+	 * of the stream it is the trailers of.
+	 */
+	private void onHeaderBlock()
+			throws IOException
+	{
+		final byte[] block = headerBlock.toByteArray();
+		final int streamId = headerBlockStreamId;
+		final boolean endStream = headerBlockEndsStream;
+		headerBlock = null;
+
+		// Always decoded, to keep the table in step with the client's
+		final List<Header> headers = decoder.decode(block, block.length);
+
+		final Http2Stream existing = streams.get(streamId);
+
+		if (existing != null)
+		{
+			if (!endStream)
+			{
+				throw Http2Exception.stream(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+			}
+
+			// Trailers aren't forwarded
+			existing.receiveData(payload, 0, 0, 0, true);
+			return;
+		}
+
+		if (streamId <= lastStreamId)
+		{
+			throw Http2Exception.connection(Http2Exception.STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+		}
+
+		lastStreamId = streamId;
+
+		if (goingAway)
+		{
+			return;
+		}
+
+		if (streams.size() >= options.getHttp2MaxStreams())
+		{
+			throw Http2Exception.stream(Http2Exception.REFUSED_STREAM, streamId, "Too many streams");
+		}
+
+		final Http2Stream stream;
+		windowLock.lock();
+		try
+		{
+			stream = new Http2Stream(this, streamId, headers, endStream, initialSendWindow);
+		}
+		finally
+		{
+			windowLock.unlock();
+		}
+
+		streams.put(streamId, stream);
+		connection.getExecutorService().execute(stream);
+	}
+
+	private void onPriority(final int streamId, final int length)
+			throws Http2Exception
+	{
+		if (streamId == 0)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+		}
+
+		if (length != 5)
+		{
+			throw Http2Exception.stream(Http2Exception.FRAME_SIZE_ERROR, streamId, "PRIORITY of " + length + " bytes");
+		}
+	}
+
+	private void onResetStream(final int streamId, final int length)
+			throws Http2Exception
+	{
+		if (streamId == 0 || streamId > lastStreamId)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on stream " + streamId);
+		}
+
+		if (length != 4)
+		{
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+		}
+
+		final Http2Stream stream = streams.get(streamId);
+
+		if (stream != null)
+		{
+			logger.write(LogLevel.DEBUG, "Client reset HTTP/2 stream {} with error {}", streamId, readInt(payload, 0));
+			stream.reset();
+		}
+	}
+
+	private void onSettings(final int streamId, final int flags, final int length)
+			throws IOException
+	{
+		if (streamId != 0)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		}
+
+		if ((flags & FLAG_ACK) != 0)
+		{
+			if (length != 0)
+			{
+				throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+			}
+
+			return;
+		}
+
+		if (length % 6 != 0)
+		{
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+		}
+
+		for (int i = 0; i < length; i += 6)
+		{
+			final int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+			final long value = readInt(payload, i + 2) & 0xffffffffL;
+
+			switch (id)
+			{
+				case SETTINGS_HEADER_TABLE_SIZE:
+					writeLock.lock();
+					try
+					{
+						encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+					}
+					finally
+					{
+						writeLock.unlock();
+					}
+					break;
+				case SETTINGS_ENABLE_PUSH:
+					if (value > 1)
+					{
+						throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Invalid ENABLE_PUSH " + value);
+					}
+					break;
+				case SETTINGS_INITIAL_WINDOW_SIZE:
+					if (value > MAX_WINDOW_SIZE)
+					{
+						throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE " + value);
+					}
+					setInitialSendWindow((int) value);
+					break;
+				case SETTINGS_MAX_FRAME_SIZE:
+					if (value < MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT)
+					{
+						throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE " + value);
+					}
+					maxSendFrameSize = (int) value;
+					break;
+				default:
+					// Including MAX_CONCURRENT_STREAMS, which limits pushes
+					break;
+			}
+		}
+
+		writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+	}
+
+	/**
+	 * Moves the send window of every stream by the change in the initial
+	 * window (RFC 7540 section 6.9.2).
+	 */
+	private void setInitialSendWindow(final int size)
+			throws Http2Exception
+	{
+		windowLock.lock();
+		try
+		{
+			final int delta = size - initialSendWindow;
+			initialSendWindow = size;
+
+			for (Http2Stream stream : streams.values())
+			{
+				stream.sendWindow += delta;
+
+				if (stream.sendWindow > MAX_WINDOW_SIZE)
+				{
+					throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+				}
+			}
+
+			windowChanged.signalAll();
+		}
+		finally
+		{
+			windowLock.unlock();
+		}
+	}
+
+	private void onPing(final int streamId, final int flags, final int length)
+			throws IOException
+	{
+		if (streamId != 0)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+		}
+
+		if (length != 8)
+		{
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+		}
+
+		if ((flags & FLAG_ACK) == 0)
+		{
+			writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+		}
+	}
+
+	private void onWindowUpdate(final int streamId, final int length)
+			throws Http2Exception
+	{
+		if (length != 4)
+		{
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+		}
+
+		final int increment = readInt(payload, 0) & 0x7fffffff;
+
+		if (increment == 0)
+		{
+			if (streamId == 0)
+			{
+				throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Zero window increment");
+			}
+
+			throw Http2Exception.stream(Http2Exception.PROTOCOL_ERROR, streamId, "Zero window increment");
+		}
+
+		windowLock.lock();
+		try
+		{
+			if (streamId == 0)
+			{
+				connectionSendWindow += increment;
+
+				if (connectionSendWindow > MAX_WINDOW_SIZE)
+				{
+					throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+				}
+			}
+			else
+			{
+				final Http2Stream stream = streams.get(streamId);
+
+				// Updates for closed streams are expected and ignored
+				if (stream != null)
+				{
+					stream.sendWindow += increment;
+
+					if (stream.sendWindow > MAX_WINDOW_SIZE)
+					{
+						throw Http2Exception.stream(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+					}
+				}
+			}
+
+			windowChanged.signalAll();
+		}
+		finally
+		{
+			windowLock.unlock();
+		}
+	}
+
+	private int getPadding(final int flags, final int length)
+			throws Http2Exception
+	{
+		if ((flags & FLAG_PADDED) == 0)
+		{
+			return 0;
+		}
+
+		if (length == 0 || (payload[0] & 0xff) >= length)
+		{
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Padding too long");
+		}
+
+		return payload[0] & 0xff;
+	}
+
+	/**
+	 * Called by a stream when it is done.
+	 */
+	void streamClosed(final Http2Stream stream)
+	{
+		streams.remove(stream.getId());
+	}
+
+	/**
+	 * Wakes streams waiting for a window, so a reset one can give up.
+	 */
+	void wakeUp()
+	{
+		windowLock.lock();
+		try
+		{
+			windowChanged.signalAll();
+		}
+		finally
+		{
+			windowLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a response's header block, in as many frames as it takes.
+	 */
+	void writeHeaders(final int streamId, final List<Header> headers, final boolean endStream)
+			throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			// Encoded while holding the lock, so blocks reach the client in encoding order
+			final ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+			encoder.encode(headers, block);
+
+			final byte[] bytes = block.toByteArray();
+			final int frameSize = maxSendFrameSize;
+			int offset = 0;
+
+			do
+			{
+				final int length = Math.min(frameSize, bytes.length - offset);
+				final boolean last = offset + length == bytes.length;
+
+				int flags = last ? FLAG_END_HEADERS : 0;
+
+				if (offset == 0 && endStream)
+				{
+					flags |= FLAG_END_STREAM;
+				}
+
+				writeFrameHeader(offset == 0 ? HEADERS : CONTINUATION, flags, streamId, length);
+				out.write(bytes, offset, length);
+				offset += length;
+			}
+			while (offset < bytes.length);
+
+			out.flush();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends body bytes as DATA frames, waiting for the send windows as needed.
+	 *
+	 * @throws IOException
+	 *         if the stream was reset or the connection closed
+	 */
+	void writeData(final Http2Stream stream, final byte[] b, int off, int len, final boolean endStream)
+			throws IOException
+	{
+		if (len == 0)
+		{
+			// An empty frame takes no window
+			if (endStream)
+			{
+				writeFrame(DATA, FLAG_END_STREAM, stream.getId(), b, off, 0);
+			}
+
+			return;
+		}
+
+		while (len > 0)
+		{
+			final int count = acquireSendWindow(stream, len);
+			final boolean last = count == len;
+
+			writeFrame(DATA, last && endStream ? FLAG_END_STREAM : 0, stream.getId(), b, off, count);
+
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * @return how many of the bytes can be sent now, at least one
+	 */
+	private int acquireSendWindow(final Http2Stream stream, final int wanted)
+			throws IOException
+	{
+		windowLock.lock();
+		try
+		{
+			while (!closed && !stream.isReset() && (connectionSendWindow <= 0 || stream.sendWindow <= 0))
+			{
+				windowChanged.await();
+			}
+
+			if (closed || stream.isReset())
+			{
+				throw new IOException("HTTP/2 stream " + stream.getId() + " was reset");
+			}
+
+			final int count = (int) Math.min(Math.min(wanted, maxSendFrameSize), Math.min(connectionSendWindow, stream.sendWindow));
+
+			connectionSendWindow -= count;
+			stream.sendWindow -= count;
+			return count;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the flow control window");
+		}
+		finally
+		{
+			windowLock.unlock();
+		}
+	}
+
+	void writeResetStream(final int streamId, final int errorCode)
+			throws IOException
+	{
+		final byte[] frame = new byte[4];
+		writeInt(frame, 0, errorCode);
+		writeFrame(RST_STREAM, 0, streamId, frame, 0, 4);
+	}
+
+	void writeWindowUpdate(final int streamId, final int increment)
+			throws IOException
+	{
+		final byte[] frame = new byte[4];
+		writeInt(frame, 0, increment);
+		writeFrame(WINDOW_UPDATE, 0, streamId, frame, 0, 4);
+	}
+
+	private void writeSettings()
+			throws IOException
+	{
+		final byte[] frame = new byte[12];
+		writeSetting(frame, 0, SETTINGS_MAX_CONCURRENT_STREAMS, options.getHttp2MaxStreams());
+		writeSetting(frame, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+		writeFrame(SETTINGS, 0, 0, frame, 0, frame.length);
+	}
+
+	private static void writeSetting(final byte[] frame, final int offset, final int id, final int value)
+	{
+		frame[offset] = (byte) (id >>> 8);
+		frame[offset + 1] = (byte) id;
+		writeInt(frame, offset + 2, value);
+	}
+
+	private void writeGoAway(final int errorCode, final String message)
+	{
+		final byte[] debug = message != null ? message.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		final byte[] frame = new byte[8 + Math.min(debug.length, 256)];
+
+		writeInt(frame, 0, lastStreamId);
+		writeInt(frame, 4, errorCode);
+		System.arraycopy(debug, 0, frame, 8, frame.length - 8);
+
+		try
+		{
+			writeFrame(GOAWAY, 0, 0, frame, 0, frame.length);
+		}
+		catch (IOException e)
+		{
+			// The connection is going anyway
+		}
+	}
+
+	private void writeFrame(final int type, final int flags, final int streamId, final byte[] b, final int off, final int len)
+			throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			writeFrameHeader(type, flags, streamId, len);
+			out.write(b, off, len);
+			out.flush();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/* Called holding writeLock */
+	private void writeFrameHeader(final int type, final int flags, final int streamId, final int length)
+			throws IOException
+	{
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(type);
+		out.write(flags);
+		out.write(streamId >>> 24);
+		out.write(streamId >>> 16);
+		out.write(streamId >>> 8);
+		out.write(streamId);
+	}
+
+	/**
+	 * @param atFrameStart
+	 *        whether the end of the stream may come before the first byte
+	 * @return <code>false</code> if the stream ended before the first byte
+	 */
+	private boolean readFully(final byte[] b, final int length, final boolean atFrameStart)
+			throws IOException
+	{
+		int read = 0;
+
+		while (read < length)
+		{
+			final int count;
+
+			try
+			{
+				count = in.read(b, read, length - read);
+			}
+			catch (SocketTimeoutException e)
+			{
+				if (read == 0 && atFrameStart)
+				{
+					throw e;
+				}
+
+				// Can't resume in the middle of a frame
+				throw new EOFException("Timed out in the middle of a frame");
+			}
+
+			if (count == -1)
+			{
+				if (read == 0 && atFrameStart)
+				{
+					return false;
+				}
+
+				throw new EOFException("Connection closed in the middle of a frame");
+			}
+
+			read += count;
+		}
+
+		return true;
+	}
+
+	private static int readInt(final byte[] b, final int offset)
+	{
+		return ((b[offset] & 0xff) << 24)
+				| ((b[offset + 1] & 0xff) << 16)
+				| ((b[offset + 2] & 0xff) << 8)
+				| (b[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(final byte[] b, final int offset, final int value)
+	{
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.http2;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 error (RFC 7540 section 5.4): a connection error ends the whole
+ * connection with a GOAWAY, a stream error resets one stream.
+ */
+public class Http2Exception
+		extends IOException
+{
+	private static final long serialVersionUID = 3308201537046154731L;
+
+	/* Error codes (RFC 7540 section 7) */
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+	static final int CONNECT_ERROR = 0xa;
+
+	private final int errorCode;
+
+	/* 0 for a connection error */
+	private final int streamId;
+
+	private Http2Exception(final int errorCode, final int streamId, final String message)
+	{
+		super(message);
+		this.errorCode = errorCode;
+		this.streamId = streamId;
+	}
+
+	static Http2Exception connection(final int errorCode, final String message)
+	{
+		return new Http2Exception(errorCode, 0, message);
+	}
+
+	static Http2Exception stream(final int errorCode, final int streamId, final String message)
+	{
+		return new Http2Exception(errorCode, streamId, message);
+	}
+
+	public int getErrorCode()
+	{
+		return errorCode;
+	}
+
+	/**
+	 * @return the stream to reset, or 0 if the connection must be closed
+	 */
+	public int getStreamId()
+	{
+		return streamId;
+	}
+}
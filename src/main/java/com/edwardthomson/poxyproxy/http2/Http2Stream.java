@@ -0,0 +1,1159 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.http2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.edwardthomson.poxyproxy.BufferPool;
+import com.edwardthomson.poxyproxy.Constants;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.HeaderUtils;
+import com.edwardthomson.poxyproxy.IOUtils;
+import com.edwardthomson.poxyproxy.Request;
+import com.edwardthomson.poxyproxy.Response;
+import com.edwardthomson.poxyproxy.Status;
+import com.edwardthomson.poxyproxy.handlers.ConnectRequestHandler;
+import com.edwardthomson.poxyproxy.handlers.DefaultRequestHandler;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+
+/**
+ * One request and response on an {@link Http2Connection}.
+ * <p>
+ * The request is handed to the same handlers as an HTTP/1.1 request: its
+ * header block becomes an HTTP/1.1 head, followed by its DATA (chunked when
+ * the client gave no length). What the handler writes is parsed back as an
+ * HTTP/1.1 response and sent as HEADERS and DATA frames. A CONNECT stream
+ * (RFC 7540 section 8.3) carries the tunnel's bytes in DATA frames both ways.
+ */
+class Http2Stream
+implements Runnable
+{
+	private final static Logger logger = Logger.getLogger(Http2Stream.class);
+
+	/* Not allowed in HTTP/2 requests (RFC 7540 section 8.1.2.2) */
+	private static final Set<String> CONNECTION_SPECIFIC = new HashSet<String>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+	/* Not sent in HTTP/2 responses */
+	private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "trailer"));
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final int TUNNEL_BUFFER_SIZE = 16 * 1024;
+
+	private final Http2Connection connection;
+	private final int id;
+	private final String method;
+	private final boolean tunnel;
+
+	/* The request as an HTTP/1.1 head */
+	private final byte[] requestHead;
+
+	private final BodyPipe body;
+	private final ResponseStream responseStream = new ResponseStream();
+
+	/* Guarded by the connection's window lock */
+	long sendWindow;
+
+	private volatile boolean reset = false;
+
+	/* The CONNECT target, closed if the stream is reset */
+	private volatile Socket tunnelSocket;
+
+	/**
+	 * @throws Http2Exception
+	 *         if the request is malformed (RFC 7540 section 8.1.2.6)
+	 */
+	Http2Stream(
+			final Http2Connection connection,
+			final int id,
+			final List<Header> headers,
+			final boolean endStream,
+			final int sendWindow)
+			throws Http2Exception
+	{
+		this.connection = connection;
+		this.id = id;
+		this.sendWindow = sendWindow;
+
+		String method = null;
+		String scheme = null;
+		String authority = null;
+		String path = null;
+		String host = null;
+		StringBuilder cookies = null;
+		boolean contentLength = false;
+		boolean regular = false;
+
+		final List<Header> fields = new ArrayList<Header>(headers.size());
+
+		for (Header h : headers)
+		{
+			final String name = h.getName();
+			final String value = h.getValue();
+
+			if (!isValidValue(value))
+			{
+				throw malformed("Invalid value for " + name);
+			}
+
+			if (name.startsWith(":"))
+			{
+				if (regular)
+				{
+					throw malformed("Pseudo-header " + name + " after regular headers");
+				}
+
+				if (name.equals(":method") && method == null)
+				{
+					method = value;
+				}
+				else if (name.equals(":scheme") && scheme == null)
+				{
+					scheme = value;
+				}
+				else if (name.equals(":authority") && authority == null)
+				{
+					authority = value;
+				}
+				else if (name.equals(":path") && path == null)
+				{
+					path = value;
+				}
+				else
+				{
+					throw malformed("Unexpected pseudo-header " + name);
+				}
+
+				continue;
+			}
+
+			regular = true;
+
+			if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_SPECIFIC.contains(name))
+			{
+				throw malformed("Invalid header " + name);
+			}
+
+			if (name.equals("te"))
+			{
+				if (!value.equals("trailers"))
+				{
+					throw malformed("Invalid TE " + value);
+				}
+			}
+			else if (name.equals("host"))
+			{
+				host = value;
+			}
+			else if (name.equals("cookie"))
+			{
+				// Sent as one header to HTTP/1.1 servers (RFC 7540 section 8.1.2.5)
+				if (cookies == null)
+				{
+					cookies = new StringBuilder(value);
+				}
+				else
+				{
+					cookies.append("; ").append(value);
+				}
+			}
+			else
+			{
+				contentLength |= name.equals("content-length");
+				fields.add(h);
+			}
+		}
+
+		if (authority == null)
+		{
+			authority = host;
+		}
+
+		if (method == null)
+		{
+			throw malformed("No :method");
+		}
+
+		this.method = method;
+		this.tunnel = method.equals(Constants.CONNECT_METHOD);
+
+		final StringBuilder head = new StringBuilder(256);
+
+		if (tunnel)
+		{
+			if (authority == null || scheme != null || path != null)
+			{
+				throw malformed("CONNECT needs :authority only");
+			}
+
+			head.append(method).append(' ').append(authority);
+		}
+		else
+		{
+			if (scheme == null || path == null || path.length() == 0 || authority == null)
+			{
+				throw malformed("Missing :scheme, :authority or :path");
+			}
+
+			// Handlers expect a proxy request's absolute URI
+			head.append(method).append(' ').append(scheme).append("://").append(authority).append(path);
+		}
+
+		head.append(' ').append(Constants.VERSION_11).append("\r\n");
+		appendHeader(head, "Host", authority);
+
+		for (Header h : fields)
+		{
+			appendHeader(head, canonicalName(h.getName()), h.getValue());
+		}
+
+		if (cookies != null)
+		{
+			appendHeader(head, "Cookie", cookies.toString());
+		}
+
+		boolean chunked = false;
+
+		if (!tunnel && !contentLength)
+		{
+			if (!endStream)
+			{
+				// The body is framed as it arrives
+				appendHeader(head, Constants.TRANSFER_ENCODING_HEADER, Constants.TRANSFER_ENCODING_CHUNKED);
+				chunked = true;
+			}
+			else if (!method.equals(Constants.GET_METHOD) && !method.equals(Constants.HEAD_METHOD))
+			{
+				appendHeader(head, Constants.CONTENT_LENGTH_HEADER, "0");
+			}
+		}
+
+		head.append("\r\n");
+
+		this.requestHead = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+		this.body = new BodyPipe(chunked, endStream);
+	}
+
+	int getId()
+	{
+		return id;
+	}
+
+	boolean isReset()
+	{
+		return reset;
+	}
+
+	public void run()
+	{
+		final String oldName = Thread.currentThread().getName();
+		Thread.currentThread().setName("Http2Stream-" + id + "-"
+				+ connection.getConnection().getClientToProxySocket().getRemoteSocketAddress());
+
+		final Metrics metrics = connection.getConnection().getOptions().getMetrics();
+
+		try
+		{
+			final Request request = new Request(new SequenceInputStream(new ByteArrayInputStream(requestHead), body));
+
+			if (!request.read())
+			{
+				throw new IOException("Empty request head");
+			}
+
+			metrics.countRequest(method);
+
+			final Response response = new Response(responseStream, Constants.VERSION_11);
+
+			if (tunnel)
+			{
+				tunnel(request, response, metrics);
+			}
+			else if (method.equals(Constants.GET_METHOD)
+					|| method.equals(Constants.POST_METHOD)
+					|| method.equals(Constants.HEAD_METHOD))
+			{
+				new DefaultRequestHandler(connection.getConnection()).handle(request, response);
+			}
+			else
+			{
+				response.writeError(Status.BAD_REQUEST, "This proxy server does not support the " + method + " method");
+			}
+
+			response.flush();
+			finish();
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "HTTP/2 stream {} failed: {}", id, e.getMessage());
+			abort(Http2Exception.INTERNAL_ERROR);
+		}
+		catch (RuntimeException e)
+		{
+			logger.write(LogLevel.WARNING, "Unhandled exception in HTTP/2 stream " + id, e);
+			abort(Http2Exception.INTERNAL_ERROR);
+		}
+		finally
+		{
+			connection.streamClosed(this);
+			body.abandon();
+			Thread.currentThread().setName(oldName);
+		}
+	}
+
+	/**
+	 * Opens the CONNECT tunnel and copies its bytes both ways until the target
+	 * closes it. Bytes from the client are copied on another thread.
+	 */
+	private void tunnel(final Request request, final Response response, final Metrics metrics)
+			throws IOException
+	{
+		final List<Header> headers = new ArrayList<Header>();
+		final Socket socket =
+				new ConnectRequestHandler(connection.getConnection()).openTunnel(request, response, headers);
+
+		if (socket == null)
+		{
+			// The error response was written
+			return;
+		}
+
+		tunnelSocket = socket;
+
+		if (reset)
+		{
+			IOUtils.close(socket);
+			return;
+		}
+
+		response.writeStatus(Status.OK);
+		response.writeHeaders(HeaderUtils.NEVER_TRANSMIT_FILTER.filter(headers));
+		response.endHeaders();
+		response.flush();
+
+		metrics.tunnelOpened();
+
+		final BufferPool pool = BufferPool.getDefault();
+		final byte[] buffer = pool.acquireBytes(TUNNEL_BUFFER_SIZE);
+
+		try
+		{
+			connection.getConnection().getTunnelExecutorService().execute(new Runnable()
+			{
+				public void run()
+				{
+					copyToTarget(request.getInputStream(), socket);
+				}
+			});
+
+			final InputStream in = socket.getInputStream();
+			final OutputStream out = response.getStream();
+
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				out.write(buffer, 0, read);
+				response.flush();
+			}
+		}
+		catch (SocketTimeoutException e)
+		{
+			// Normal read timeout; ends the tunnel
+		}
+		catch (SocketException e)
+		{
+			if (!reset)
+			{
+				logger.write(LogLevel.TRACE, "SocketException", e);
+				abort(Http2Exception.CONNECT_ERROR);
+			}
+		}
+		finally
+		{
+			pool.release(buffer);
+			IOUtils.close(socket);
+			metrics.tunnelClosed();
+		}
+	}
+
+	/**
+	 * Copies the client's DATA to the tunnel's target, and passes the end of
+	 * the stream on as the end of the target socket's output.
+	 */
+	private void copyToTarget(final InputStream in, final Socket socket)
+	{
+		final BufferPool pool = BufferPool.getDefault();
+		final byte[] buffer = pool.acquireBytes(TUNNEL_BUFFER_SIZE);
+
+		try
+		{
+			final OutputStream out = socket.getOutputStream();
+
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				out.write(buffer, 0, read);
+			}
+
+			socket.shutdownOutput();
+		}
+		catch (IOException e)
+		{
+			if (!reset)
+			{
+				logger.write(LogLevel.TRACE, "Tunnel for HTTP/2 stream " + id + " failed", e);
+				abort(Http2Exception.CONNECT_ERROR);
+			}
+
+			IOUtils.close(socket);
+		}
+		finally
+		{
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Ends the response after the handler is done: with END_STREAM if it was
+	 * complete, otherwise by resetting the stream. If the client is still
+	 * sending the request body, it's asked to stop.
+	 */
+	private void finish()
+			throws IOException
+	{
+		if (reset)
+		{
+			return;
+		}
+
+		if (!responseStream.end())
+		{
+			logger.write(LogLevel.DEBUG, "Response on HTTP/2 stream {} was incomplete", id);
+			abort(Http2Exception.INTERNAL_ERROR);
+			return;
+		}
+
+		if (!body.isEnded())
+		{
+			// RFC 7540 section 8.1
+			abort(Http2Exception.NO_ERROR);
+		}
+	}
+
+	/**
+	 * Resets the stream from this side.
+	 */
+	private void abort(final int errorCode)
+	{
+		if (reset)
+		{
+			return;
+		}
+
+		reset();
+
+		if (responseStream.ended && body.isEnded())
+		{
+			// Closed already; nothing to reset
+			return;
+		}
+
+		try
+		{
+			connection.writeResetStream(id, errorCode);
+		}
+		catch (IOException e)
+		{
+			// The connection is closing
+		}
+	}
+
+	/**
+	 * Called when the stream is reset by either side or the connection
+	 * closes: wakes anything waiting on it and fails its reads and writes.
+	 */
+	void reset()
+	{
+		reset = true;
+		body.abandon();
+		connection.wakeUp();
+
+		final Socket socket = tunnelSocket;
+
+		if (socket != null)
+		{
+			IOUtils.close(socket);
+		}
+	}
+
+	/**
+	 * Called by the connection's reading thread with the request body from a
+	 * DATA frame, or with nothing and the end of the stream for trailers.
+	 *
+	 * @param frameLength
+	 *        the frame's whole payload, which counts against the window
+	 */
+	void receiveData(final byte[] b, final int off, final int len, final int frameLength, final boolean endStream)
+			throws Http2Exception
+	{
+		body.put(b, off, len, frameLength, endStream);
+	}
+
+	private Http2Exception malformed(final String message)
+	{
+		return Http2Exception.stream(Http2Exception.PROTOCOL_ERROR, id, message);
+	}
+
+	private static boolean isValidValue(final String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			final char c = value.charAt(i);
+
+			if (c == '\r' || c == '\n' || c == '\0')
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static void appendHeader(final StringBuilder head, final String name, final String value)
+	{
+		head.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	/**
+	 * @return the name with each word capitalized, the way handlers look
+	 *         headers up
+	 */
+	private static String canonicalName(final String name)
+	{
+		final char[] chars = name.toCharArray();
+		boolean start = true;
+
+		for (int i = 0; i < chars.length; i++)
+		{
+			if (start)
+			{
+				chars[i] = Character.toUpperCase(chars[i]);
+			}
+
+			start = chars[i] == '-';
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * The request body: DATA frames queued by the reading thread for the
+	 * handler. The client's window is given back as the handler takes them,
+	 * so at most a window of body is queued.
+	 */
+	private class BodyPipe
+			extends InputStream
+	{
+		/* Whether the body is chunk encoded as it is queued */
+		private final boolean chunked;
+
+		/* Signalled when a chunk is queued, the body ends or is abandoned */
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition changed = lock.newCondition();
+
+		/* Guarded by lock */
+		private final Deque<byte[]> chunks = new ArrayDeque<byte[]>();
+		private final Deque<Integer> credits = new ArrayDeque<Integer>();
+		private byte[] current = EMPTY;
+		private int position = 0;
+		private boolean ended;
+		private boolean closed = false;
+		private int receiveWindow = Http2Connection.STREAM_WINDOW_SIZE;
+		private int unacknowledged = 0;
+
+		BodyPipe(final boolean chunked, final boolean ended)
+		{
+			this.chunked = chunked;
+			this.ended = ended;
+		}
+
+		boolean isEnded()
+		{
+			lock.lock();
+			try
+			{
+				return ended;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void put(final byte[] b, final int off, final int len, final int frameLength, final boolean endStream)
+				throws Http2Exception
+		{
+			lock.lock();
+			try
+			{
+				putLocked(b, off, len, frameLength, endStream);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private void putLocked(final byte[] b, final int off, final int len, final int frameLength, final boolean endStream)
+				throws Http2Exception
+		{
+			if (ended)
+			{
+				throw Http2Exception.stream(Http2Exception.STREAM_CLOSED, id, "DATA after the end of the stream");
+			}
+
+			receiveWindow -= frameLength;
+
+			if (receiveWindow < 0)
+			{
+				throw Http2Exception.stream(Http2Exception.FLOW_CONTROL_ERROR, id, "Stream window exceeded");
+			}
+
+			if (closed)
+			{
+				// Nobody reads it anymore
+				return;
+			}
+
+			if (len > 0 || frameLength > 0)
+			{
+				final byte[] chunk;
+
+				if (chunked && len > 0)
+				{
+					final byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+					chunk = new byte[size.length + len + 2];
+					System.arraycopy(size, 0, chunk, 0, size.length);
+					System.arraycopy(b, off, chunk, size.length, len);
+					chunk[chunk.length - 2] = '\r';
+					chunk[chunk.length - 1] = '\n';
+				}
+				else
+				{
+					chunk = Arrays.copyOfRange(b, off, off + len);
+				}
+
+				chunks.addLast(chunk);
+				credits.addLast(frameLength);
+			}
+
+			if (endStream)
+			{
+				if (chunked)
+				{
+					chunks.addLast("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					credits.addLast(0);
+				}
+
+				ended = true;
+			}
+
+			changed.signalAll();
+		}
+
+		/**
+		 * Drops the body and fails reads, when the stream is done.
+		 */
+		void abandon()
+		{
+			lock.lock();
+			try
+			{
+				closed = true;
+				chunks.clear();
+				credits.clear();
+				current = EMPTY;
+				position = 0;
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int read()
+				throws IOException
+		{
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			int credit = 0;
+			final int count;
+
+			lock.lock();
+			try
+			{
+				final long timeout = TimeUnit.SECONDS.toNanos(connection.getConnection().getOptions().getSocketReadTimeoutSeconds());
+				long remaining = timeout;
+
+				try
+				{
+					while (position == current.length && chunks.isEmpty() && !ended && !closed)
+					{
+						if (timeout <= 0)
+						{
+							changed.await();
+						}
+						else if (remaining <= 0)
+						{
+							throw new SocketTimeoutException("Timed out reading HTTP/2 stream " + id);
+						}
+						else
+						{
+							remaining = changed.awaitNanos(remaining);
+						}
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted reading HTTP/2 stream " + id);
+				}
+
+				if (closed)
+				{
+					throw new IOException("HTTP/2 stream " + id + " was reset");
+				}
+
+				if (position == current.length)
+				{
+					if (chunks.isEmpty())
+					{
+						return -1;
+					}
+
+					current = chunks.removeFirst();
+					position = 0;
+					credit = credits.removeFirst();
+				}
+
+				count = Math.min(len, current.length - position);
+				System.arraycopy(current, position, b, off, count);
+				position += count;
+
+				if (!ended)
+				{
+					unacknowledged += credit;
+					credit = 0;
+
+					if (unacknowledged >= Http2Connection.STREAM_WINDOW_SIZE / 2)
+					{
+						credit = unacknowledged;
+						unacknowledged = 0;
+						receiveWindow += credit;
+					}
+				}
+				else
+				{
+					// The client won't send more
+					credit = 0;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			if (credit > 0)
+			{
+				connection.writeWindowUpdate(id, credit);
+			}
+
+			return count;
+		}
+
+		@Override
+		public int available()
+		{
+			lock.lock();
+			try
+			{
+				int available = current.length - position;
+
+				for (byte[] chunk : chunks)
+				{
+					available += chunk.length;
+				}
+
+				return available;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Parses the HTTP/1.1 response a handler writes and sends it as frames.
+	 */
+	private class ResponseStream
+			extends OutputStream
+	{
+		private static final int HEAD = 0;
+		private static final int LENGTH = 1;
+		private static final int UNTIL_END = 2;
+		private static final int CHUNK_SIZE = 3;
+		private static final int CHUNK_DATA = 4;
+		private static final int CHUNK_DATA_END = 5;
+		private static final int CHUNK_TRAILER = 6;
+		private static final int DONE = 7;
+
+		private int state = HEAD;
+
+		/* The head, or the chunk line being read */
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+		private int lineStart = 0;
+
+		private long remaining;
+
+		/* Whether END_STREAM was sent */
+		private boolean ended = false;
+
+		@Override
+		public void write(final int b)
+				throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len)
+				throws IOException
+		{
+			if (reset)
+			{
+				throw new IOException("HTTP/2 stream " + id + " was reset");
+			}
+
+			while (len > 0)
+			{
+				final int count;
+
+				switch (state)
+				{
+					case HEAD:
+					case CHUNK_SIZE:
+					case CHUNK_DATA_END:
+					case CHUNK_TRAILER:
+						count = readLine(b, off, len);
+						break;
+					case LENGTH:
+						count = (int) Math.min(len, remaining);
+						remaining -= count;
+						writeBody(b, off, count, remaining == 0);
+						break;
+					case UNTIL_END:
+						count = len;
+						writeBody(b, off, count, false);
+						break;
+					case CHUNK_DATA:
+						count = (int) Math.min(len, remaining);
+						remaining -= count;
+						writeBody(b, off, count, false);
+
+						if (remaining == 0)
+						{
+							state = CHUNK_DATA_END;
+						}
+						break;
+					default:
+						// Bytes past the end of the response are dropped
+						count = len;
+						break;
+				}
+
+				off += count;
+				len -= count;
+			}
+		}
+
+		/**
+		 * Collects bytes up to the end of a line and acts on the line.
+		 *
+		 * @return the number of bytes used
+		 */
+		private int readLine(final byte[] b, final int off, final int len)
+				throws IOException
+		{
+			for (int i = off; i < off + len; i++)
+			{
+				if (b[i] == '\n')
+				{
+					line.write(b, off, i - off);
+
+					final byte[] bytes = line.toByteArray();
+					int end = bytes.length;
+
+					if (end > lineStart && bytes[end - 1] == '\r')
+					{
+						end--;
+					}
+
+					onLine(bytes, lineStart, end);
+					return i + 1 - off;
+				}
+			}
+
+			line.write(b, off, len);
+			return len;
+		}
+
+		private void onLine(final byte[] bytes, final int start, final int end)
+				throws IOException
+		{
+			switch (state)
+			{
+				case HEAD:
+					if (end > start)
+					{
+						// Keep collecting the head
+						line.write('\n');
+						lineStart = line.size();
+						return;
+					}
+
+					line.reset();
+					lineStart = 0;
+					onHead(new String(bytes, 0, start, StandardCharsets.ISO_8859_1));
+					break;
+				case CHUNK_SIZE:
+					line.reset();
+					remaining = parseChunkSize(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+
+					if (remaining == 0)
+					{
+						state = CHUNK_TRAILER;
+					}
+					else
+					{
+						state = CHUNK_DATA;
+					}
+					break;
+				case CHUNK_DATA_END:
+					line.reset();
+					state = CHUNK_SIZE;
+					break;
+				case CHUNK_TRAILER:
+					line.reset();
+
+					// Trailers aren't forwarded
+					if (end == start)
+					{
+						writeBody(EMPTY, 0, 0, true);
+					}
+					break;
+				default:
+					break;
+			}
+		}
+
+		/**
+		 * Sends the response head as HEADERS and chooses how to find the end
+		 * of the body.
+		 */
+		private void onHead(final String head)
+				throws IOException
+		{
+			final String[] lines = head.split("\n");
+			final String[] status = lines[0].trim().split(" ", 3);
+
+			final int code;
+			try
+			{
+				code = status.length >= 2 ? Integer.parseInt(status[1]) : -1;
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid status line '" + lines[0] + "'");
+			}
+
+			if (code < 100 || code > 999)
+			{
+				throw new IOException("Invalid status line '" + lines[0] + "'");
+			}
+
+			final List<Header> headers = new ArrayList<Header>(lines.length);
+			headers.add(new Header(":status", Integer.toString(code)));
+
+			boolean chunked = false;
+			long length = -1;
+
+			for (int i = 1; i < lines.length; i++)
+			{
+				final String l = lines[i].endsWith("\r") ? lines[i].substring(0, lines[i].length() - 1) : lines[i];
+				final int colon = l.indexOf(':');
+
+				if (colon <= 0)
+				{
+					continue;
+				}
+
+				final String name = l.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				final String value = l.substring(colon + 1).trim();
+
+				if (name.equals("transfer-encoding"))
+				{
+					chunked |= !value.equalsIgnoreCase(Constants.TRANSFER_ENCODING_IDENTITY);
+				}
+				else if (name.equals("content-length"))
+				{
+					try
+					{
+						length = Long.parseLong(value);
+					}
+					catch (NumberFormatException e)
+					{
+						throw new IOException("Invalid Content-Length '" + value + "'");
+					}
+				}
+
+				if (!HOP_BY_HOP.contains(name))
+				{
+					headers.add(new Header(name, value));
+				}
+			}
+
+			if (code < 200)
+			{
+				// Informational; the final response follows
+				connection.writeHeaders(id, headers, false);
+				return;
+			}
+
+			connection.getConnection().getOptions().getMetrics().countResponse(code);
+
+			final boolean success = code >= 200 && code < 300;
+
+			if (method.equals(Constants.HEAD_METHOD) || code == 204 || code == 304)
+			{
+				state = DONE;
+				ended = true;
+				connection.writeHeaders(id, headers, true);
+				return;
+			}
+
+			connection.writeHeaders(id, headers, false);
+
+			if (tunnel && success)
+			{
+				state = UNTIL_END;
+			}
+			else if (chunked)
+			{
+				state = CHUNK_SIZE;
+			}
+			else if (length >= 0)
+			{
+				remaining = length;
+				state = LENGTH;
+
+				if (length == 0)
+				{
+					writeBody(EMPTY, 0, 0, true);
+				}
+			}
+			else
+			{
+				state = UNTIL_END;
+			}
+		}
+
+		private long parseChunkSize(final String chunkLine)
+				throws IOException
+		{
+			final int semicolon = chunkLine.indexOf(';');
+
+			try
+			{
+				return Long.parseLong((semicolon == -1 ? chunkLine : chunkLine.substring(0, semicolon)).trim(), 16);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid chunk size '" + chunkLine + "'");
+			}
+		}
+
+		private void writeBody(final byte[] b, final int off, final int len, final boolean last)
+				throws IOException
+		{
+			if (last)
+			{
+				state = DONE;
+				ended = true;
+			}
+
+			if (len > 0 || last)
+			{
+				connection.writeData(Http2Stream.this, b, off, len, last);
+			}
+		}
+
+		/**
+		 * Sends END_STREAM if the body runs to the end of the stream.
+		 *
+		 * @return <code>false</code> if the response was incomplete
+		 */
+		boolean end()
+				throws IOException
+		{
+			if (state == UNTIL_END)
+			{
+				writeBody(EMPTY, 0, 0, true);
+			}
+
+			return ended;
+		}
+	}
+}
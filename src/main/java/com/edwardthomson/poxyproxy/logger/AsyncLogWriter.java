@@ -0,0 +1,332 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.logger;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands messages to a background thread that formats them and prints them in
+ * batches, so logging threads never wait on the console.
+ * <p>
+ * Messages go through a bounded ring of reusable entries. Logging threads
+ * claim an entry with a compare-and-set and publish it by advancing the
+ * entry's sequence number; nothing is locked or allocated per message. When
+ * the ring is full, the {@link LogOverflowPolicy} decides whether the logging
+ * thread waits or the message is dropped.
+ */
+public class AsyncLogWriter extends LogWriter
+{
+	private static final int MAX_BATCH = 256;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private static final class Entry
+	{
+		long timeMillis;
+		String name;
+		String format;
+		Object[] args;
+		Throwable t;
+	}
+
+	private final PrintStream out;
+	private final PrintStream err;
+	private final LogOverflowPolicy overflowPolicy;
+
+	private final Entry[] entries;
+	private final int mask;
+
+	/*
+	 * An entry's sequence is its position in the ring when it may be claimed,
+	 * and that position plus one once it has been published.
+	 */
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+
+	/* Advanced by the writer thread once messages are printed */
+	private volatile long head;
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final Thread thread;
+	private volatile boolean idle;
+	private volatile boolean closed;
+
+	private final LogFormatter formatter = new LogFormatter();
+	private final StringBuilder batch = new StringBuilder(16 * 1024);
+	private final SynchronousLogWriter closedWriter;
+
+	/**
+	 * @param capacity
+	 *        the number of messages the ring holds, rounded up to a power of
+	 *        two
+	 */
+	public AsyncLogWriter(final int capacity, final LogOverflowPolicy overflowPolicy)
+	{
+		this(capacity, overflowPolicy, System.out, System.err);
+	}
+
+	public AsyncLogWriter(
+			final int capacity,
+			final LogOverflowPolicy overflowPolicy,
+			final PrintStream out,
+			final PrintStream err)
+	{
+		if (capacity < 1)
+		{
+			throw new IllegalArgumentException("capacity");
+		}
+
+		final int size = capacity > (1 << 30) ? (1 << 30) : Integer.highestOneBit(capacity - 1) << 1;
+
+		this.entries = new Entry[Math.max(size, 2)];
+		this.mask = entries.length - 1;
+		this.sequences = new AtomicLongArray(entries.length);
+
+		for (int i = 0; i < entries.length; i++)
+		{
+			entries[i] = new Entry();
+			sequences.set(i, i);
+		}
+
+		this.out = out;
+		this.err = err;
+		this.overflowPolicy = overflowPolicy;
+		this.closedWriter = new SynchronousLogWriter(out, err);
+
+		this.thread = new Thread(this::run, "Log writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	@Override
+	void write(final long timeMillis, final String name, final String format, final Object[] args, final Throwable t)
+	{
+		if (closed)
+		{
+			closedWriter.write(timeMillis, name, format, args, t);
+			return;
+		}
+
+		long position = tail.get();
+		int index;
+
+		while (true)
+		{
+			index = (int) (position & mask);
+			final long available = sequences.get(index) - position;
+
+			if (available == 0)
+			{
+				if (tail.compareAndSet(position, position + 1))
+				{
+					break;
+				}
+			}
+			else if (available < 0)
+			{
+				// Full: the writer hasn't freed this entry from the last lap
+				if (overflowPolicy == LogOverflowPolicy.Drop || closed)
+				{
+					dropped.increment();
+					return;
+				}
+
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+			}
+
+			position = tail.get();
+		}
+
+		final Entry entry = entries[index];
+		entry.timeMillis = timeMillis;
+		entry.name = name;
+		entry.format = format;
+		entry.args = args;
+		entry.t = t;
+
+		sequences.set(index, position + 1);
+
+		if (idle)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void flush()
+	{
+		final long target = tail.get();
+		final long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+
+		while (head < target && thread.isAlive() && System.nanoTime() - deadline < 0)
+		{
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		closed = true;
+		LockSupport.unpark(thread);
+
+		try
+		{
+			thread.join(TimeUnit.NANOSECONDS.toMillis(FLUSH_TIMEOUT_NANOS));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if (!thread.isAlive())
+		{
+			// Print anything published while the writer was finishing
+			while (drain() > 0)
+			{
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages dropped because the ring was full
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.sum();
+	}
+
+	private void run()
+	{
+		long reportedDropped = 0;
+
+		while (true)
+		{
+			final boolean wasClosed = closed;
+			final int count = drain();
+
+			final long droppedNow = dropped.sum();
+			if (droppedNow != reportedDropped)
+			{
+				batch.setLength(0);
+				formatter.format(
+						batch,
+						System.currentTimeMillis(),
+						Logger.class.getPackage().getName(),
+						"Dropped {} log messages because the log buffer was full",
+						new Object[] { droppedNow - reportedDropped },
+						null);
+				print();
+				reportedDropped = droppedNow;
+			}
+
+			if (count > 0)
+			{
+				continue;
+			}
+
+			if (wasClosed)
+			{
+				out.flush();
+				return;
+			}
+
+			idle = true;
+
+			// Check again so a message published before idle was set isn't left waiting
+			if (!isPublished(head))
+			{
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+
+			idle = false;
+		}
+	}
+
+	private boolean isPublished(final long position)
+	{
+		return sequences.get((int) (position & mask)) == position + 1;
+	}
+
+	/**
+	 * Formats and prints up to {@link #MAX_BATCH} published messages.
+	 *
+	 * @return the number of messages printed
+	 */
+	private int drain()
+	{
+		long position = head;
+		int count = 0;
+
+		batch.setLength(0);
+
+		while (count < MAX_BATCH && isPublished(position))
+		{
+			final int index = (int) (position & mask);
+			final Entry entry = entries[index];
+
+			try
+			{
+				formatter.format(batch, entry.timeMillis, entry.name, entry.format, entry.args, entry.t);
+			}
+			catch (RuntimeException e)
+			{
+				// An argument's toString() failed; keep the writer alive
+				batch.append("(could not format log message: ").append(e).append(")\n");
+			}
+
+			final Throwable t = entry.t;
+
+			entry.name = null;
+			entry.format = null;
+			entry.args = null;
+			entry.t = null;
+
+			sequences.set(index, position + entries.length);
+			position++;
+			count++;
+
+			if (t != null)
+			{
+				// Stack traces go to stderr, after the lines before them
+				print();
+				batch.setLength(0);
+				t.printStackTrace(err);
+			}
+		}
+
+		if (batch.length() > 0)
+		{
+			print();
+		}
+
+		head = position;
+
+		if (batch.capacity() > 256 * 1024)
+		{
+			batch.setLength(0);
+			batch.trimToSize();
+		}
+
+		return count;
+	}
+
+	private void print()
+	{
+		out.print(batch);
+		out.flush();
+	}
+}
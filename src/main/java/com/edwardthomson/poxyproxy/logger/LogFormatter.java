@@ -0,0 +1,113 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.logger;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Formats log lines. The timestamp is only formatted again when the second
+ * changes. Not thread safe; each writer has its own.
+ */
+class LogFormatter
+{
+	private static final DateTimeFormatter DATE_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	private long second = Long.MIN_VALUE;
+	private String formattedSecond;
+
+	/**
+	 * Appends "[time] name: message" and, if there is a throwable, ": " and
+	 * its message, followed by a newline. The throwable's stack trace is not
+	 * included.
+	 */
+	void format(
+			final StringBuilder out,
+			final long timeMillis,
+			final String name,
+			final String format,
+			final Object[] args,
+			final Throwable t)
+	{
+		out.append('[').append(timestamp(timeMillis)).append("] ").append(name).append(": ");
+
+		if (format != null)
+		{
+			appendMessage(out, format, args);
+		}
+		if (format != null && t != null)
+		{
+			out.append(": ").append(t.getMessage());
+		}
+
+		out.append('\n');
+	}
+
+	private String timestamp(final long timeMillis)
+	{
+		final long s = Math.floorDiv(timeMillis, 1000L);
+
+		if (s != second)
+		{
+			formattedSecond = DATE_FORMAT.format(Instant.ofEpochSecond(s));
+			second = s;
+		}
+
+		return formattedSecond;
+	}
+
+	/**
+	 * Appends the format with each "{}" replaced by the next argument. Extra
+	 * arguments are ignored, and placeholders without an argument are kept.
+	 */
+	static void appendMessage(final StringBuilder out, final String format, final Object[] args)
+	{
+		if (args == null || args.length == 0)
+		{
+			out.append(format);
+			return;
+		}
+
+		int start = 0;
+		int arg = 0;
+
+		while (arg < args.length)
+		{
+			final int placeholder = format.indexOf("{}", start);
+
+			if (placeholder < 0)
+			{
+				break;
+			}
+
+			out.append(format, start, placeholder).append(args[arg++]);
+			start = placeholder + 2;
+		}
+
+		out.append(format, start, format.length());
+	}
+
+	/**
+	 * @return the number of "{}" in the format
+	 */
+	static int countPlaceholders(final String format)
+	{
+		int count = 0;
+
+		if (format != null)
+		{
+			for (int i = format.indexOf("{}"); i >= 0; i = format.indexOf("{}", i + 2))
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+}
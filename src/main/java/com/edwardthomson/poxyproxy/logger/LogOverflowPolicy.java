@@ -0,0 +1,19 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.logger;
+
+/**
+ * What an {@link AsyncLogWriter} does with a message when its buffer is full.
+ */
+public enum LogOverflowPolicy
+{
+	/** Wait for the writer to make room */
+	Block,
+
+	/** Drop the message; the writer reports how many were dropped */
+	Drop
+}
@@ -0,0 +1,37 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.logger;
+
+/**
+ * Where enabled log messages go once a {@link Logger} has accepted them.
+ */
+public abstract class LogWriter
+{
+	/**
+	 * Writes a message, or queues it to be written.
+	 *
+	 * @param format
+	 *        the message, with a "{}" for each argument; may be
+	 *        <code>null</code> if there is a throwable
+	 * @param args
+	 *        the arguments, or <code>null</code>; they are formatted later so
+	 *        must not be changed afterward
+	 */
+	abstract void write(long timeMillis, String name, String format, Object[] args, Throwable t);
+
+	/**
+	 * Waits (a short while at most) until the messages written so far are
+	 * out.
+	 */
+	public abstract void flush();
+
+	/**
+	 * Flushes and stops the writer. Messages written afterward are written
+	 * directly.
+	 */
+	public abstract void close();
+}
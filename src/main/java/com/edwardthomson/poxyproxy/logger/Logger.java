@@ -1,14 +1,88 @@
 package com.edwardthomson.poxyproxy.logger;
 
+import java.util.Arrays;
+import java.util.function.Supplier;
+
 public abstract class Logger
 {
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
 	protected static volatile LogLevel level;
 
+	private static volatile LogWriter writer;
+	private static boolean shutdownHookAdded;
+
 	public static void setLevel(LogLevel level)
 	{
 		Logger.level = level;
 	}
 
+	/**
+	 * Sends messages to the given writer from now on, closing the previous one
+	 * (which prints what it had queued).
+	 */
+	public static void setWriter(LogWriter writer)
+	{
+		final LogWriter previous;
+
+		synchronized (Logger.class)
+		{
+			previous = Logger.writer;
+			Logger.writer = writer;
+			addShutdownHook();
+		}
+
+		if (previous != null)
+		{
+			previous.close();
+		}
+	}
+
+	/**
+	 * @return the writer messages go to; an {@link AsyncLogWriter} of
+	 *         {@link #DEFAULT_BUFFER_SIZE} messages that blocks when full,
+	 *         unless {@link #setWriter(LogWriter)} was called
+	 */
+	public static LogWriter getWriter()
+	{
+		final LogWriter w = writer;
+
+		if (w != null)
+		{
+			return w;
+		}
+
+		synchronized (Logger.class)
+		{
+			if (writer == null)
+			{
+				writer = new AsyncLogWriter(DEFAULT_BUFFER_SIZE, LogOverflowPolicy.Block);
+				addShutdownHook();
+			}
+
+			return writer;
+		}
+	}
+
+	/* Prints what's queued when the process exits */
+	private static void addShutdownHook()
+	{
+		if (!shutdownHookAdded)
+		{
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> getWriter().close(), "Log writer shutdown"));
+			shutdownHookAdded = true;
+		}
+	}
+
+	/**
+	 * Waits (a short while at most) until the messages logged so far are
+	 * printed.
+	 */
+	public static void flush()
+	{
+		getWriter().flush();
+	}
+
 	@SuppressWarnings("rawtypes")
 	public static Logger getLogger(Class c)
 	{
@@ -21,6 +95,87 @@ public abstract class Logger
 	}
 
 	public abstract boolean isEnabled(LogLevel level);
-	public abstract void write(LogLevel level, String message);
-	public abstract void write(LogLevel level, String message, Throwable t);
+
+	/**
+	 * Logs a message whose arguments are only formatted (by the writer) if the
+	 * level is enabled. Each "{}" in the message is replaced by the next
+	 * argument. The arguments must not be changed after they are logged.
+	 */
+	protected abstract void log(LogLevel level, String format, Object[] args, Throwable t);
+
+	public void write(LogLevel level, String message)
+	{
+		if (isEnabled(level))
+		{
+			log(level, message, null, null);
+		}
+	}
+
+	/**
+	 * Logs <code>message</code> and the throwable's message, or, if the
+	 * message has a "{}", replaces it with the throwable instead.
+	 */
+	public void write(LogLevel level, String message, Throwable t)
+	{
+		if (isEnabled(level))
+		{
+			logArgs(level, message, new Object[] { t });
+		}
+	}
+
+	/**
+	 * Logs <code>format</code> with "{}" replaced by <code>arg</code>. As with
+	 * any of these, a last argument that is a {@link Throwable} with no "{}"
+	 * left for it is logged as the exception.
+	 */
+	public void write(LogLevel level, String format, Object arg)
+	{
+		if (isEnabled(level))
+		{
+			logArgs(level, format, new Object[] { arg });
+		}
+	}
+
+	public void write(LogLevel level, String format, Object arg1, Object arg2)
+	{
+		if (isEnabled(level))
+		{
+			logArgs(level, format, new Object[] { arg1, arg2 });
+		}
+	}
+
+	public void write(LogLevel level, String format, Object arg1, Object arg2, Object arg3)
+	{
+		if (isEnabled(level))
+		{
+			logArgs(level, format, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	/**
+	 * Logs the message from <code>message</code>, which is only called if the
+	 * level is enabled.
+	 */
+	public void write(LogLevel level, Supplier<String> message)
+	{
+		if (isEnabled(level))
+		{
+			log(level, message.get(), null, null);
+		}
+	}
+
+	private void logArgs(LogLevel level, String format, Object[] args)
+	{
+		final Object last = args[args.length - 1];
+
+		if (last instanceof Throwable && LogFormatter.countPlaceholders(format) < args.length)
+		{
+			final Object[] rest = args.length > 1 ? Arrays.copyOf(args, args.length - 1) : null;
+			log(level, format, rest, (Throwable) last);
+		}
+		else
+		{
+			log(level, format, args, null);
+		}
+	}
 }
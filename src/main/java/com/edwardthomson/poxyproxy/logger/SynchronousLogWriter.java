@@ -0,0 +1,91 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.logger;
+
+import java.io.PrintStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Formats and prints each message on the calling thread, one at a time. A
+ * {@link ReentrantLock} rather than synchronized methods keeps a virtual
+ * thread that blocks printing from pinning its carrier.
+ */
+public class SynchronousLogWriter extends LogWriter
+{
+	private final PrintStream out;
+	private final PrintStream err;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/* Guarded by lock */
+	private final LogFormatter formatter = new LogFormatter();
+	private final StringBuilder line = new StringBuilder(256);
+
+	public SynchronousLogWriter()
+	{
+		this(System.out, System.err);
+	}
+
+	public SynchronousLogWriter(final PrintStream out, final PrintStream err)
+	{
+		this.out = out;
+		this.err = err;
+	}
+
+	@Override
+	void write(
+			final long timeMillis,
+			final String name,
+			final String format,
+			final Object[] args,
+			final Throwable t)
+	{
+		lock.lock();
+		try
+		{
+			line.setLength(0);
+			formatter.format(line, timeMillis, name, format, args, t);
+			out.print(line);
+
+			if (t != null)
+			{
+				out.flush();
+				t.printStackTrace(err);
+			}
+
+			if (line.capacity() > 64 * 1024)
+			{
+				line.setLength(0);
+				line.trimToSize();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush()
+	{
+		lock.lock();
+		try
+		{
+			out.flush();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		flush();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram: values are
+ * counted in buckets whose width grows with the value, so every recorded
+ * value is kept to within 1/64 (about 1.6%) no matter how large it is.
+ * <p>
+ * Values below 128 have a bucket each. Above that, each power of two is split
+ * into 64 buckets. Recording is an index computation and an atomic increment.
+ */
+public class Histogram
+{
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+	/** Larger values are counted as this; in nanoseconds, about 9 hours */
+	public static final long MAX_VALUE = (1L << 45) - 1;
+
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a value; negative values are recorded as 0.
+	 */
+	public void record(long value)
+	{
+		if (value < 0)
+		{
+			value = 0;
+		}
+		else if (value > MAX_VALUE)
+		{
+			value = MAX_VALUE;
+		}
+
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		final long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @return a copy of the counts from which percentiles can be read
+	 *         consistently
+	 */
+	public Snapshot snapshot()
+	{
+		final long[] copy = new long[BUCKETS];
+		long total = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+
+		return new Snapshot(copy, total, getMax());
+	}
+
+	private static int index(final long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+
+		// Keep the top SUB_BUCKET_BITS bits of the value
+		final int shift = (64 - SUB_BUCKET_BITS) - Long.numberOfLeadingZeros(value);
+
+		return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) ((value >>> shift) - HALF_SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the largest value counted in the bucket
+	 */
+	private static long highestValue(final int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+
+		final int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+		final long lowest = (long) ((index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS) << shift;
+
+		return lowest + (1L << shift) - 1;
+	}
+
+	public static class Snapshot
+	{
+		private final long[] counts;
+		private final long total;
+		private final long max;
+
+		private Snapshot(final long[] counts, final long total, final long max)
+		{
+			this.counts = counts;
+			this.total = total;
+			this.max = max;
+		}
+
+		public long getCount()
+		{
+			return total;
+		}
+
+		/**
+		 * @param percentile
+		 *        from 0 to 100
+		 * @return the value at or below which the given percentage of values
+		 *         fall, or 0 if nothing was recorded
+		 */
+		public long getValueAtPercentile(final double percentile)
+		{
+			if (total == 0)
+			{
+				return 0;
+			}
+
+			final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+			long seen = 0;
+
+			for (int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+
+				if (seen >= rank)
+				{
+					// The bucket's bound may be above anything recorded
+					return Math.min(highestValue(i), max);
+				}
+			}
+
+			return max;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a client in {@link Metrics#addBytesIn(long)}.
+ */
+public class MeteredInputStream
+extends FilterInputStream
+{
+	private final Metrics metrics;
+
+	public MeteredInputStream(final InputStream in, final Metrics metrics)
+	{
+		super(in);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public int read()
+			throws IOException
+	{
+		final int b = in.read();
+
+		if (b != -1)
+		{
+			metrics.addBytesIn(1);
+		}
+
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException
+	{
+		final int read = in.read(b, off, len);
+
+		if (read > 0)
+		{
+			metrics.addBytesIn(read);
+		}
+
+		return read;
+	}
+
+	@Override
+	public long skip(final long n)
+			throws IOException
+	{
+		final long skipped = in.skip(n);
+
+		if (skipped > 0)
+		{
+			metrics.addBytesIn(skipped);
+		}
+
+		return skipped;
+	}
+}
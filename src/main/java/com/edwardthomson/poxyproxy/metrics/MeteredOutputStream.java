@@ -0,0 +1,42 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a client in {@link Metrics#addBytesOut(long)}.
+ */
+public class MeteredOutputStream
+extends FilterOutputStream
+{
+	private final Metrics metrics;
+
+	public MeteredOutputStream(final OutputStream out, final Metrics metrics)
+	{
+		super(out);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void write(final int b)
+			throws IOException
+	{
+		out.write(b);
+		metrics.addBytesOut(1);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException
+	{
+		out.write(b, off, len);
+		metrics.addBytesOut(len);
+	}
+}
@@ -0,0 +1,447 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms for each {@link Phase} of a request, and counters for
+ * traffic, requests and open connections. Everything can be updated from any
+ * thread without locking.
+ */
+public class Metrics
+{
+	private static final String[] METHODS =
+	{
+		"GET", "POST", "HEAD", "CONNECT"
+	};
+
+	private static final double[] PERCENTILES =
+	{
+		50, 99, 99.9
+	};
+
+	private final Histogram[] phases = new Histogram[Phase.values().length];
+
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/* Indexed like METHODS, with other methods last */
+	private final LongAdder[] requestsByMethod = new LongAdder[METHODS.length + 1];
+	private final Map<Integer, LongAdder> responsesByStatus = new ConcurrentHashMap<Integer, LongAdder>();
+
+	private final LongAdder activeConnections = new LongAdder();
+	private final LongAdder activeTunnels = new LongAdder();
+
+	private final LongAdder admissionQueued = new LongAdder();
+	private final LongAdder rejectedQueueFull = new LongAdder();
+	private final LongAdder rejectedClientLimit = new LongAdder();
+	private final LongAdder rejectedQueueTimeout = new LongAdder();
+
+	/* Request heads cut off for arriving too late or too slowly */
+	private final LongAdder headTimeouts = new LongAdder();
+	private final LongAdder slowHeads = new LongAdder();
+
+	/* Connections refused because their client sent slow heads */
+	private final LongAdder slowClientsRefused = new LongAdder();
+
+	/* Heads over a size limit, from clients and from servers */
+	private final LongAdder oversizedRequestHeads = new LongAdder();
+	private final LongAdder oversizedResponseHeads = new LongAdder();
+
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheRevalidations = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder cacheBytesServed = new LongAdder();
+	private final LongAdder cacheBytesStored = new LongAdder();
+	private final LongAdder cacheEvictions = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder coalescedBytes = new LongAdder();
+
+	public Metrics()
+	{
+		for (int i = 0; i < phases.length; i++)
+		{
+			phases[i] = new Histogram();
+		}
+
+		for (int i = 0; i < requestsByMethod.length; i++)
+		{
+			requestsByMethod[i] = new LongAdder();
+		}
+	}
+
+	public Histogram getHistogram(final Phase phase)
+	{
+		return phases[phase.ordinal()];
+	}
+
+	/**
+	 * Records the time from <code>startNanos</code> (a
+	 * {@link System#nanoTime()} value) until now.
+	 *
+	 * @return the current {@link System#nanoTime()}, to start the next phase
+	 */
+	public long record(final Phase phase, final long startNanos)
+	{
+		final long now = System.nanoTime();
+		phases[phase.ordinal()].record(now - startNanos);
+		return now;
+	}
+
+	/**
+	 * @return the phase for connecting to the server or the forward proxy
+	 */
+	public static Phase connectPhase(final boolean useProxy)
+	{
+		return useProxy ? Phase.ConnectForwardProxy : Phase.ConnectDirect;
+	}
+
+	/**
+	 * Counts bytes read from clients.
+	 */
+	public void addBytesIn(final long count)
+	{
+		bytesIn.add(count);
+	}
+
+	/**
+	 * Counts bytes written to clients.
+	 */
+	public void addBytesOut(final long count)
+	{
+		bytesOut.add(count);
+	}
+
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	public void countRequest(final String method)
+	{
+		requestsByMethod[methodIndex(method)].increment();
+	}
+
+	public void countResponse(final int status)
+	{
+		LongAdder counter = responsesByStatus.get(status);
+
+		if (counter == null)
+		{
+			counter = responsesByStatus.computeIfAbsent(status, s -> new LongAdder());
+		}
+
+		counter.increment();
+	}
+
+	public void connectionOpened()
+	{
+		activeConnections.increment();
+	}
+
+	public void connectionClosed()
+	{
+		activeConnections.decrement();
+	}
+
+	public long getActiveConnections()
+	{
+		return activeConnections.sum();
+	}
+
+	public void tunnelOpened()
+	{
+		activeTunnels.increment();
+	}
+
+	public void tunnelClosed()
+	{
+		activeTunnels.decrement();
+	}
+
+	public long getActiveTunnels()
+	{
+		return activeTunnels.sum();
+	}
+
+	/**
+	 * Counts a client connection waiting for a thread.
+	 */
+	public void admissionQueued()
+	{
+		admissionQueued.increment();
+	}
+
+	public void admissionStarted()
+	{
+		admissionQueued.decrement();
+	}
+
+	public long getAdmissionQueued()
+	{
+		return admissionQueued.sum();
+	}
+
+	/**
+	 * Counts a client connection rejected because too many were waiting.
+	 */
+	public void countRejectedQueueFull()
+	{
+		rejectedQueueFull.increment();
+	}
+
+	/**
+	 * Counts a client connection rejected because its client had too many.
+	 */
+	public void countRejectedClientLimit()
+	{
+		rejectedClientLimit.increment();
+	}
+
+	/**
+	 * Counts a client connection rejected after waiting too long.
+	 */
+	public void countRejectedQueueTimeout()
+	{
+		rejectedQueueTimeout.increment();
+	}
+
+	public long getRejected()
+	{
+		return rejectedQueueFull.sum() + rejectedClientLimit.sum() + rejectedQueueTimeout.sum();
+	}
+
+	/**
+	 * Counts a request head cut off for taking longer than the header read
+	 * timeout.
+	 */
+	public void countHeadTimeout()
+	{
+		headTimeouts.increment();
+	}
+
+	/**
+	 * Counts a request head cut off for arriving slower than the minimum rate.
+	 */
+	public void countSlowHead()
+	{
+		slowHeads.increment();
+	}
+
+	/**
+	 * Counts a client connection refused because its client sent slow heads.
+	 */
+	public void countSlowClientRefused()
+	{
+		slowClientsRefused.increment();
+	}
+
+	/**
+	 * Counts a request refused because its head was over a limit.
+	 */
+	public void countOversizedRequestHead()
+	{
+		oversizedRequestHeads.increment();
+	}
+
+	/**
+	 * Counts a response not forwarded because its head was over a limit.
+	 */
+	public void countOversizedResponseHead()
+	{
+		oversizedResponseHeads.increment();
+	}
+
+	/**
+	 * Counts a response served from the cache without asking the server.
+	 */
+	public void countCacheHit(final long bodyBytes)
+	{
+		cacheHits.increment();
+		cacheBytesServed.add(bodyBytes);
+	}
+
+	/**
+	 * Counts a response served from the cache after the server said it was
+	 * still current.
+	 */
+	public void countCacheRevalidation(final long bodyBytes)
+	{
+		cacheRevalidations.increment();
+		cacheBytesServed.add(bodyBytes);
+	}
+
+	/**
+	 * Counts a cacheable request that had to be fetched from the server.
+	 */
+	public void countCacheMiss()
+	{
+		cacheMisses.increment();
+	}
+
+	public void countCacheStore(final long bodyBytes)
+	{
+		cacheBytesStored.add(bodyBytes);
+	}
+
+	public void countCacheEviction()
+	{
+		cacheEvictions.increment();
+	}
+
+	/**
+	 * Counts a request answered with the response to an identical request
+	 * that was already in flight.
+	 */
+	public void countCoalesced(final long bodyBytes)
+	{
+		coalesced.increment();
+		coalescedBytes.add(bodyBytes);
+	}
+
+	public long getCoalesced()
+	{
+		return coalesced.sum();
+	}
+
+	public long getCacheHits()
+	{
+		return cacheHits.sum();
+	}
+
+	public long getCacheRevalidations()
+	{
+		return cacheRevalidations.sum();
+	}
+
+	public long getCacheMisses()
+	{
+		return cacheMisses.sum();
+	}
+
+	public long getCacheBytesServed()
+	{
+		return cacheBytesServed.sum();
+	}
+
+	/**
+	 * @return a multi-line summary: counters, then count, p50, p99, p99.9 and
+	 *         max for each phase
+	 */
+	public String report()
+	{
+		final StringBuilder out = new StringBuilder(1024);
+
+		out.append(activeConnections.sum()).append(" active connections, ");
+		out.append(activeTunnels.sum()).append(" active tunnels, ");
+		out.append(bytesIn.sum()).append(" bytes in, ");
+		out.append(bytesOut.sum()).append(" bytes out\n");
+
+		out.append("  requests:");
+		for (int i = 0; i < requestsByMethod.length; i++)
+		{
+			out.append(' ').append(i < METHODS.length ? METHODS[i] : "other").append('=').append(requestsByMethod[i].sum());
+		}
+		out.append('\n');
+
+		out.append("  responses:");
+		for (Map.Entry<Integer, LongAdder> e : new TreeMap<Integer, LongAdder>(responsesByStatus).entrySet())
+		{
+			out.append(' ').append(e.getKey()).append('=').append(e.getValue().sum());
+		}
+
+		if (cacheHits.sum() + cacheRevalidations.sum() + cacheMisses.sum() > 0)
+		{
+			out.append("\n  cache: hits=").append(cacheHits.sum());
+			out.append(" revalidated=").append(cacheRevalidations.sum());
+			out.append(" misses=").append(cacheMisses.sum());
+			out.append(" bytes served=").append(cacheBytesServed.sum());
+			out.append(" bytes stored=").append(cacheBytesStored.sum());
+			out.append(" evictions=").append(cacheEvictions.sum());
+		}
+
+		if (admissionQueued.sum() + getRejected() > 0)
+		{
+			out.append("\n  admission: queued=").append(admissionQueued.sum());
+			out.append(" rejected queue full=").append(rejectedQueueFull.sum());
+			out.append(" client limit=").append(rejectedClientLimit.sum());
+			out.append(" queue timeout=").append(rejectedQueueTimeout.sum());
+		}
+
+		if (headTimeouts.sum() + slowHeads.sum() + slowClientsRefused.sum() > 0)
+		{
+			out.append("\n  slow clients: timed out=").append(headTimeouts.sum());
+			out.append(" too slow=").append(slowHeads.sum());
+			out.append(" refused=").append(slowClientsRefused.sum());
+		}
+
+		if (oversizedRequestHeads.sum() + oversizedResponseHeads.sum() > 0)
+		{
+			out.append("\n  oversized heads: requests=").append(oversizedRequestHeads.sum());
+			out.append(" responses=").append(oversizedResponseHeads.sum());
+		}
+
+		if (coalesced.sum() > 0)
+		{
+			out.append("\n  collapsed: requests=").append(coalesced.sum());
+			out.append(" bytes served=").append(coalescedBytes.sum());
+		}
+
+		for (Phase phase : Phase.values())
+		{
+			final Histogram.Snapshot snapshot = getHistogram(phase).snapshot();
+
+			out.append("\n  ").append(phase.getDescription()).append(": count=").append(snapshot.getCount());
+
+			for (double percentile : PERCENTILES)
+			{
+				out.append(" p").append(formatPercentile(percentile)).append('=');
+				appendMillis(out, snapshot.getValueAtPercentile(percentile));
+			}
+
+			out.append(" max=");
+			appendMillis(out, getHistogram(phase).getMax());
+		}
+
+		return out.toString();
+	}
+
+	private static int methodIndex(final String method)
+	{
+		for (int i = 0; i < METHODS.length; i++)
+		{
+			if (METHODS[i].equals(method))
+			{
+				return i;
+			}
+		}
+
+		return METHODS.length;
+	}
+
+	private static String formatPercentile(final double percentile)
+	{
+		// 99.9 is written p999, as usual
+		return percentile == Math.rint(percentile)
+				? Long.toString((long) percentile)
+				: Double.toString(percentile).replace(".", "");
+	}
+
+	private static void appendMillis(final StringBuilder out, final long nanos)
+	{
+		out.append(String.format("%.3fms", nanos / 1000000.0));
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.metrics;
+
+/**
+ * The parts of handling a request whose latency {@link Metrics} records.
+ */
+public enum Phase
+{
+	/** From accepting a client connection until a thread starts serving it */
+	AdmissionWait("admission queue wait"),
+
+	/** From accepting a client connection until its first request line is read */
+	FirstByte("accept to first byte"),
+
+	/** Reading the request headers after the request line */
+	HeaderParse("header parse"),
+
+	/** Connecting a new socket to the server */
+	ConnectDirect("connect direct"),
+
+	/** Connecting a new socket to the forward proxy */
+	ConnectForwardProxy("connect forward proxy"),
+
+	/** Sending the request head and body to the server or forward proxy */
+	RequestForward("request forward"),
+
+	/** From sending the request until the response status line is read */
+	TimeToFirstByte("upstream first byte"),
+
+	/** Copying the response headers and body to the client */
+	BodyTransfer("body transfer");
+
+	private final String description;
+
+	private Phase(final String description)
+	{
+		this.description = description;
+	}
+
+	public String getDescription()
+	{
+		return description;
+	}
+}
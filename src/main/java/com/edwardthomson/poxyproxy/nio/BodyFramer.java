@@ -0,0 +1,257 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.edwardthomson.poxyproxy.HTTPException;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.HeaderUtils;
+
+/**
+ * Finds the end of an HTTP message body as its bytes arrive, so the bytes can
+ * be relayed unchanged without blocking for the rest of the body. Supports
+ * Content-Length bodies, chunked bodies (including trailers) and bodies that
+ * end when the connection closes.
+ */
+public class BodyFramer
+{
+	private static final int MODE_NONE = 0;
+	private static final int MODE_LENGTH = 1;
+	private static final int MODE_CHUNKED = 2;
+	private static final int MODE_UNTIL_CLOSE = 3;
+
+	private static final int CHUNK_SIZE = 0;
+	private static final int CHUNK_DATA = 1;
+	private static final int CHUNK_DATA_END = 2;
+	private static final int CHUNK_TRAILER_START = 3;
+	private static final int CHUNK_TRAILER = 4;
+	private static final int CHUNK_COMPLETE = 5;
+
+	private final int mode;
+
+	/* Bytes left in the body (length mode) or in the current chunk */
+	private long remaining;
+
+	private int chunkState = CHUNK_SIZE;
+	private int chunkSizeDigits = 0;
+	private boolean inChunkExtension = false;
+
+	private BodyFramer(final int mode, final long remaining)
+	{
+		this.mode = mode;
+		this.remaining = remaining;
+	}
+
+	public static BodyFramer none()
+	{
+		return new BodyFramer(MODE_NONE, 0);
+	}
+
+	public static BodyFramer untilClose()
+	{
+		return new BodyFramer(MODE_UNTIL_CLOSE, 0);
+	}
+
+	public static BodyFramer contentLength(final long length)
+	{
+		return length > 0 ? new BodyFramer(MODE_LENGTH, length) : none();
+	}
+
+	public static BodyFramer chunked()
+	{
+		return new BodyFramer(MODE_CHUNKED, 0);
+	}
+
+	/**
+	 * Frames a request body the way the blocking request handler does: chunked
+	 * or Content-Length, otherwise no body.
+	 */
+	public static BodyFramer forRequest(final List<Header> headers)
+	{
+		if (HeaderUtils.isChunked(headers))
+		{
+			return chunked();
+		}
+
+		return contentLength(HeaderUtils.getContentLength(headers));
+	}
+
+	/**
+	 * Frames a response body the way the blocking request handler does.
+	 */
+	public static BodyFramer forResponse(final boolean headRequest, final List<Header> headers)
+	{
+		if (headRequest)
+		{
+			return none();
+		}
+		else if (HeaderUtils.isChunked(headers))
+		{
+			return chunked();
+		}
+
+		final long length = HeaderUtils.getContentLength(headers);
+
+		if (length > 0)
+		{
+			return contentLength(length);
+		}
+		else if (HeaderUtils.isConnectionClose(headers) || HeaderUtils.isProxyConnectionClose(headers))
+		{
+			return untilClose();
+		}
+
+		return none();
+	}
+
+	public boolean isComplete()
+	{
+		switch (mode)
+		{
+			case MODE_LENGTH:
+				return remaining == 0;
+			case MODE_CHUNKED:
+				return chunkState == CHUNK_COMPLETE;
+			case MODE_UNTIL_CLOSE:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the body only ends when the peer closes the
+	 *         connection
+	 */
+	public boolean isDelimitedByClose()
+	{
+		return mode == MODE_UNTIL_CLOSE;
+	}
+
+	/**
+	 * Examines the readable bytes of the buffer without consuming them.
+	 *
+	 * @return how many of the bytes starting at the buffer's position belong
+	 *         to the body
+	 * @throws HTTPException
+	 *         if the chunked framing is malformed
+	 */
+	public int frame(final ByteBuffer buffer)
+	{
+		final int available = buffer.remaining();
+
+		switch (mode)
+		{
+			case MODE_LENGTH:
+			{
+				final int count = remaining < available ? (int) remaining : available;
+				remaining -= count;
+				return count;
+			}
+			case MODE_CHUNKED:
+				return frameChunked(buffer, buffer.position(), available);
+			case MODE_UNTIL_CLOSE:
+				return available;
+			default:
+				return 0;
+		}
+	}
+
+	private int frameChunked(final ByteBuffer buffer, final int start, final int available)
+	{
+		int i = 0;
+
+		while (i < available && chunkState != CHUNK_COMPLETE)
+		{
+			if (chunkState == CHUNK_DATA)
+			{
+				final int count = remaining < (available - i) ? (int) remaining : (available - i);
+				remaining -= count;
+				i += count;
+
+				if (remaining == 0)
+				{
+					chunkState = CHUNK_DATA_END;
+				}
+
+				continue;
+			}
+
+			final byte b = buffer.get(start + i++);
+
+			switch (chunkState)
+			{
+				case CHUNK_SIZE:
+					if (b == '\n')
+					{
+						if (chunkSizeDigits == 0)
+						{
+							throw new HTTPException("Missing chunk size");
+						}
+
+						chunkState = remaining == 0 ? CHUNK_TRAILER_START : CHUNK_DATA;
+						chunkSizeDigits = 0;
+						inChunkExtension = false;
+					}
+					else if (b == '\r' || inChunkExtension)
+					{
+						// Ignore extensions
+					}
+					else if (b == ';' || b == ' ' || b == '\t')
+					{
+						inChunkExtension = true;
+					}
+					else
+					{
+						final int digit = Character.digit(b, 16);
+
+						if (digit < 0 || remaining > (Long.MAX_VALUE >> 4))
+						{
+							throw new HTTPException("Invalid chunk size");
+						}
+
+						remaining = (remaining << 4) + digit;
+						chunkSizeDigits++;
+					}
+					break;
+
+				case CHUNK_DATA_END:
+					if (b == '\n')
+					{
+						chunkState = CHUNK_SIZE;
+					}
+					else if (b != '\r')
+					{
+						throw new HTTPException("Missing CRLF after chunk data");
+					}
+					break;
+
+				case CHUNK_TRAILER_START:
+					if (b == '\n')
+					{
+						chunkState = CHUNK_COMPLETE;
+					}
+					else if (b != '\r')
+					{
+						chunkState = CHUNK_TRAILER;
+					}
+					break;
+
+				case CHUNK_TRAILER:
+					if (b == '\n')
+					{
+						chunkState = CHUNK_TRAILER_START;
+					}
+					break;
+			}
+		}
+
+		return i;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attached to a {@link SelectionKey} and called by the {@link EventLoop}
+ * that owns the key whenever the key's channel is ready.
+ */
+public interface ChannelHandler
+{
+	/**
+	 * Called on the event loop thread when the key's channel is ready for one
+	 * or more of its interest operations.
+	 *
+	 * @throws IOException
+	 *         if the channel failed; the handler is then closed
+	 */
+	void channelReady(SelectionKey key)
+			throws IOException;
+
+	/**
+	 * Closes every channel the handler owns. Must be idempotent.
+	 */
+	void close();
+}
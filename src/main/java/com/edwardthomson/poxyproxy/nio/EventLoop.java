@@ -0,0 +1,340 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * A single selector thread. Every channel registered with an event loop is
+ * only ever touched from that loop's thread, so {@link ChannelHandler}s need
+ * no locking. Other threads hand work to the loop with {@link #execute}.
+ */
+public class EventLoop
+implements Runnable
+{
+	private final static Logger logger = Logger.getLogger(EventLoop.class);
+
+	private static final int PURGE_MIN_CANCELLED_TIMERS = 256;
+
+	private final String name;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+	private volatile Thread thread;
+	private volatile boolean running = true;
+	private long timerSequence = 0;
+
+	/*
+	 * Cancelled timers still in the queue. Keep-alive connections cancel a
+	 * timer for every request, so they're purged once they're most of it.
+	 */
+	private int cancelledTimers = 0;
+
+	public EventLoop(final String name)
+			throws IOException
+	{
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs the task on the event loop thread. Safe to call from any thread.
+	 */
+	public void execute(final Runnable task)
+	{
+		tasks.add(task);
+
+		if (!inEventLoop())
+		{
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers a channel with this loop's selector. Must be called on the
+	 * event loop thread.
+	 */
+	public SelectionKey register(final SelectableChannel channel, final int ops, final ChannelHandler handler)
+			throws ClosedChannelException
+	{
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * Runs the task on the event loop thread after (at least) the given delay.
+	 * Must be called on the event loop thread.
+	 *
+	 * @return a timer that can be cancelled
+	 */
+	public Timer schedule(final Runnable task, final long delayMilliseconds)
+	{
+		final Timer timer = new Timer(this, task, System.nanoTime() + delayMilliseconds * 1000000L, timerSequence++);
+		timers.add(timer);
+		return timer;
+	}
+
+	public void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run()
+	{
+		thread = Thread.currentThread();
+
+		try
+		{
+			while (running)
+			{
+				final long timeout = nextTimerDelayMilliseconds();
+
+				if (!tasks.isEmpty())
+				{
+					selector.selectNow();
+				}
+				else if (timeout > 0)
+				{
+					selector.select(timeout);
+				}
+				else
+				{
+					selector.select();
+				}
+
+				processSelectedKeys();
+				runTasks();
+				runTimers();
+			}
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.FATAL, "Selector failed in " + name, e);
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+			{
+				closeHandler(key);
+			}
+
+			try
+			{
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.DEBUG, "Error closing selector", e);
+			}
+		}
+	}
+
+	private void processSelectedKeys()
+	{
+		final Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+
+		while (i.hasNext())
+		{
+			final SelectionKey key = i.next();
+			i.remove();
+
+			final ChannelHandler handler = (ChannelHandler) key.attachment();
+
+			try
+			{
+				if (key.isValid())
+				{
+					handler.channelReady(key);
+				}
+			}
+			catch (CancelledKeyException e)
+			{
+				handler.close();
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.DEBUG, "IOException on " + handler, e);
+				handler.close();
+			}
+			catch (Exception e)
+			{
+				logger.write(LogLevel.WARNING, "Unhandled exception on " + handler, e);
+				handler.close();
+			}
+		}
+	}
+
+	private void runTasks()
+	{
+		Runnable task;
+
+		while ((task = tasks.poll()) != null)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				logger.write(LogLevel.WARNING, "Unhandled exception running task in " + name, e);
+			}
+		}
+	}
+
+	private void runTimers()
+	{
+		final long now = System.nanoTime();
+
+		while (!timers.isEmpty() && timers.peek().deadline - now <= 0)
+		{
+			final Timer timer = pollTimer();
+
+			if (!timer.cancelled)
+			{
+				try
+				{
+					timer.task.run();
+				}
+				catch (Exception e)
+				{
+					logger.write(LogLevel.WARNING, "Unhandled exception running timer in " + name, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return milliseconds until the next timer is due, 0 if there are no
+	 *         timers (select indefinitely)
+	 */
+	private long nextTimerDelayMilliseconds()
+	{
+		while (!timers.isEmpty() && timers.peek().cancelled)
+		{
+			pollTimer();
+		}
+
+		if (timers.isEmpty())
+		{
+			return 0;
+		}
+
+		final long delay = (timers.peek().deadline - System.nanoTime()) / 1000000L;
+		return delay > 0 ? delay : 1;
+	}
+
+	private Timer pollTimer()
+	{
+		final Timer timer = timers.poll();
+		timer.queued = false;
+
+		if (timer.cancelled)
+		{
+			cancelledTimers--;
+		}
+
+		return timer;
+	}
+
+	private void timerCancelled()
+	{
+		cancelledTimers++;
+
+		if (cancelledTimers > PURGE_MIN_CANCELLED_TIMERS && cancelledTimers > timers.size() / 2)
+		{
+			timers.removeIf(timer -> timer.cancelled);
+			cancelledTimers = 0;
+		}
+	}
+
+	private void closeHandler(final SelectionKey key)
+	{
+		final Object attachment = key.attachment();
+
+		if (attachment instanceof ChannelHandler)
+		{
+			((ChannelHandler) attachment).close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	/**
+	 * A task scheduled to run on the event loop at a deadline.
+	 */
+	public static class Timer
+	implements Comparable<Timer>
+	{
+		private final EventLoop loop;
+		private final Runnable task;
+		private final long deadline;
+		private final long sequence;
+		private boolean cancelled = false;
+		private boolean queued = true;
+
+		private Timer(final EventLoop loop, final Runnable task, final long deadline, final long sequence)
+		{
+			this.loop = loop;
+			this.task = task;
+			this.deadline = deadline;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Must be called on the event loop thread.
+		 */
+		public void cancel()
+		{
+			if (!cancelled)
+			{
+				cancelled = true;
+
+				if (queued)
+				{
+					loop.timerCancelled();
+				}
+			}
+		}
+
+		public int compareTo(Timer other)
+		{
+			if (deadline != other.deadline)
+			{
+				return deadline - other.deadline < 0 ? -1 : 1;
+			}
+
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,1922 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.edwardthomson.poxyproxy.Constants;
+import com.edwardthomson.poxyproxy.ForwardProxy;
+import com.edwardthomson.poxyproxy.ForwardProxyBalance;
+import com.edwardthomson.poxyproxy.ForwardProxyGroup;
+import com.edwardthomson.poxyproxy.HTTPException;
+import com.edwardthomson.poxyproxy.HeadTooLargeException;
+import com.edwardthomson.poxyproxy.Header;
+import com.edwardthomson.poxyproxy.HeaderUtils;
+import com.edwardthomson.poxyproxy.HttpInputStream;
+import com.edwardthomson.poxyproxy.IOUtils;
+import com.edwardthomson.poxyproxy.Options;
+import com.edwardthomson.poxyproxy.ProxyAuthenticator;
+import com.edwardthomson.poxyproxy.Request;
+import com.edwardthomson.poxyproxy.Response;
+import com.edwardthomson.poxyproxy.Status;
+import com.edwardthomson.poxyproxy.UTF8Utils;
+import com.edwardthomson.poxyproxy.Utils;
+import com.edwardthomson.poxyproxy.cache.CacheControl;
+import com.edwardthomson.poxyproxy.cache.CachePolicy;
+import com.edwardthomson.poxyproxy.cache.CacheWriter;
+import com.edwardthomson.poxyproxy.cache.CachedResponse;
+import com.edwardthomson.poxyproxy.cache.InFlightResponse;
+import com.edwardthomson.poxyproxy.cache.RequestCoalescer;
+import com.edwardthomson.poxyproxy.cache.ResponseCache;
+import com.edwardthomson.poxyproxy.handlers.ConnectRequestHandler;
+import com.edwardthomson.poxyproxy.handlers.DefaultRequestHandler;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+import com.edwardthomson.poxyproxy.metrics.Phase;
+
+/**
+ * The non-blocking counterpart of {@link com.edwardthomson.poxyproxy.Connection}:
+ * one client-to-proxy socket, driven by an {@link EventLoop} as a state machine
+ * instead of by a dedicated thread.
+ * <p>
+ * Requests are handled one at a time, in the same way as the blocking
+ * {@link DefaultRequestHandler} and {@link ConnectRequestHandler}: request and
+ * response heads are parsed and rewritten, bodies are relayed unchanged as
+ * they arrive and CONNECT requests become a {@link Tunnel}.
+ * <p>
+ * Bytes that are waiting to be written are queued per channel. While the
+ * queue for one side is not empty, the other side is not read, so a slow
+ * reader applies backpressure instead of growing the queue.
+ */
+public class NioConnection
+implements ChannelHandler
+{
+	private final static Logger logger = Logger.getLogger(NioConnection.class);
+
+	private static final int CLIENT_BUFFER_SIZE = 8 * 1024;
+	private static final int SERVER_BUFFER_SIZE = 16 * 1024;
+
+	private static final int READ_REQUEST = 0;
+	private static final int CONNECTING = 1;
+	private static final int SEND_REQUEST_BODY = 2;
+	private static final int READ_RESPONSE_HEAD = 3;
+	private static final int RESPONSE_DELAY = 4;
+	private static final int SEND_RESPONSE_BODY = 5;
+	private static final int READ_PROXY_CONNECT_HEAD = 6;
+	private static final int DISCARD_REQUEST_BODY = 7;
+	private static final int FOLLOW_RESPONSE = 8;
+	private static final int CLOSING = 9;
+	private static final int TUNNEL = 10;
+	private static final int CLOSED = 11;
+
+	private final NioEngine engine;
+	private final EventLoop loop;
+	private final Options options;
+	private final SocketChannel clientChannel;
+	private final ProxyAuthenticator authenticator;
+	private final String name;
+
+	private SelectionKey clientKey;
+	private ByteBuffer clientIn = readMode(ByteBuffer.allocate(CLIENT_BUFFER_SIZE));
+	private final Deque<ByteBuffer> toClient = new ArrayDeque<ByteBuffer>();
+	private boolean clientClosed = false;
+
+	private SocketChannel serverChannel;
+	private SelectionKey serverKey;
+	private String serverName;
+	/* The forward proxy the server channel goes through, if any */
+	private ForwardProxy serverProxy;
+	/* Whether the group counts a connect to the server proxy as outstanding */
+	private boolean proxyConnecting = false;
+	private ByteBuffer serverIn = readMode(ByteBuffer.allocate(SERVER_BUFFER_SIZE));
+	private final Deque<ByteBuffer> toServer = new ArrayDeque<ByteBuffer>();
+	private boolean serverClosed = false;
+
+	private int state = READ_REQUEST;
+
+	private long requestCount = 0;
+	private boolean keepAlive = true;
+	private boolean connectionHeaderRead = false;
+
+	/* The exchange in progress */
+	private Request request;
+	private String responseVersion = Constants.VERSION_10;
+	private boolean useProxy;
+	private InetSocketAddress connectTarget;
+	private byte[] requestHead;
+	private BodyFramer requestFramer;
+	private BodyFramer responseFramer;
+	private List<Header> responseHeaders;
+	private String responseStatusLine;
+
+	/* The response cache's view of the exchange in progress */
+	private String cacheKey;
+	private boolean cacheable;
+	private CachedResponse cached;
+	private CacheWriter cacheWriter;
+	private long requestTime;
+
+	/* Sharing the exchange in progress with identical requests */
+	private URI targetURI;
+	private InFlightResponse flight;
+	private InFlightResponse.Follower follower;
+	private boolean followerHeadWritten;
+	private long followerBytes;
+	private boolean awaitingLeader = false;
+	private EventLoop.Timer followTimer;
+
+	private EventLoop.Timer connectTimer;
+	private EventLoop.Timer idleTimer;
+	private long lastActivity = System.nanoTime();
+
+	private final Metrics metrics;
+	private final long acceptNanos = System.nanoTime();
+
+	/* When the current phase of the exchange started, by System.nanoTime() */
+	private long phaseStart;
+
+	public NioConnection(final NioEngine engine, final EventLoop loop, final SocketChannel clientChannel)
+	{
+		this.engine = engine;
+		this.loop = loop;
+		this.options = engine.getOptions();
+		this.clientChannel = clientChannel;
+		this.authenticator = new ProxyAuthenticator(options);
+		this.metrics = options.getMetrics();
+
+		String remote;
+		try
+		{
+			remote = String.valueOf(clientChannel.getRemoteAddress());
+		}
+		catch (IOException e)
+		{
+			remote = "(unknown)";
+		}
+		this.name = "NioConnection-" + remote;
+	}
+
+	/**
+	 * Registers the client channel and starts reading the first request. Must
+	 * be called on the event loop thread.
+	 */
+	public void start()
+	{
+		metrics.connectionOpened();
+
+		try
+		{
+			clientChannel.configureBlocking(false);
+			clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			clientKey = loop.register(clientChannel, SelectionKey.OP_READ, this);
+			scheduleIdleCheck(options.getSocketReadTimeoutSeconds() * 1000L);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not register " + name, e);
+			close();
+		}
+	}
+
+	public void channelReady(final SelectionKey key)
+			throws IOException
+	{
+		if (key == clientKey)
+		{
+			if (key.isWritable())
+			{
+				flush(toClient, clientChannel);
+			}
+
+			if (key.isValid() && key.isReadable())
+			{
+				readClient();
+			}
+		}
+		else if (key == serverKey)
+		{
+			if (key.isConnectable())
+			{
+				finishConnect();
+			}
+			else
+			{
+				if (key.isWritable())
+				{
+					flush(toServer, serverChannel);
+				}
+
+				if (key.isValid() && key.isReadable())
+				{
+					readServer();
+				}
+			}
+		}
+
+		advance();
+	}
+
+	public void close()
+	{
+		if (state == CLOSED)
+		{
+			return;
+		}
+
+		final boolean handedOff = (state == TUNNEL);
+		state = CLOSED;
+
+		if (!handedOff)
+		{
+			metrics.connectionClosed();
+		}
+
+		if (idleTimer != null)
+		{
+			idleTimer.cancel();
+		}
+
+		if (connectTimer != null)
+		{
+			connectTimer.cancel();
+		}
+
+		cancelFollowTimer();
+		failFlight();
+
+		// A tunnel owns the channels now
+		if (!handedOff)
+		{
+			closeServer();
+			closeChannel(clientKey, clientChannel);
+		}
+	}
+
+	/**
+	 * Makes as much progress as the buffered bytes allow, then updates the
+	 * interest operations of both channels to wait for more.
+	 */
+	private void advance()
+			throws IOException
+	{
+		boolean progress = true;
+
+		while (progress && state != CLOSED && state != TUNNEL)
+		{
+			progress = step();
+
+			if (flush(toClient, clientChannel) | flush(toServer, serverChannel))
+			{
+				progress = true;
+			}
+		}
+
+		updateInterest();
+	}
+
+	/**
+	 * @return <code>true</code> if the state changed or bytes were consumed
+	 */
+	private boolean step()
+			throws IOException
+	{
+		switch (state)
+		{
+			case READ_REQUEST:
+				return readRequest();
+
+			case SEND_REQUEST_BODY:
+			case DISCARD_REQUEST_BODY:
+				return sendRequestBody();
+
+			case READ_RESPONSE_HEAD:
+				return readResponseHead();
+
+			case SEND_RESPONSE_BODY:
+				return sendResponseBody();
+
+			case READ_PROXY_CONNECT_HEAD:
+				return readProxyConnectHead();
+
+			case FOLLOW_RESPONSE:
+				return followResponse();
+
+			case CLOSING:
+				if (toClient.isEmpty())
+				{
+					close();
+					return true;
+				}
+				return false;
+
+			default:
+				return false;
+		}
+	}
+
+	private boolean readRequest()
+			throws IOException
+	{
+		// Finish writing the last response before starting the next one
+		if (!toClient.isEmpty())
+		{
+			return false;
+		}
+
+		final int headLength = findHeadLength(clientIn);
+
+		if (headLength < 0)
+		{
+			if (clientClosed)
+			{
+				if (requestCount == 0 || clientIn.hasRemaining())
+				{
+					logger.write(LogLevel.WARNING, "Connection closed before request could be read on " + name);
+				}
+
+				close();
+				return true;
+			}
+
+			if (!clientIn.hasRemaining() || clientIn.capacity() < options.getMaxHeaderSizeBytes())
+			{
+				return false;
+			}
+
+			if (clientIn.remaining() >= options.getMaxHeaderSizeBytes())
+			{
+				metrics.countOversizedRequestHead();
+				writeError(Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request headers too large");
+				state = CLOSING;
+				return true;
+			}
+
+			return false;
+		}
+
+		responseVersion = Constants.VERSION_10;
+		request = new Request(headInputStream(clientIn, headLength));
+		clientIn.position(clientIn.position() + headLength);
+
+		try
+		{
+			request.read();
+		}
+		catch (HTTPException e)
+		{
+			if (e instanceof HeadTooLargeException)
+			{
+				metrics.countOversizedRequestHead();
+			}
+
+			writeError(e.getStatus(), e);
+			state = CLOSING;
+			return true;
+		}
+
+		// The whole head was already buffered, so both end when it arrived
+		if (requestCount == 0)
+		{
+			metrics.getHistogram(Phase.FirstByte).record(request.getRequestLineNanos() - acceptNanos);
+		}
+		metrics.record(Phase.HeaderParse, request.getRequestLineNanos());
+		metrics.countRequest(request.getMethod());
+
+		requestCount++;
+
+		final Header connectionHeader = HeaderUtils.findHeader(Constants.CONNECTION_HEADER, request.getHeaders());
+		if (connectionHeader != null)
+		{
+			keepAlive = connectionHeader.getValue().equalsIgnoreCase(Constants.CONNECTION_KEEP_ALIVE);
+			connectionHeaderRead = true;
+		}
+		else if (!connectionHeaderRead)
+		{
+			keepAlive = request.getVersion().equals(Constants.VERSION_11);
+		}
+
+		// Upgrade the response to use the version the client gave us
+		responseVersion = request.getVersion();
+
+		if (options.isAuthenticationRequired() && !authenticate())
+		{
+			return true;
+		}
+
+		final String method = request.getMethod();
+
+		if (method.equals(Constants.CONNECT_METHOD))
+		{
+			startConnect();
+		}
+		else if (method.equals(Constants.GET_METHOD)
+				|| method.equals(Constants.POST_METHOD)
+				|| method.equals(Constants.HEAD_METHOD))
+		{
+			startDefault();
+		}
+		else
+		{
+			writeError(Status.BAD_REQUEST, "This proxy server does not support the " + method + " method");
+			state = CLOSING;
+		}
+
+		return true;
+	}
+
+	private boolean authenticate()
+	{
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final Response response = new Response(buffer, responseVersion);
+
+		try
+		{
+			if (authenticator.authenticate(request, response))
+			{
+				return true;
+			}
+		}
+		catch (Exception e)
+		{
+			logger.write(LogLevel.WARNING, "Unhandled exception authenticating " + name, e);
+			close();
+			return false;
+		}
+
+		enqueue(toClient, buffer.toByteArray());
+		metrics.countResponse(response.getStatus());
+
+		if (HeaderUtils.isConnectionKeepAlive(response.getHeaders()))
+		{
+			keepAlive = true;
+		}
+		else if (HeaderUtils.isConnectionClose(response.getHeaders()))
+		{
+			keepAlive = false;
+		}
+
+		// Skip any request body so the next request can be read
+		discardRequestBody();
+		return false;
+	}
+
+	private void startDefault()
+			throws IOException
+	{
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final Response response = new Response(buffer, responseVersion);
+		final URI targetURI = DefaultRequestHandler.parseURI(request, response);
+
+		if (targetURI == null)
+		{
+			enqueue(toClient, buffer.toByteArray());
+			metrics.countResponse(response.getStatus());
+			state = CLOSING;
+			return;
+		}
+
+		if (answerFromCache(targetURI))
+		{
+			discardRequestBody();
+			return;
+		}
+
+		if (followInFlight(targetURI))
+		{
+			return;
+		}
+
+		forward(targetURI);
+	}
+
+	/**
+	 * Sends the request to the server (or forward proxy), reusing the
+	 * proxy-to-server channel if it goes to the same place.
+	 */
+	private void forward(final URI targetURI)
+			throws IOException
+	{
+		useProxy = !options.getForwardProxyURIs().isEmpty()
+				&& !options.hostMatchesForwardProxyBypassHosts(targetURI.getHost());
+
+		final ForwardProxy proxy = useProxy ? chooseProxy(targetURI.getHost()) : null;
+
+		final String host;
+		final int port;
+		if (useProxy)
+		{
+			host = proxy.getHost();
+			port = proxy.getPort();
+		}
+		else
+		{
+			host = targetURI.getHost();
+			port = targetURI.getPort();
+		}
+
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		final List<Header> headers = DefaultRequestHandler.writeRequestHead(
+				request,
+				head,
+				useProxy,
+				cached != null ? cached.getConditionalHeaders() : null);
+
+		requestHead = head.toByteArray();
+		requestFramer = BodyFramer.forRequest(headers);
+
+		final String address = host + ":" + (port > 0 ? port : 80);
+
+		if (serverChannel != null && !serverClosed && address.equals(serverName))
+		{
+			logger.write(LogLevel.DEBUG, "Found existing proxy-to-server channel {}", serverChannel);
+			sendRequestHead();
+		}
+		else
+		{
+			closeServer();
+			connect(proxy, host, port > 0 ? port : 80);
+		}
+	}
+
+	/**
+	 * Keeps the forward proxy of the server channel while it stays in
+	 * rotation, so the channel can be reused, unless the proxy is chosen by
+	 * target host.
+	 */
+	private ForwardProxy chooseProxy(final String targetHost)
+	{
+		final ForwardProxyGroup proxies = options.getForwardProxyGroup();
+
+		if (serverProxy != null
+				&& serverChannel != null
+				&& !serverClosed
+				&& options.getForwardProxyBalance() != ForwardProxyBalance.HostHash
+				&& proxies.isAvailable(serverProxy))
+		{
+			return serverProxy;
+		}
+
+		return proxies.choose(targetHost);
+	}
+
+	/**
+	 * Looks the request up in the response cache and answers it if a stored
+	 * response can be used. Otherwise, keeps any stored response that can be
+	 * revalidated.
+	 *
+	 * @return <code>true</code> if the request was answered
+	 */
+	private boolean answerFromCache(final URI targetURI)
+			throws IOException
+	{
+		final ResponseCache cache = options.getResponseCache();
+
+		cacheKey = cache.isEnabled() ? ResponseCache.key(targetURI) : null;
+		cacheable = cacheKey != null && CachePolicy.isCacheableRequest(request);
+		cached = null;
+		cacheWriter = null;
+
+		if (!cacheable)
+		{
+			return false;
+		}
+
+		final CacheControl cacheControl = CacheControl.parse(request.getHeaders());
+		final CachedResponse stored = cache.get(cacheKey, request.getHeaders());
+
+		if (stored != null && stored.isUsable(cacheControl, System.currentTimeMillis()))
+		{
+			writeCachedResponse(stored);
+			metrics.countCacheHit(stored.getBodyLength());
+			return true;
+		}
+
+		// A stale response is only worth keeping if the server can confirm it
+		if (stored != null && stored.hasValidator())
+		{
+			cached = stored;
+		}
+		else if (cacheControl.isOnlyIfCached())
+		{
+			writeError(Status.GATEWAY_TIMEOUT, "Not in cache: " + request.getURI());
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Joins an identical request that's already in flight, or starts one that
+	 * later identical requests can join.
+	 *
+	 * @return <code>true</code> if this request follows another
+	 */
+	private boolean followInFlight(final URI targetURI)
+	{
+		flight = null;
+		follower = null;
+
+		final RequestCoalescer coalescer = options.getRequestCoalescer();
+		final String flightKey = coalescer.isEnabled() ? RequestCoalescer.key(ResponseCache.key(targetURI), request) : null;
+
+		if (flightKey == null)
+		{
+			return false;
+		}
+
+		follower = coalescer.follow(flightKey, request.getHeaders());
+
+		if (follower == null)
+		{
+			flight = coalescer.lead(flightKey);
+
+			// Lost the race to lead
+			if (flight == null)
+			{
+				follower = coalescer.follow(flightKey, request.getHeaders());
+			}
+		}
+
+		if (follower == null)
+		{
+			return false;
+		}
+
+		this.targetURI = targetURI;
+		followerHeadWritten = false;
+		followerBytes = 0;
+		state = FOLLOW_RESPONSE;
+
+		// Like the blocking handler, give up waiting when the leader should have had an answer
+		followTimer = loop.schedule(new Runnable()
+		{
+			public void run()
+			{
+				followTimer = null;
+
+				if (state != FOLLOW_RESPONSE || followerHeadWritten)
+				{
+					return;
+				}
+
+				logger.write(LogLevel.DEBUG, "Timed out waiting for a shared response on {}", name);
+				follower = null;
+
+				try
+				{
+					forward(NioConnection.this.targetURI);
+					advance();
+				}
+				catch (IOException e)
+				{
+					close();
+				}
+			}
+		}, (options.getConnectTimeoutSeconds() + options.getSocketReadTimeoutSeconds()) * 1000L);
+
+		return true;
+	}
+
+	/**
+	 * Queues the shared response as the leader receives it. Like the server's
+	 * bytes, the next part is only taken once the last one was written.
+	 */
+	private boolean followResponse()
+			throws IOException
+	{
+		if (!toClient.isEmpty())
+		{
+			return false;
+		}
+
+		if (!followerHeadWritten)
+		{
+			if (!follower.isHeadReady())
+			{
+				return !awaitLeader();
+			}
+
+			cancelFollowTimer();
+
+			if (!follower.isUsable())
+			{
+				// Not shareable with this request; send it on its own
+				follower = null;
+				forward(targetURI);
+				return true;
+			}
+
+			final CachedResponse result = follower.getResult();
+
+			if (result != null)
+			{
+				// The leader revalidated a stored response
+				writeCachedResponse(result);
+				metrics.countCoalesced(result.getBodyLength());
+				follower = null;
+				state = finishedState();
+				return true;
+			}
+
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			final Response response = new Response(buffer, responseVersion);
+			final List<Header> headers = new ArrayList<Header>(follower.getHeaders());
+			headers.add(new Header("Via", "1.0 " + Utils.getHostname()));
+
+			response.writeStatus(follower.getStatusCode(), follower.getMessage(), follower.getVersion());
+			response.writeHeaders(headers);
+			response.endHeaders();
+			response.flush();
+
+			enqueue(toClient, buffer.toByteArray());
+			metrics.countResponse(follower.getStatusCode());
+
+			responseHeaders = headers;
+			followerHeadWritten = true;
+			return true;
+		}
+
+		final ByteBuffer body;
+
+		try
+		{
+			body = follower.poll();
+		}
+		catch (HTTPException e)
+		{
+			logger.write(LogLevel.DEBUG, "Shared response for {} was cut off: {}", request.getURI(), e.getMessage());
+			follower = null;
+			state = CLOSING;
+			return true;
+		}
+
+		if (body != null)
+		{
+			followerBytes += body.remaining();
+			enqueue(toClient, body);
+			return true;
+		}
+
+		if (follower.isComplete())
+		{
+			metrics.countCoalesced(followerBytes);
+			follower = null;
+			state = finishedState();
+			return true;
+		}
+
+		return !awaitLeader();
+	}
+
+	/**
+	 * Asks to be woken on this loop when the leader makes progress.
+	 *
+	 * @return <code>false</code> if it already has, so there is no need to
+	 *         wait
+	 */
+	private boolean awaitLeader()
+	{
+		if (awaitingLeader)
+		{
+			return true;
+		}
+
+		awaitingLeader = follower.onChange(new Runnable()
+		{
+			public void run()
+			{
+				loop.execute(new Runnable()
+				{
+					public void run()
+					{
+						awaitingLeader = false;
+
+						if (state != FOLLOW_RESPONSE)
+						{
+							return;
+						}
+
+						try
+						{
+							advance();
+						}
+						catch (IOException e)
+						{
+							logger.write(LogLevel.DEBUG, "IOException on " + name, e);
+							close();
+						}
+					}
+				});
+			}
+		});
+
+		return awaitingLeader;
+	}
+
+	private void cancelFollowTimer()
+	{
+		if (followTimer != null)
+		{
+			followTimer.cancel();
+			followTimer = null;
+		}
+	}
+
+	/**
+	 * Ends the response identical requests are following, if it didn't
+	 * complete: those waiting for it send their own request.
+	 */
+	private void failFlight()
+	{
+		if (flight != null)
+		{
+			flight.fail();
+			flight = null;
+		}
+	}
+
+	/**
+	 * Queues a stored response, or a 304 if the client's own validators match
+	 * it. The body is sent from the stored bytes without copying; a body on
+	 * disk is mapped.
+	 */
+	private void writeCachedResponse(final CachedResponse stored)
+			throws IOException
+	{
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final Response response = new Response(buffer, responseVersion);
+		final boolean notModified = CachePolicy.isNotModified(request.getHeaders(), stored);
+		final ByteBuffer body = !notModified && !request.getMethod().equalsIgnoreCase(Constants.HEAD_METHOD)
+				? stored.getBody()
+				: null;
+
+		stored.writeTo(response, System.currentTimeMillis(), notModified, false, null);
+		response.flush();
+
+		enqueue(toClient, buffer.toByteArray());
+
+		if (body != null)
+		{
+			enqueue(toClient, body);
+		}
+
+		metrics.countResponse(response.getStatus());
+	}
+
+	private void startConnect()
+	{
+		try
+		{
+			connectTarget = ConnectRequestHandler.parseTargetAddress(request);
+		}
+		catch (HTTPException e)
+		{
+			writeError(Status.BAD_GATEWAY, e.getMessage());
+			state = CLOSING;
+			return;
+		}
+
+		closeServer();
+
+		useProxy = !options.getForwardProxyURIs().isEmpty()
+				&& !options.hostMatchesForwardProxyBypassHosts(connectTarget.getHostName());
+
+		if (useProxy)
+		{
+			final ForwardProxy proxy = options.getForwardProxyGroup().choose(connectTarget.getHostName());
+			connect(proxy, proxy.getHost(), proxy.getPort());
+		}
+		else
+		{
+			connect(null, connectTarget.getHostName(), connectTarget.getPort());
+		}
+	}
+
+	/**
+	 * Resolves the host off the event loop (name resolution blocks), then
+	 * starts a non-blocking connect back on the loop.
+	 *
+	 * @param proxy
+	 *        the forward proxy at the host, or <code>null</code>
+	 */
+	private void connect(final ForwardProxy proxy, final String host, final int port)
+	{
+		state = CONNECTING;
+		serverName = host + ":" + port;
+		serverProxy = proxy;
+
+		if (proxy != null)
+		{
+			options.getForwardProxyGroup().begin(proxy);
+			proxyConnecting = true;
+		}
+
+		logger.write(LogLevel.DEBUG, "Connecting to {}", serverName);
+
+		engine.resolve(host, port, new NioEngine.ResolveCallback()
+		{
+			public void resolved(final InetSocketAddress address)
+			{
+				loop.execute(new Runnable()
+				{
+					public void run()
+					{
+						if (state != CONNECTING)
+						{
+							return;
+						}
+
+						try
+						{
+							startConnect(address);
+							advance();
+						}
+						catch (IOException e)
+						{
+							logger.write(LogLevel.DEBUG, "IOException on " + name, e);
+							close();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void startConnect(final InetSocketAddress address)
+			throws IOException
+	{
+		if (address.isUnresolved())
+		{
+			connectFailed(new UnknownHostException(address.getHostName()));
+			return;
+		}
+
+		phaseStart = System.nanoTime();
+		serverChannel = SocketChannel.open();
+		serverClosed = false;
+		serverIn.clear();
+		serverIn.flip();
+
+		try
+		{
+			serverChannel.configureBlocking(false);
+			serverChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+			if (serverChannel.connect(address))
+			{
+				serverKey = loop.register(serverChannel, 0, this);
+				connected();
+				return;
+			}
+
+			serverKey = loop.register(serverChannel, SelectionKey.OP_CONNECT, this);
+		}
+		catch (IOException e)
+		{
+			connectFailed(e);
+			return;
+		}
+
+		connectTimer = loop.schedule(new Runnable()
+		{
+			public void run()
+			{
+				if (state != CONNECTING)
+				{
+					return;
+				}
+
+				proxyConnected(false);
+				closeServer();
+				writeError(Status.GATEWAY_TIMEOUT, "Timed out connecting to " + request.getURI());
+				connectFinished();
+
+				try
+				{
+					advance();
+				}
+				catch (IOException e)
+				{
+					close();
+				}
+			}
+		}, options.getConnectTimeoutSeconds() * 1000L);
+	}
+
+	private void finishConnect()
+	{
+		try
+		{
+			if (!serverChannel.finishConnect())
+			{
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			connectFailed(e);
+			return;
+		}
+
+		connected();
+	}
+
+	private void connected()
+	{
+		if (connectTimer != null)
+		{
+			connectTimer.cancel();
+			connectTimer = null;
+		}
+
+		metrics.record(Metrics.connectPhase(useProxy), phaseStart);
+		proxyConnected(true);
+
+		if (!request.getMethod().equals(Constants.CONNECT_METHOD))
+		{
+			sendRequestHead();
+		}
+		else if (useProxy)
+		{
+			enqueue(toServer, UTF8Utils.encode(MessageFormat.format(
+					"CONNECT {0}:{1} HTTP/1.0\r\n\r\n",
+					connectTarget.getHostName(),
+					Integer.toString(connectTarget.getPort()))));
+			state = READ_PROXY_CONNECT_HEAD;
+		}
+		else
+		{
+			startTunnel(new ArrayList<Header>());
+		}
+	}
+
+	private void connectFailed(final IOException e)
+	{
+		if (connectTimer != null)
+		{
+			connectTimer.cancel();
+			connectTimer = null;
+		}
+
+		logger.write(LogLevel.DEBUG, "Could not connect to " + serverName, e);
+
+		proxyConnected(false);
+		closeServer();
+		writeError(Status.BAD_GATEWAY, e);
+		connectFinished();
+	}
+
+	/**
+	 * Completes an exchange that failed before anything was sent to the
+	 * server. Like the blocking handlers, a failed CONNECT closes the client
+	 * connection while other requests may continue once their body has been
+	 * skipped.
+	 */
+	private void connectFinished()
+	{
+		if (request.getMethod().equals(Constants.CONNECT_METHOD))
+		{
+			state = CLOSING;
+		}
+		else
+		{
+			state = DISCARD_REQUEST_BODY;
+		}
+	}
+
+	private void sendRequestHead()
+	{
+		phaseStart = System.nanoTime();
+		requestTime = System.currentTimeMillis();
+		enqueue(toServer, requestHead);
+		state = SEND_REQUEST_BODY;
+	}
+
+	private void discardRequestBody()
+	{
+		requestFramer = BodyFramer.forRequest(request.getHeaders());
+		state = DISCARD_REQUEST_BODY;
+	}
+
+	private boolean sendRequestBody()
+	{
+		final boolean discard = (state == DISCARD_REQUEST_BODY);
+
+		if (!discard && !toServer.isEmpty())
+		{
+			return false;
+		}
+
+		final int count = requestFramer.frame(clientIn);
+
+		if (count > 0)
+		{
+			if (!discard)
+			{
+				enqueue(toServer, slice(clientIn, count));
+			}
+
+			clientIn.position(clientIn.position() + count);
+		}
+
+		if (requestFramer.isComplete())
+		{
+			if (!discard)
+			{
+				phaseStart = metrics.record(Phase.RequestForward, phaseStart);
+			}
+
+			state = discard ? finishedState() : READ_RESPONSE_HEAD;
+			return true;
+		}
+
+		if (clientClosed)
+		{
+			logger.write(LogLevel.DEBUG, "Client closed while sending request body on {}", name);
+			close();
+			return true;
+		}
+
+		return count > 0;
+	}
+
+	private boolean readResponseHead()
+			throws IOException
+	{
+		final int headLength = findHeadLength(serverIn);
+
+		if (headLength < 0)
+		{
+			if (serverClosed)
+			{
+				closeServer();
+				writeError(Status.BAD_GATEWAY, "Connection closed by " + serverName);
+				state = finishedState();
+				return true;
+			}
+
+			if (serverIn.remaining() >= options.getMaxHeaderSizeBytes())
+			{
+				metrics.countOversizedResponseHead();
+				closeServer();
+				writeError(Status.BAD_GATEWAY, "Response headers from " + serverName + " too large");
+				state = finishedState();
+				return true;
+			}
+
+			return false;
+		}
+
+		final InputStream head = headInputStream(serverIn, headLength);
+		serverIn.position(serverIn.position() + headLength);
+
+		try
+		{
+			responseStatusLine = IOUtils.readLine(head, options);
+			responseHeaders = IOUtils.readHeaders(head, options);
+		}
+		catch (HeadTooLargeException e)
+		{
+			metrics.countOversizedResponseHead();
+			closeServer();
+			writeError(Status.BAD_GATEWAY, "Response headers from " + serverName + " too large: " + e.getMessage());
+			state = finishedState();
+			return true;
+		}
+
+		phaseStart = metrics.record(Phase.TimeToFirstByte, phaseStart);
+
+		logger.write(LogLevel.DEBUG, "Forward proxy responds: {}", responseStatusLine);
+
+		final int delay = options.getResponseDelayMilliseconds();
+		if (delay > 0)
+		{
+			// The user may have enabled a sleep here
+			state = RESPONSE_DELAY;
+			loop.schedule(new Runnable()
+			{
+				public void run()
+				{
+					if (state != RESPONSE_DELAY)
+					{
+						return;
+					}
+
+					try
+					{
+						writeResponseHead();
+						advance();
+					}
+					catch (IOException e)
+					{
+						logger.write(LogLevel.DEBUG, "IOException on " + name, e);
+						close();
+					}
+				}
+			}, delay);
+
+			return true;
+		}
+
+		writeResponseHead();
+		return true;
+	}
+
+	private void writeResponseHead()
+			throws IOException
+	{
+		final String[] parts = responseStatusLine.split(" ", 3);
+
+		int statusCode = -1;
+		if (parts.length >= 2)
+		{
+			try
+			{
+				statusCode = Integer.parseInt(parts[1]);
+			}
+			catch (NumberFormatException e)
+			{
+			}
+		}
+
+		if (statusCode < 0)
+		{
+			closeServer();
+			writeError(Status.BAD_GATEWAY, "Couldn't parse HTTP status '" + responseStatusLine + "' from " + serverName);
+			state = finishedState();
+			return;
+		}
+
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final Response response = new Response(buffer, responseVersion);
+
+		response.writeStatus(statusCode, parts.length > 2 ? parts[2] : "", parts[0]);
+
+		if (statusCode >= 100 && statusCode < 200 && statusCode != 101)
+		{
+			// Interim response; the final response head follows
+			response.writeHeaders(responseHeaders);
+			response.endHeaders();
+			response.flush();
+
+			enqueue(toClient, buffer.toByteArray());
+			state = READ_RESPONSE_HEAD;
+			return;
+		}
+
+		List<Header> headers = HeaderUtils.NEVER_TRANSMIT_FILTER.filter(responseHeaders);
+		final ResponseCache cache = options.getResponseCache();
+
+		if (cached != null && statusCode == Status.NOT_MODIFIED)
+		{
+			// The stored response is still current; a 304 has no body
+			final CachedResponse revalidated = cache.revalidate(cached, headers, requestTime);
+			writeCachedResponse(revalidated);
+			metrics.countCacheRevalidation(revalidated.getBodyLength());
+
+			if (flight != null)
+			{
+				flight.publish(revalidated);
+				flight = null;
+			}
+
+			responseHeaders = headers;
+			responseFramer = BodyFramer.none();
+			state = SEND_RESPONSE_BODY;
+			return;
+		}
+
+		metrics.countResponse(statusCode);
+
+		if (cacheable)
+		{
+			metrics.countCacheMiss();
+			cacheWriter = cache.startStore(
+					cacheKey,
+					request,
+					statusCode,
+					parts.length > 2 ? parts[2] : "",
+					parts[0],
+					headers,
+					requestTime);
+		}
+		else if (cacheKey != null && CachePolicy.isUnsafe(request.getMethod()) && statusCode < 400)
+		{
+			// Stored responses for the URI are out of date after a successful POST
+			cache.invalidate(cacheKey);
+		}
+
+		if (flight != null)
+		{
+			flight.publishHead(request, statusCode, parts.length > 2 ? parts[2] : "", parts[0], headers);
+		}
+
+		headers.add(new Header("Via", "1.0 " + Utils.getHostname()));
+
+		response.writeHeaders(headers);
+		response.endHeaders();
+		response.flush();
+
+		enqueue(toClient, buffer.toByteArray());
+
+		responseHeaders = headers;
+		responseFramer = BodyFramer.forResponse(request.getMethod().equalsIgnoreCase(Constants.HEAD_METHOD), headers);
+		state = SEND_RESPONSE_BODY;
+	}
+
+	private boolean sendResponseBody()
+	{
+		if (!toClient.isEmpty())
+		{
+			return false;
+		}
+
+		final int count = responseFramer.frame(serverIn);
+
+		if (count > 0)
+		{
+			final ByteBuffer body = slice(serverIn, count);
+
+			if (cacheWriter != null)
+			{
+				cacheWriter.write(body);
+			}
+
+			if (flight != null)
+			{
+				flight.write(body);
+			}
+
+			enqueue(toClient, body);
+			serverIn.position(serverIn.position() + count);
+		}
+
+		if (responseFramer.isComplete())
+		{
+			finishExchange();
+			return true;
+		}
+
+		if (serverClosed && !serverIn.hasRemaining())
+		{
+			closeServer();
+
+			if (!responseFramer.isDelimitedByClose())
+			{
+				logger.write(LogLevel.WARNING, "Connection to " + serverName + " closed before the response was complete");
+			}
+			else
+			{
+				commitCacheWriter();
+				completeFlight();
+			}
+
+			// Ends the client connection too, either way
+			state = CLOSING;
+			return true;
+		}
+
+		return count > 0;
+	}
+
+	private void finishExchange()
+	{
+		metrics.record(Phase.BodyTransfer, phaseStart);
+		commitCacheWriter();
+		completeFlight();
+
+		if (HeaderUtils.isConnectionClose(responseHeaders) || HeaderUtils.isProxyConnectionClose(responseHeaders))
+		{
+			keepAlive = false;
+		}
+
+		state = finishedState();
+	}
+
+	private void commitCacheWriter()
+	{
+		if (cacheWriter != null)
+		{
+			cacheWriter.commit();
+			cacheWriter = null;
+		}
+	}
+
+	private void completeFlight()
+	{
+		if (flight != null)
+		{
+			flight.complete();
+			flight = null;
+		}
+	}
+
+	/**
+	 * @return the state to enter once the current exchange is complete
+	 */
+	private int finishedState()
+	{
+		return keepAlive ? READ_REQUEST : CLOSING;
+	}
+
+	private boolean readProxyConnectHead()
+			throws IOException
+	{
+		final int headLength = findHeadLength(serverIn);
+
+		if (headLength < 0)
+		{
+			if (serverClosed || serverIn.remaining() >= options.getMaxHeaderSizeBytes())
+			{
+				closeServer();
+				writeError(Status.BAD_GATEWAY, "Connection closed by " + connectTarget);
+				state = CLOSING;
+				return true;
+			}
+
+			return false;
+		}
+
+		final InputStream head = headInputStream(serverIn, headLength);
+		serverIn.position(serverIn.position() + headLength);
+
+		final String statusLine = IOUtils.readLine(head, options);
+
+		logger.write(LogLevel.DEBUG, "Forward proxy responds: {}", statusLine);
+
+		final String[] parts = statusLine.split(" ", 3);
+		int statusCode = -1;
+
+		if (parts.length >= 2)
+		{
+			try
+			{
+				statusCode = Integer.parseInt(parts[1]);
+			}
+			catch (NumberFormatException e)
+			{
+			}
+		}
+
+		if (statusCode != Status.OK)
+		{
+			closeServer();
+			writeError(Status.BAD_GATEWAY, MessageFormat.format(
+					"Could not connect to {0} via proxy {1}: {2}",
+					connectTarget,
+					serverProxy,
+					statusLine));
+			state = CLOSING;
+			return true;
+		}
+
+		startTunnel(IOUtils.readHeaders(head, options));
+		return true;
+	}
+
+	/**
+	 * Sends the 200 response for a CONNECT request and hands both channels
+	 * (and any bytes already read from them) to a {@link Tunnel}.
+	 */
+	private void startTunnel(final List<Header> proxyHeaders)
+	{
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final Response response = new Response(buffer, responseVersion);
+
+		try
+		{
+			response.writeStatus(Status.OK);
+			response.writeHeaders(HeaderUtils.NEVER_TRANSMIT_FILTER.filter(proxyHeaders));
+			response.endHeaders();
+			response.flush();
+		}
+		catch (IOException e)
+		{
+			// Not possible writing to memory
+			throw new RuntimeException(e);
+		}
+
+		enqueue(toClient, buffer.toByteArray());
+		metrics.countResponse(Status.OK);
+		toClient.add(serverIn);
+		toServer.add(clientIn);
+
+		final ByteBuffer pendingToClient = drain(toClient);
+		final ByteBuffer pendingToServer = drain(toServer);
+
+		if (connectTimer != null)
+		{
+			connectTimer.cancel();
+		}
+
+		if (idleTimer != null)
+		{
+			idleTimer.cancel();
+		}
+
+		state = TUNNEL;
+
+		// From here on the tunnel is counted instead
+		metrics.connectionClosed();
+
+		final Tunnel tunnel = new Tunnel(
+				loop,
+				name,
+				clientChannel,
+				clientKey,
+				pendingToServer,
+				serverChannel,
+				serverKey,
+				pendingToClient,
+				options.getSocketReadTimeoutSeconds() * 1000L,
+				metrics);
+
+		tunnel.start();
+	}
+
+	/*
+	 * Inbound buffers are only compacted (or grown) when nothing queued for
+	 * the other side still shares their bytes.
+	 */
+
+	private void readClient()
+			throws IOException
+	{
+		if (!toServer.isEmpty() || clientClosed)
+		{
+			return;
+		}
+
+		clientIn = compactForRead(clientIn);
+		final int read = clientIn.hasRemaining() ? clientChannel.read(clientIn) : 0;
+		clientIn.flip();
+
+		if (read == -1)
+		{
+			clientClosed = true;
+		}
+		else if (read > 0)
+		{
+			lastActivity = System.nanoTime();
+			metrics.addBytesIn(read);
+		}
+	}
+
+	private void readServer()
+			throws IOException
+	{
+		if (!toClient.isEmpty() || serverClosed)
+		{
+			return;
+		}
+
+		serverIn = compactForRead(serverIn);
+		final int read = serverIn.hasRemaining() ? serverChannel.read(serverIn) : 0;
+		serverIn.flip();
+
+		if (read == -1)
+		{
+			serverClosed = true;
+		}
+		else if (read > 0)
+		{
+			lastActivity = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Compacts a buffer that is in read mode, growing it (up to the maximum
+	 * header size) if it is full.
+	 *
+	 * @return the buffer, possibly a new larger one, in write mode
+	 */
+	private ByteBuffer compactForRead(final ByteBuffer buffer)
+	{
+		buffer.compact();
+
+		if (buffer.hasRemaining() || buffer.capacity() >= options.getMaxHeaderSizeBytes())
+		{
+			return buffer;
+		}
+
+		final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	/**
+	 * Writes as much of the queue as the channel accepts.
+	 *
+	 * @return <code>true</code> if the queue was emptied by this call
+	 */
+	private boolean flush(final Deque<ByteBuffer> queue, final SocketChannel channel)
+			throws IOException
+	{
+		if (queue.isEmpty() || channel == null || !channel.isOpen())
+		{
+			return false;
+		}
+
+		while (!queue.isEmpty())
+		{
+			final ByteBuffer buffer = queue.peek();
+			final int written = channel.write(buffer);
+
+			if (written > 0)
+			{
+				lastActivity = System.nanoTime();
+
+				if (channel == clientChannel)
+				{
+					metrics.addBytesOut(written);
+				}
+			}
+
+			if (buffer.hasRemaining())
+			{
+				return false;
+			}
+
+			queue.poll();
+		}
+
+		return true;
+	}
+
+	private void updateInterest()
+	{
+		if (state == CLOSED || state == TUNNEL)
+		{
+			return;
+		}
+
+		if (clientKey != null && clientKey.isValid())
+		{
+			int ops = 0;
+
+			if (!toClient.isEmpty())
+			{
+				ops |= SelectionKey.OP_WRITE;
+			}
+
+			if (!clientClosed
+					&& ((state == READ_REQUEST && toClient.isEmpty())
+							|| ((state == SEND_REQUEST_BODY || state == DISCARD_REQUEST_BODY) && toServer.isEmpty())))
+			{
+				ops |= SelectionKey.OP_READ;
+			}
+
+			clientKey.interestOps(ops);
+		}
+
+		if (serverKey != null && serverKey.isValid())
+		{
+			int ops = 0;
+
+			if (state == CONNECTING)
+			{
+				ops |= SelectionKey.OP_CONNECT;
+			}
+			else
+			{
+				if (!toServer.isEmpty())
+				{
+					ops |= SelectionKey.OP_WRITE;
+				}
+
+				if (!serverClosed
+						&& (state == READ_RESPONSE_HEAD
+								|| state == READ_PROXY_CONNECT_HEAD
+								|| (state == SEND_RESPONSE_BODY && toClient.isEmpty())))
+				{
+					ops |= SelectionKey.OP_READ;
+				}
+			}
+
+			serverKey.interestOps(ops);
+		}
+	}
+
+	private void scheduleIdleCheck(final long delay)
+	{
+		final long timeout = options.getSocketReadTimeoutSeconds() * 1000L;
+
+		if (timeout <= 0)
+		{
+			return;
+		}
+
+		idleTimer = loop.schedule(new Runnable()
+		{
+			public void run()
+			{
+				if (state == CLOSED || state == TUNNEL)
+				{
+					return;
+				}
+
+				final long idle = (System.nanoTime() - lastActivity) / 1000000L;
+
+				if (idle >= timeout)
+				{
+					logger.write(LogLevel.DEBUG, "Read timeout on {}", name);
+					close();
+				}
+				else
+				{
+					scheduleIdleCheck(timeout - idle);
+				}
+			}
+		}, delay);
+	}
+
+	private void writeError(final int status, final Throwable t)
+	{
+		writeError(status, t.toString());
+	}
+
+	private void writeError(final int status, final String details)
+	{
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		try
+		{
+			new Response(buffer, responseVersion).writeError(status, details);
+		}
+		catch (IOException e)
+		{
+			// Not possible writing to memory
+			throw new RuntimeException(e);
+		}
+
+		enqueue(toClient, buffer.toByteArray());
+		metrics.countResponse(status);
+
+		// Whatever failed, identical requests must not wait for it
+		failFlight();
+	}
+
+	private void enqueue(final Deque<ByteBuffer> queue, final byte[] bytes)
+	{
+		enqueue(queue, ByteBuffer.wrap(bytes));
+	}
+
+	private void enqueue(final Deque<ByteBuffer> queue, final ByteBuffer buffer)
+	{
+		if (buffer.hasRemaining())
+		{
+			queue.add(buffer);
+		}
+	}
+
+	/**
+	 * Tells the forward proxy group how a connect to the server proxy ended.
+	 */
+	private void proxyConnected(final boolean reachable)
+	{
+		if (proxyConnecting)
+		{
+			proxyConnecting = false;
+			options.getForwardProxyGroup().end(serverProxy, reachable);
+		}
+	}
+
+	private void closeServer()
+	{
+		// Abandoned, not failed
+		proxyConnected(true);
+
+		if (serverChannel != null)
+		{
+			closeChannel(serverKey, serverChannel);
+		}
+
+		serverChannel = null;
+		serverKey = null;
+		serverClosed = false;
+		toServer.clear();
+	}
+
+	private void closeChannel(final SelectionKey key, final SocketChannel channel)
+	{
+		if (key != null)
+		{
+			key.cancel();
+		}
+
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Error closing channel", e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	/**
+	 * Finds the end of an HTTP head (the first empty line) in the readable
+	 * bytes of the buffer. Like {@link IOUtils#readLine(InputStream)}, bare
+	 * CRs are ignored.
+	 *
+	 * @return the length of the head including the empty line, or -1 if the
+	 *         buffer does not yet hold a complete head
+	 */
+	static int findHeadLength(final ByteBuffer buffer)
+	{
+		final int start = buffer.position();
+		final int end = buffer.limit();
+		int lineLength = 0;
+
+		for (int i = start; i < end; i++)
+		{
+			final byte b = buffer.get(i);
+
+			if (b == '\n')
+			{
+				if (lineLength == 0)
+				{
+					return i + 1 - start;
+				}
+
+				lineLength = 0;
+			}
+			else if (b != '\r')
+			{
+				lineLength++;
+			}
+		}
+
+		return -1;
+	}
+
+	private InputStream headInputStream(final ByteBuffer buffer, final int length)
+	{
+		final HttpInputStream head = new HttpInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		head.setLimits(options);
+		return head;
+	}
+
+	/**
+	 * @return a buffer sharing the next count readable bytes of the source
+	 */
+	private static ByteBuffer slice(final ByteBuffer source, final int count)
+	{
+		final ByteBuffer slice = source.duplicate();
+		slice.limit(slice.position() + count);
+		return slice;
+	}
+
+	/**
+	 * Copies and removes every readable byte of the queued buffers.
+	 */
+	private static ByteBuffer drain(final Deque<ByteBuffer> queue)
+	{
+		int size = 0;
+		for (ByteBuffer b : queue)
+		{
+			size += b.remaining();
+		}
+
+		final ByteBuffer drained = ByteBuffer.allocate(size);
+		while (!queue.isEmpty())
+		{
+			drained.put(queue.poll());
+		}
+
+		drained.flip();
+		return drained;
+	}
+
+	private static ByteBuffer readMode(final ByteBuffer buffer)
+	{
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.edwardthomson.poxyproxy.Options;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * The selector-based engine: a small, fixed number of {@link EventLoop}
+ * threads (one per core by default) that drive every client connection, so
+ * the number of open connections is not limited by the number of threads.
+ * <p>
+ * Name resolution blocks, so it is done on a few helper threads and the
+ * result handed back to the connection's event loop.
+ */
+public class NioEngine
+{
+	private final static Logger logger = Logger.getLogger(NioEngine.class);
+
+	private static final int RESOLVER_THREADS = 4;
+
+	private final Options options;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+	private final ExecutorService resolverExecutor;
+
+	public NioEngine(final Options options)
+			throws IOException
+	{
+		this.options = options;
+
+		int threads = options.getEventLoopThreads();
+		if (threads <= 0)
+		{
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			loops[i] = new EventLoop("EventLoop-" + i);
+		}
+
+		resolverExecutor = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			public Thread newThread(Runnable r)
+			{
+				final Thread thread = new Thread(r, "Resolver-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public Options getOptions()
+	{
+		return options;
+	}
+
+	/**
+	 * Starts the event loop threads.
+	 */
+	public void start()
+	{
+		for (EventLoop loop : loops)
+		{
+			final Thread thread = new Thread(loop, loop.getName());
+			thread.start();
+		}
+
+		logger.write(LogLevel.INFO, "Started " + loops.length + " event loop threads");
+	}
+
+	/**
+	 * Hands a newly accepted client channel to one of the event loops.
+	 */
+	public void accept(final SocketChannel channel)
+	{
+		final EventLoop loop = nextLoop();
+
+		loop.execute(new Runnable()
+		{
+			public void run()
+			{
+				new NioConnection(NioEngine.this, loop, channel).start();
+			}
+		});
+	}
+
+	/**
+	 * @return the next event loop, chosen round-robin
+	 */
+	public EventLoop nextLoop()
+	{
+		return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Resolves the host name through the DNS cache. A cached answer is given to
+	 * the callback immediately; otherwise the name is looked up on a resolver
+	 * thread and the callback is invoked on that thread. The address is
+	 * unresolved if the name could not be resolved.
+	 */
+	public void resolve(final String host, final int port, final ResolveCallback callback)
+	{
+		final InetSocketAddress cached = options.getDnsCache().getIfCached(host, port);
+
+		if (cached != null)
+		{
+			callback.resolved(cached);
+			return;
+		}
+
+		resolverExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				callback.resolved(options.getDnsCache().resolve(host, port));
+			}
+		});
+	}
+
+	public interface ResolveCallback
+	{
+		void resolved(InetSocketAddress address);
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+public class NioSocketListener implements Runnable
+{
+    private final Logger logger = Logger.getLogger(NioSocketListener.class);
+
+    private final ServerSocketChannel serverChannel;
+    private final NioEngine engine;
+
+    public NioSocketListener(ServerSocketChannel serverChannel, NioEngine engine)
+    {
+        this.serverChannel = serverChannel;
+        this.engine = engine;
+    }
+
+    public final void run()
+    {
+        while (true)
+        {
+            SocketChannel client;
+
+            try
+            {
+                client = serverChannel.accept();
+            }
+            catch (Exception e)
+            {
+                logger.write(LogLevel.FATAL, "Could not accept client socket", e);
+                continue;
+            }
+
+            engine.accept(client);
+        }
+    }
+}
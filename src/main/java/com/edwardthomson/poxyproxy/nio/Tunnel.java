@@ -0,0 +1,350 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import com.edwardthomson.poxyproxy.BufferPool;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+import com.edwardthomson.poxyproxy.metrics.Metrics;
+
+/**
+ * Relays bytes in both directions between two non-blocking channels on one
+ * {@link EventLoop}. Each direction has its own buffer; while a buffer can't
+ * be completely written to the destination, reading from the source stops
+ * (so a slow reader only slows its own direction).
+ * <p>
+ * Like the blocking IO runners, half-closed sockets aren't supported: when
+ * either side closes, both are closed.
+ */
+public class Tunnel
+{
+	private final static Logger logger = Logger.getLogger(Tunnel.class);
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final EventLoop loop;
+	private final Side first;
+	private final Side second;
+	private final long idleTimeoutMilliseconds;
+	private final Metrics metrics;
+
+	private long lastActivity = System.nanoTime();
+	private EventLoop.Timer idleTimer;
+	private boolean closed = false;
+
+	/* May be null */
+	private Runnable onClosed;
+
+	/**
+	 * Creates a tunnel. The channels must be in non-blocking mode. Keys may be
+	 * <code>null</code> when the channel is not yet registered with the loop.
+	 * The first channel is the client's; its traffic is counted in the
+	 * metrics.
+	 *
+	 * @param firstPending
+	 *        bytes already read from the first channel that must be written to
+	 *        the second (may be <code>null</code>)
+	 * @param secondPending
+	 *        bytes already read from the second channel that must be written to
+	 *        the first (may be <code>null</code>)
+	 */
+	public Tunnel(
+			final EventLoop loop,
+			final String name,
+			final SocketChannel firstChannel,
+			final SelectionKey firstKey,
+			final ByteBuffer firstPending,
+			final SocketChannel secondChannel,
+			final SelectionKey secondKey,
+			final ByteBuffer secondPending,
+			final long idleTimeoutMilliseconds,
+			final Metrics metrics)
+	{
+		this.loop = loop;
+		this.first = new Side(name + "-first", firstChannel, firstKey, firstPending);
+		this.second = new Side(name + "-second", secondChannel, secondKey, secondPending);
+		this.first.peer = second;
+		this.second.peer = first;
+		this.idleTimeoutMilliseconds = idleTimeoutMilliseconds;
+		this.metrics = metrics;
+
+		metrics.tunnelOpened();
+	}
+
+	/**
+	 * Sets what to run once the tunnel is closed. Must be called before
+	 * {@link #start()}.
+	 */
+	public void setOnClosed(final Runnable onClosed)
+	{
+		this.onClosed = onClosed;
+	}
+
+	/**
+	 * Starts relaying. Must be called on the event loop thread.
+	 */
+	public void start()
+	{
+		try
+		{
+			first.register();
+			second.register();
+
+			first.flushPeer();
+			second.flushPeer();
+
+			updateInterest();
+			scheduleIdleCheck(idleTimeoutMilliseconds);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not start tunnel", e);
+			close();
+		}
+	}
+
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	public void close()
+	{
+		if (closed)
+		{
+			return;
+		}
+
+		closed = true;
+		metrics.tunnelClosed();
+
+		if (idleTimer != null)
+		{
+			idleTimer.cancel();
+		}
+
+		first.closeChannel();
+		second.closeChannel();
+
+		if (onClosed != null)
+		{
+			onClosed.run();
+		}
+	}
+
+	private void updateInterest()
+	{
+		first.updateInterest();
+		second.updateInterest();
+	}
+
+	private void scheduleIdleCheck(final long delay)
+	{
+		if (idleTimeoutMilliseconds <= 0)
+		{
+			return;
+		}
+
+		idleTimer = loop.schedule(new Runnable()
+		{
+			public void run()
+			{
+				final long idle = (System.nanoTime() - lastActivity) / 1000000L;
+
+				if (idle >= idleTimeoutMilliseconds)
+				{
+					logger.write(LogLevel.DEBUG, "Tunnel idle for " + idle + "ms; closing");
+					close();
+				}
+				else
+				{
+					scheduleIdleCheck(idleTimeoutMilliseconds - idle);
+				}
+			}
+		}, delay);
+	}
+
+	/**
+	 * One channel of the tunnel and the buffer of bytes read from it that are
+	 * waiting to be written to its peer.
+	 */
+	private class Side
+	implements ChannelHandler
+	{
+		private final String name;
+		private final SocketChannel channel;
+		private final ByteBuffer buffer;
+		private SelectionKey key;
+		private Side peer;
+
+		Side(final String name, final SocketChannel channel, final SelectionKey key, final ByteBuffer pending)
+		{
+			this.name = name;
+			this.channel = channel;
+			this.key = key;
+
+			final int pendingSize = pending != null ? pending.remaining() : 0;
+			this.buffer = BufferPool.getDefault().acquireByteBuffer(Math.max(BUFFER_SIZE, pendingSize));
+
+			if (pendingSize > 0)
+			{
+				buffer.put(pending);
+			}
+
+			// Kept in read mode: pending bytes are between position and limit
+			buffer.flip();
+		}
+
+		void register()
+				throws ClosedChannelException
+		{
+			if (key == null)
+			{
+				key = loop.register(channel, 0, this);
+			}
+			else
+			{
+				key.attach(this);
+			}
+		}
+
+		public void channelReady(final SelectionKey key)
+				throws IOException
+		{
+			if (key.isWritable())
+			{
+				flushPeer();
+			}
+
+			if (!closed && key.isReadable())
+			{
+				read();
+			}
+
+			if (!closed)
+			{
+				updateInterest();
+			}
+		}
+
+		public void close()
+		{
+			Tunnel.this.close();
+		}
+
+		/**
+		 * Reads from this side into its buffer and writes what it can to the
+		 * peer.
+		 */
+		private void read()
+				throws IOException
+		{
+			// Still waiting for the peer to take the last read
+			if (buffer.hasRemaining())
+			{
+				return;
+			}
+
+			buffer.clear();
+			final int read = channel.read(buffer);
+			buffer.flip();
+
+			if (read == -1)
+			{
+				Tunnel.this.close();
+				return;
+			}
+
+			if (read > 0)
+			{
+				lastActivity = System.nanoTime();
+
+				if (this == first)
+				{
+					metrics.addBytesIn(read);
+				}
+
+				peer.flushPeer();
+			}
+		}
+
+		/**
+		 * Writes the peer's pending bytes to this side's channel.
+		 */
+		void flushPeer()
+				throws IOException
+		{
+			if (peer.buffer.hasRemaining())
+			{
+				final int written = channel.write(peer.buffer);
+
+				if (written > 0)
+				{
+					lastActivity = System.nanoTime();
+
+					if (this == first)
+					{
+						metrics.addBytesOut(written);
+					}
+				}
+			}
+		}
+
+		void updateInterest()
+		{
+			if (!key.isValid())
+			{
+				return;
+			}
+
+			int ops = 0;
+
+			if (!buffer.hasRemaining())
+			{
+				ops |= SelectionKey.OP_READ;
+			}
+
+			if (peer.buffer.hasRemaining())
+			{
+				ops |= SelectionKey.OP_WRITE;
+			}
+
+			key.interestOps(ops);
+		}
+
+		void closeChannel()
+		{
+			if (key != null)
+			{
+				key.cancel();
+			}
+
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.DEBUG, "Error closing tunnel channel", e);
+			}
+
+			BufferPool.getDefault().release(buffer);
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+}
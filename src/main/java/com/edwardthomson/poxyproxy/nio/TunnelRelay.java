@@ -0,0 +1,127 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.edwardthomson.poxyproxy.IOUtils;
+import com.edwardthomson.poxyproxy.Options;
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+/**
+ * Relays CONNECT tunnels for the blocking engine on a few {@link EventLoop}
+ * threads, so an established tunnel holds no thread of its own. The blocking
+ * connection sets the tunnel up (and reads the CONNECT request) as usual, then
+ * hands both channels here.
+ */
+public class TunnelRelay
+{
+	private final static Logger logger = Logger.getLogger(TunnelRelay.class);
+
+	private final Options options;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+	private final AtomicLong tunnelCounter = new AtomicLong(0);
+
+	public TunnelRelay(final Options options)
+			throws IOException
+	{
+		this.options = options;
+
+		int threads = options.getEventLoopThreads();
+		if (threads <= 0)
+		{
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			loops[i] = new EventLoop("TunnelRelay-" + i);
+		}
+	}
+
+	/**
+	 * Starts the event loop threads.
+	 */
+	public void start()
+	{
+		for (EventLoop loop : loops)
+		{
+			final Thread thread = new Thread(loop, loop.getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		logger.write(LogLevel.INFO, "Started " + loops.length + " tunnel relay threads");
+	}
+
+	/**
+	 * Relays bytes between the two channels until either closes or the tunnel
+	 * is idle longer than the socket read timeout. The relay owns the channels
+	 * from now on; they are put in non-blocking mode and closed when the
+	 * tunnel ends.
+	 *
+	 * @param clientPending
+	 *        bytes already read from the client that must be sent to the
+	 *        server (may be <code>null</code>)
+	 * @param onClosed
+	 *        run once when the tunnel ends (may be <code>null</code>)
+	 */
+	public void relay(
+			final SocketChannel client,
+			final ByteBuffer clientPending,
+			final SocketChannel server,
+			final Runnable onClosed)
+	{
+		try
+		{
+			client.configureBlocking(false);
+			server.configureBlocking(false);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not start tunnel relay", e);
+			IOUtils.close(client.socket());
+			IOUtils.close(server.socket());
+
+			if (onClosed != null)
+			{
+				onClosed.run();
+			}
+
+			return;
+		}
+
+		final EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		final Tunnel tunnel = new Tunnel(
+				loop,
+				"Tunnel-" + tunnelCounter.incrementAndGet(),
+				client,
+				null,
+				clientPending,
+				server,
+				null,
+				null,
+				options.getSocketReadTimeoutSeconds() * 1000L,
+				options.getMetrics());
+		tunnel.setOnClosed(onClosed);
+
+		loop.execute(new Runnable()
+		{
+			public void run()
+			{
+				tunnel.start();
+			}
+		});
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BypassListTest
+{
+	@Test
+	public void domainMatchesWholeLabels()
+	{
+		final BypassList list = compile("example.com");
+
+		assertTrue(list.matches("example.com", null));
+		assertTrue(list.matches("www.example.com", null));
+		assertTrue(list.matches("WWW.Example.COM", null));
+		assertTrue(list.matches("example.com.", null));
+
+		assertFalse(list.matches("evil-example.com", null));
+		assertFalse(list.matches("ample.com", null));
+		assertFalse(list.matches("example.com.evil.org", null));
+		assertFalse(list.matches("example.org", null));
+	}
+
+	@Test
+	public void starMatchesSubdomainsOnly()
+	{
+		final BypassList list = compile("*.example.com");
+
+		assertTrue(list.matches("www.example.com", null));
+		assertTrue(list.matches("a.b.example.com", null));
+
+		assertFalse(list.matches("example.com", null));
+		assertFalse(list.matches("evil-example.com", null));
+	}
+
+	@Test
+	public void leadingDotMatchesSubdomainsOnly()
+	{
+		final BypassList list = compile(".example.com");
+
+		assertTrue(list.matches("www.example.com", null));
+		assertFalse(list.matches("example.com", null));
+		assertFalse(list.matches("wwwexample.com", null));
+	}
+
+	@Test
+	public void starLabelMatchesOneLabel()
+	{
+		final BypassList list = compile("www.*.example.com");
+
+		assertTrue(list.matches("www.eu.example.com", null));
+		assertFalse(list.matches("www.example.com", null));
+		assertFalse(list.matches("ftp.eu.example.com", null));
+	}
+
+	@Test
+	public void starAloneMatchesEveryName()
+	{
+		final BypassList list = compile("*");
+
+		assertTrue(list.matches("localhost", null));
+		assertTrue(list.matches("www.example.com", null));
+	}
+
+	@Test
+	public void defaultDomainAppliesToSingleLabels()
+	{
+		final BypassList list = compile("corp.example");
+
+		assertTrue(list.matches("intranet", "corp.example"));
+		assertTrue(list.matches("intranet", ".corp.example"));
+		assertFalse(list.matches("intranet", null));
+		assertFalse(list.matches("intranet", "other.example"));
+	}
+
+	@Test
+	public void addressMatchesExactly()
+	{
+		final BypassList list = compile("10.1.2.3,::1");
+
+		assertTrue(list.matches("10.1.2.3", null));
+		assertTrue(list.matches("[::1]", null));
+		assertFalse(list.matches("10.1.2.4", null));
+		assertFalse(list.matches("::2", null));
+	}
+
+	@Test
+	public void cidrMatchesNetwork()
+	{
+		final BypassList list = compile("10.0.0.0/8", "172.16.0.0/12", "fd00::/8");
+
+		assertTrue(list.matches("10.255.0.1", null));
+		assertTrue(list.matches("172.31.255.255", null));
+		assertTrue(list.matches("[fd12:3456::1]", null));
+
+		assertFalse(list.matches("11.0.0.1", null));
+		assertFalse(list.matches("172.32.0.1", null));
+		assertFalse(list.matches("fe80::1", null));
+	}
+
+	@Test
+	public void starOctetsMatchNetwork()
+	{
+		final BypassList list = compile("192.168.*");
+
+		assertTrue(list.matches("192.168.5.6", null));
+		assertFalse(list.matches("192.169.0.1", null));
+
+		// Names aren't addresses
+		assertFalse(list.matches("192.168.example.com", null));
+	}
+
+	@Test
+	public void emptyMatchesNothing()
+	{
+		assertFalse(BypassList.EMPTY.matches("example.com", null));
+		assertFalse(compile("example.com").matches(null, null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidPrefixLength()
+	{
+		compile("10.0.0.0/99");
+	}
+
+	private static BypassList compile(final String... entries)
+	{
+		return BypassList.compile(Arrays.asList(entries));
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+public class HttpInputStreamTest
+{
+    @BeforeClass
+    public static void setUpLogging()
+    {
+        Logger.setLevel(LogLevel.ERROR);
+    }
+
+    @Test
+    public void readsCrlfAndLfLines()
+        throws IOException
+    {
+        final HttpInputStream in = stream("first\r\nsecond\nthird\r\n\r\n", 8);
+
+        assertLine(in, "first");
+        assertLine(in, "second");
+        assertLine(in, "third");
+        assertLine(in, "");
+        assertFalse(in.readLine());
+    }
+
+    @Test
+    public void keepsLoneCrInLine()
+        throws IOException
+    {
+        final HttpInputStream in = stream("a\rb\r\n", 8);
+
+        assertLine(in, "a\rb");
+    }
+
+    @Test
+    public void readsLinesLongerThanBuffer()
+        throws IOException
+    {
+        final String line = "GET http://www.example.com/a/fairly/long/path HTTP/1.1";
+        final HttpInputStream in = stream(line + "\r\nnext\r\n", 4);
+
+        assertLine(in, line);
+        assertLine(in, "next");
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnPartialLine()
+        throws IOException
+    {
+        stream("no terminator", 8).readLine();
+    }
+
+    @Test
+    public void readsBodyAfterLine()
+        throws IOException
+    {
+        final HttpInputStream in = stream("line\r\nbody", 8);
+
+        assertLine(in, "line");
+
+        // Buffered bytes first, then the rest from the underlying stream
+        final byte[] body = new byte[4];
+        int read = 0;
+        while (read < body.length)
+        {
+            final int count = in.read(body, read, body.length - read);
+            assertTrue(count > 0);
+            read += count;
+        }
+
+        assertEquals("body", new String(body, StandardCharsets.ISO_8859_1));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void readsTrimmedHeaders()
+        throws IOException
+    {
+        final HttpInputStream in = stream("Host:  example.com \r\nX-Empty:\r\n  Spaced  : v\r\n\r\nbody", 8);
+        final List<Header> headers = in.readHeaders();
+
+        assertEquals(3, headers.size());
+        assertEquals(new Header("Host", "example.com"), headers.get(0));
+        assertEquals(new Header("X-Empty", ""), headers.get(1));
+        assertEquals(new Header("Spaced", "v"), headers.get(2));
+        assertEquals('b', in.read());
+    }
+
+    @Test
+    public void rejectsHeaderWithoutSeparator()
+        throws IOException
+    {
+        try
+        {
+            stream("Host example.com\r\n\r\n", 8).readHeaders();
+            fail("Accepted a header without a colon");
+        }
+        catch (HTTPException e)
+        {
+            assertEquals(400, e.getStatus());
+        }
+    }
+
+    @Test
+    public void startsWithLooksAhead()
+        throws IOException
+    {
+        final HttpInputStream in = stream("PRI * HTTP/2.0\r\n", 4);
+
+        assertTrue(in.startsWith("PRI".getBytes(StandardCharsets.ISO_8859_1)));
+        assertFalse(in.startsWith("GET".getBytes(StandardCharsets.ISO_8859_1)));
+        assertLine(in, "PRI * HTTP/2.0");
+    }
+
+    @Test
+    public void acceptsLineAtLimit()
+        throws IOException
+    {
+        // The limit counts a CR before the LF
+        final HttpInputStream in = limited(repeat('a', 32) + "\n" + repeat('b', 31) + "\r\n", 32, 1024, 10);
+
+        assertLine(in, repeat('a', 32));
+        assertLine(in, repeat('b', 31));
+    }
+
+    @Test
+    public void rejectsLongRequestLineAsUriTooLong()
+        throws IOException
+    {
+        final HttpInputStream in = limited("GET /" + repeat('a', 64) + " HTTP/1.1\r\n", 32, 1024, 10);
+
+        assertTooLarge(in, false, Status.URI_TOO_LONG);
+    }
+
+    @Test
+    public void rejectsLongUnterminatedLine()
+        throws IOException
+    {
+        // Without waiting for the end of a line that is already too long
+        final HttpInputStream in = limited(repeat('a', 64), 32, 1024, 10);
+
+        assertTooLarge(in, false, Status.URI_TOO_LONG);
+    }
+
+    @Test
+    public void rejectsLongHeaderLine()
+        throws IOException
+    {
+        final HttpInputStream in = limited("X-Long: " + repeat('a', 64) + "\r\n\r\n", 32, 1024, 10);
+
+        assertTooLarge(in, true, Status.REQUEST_HEADER_FIELDS_TOO_LARGE);
+    }
+
+    @Test
+    public void rejectsTooManyHeaders()
+        throws IOException
+    {
+        final StringBuilder head = new StringBuilder();
+        for (int i = 0; i < 4; i++)
+        {
+            head.append("X-").append(i).append(": v\r\n");
+        }
+        head.append("\r\n");
+
+        assertEquals(4, limited(head.toString(), 32, 1024, 4).readHeaders().size());
+        assertTooLarge(limited(head.toString(), 32, 1024, 3), true, Status.REQUEST_HEADER_FIELDS_TOO_LARGE);
+    }
+
+    @Test
+    public void rejectsLargeHead()
+        throws IOException
+    {
+        final StringBuilder head = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+        {
+            head.append("X-").append(i).append(": ").append(repeat('v', 20)).append("\r\n");
+        }
+        head.append("\r\n");
+
+        assertEquals(10, limited(head.toString(), 32, 1024, 100).readHeaders().size());
+        assertTooLarge(limited(head.toString(), 32, 200, 100), true, Status.REQUEST_HEADER_FIELDS_TOO_LARGE);
+    }
+
+    @Test
+    public void refusesGrowthOverBudget()
+        throws IOException
+    {
+        final Options options = options(1024, 4096, 100);
+        options.setMaxHeadBufferBytes(8);
+
+        final HttpInputStream in = new HttpInputStream(
+            new ByteArrayInputStream(("X-Long: " + repeat('a', 64) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)),
+            16);
+        in.setLimits(options);
+
+        try
+        {
+            in.readHeaders();
+            fail("Grew past the budget");
+        }
+        catch (HTTPException e)
+        {
+            assertEquals(Status.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void releasesBudget()
+        throws IOException
+    {
+        final Options options = options(1024, 4096, 100);
+        final HttpInputStream in = new HttpInputStream(
+            new ByteArrayInputStream(("X-Long: " + repeat('a', 64) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)),
+            16);
+        in.setLimits(options);
+
+        in.readHeaders();
+        assertTrue(options.getHeadBufferBudget().getUsed() > 0);
+
+        in.release();
+        assertEquals(0, options.getHeadBufferBudget().getUsed());
+    }
+
+    private static void assertTooLarge(final HttpInputStream in, final boolean headers, final int status)
+        throws IOException
+    {
+        try
+        {
+            if (headers)
+            {
+                in.readHeaders();
+            }
+            else
+            {
+                in.readLine();
+            }
+
+            fail("Accepted a head over the limits");
+        }
+        catch (HeadTooLargeException e)
+        {
+            assertEquals(status, e.getStatus());
+        }
+    }
+
+    private static HttpInputStream limited(
+        final String s,
+        final int maxLineBytes,
+        final int maxHeadBytes,
+        final int maxHeaderCount)
+    {
+        final HttpInputStream in = stream(s, 16);
+        in.setLimits(options(maxLineBytes, maxHeadBytes, maxHeaderCount));
+        return in;
+    }
+
+    private static Options options(final int maxLineBytes, final int maxHeadBytes, final int maxHeaderCount)
+    {
+        final Options options = new Options();
+        options.setMaxHeaderLineBytes(maxLineBytes);
+        options.setMaxHeaderSizeBytes(maxHeadBytes);
+        options.setMaxHeaderCount(maxHeaderCount);
+        return options;
+    }
+
+    private static String repeat(final char c, final int count)
+    {
+        final StringBuilder s = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+        {
+            s.append(c);
+        }
+
+        return s.toString();
+    }
+
+    private static void assertLine(final HttpInputStream in, final String expected)
+        throws IOException
+    {
+        assertTrue(in.readLine());
+        assertEquals(expected, in.getLine());
+    }
+
+    private static HttpInputStream stream(final String s, final int bufferSize)
+    {
+        return new HttpInputStream(new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1)), bufferSize);
+    }
+}
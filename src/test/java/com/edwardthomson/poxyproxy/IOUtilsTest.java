@@ -0,0 +1,194 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+public class IOUtilsTest
+{
+    @BeforeClass
+    public static void setUpLogging()
+    {
+        Logger.setLevel(LogLevel.ERROR);
+    }
+
+    @Test
+    public void copiesChunks()
+        throws IOException
+    {
+        final String body = "5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n";
+
+        assertEquals(body, copyChunked(body));
+        assertEquals(body, copyChunkedPlain(body));
+    }
+
+    @Test
+    public void parsesHexSizes()
+        throws IOException
+    {
+        final String body = "A\r\n0123456789\r\n1f\r\n0123456789abcdef0123456789abcde\r\n0\r\n\r\n";
+
+        assertEquals(body, copyChunked(body));
+    }
+
+    @Test
+    public void ignoresWhitespaceAndExtensions()
+        throws IOException
+    {
+        final String body = "  5  \r\nhello\r\n3;name=value\r\nabc\r\n0 ; last\r\n\r\n";
+
+        assertEquals(body, copyChunked(body));
+    }
+
+    @Test
+    public void stopsAtLastChunk()
+        throws IOException
+    {
+        final HttpInputStream in = stream("3\r\nabc\r\n0\r\n\r\nNEXT");
+        IOUtils.copyChunkedStream(in, new ByteArrayOutputStream());
+
+        assertEquals('N', in.read());
+    }
+
+    @Test
+    public void rejectsInvalidSize()
+        throws IOException
+    {
+        assertInvalid("zz\r\nhello\r\n0\r\n\r\n");
+        assertInvalid("5x\r\nhello\r\n0\r\n\r\n");
+        assertInvalid("-5\r\nhello\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsMissingSize()
+        throws IOException
+    {
+        assertInvalid("\r\nhello\r\n0\r\n\r\n");
+        assertInvalid(";ext\r\nhello\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsOverflowingSize()
+        throws IOException
+    {
+        assertInvalid("10000000000000000\r\n");
+    }
+
+    @Test
+    public void limitsPlainStreamLinesByOptions()
+        throws IOException
+    {
+        final String line = "0123456789\r\n";
+
+        assertEquals("0123456789", IOUtils.readLine(plain(line), null));
+        assertTooLarge(() -> IOUtils.readLine(plain(line), options(8, 1024, 10)));
+    }
+
+    @Test
+    public void limitsPlainStreamHeadersByOptions()
+        throws IOException
+    {
+        final String head = "A: 1\r\nB: 2\r\nC: 3\r\n\r\n";
+
+        assertEquals(3, IOUtils.readHeaders(plain(head), options(64, 1024, 3)).size());
+        assertTooLarge(() -> IOUtils.readHeaders(plain(head), options(64, 1024, 2)));
+        assertTooLarge(() -> IOUtils.readHeaders(plain(head), options(64, 12, 10)));
+    }
+
+    @Test
+    public void limitsPlainStreamChunkSizeLinesByOptions()
+        throws IOException
+    {
+        final String body = "5;name=value\r\nhello\r\n0\r\n\r\n";
+
+        assertEquals(body, copyChunkedPlain(body));
+        assertTooLarge(() -> IOUtils.copyChunkedStream(plain(body), new ByteArrayOutputStream(), options(8, 1024, 10)));
+    }
+
+    private interface Read
+    {
+        void run()
+            throws IOException;
+    }
+
+    private static void assertTooLarge(final Read read)
+        throws IOException
+    {
+        try
+        {
+            read.run();
+            fail("Accepted a head over the limits");
+        }
+        catch (HeadTooLargeException e)
+        {
+            // Expected
+        }
+    }
+
+    private static Options options(final int maxLineBytes, final int maxHeadBytes, final int maxHeaderCount)
+    {
+        final Options options = new Options();
+        options.setMaxHeaderLineBytes(maxLineBytes);
+        options.setMaxHeaderSizeBytes(maxHeadBytes);
+        options.setMaxHeaderCount(maxHeaderCount);
+        return options;
+    }
+
+    private static InputStream plain(final String s)
+    {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void assertInvalid(final String body)
+        throws IOException
+    {
+        try
+        {
+            copyChunked(body);
+            fail("Accepted " + body);
+        }
+        catch (HTTPException e)
+        {
+            // Expected
+        }
+    }
+
+    private static String copyChunked(final String body)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copyChunkedStream(stream(body), out);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static String copyChunkedPlain(final String body)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final InputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1));
+        IOUtils.copyChunkedStream(in, out);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static HttpInputStream stream(final String s)
+    {
+        return new HttpInputStream(new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1)), 16);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.edwardthomson.poxyproxy.logger.LogLevel;
+import com.edwardthomson.poxyproxy.logger.Logger;
+
+public class TimingWheelTest
+{
+	@BeforeClass
+	public static void setUpLogging()
+	{
+		// As PoxyProxy does; the wheel logs tasks that fail
+		Logger.setLevel(LogLevel.ERROR);
+	}
+
+	@Test
+	public void runsAfterDelay()
+			throws Exception
+	{
+		final TimingWheel wheel = new TimingWheel(10, 16);
+		final CountDownLatch ran = new CountDownLatch(1);
+		final AtomicLong ranAt = new AtomicLong();
+
+		final long start = System.nanoTime();
+		wheel.schedule(new Runnable()
+		{
+			public void run()
+			{
+				ranAt.set(System.nanoTime());
+				ran.countDown();
+			}
+		}, 100);
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(ranAt.get() - start) >= 90);
+	}
+
+	@Test
+	public void waitsWholeTurnsForLongDelays()
+			throws Exception
+	{
+		// A turn is 40 ms, so the deadline is three turns and a bit away
+		final TimingWheel wheel = new TimingWheel(10, 4);
+		final CountDownLatch ran = new CountDownLatch(1);
+
+		wheel.schedule(countDown(ran), 150);
+
+		assertFalse(ran.await(80, TimeUnit.MILLISECONDS));
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void cancelledDoesNotRun()
+			throws Exception
+	{
+		final TimingWheel wheel = new TimingWheel(10, 16);
+		final CountDownLatch ran = new CountDownLatch(1);
+		final CountDownLatch other = new CountDownLatch(1);
+
+		final TimingWheel.Timeout timeout = wheel.schedule(countDown(ran), 50);
+		wheel.schedule(countDown(other), 50);
+
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+
+		// The other one in the same slot still runs
+		assertTrue(other.await(5, TimeUnit.SECONDS));
+		assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void cancelAfterRunningFails()
+			throws Exception
+	{
+		final TimingWheel wheel = new TimingWheel(10, 16);
+		final CountDownLatch ran = new CountDownLatch(1);
+
+		final TimingWheel.Timeout timeout = wheel.schedule(countDown(ran), 20);
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void runsEachOnce()
+			throws Exception
+	{
+		final TimingWheel wheel = new TimingWheel(5, 8);
+		final int count = 200;
+		final CountDownLatch ran = new CountDownLatch(count);
+		final AtomicInteger runs = new AtomicInteger();
+
+		for (int i = 0; i < count; i++)
+		{
+			wheel.schedule(new Runnable()
+			{
+				public void run()
+				{
+					runs.incrementAndGet();
+					ran.countDown();
+				}
+			}, i % 100);
+		}
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(count, runs.get());
+	}
+
+	@Test
+	public void failingTaskDoesNotStopWheel()
+			throws Exception
+	{
+		final TimingWheel wheel = new TimingWheel(10, 16);
+		final CountDownLatch ran = new CountDownLatch(1);
+
+		wheel.schedule(new Runnable()
+		{
+			public void run()
+			{
+				throw new IllegalStateException("Expected by the test");
+			}
+		}, 10);
+		wheel.schedule(countDown(ran), 50);
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	private static Runnable countDown(final CountDownLatch latch)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				latch.countDown();
+			}
+		};
+	}
+}
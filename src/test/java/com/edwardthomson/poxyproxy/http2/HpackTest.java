@@ -0,0 +1,234 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.http2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.edwardthomson.poxyproxy.Header;
+
+/**
+ * The header block examples of RFC 7541 Appendix C.
+ */
+public class HpackTest
+{
+	private static final List<Header> REQUEST_1 = headers(
+			":method", "GET",
+			":scheme", "http",
+			":path", "/",
+			":authority", "www.example.com");
+
+	private static final List<Header> REQUEST_2 = headers(
+			":method", "GET",
+			":scheme", "http",
+			":path", "/",
+			":authority", "www.example.com",
+			"cache-control", "no-cache");
+
+	private static final List<Header> REQUEST_3 = headers(
+			":method", "GET",
+			":scheme", "https",
+			":path", "/index.html",
+			":authority", "www.example.com",
+			"custom-key", "custom-value");
+
+	private static final List<Header> RESPONSE_1 = headers(
+			":status", "302",
+			"cache-control", "private",
+			"date", "Mon, 21 Oct 2013 20:13:21 GMT",
+			"location", "https://www.example.com");
+
+	private static final List<Header> RESPONSE_2 = headers(
+			":status", "307",
+			"cache-control", "private",
+			"date", "Mon, 21 Oct 2013 20:13:21 GMT",
+			"location", "https://www.example.com");
+
+	private static final List<Header> RESPONSE_3 = headers(
+			":status", "200",
+			"cache-control", "private",
+			"date", "Mon, 21 Oct 2013 20:13:22 GMT",
+			"location", "https://www.example.com",
+			"content-encoding", "gzip",
+			"set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+
+	@Test
+	public void decodesRequestsWithoutHuffman()
+			throws Exception
+	{
+		final HpackDecoder decoder = new HpackDecoder(4096);
+
+		// C.3
+		assertEquals(REQUEST_1, decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+		assertEquals(REQUEST_2, decode(decoder, "828684be58086e6f2d6361636865"));
+		assertEquals(REQUEST_3, decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+	}
+
+	@Test
+	public void decodesRequestsWithHuffman()
+			throws Exception
+	{
+		final HpackDecoder decoder = new HpackDecoder(4096);
+
+		// C.4
+		assertEquals(REQUEST_1, decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+		assertEquals(REQUEST_2, decode(decoder, "828684be5886a8eb10649cbf"));
+		assertEquals(REQUEST_3, decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+	}
+
+	@Test
+	public void decodesResponsesWithEviction()
+			throws Exception
+	{
+		// C.6, where the 256 byte table evicts entries
+		final HpackDecoder decoder = new HpackDecoder(256);
+
+		assertEquals(RESPONSE_1, decode(decoder,
+				"488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3"));
+		assertEquals(RESPONSE_2, decode(decoder, "4883640effc1c0bf"));
+		assertEquals(RESPONSE_3, decode(decoder,
+				"88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"));
+	}
+
+	@Test
+	public void encodesRequestsWithHuffman()
+	{
+		final HpackEncoder encoder = new HpackEncoder();
+
+		// C.4
+		assertEquals("828684418cf1e3c2e5f23a6ba0ab90f4ff", encode(encoder, REQUEST_1));
+		assertEquals("828684be5886a8eb10649cbf", encode(encoder, REQUEST_2));
+		assertEquals("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", encode(encoder, REQUEST_3));
+	}
+
+	@Test
+	public void encodedResponsesDecode()
+			throws Exception
+	{
+		final HpackEncoder encoder = new HpackEncoder();
+		encoder.setMaxTableSize(256);
+		final HpackDecoder decoder = new HpackDecoder(256);
+
+		for (List<Header> headers : Arrays.asList(RESPONSE_1, RESPONSE_2, RESPONSE_3, RESPONSE_1))
+		{
+			assertEquals(headers, decode(decoder, encode(encoder, headers)));
+		}
+	}
+
+	@Test
+	public void huffmanCodesString()
+			throws Exception
+	{
+		final byte[] plain = "www.example.com".getBytes(StandardCharsets.ISO_8859_1);
+		final byte[] coded = bytes("f1e3c2e5f23a6ba0ab90f4ff");
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Huffman.encode(plain, out);
+
+		assertArrayEquals(coded, out.toByteArray());
+		assertEquals(coded.length, Huffman.encodedLength(plain));
+		assertArrayEquals(plain, Huffman.decode(coded, 0, coded.length));
+	}
+
+	@Test
+	public void huffmanRoundTripsEveryByte()
+			throws Exception
+	{
+		final byte[] plain = new byte[256];
+		for (int i = 0; i < plain.length; i++)
+		{
+			plain[i] = (byte) i;
+		}
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Huffman.encode(plain, out);
+		final byte[] coded = out.toByteArray();
+
+		assertArrayEquals(plain, Huffman.decode(coded, 0, coded.length));
+	}
+
+	@Test
+	public void huffmanRejectsBadPadding()
+	{
+		// "w" is 7 bits; padding with zeros instead of the start of EOS
+		try
+		{
+			Huffman.decode(new byte[] { (byte) 0xf0 }, 0, 1);
+			fail("Padding with zeros was accepted");
+		}
+		catch (Http2Exception e)
+		{
+			assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void rejectsIndexOutsideTable()
+	{
+		try
+		{
+			decode(new HpackDecoder(4096), "be");
+			fail("Index of an empty dynamic table entry was accepted");
+		}
+		catch (Http2Exception e)
+		{
+			assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+		}
+	}
+
+	private static List<Header> decode(final HpackDecoder decoder, final String hex)
+			throws Http2Exception
+	{
+		final byte[] block = bytes(hex);
+		return decoder.decode(block, block.length);
+	}
+
+	private static String encode(final HpackEncoder encoder, final List<Header> headers)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.encode(headers, out);
+
+		final StringBuilder hex = new StringBuilder();
+		for (byte b : out.toByteArray())
+		{
+			hex.append(String.format("%02x", b & 0xff));
+		}
+
+		return hex.toString();
+	}
+
+	private static byte[] bytes(final String hex)
+	{
+		final byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+
+		return bytes;
+	}
+
+	private static List<Header> headers(final String... namesAndValues)
+	{
+		final List<Header> headers = new ArrayList<Header>();
+		for (int i = 0; i < namesAndValues.length; i += 2)
+		{
+			headers.add(new Header(namesAndValues[i], namesAndValues[i + 1]));
+		}
+
+		return headers;
+	}
+}
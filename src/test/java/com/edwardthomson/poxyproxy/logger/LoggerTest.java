@@ -0,0 +1,109 @@
+/*
+ * Poxy: a simple HTTP proxy for testing.
+ *
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ */
+
+package com.edwardthomson.poxyproxy.logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class LoggerTest
+{
+	@Test
+	public void throwableWithoutPlaceholderIsException()
+	{
+		final RecordingLogger logger = new RecordingLogger();
+		final IOException e = new IOException("closed");
+
+		logger.write(LogLevel.INFO, "Error closing socket", e);
+
+		assertNull(logger.args);
+		assertSame(e, logger.t);
+	}
+
+	@Test
+	public void throwableWithPlaceholderIsArgument()
+	{
+		final RecordingLogger logger = new RecordingLogger();
+		final IOException e = new IOException("closed");
+
+		logger.write(LogLevel.INFO, "Error closing socket: {}", e);
+
+		assertArrayEquals(new Object[] { e }, logger.args);
+		assertNull(logger.t);
+		assertEquals("Error closing socket: java.io.IOException: closed", logger.message());
+	}
+
+	@Test
+	public void trailingThrowableWithoutPlaceholderIsException()
+	{
+		final RecordingLogger logger = new RecordingLogger();
+		final IOException e = new IOException("closed");
+
+		logger.write(LogLevel.INFO, "Error closing {}", "socket", e);
+
+		assertArrayEquals(new Object[] { "socket" }, logger.args);
+		assertSame(e, logger.t);
+		assertEquals("Error closing socket", logger.message());
+	}
+
+	@Test
+	public void trailingThrowableWithPlaceholderIsArgument()
+	{
+		final RecordingLogger logger = new RecordingLogger();
+		final IOException e = new IOException("closed");
+
+		logger.write(LogLevel.INFO, "Error closing {}: {}", "socket", e);
+
+		assertArrayEquals(new Object[] { "socket", e }, logger.args);
+		assertNull(logger.t);
+	}
+
+	@Test
+	public void throwableNotLastIsArgument()
+	{
+		final RecordingLogger logger = new RecordingLogger();
+		final IOException e = new IOException("closed");
+
+		logger.write(LogLevel.INFO, "Error {}", e, "socket");
+
+		assertArrayEquals(new Object[] { e, "socket" }, logger.args);
+		assertNull(logger.t);
+	}
+
+	private static class RecordingLogger extends Logger
+	{
+		private String format;
+		private Object[] args;
+		private Throwable t;
+
+		@Override
+		public boolean isEnabled(LogLevel level)
+		{
+			return true;
+		}
+
+		@Override
+		protected void log(LogLevel level, String format, Object[] args, Throwable t)
+		{
+			this.format = format;
+			this.args = args;
+			this.t = t;
+		}
+
+		String message()
+		{
+			final StringBuilder out = new StringBuilder();
+			LogFormatter.appendMessage(out, format, args);
+			return out.toString();
+		}
+	}
+}